@@ -7,13 +7,18 @@ import gov.nasa.jpl.mbee.util.CompareUtils.GenericComparator;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.RecursiveAction;
 
 
 /**
@@ -109,7 +114,22 @@ public abstract class AbstractDiff<T,P,ID> implements Diff<T,P,ID> {
     }
 
     public void diff() {
-        // re-initialize members
+        initResults();
+
+        List< Set< ID > > mapDiff = Utils.diff( getMap1(), getMap2() );
+        
+        Set<ID> updatedIds = filterValues(mapDiff);
+        
+        for ( ID id : updatedIds ) {
+            recordObjectChanges( id, computeObjectChanges( id ) );
+        }
+    }
+
+    /**
+     * Re-initialize the members holding the results of {@link #diff()}.
+     */
+    protected void initResults() {
+        concurrentResults = false;
         added = newObjectSet();
         removed = newObjectSet();
         updated = newObjectSet();
@@ -119,52 +139,822 @@ public abstract class AbstractDiff<T,P,ID> implements Diff<T,P,ID> {
         addedProperties = new LinkedHashMap< ID, Map<ID,P> >();
         removedProperties = new LinkedHashMap< ID, Map<ID,P> >();
         updatedProperties = new LinkedHashMap< ID, Map<ID,Pair<P,P>> >();
+    }
+
+    /**
+     * The maximum number of IDs whose properties are diffed by one task of
+     * {@link #parallelDiff(boolean)}.
+     */
+    public static int parallelShardSize = 256;
 
+    // whether the results are in concurrent maps and sets, which don't allow nulls
+    protected boolean concurrentResults = false;
+
+    /**
+     * Diff the properties of a range of IDs, splitting the range when it is
+     * larger than {@link #parallelShardSize}. Results are either stored by
+     * index for an ordered merge or recorded directly in concurrent maps.
+     */
+    protected static class DiffShard< T, P, ID > extends RecursiveAction {
+        private static final long serialVersionUID = -5346420791302526466L;
+
+        protected final AbstractDiff< T, P, ID > aDiff;
+        protected final List< ID > ids;
+        protected final List< ObjectChanges< P, ID > > results;  // null to record directly
+        protected final int lo, hi, shardSize;
+
+        protected DiffShard( AbstractDiff< T, P, ID > aDiff, List< ID > ids,
+                             List< ObjectChanges< P, ID > > results, int lo, int hi,
+                             int shardSize ) {
+            this.aDiff = aDiff;
+            this.ids = ids;
+            this.results = results;
+            this.lo = lo;
+            this.hi = hi;
+            this.shardSize = shardSize;
+        }
+
+        @Override
+        protected void compute() {
+            if ( hi - lo <= shardSize ) {
+                for ( int i = lo; i < hi; ++i ) {
+                    ID id = ids.get( i );
+                    ObjectChanges< P, ID > changes = aDiff.computeObjectChanges( id );
+                    if ( results != null ) {
+                        // each task sets its own indices, and invoke() waits
+                        // for all of them
+                        results.set( i, changes );
+                    } else if ( id != null ) {
+                        aDiff.recordObjectChanges( id, changes );
+                    }
+                }
+                return;
+            }
+            int mid = ( lo + hi ) >>> 1;
+            invokeAll( new DiffShard< T, P, ID >( aDiff, ids, results, lo, mid, shardSize ),
+                       new DiffShard< T, P, ID >( aDiff, ids, results, mid, hi, shardSize ) );
+        }
+    }
+
+    /**
+     * Compute the same results as {@link #diff()}, diffing the properties of
+     * shards of the IDs in parallel in the {@link Utils#getForkJoinPool() pool}.
+     * The implementations of the abstract methods, such as
+     * {@link #getProperties(Object, boolean)} and
+     * {@link #sameProperty(Object, Object)}, must be safe to call from
+     * multiple threads.
+     *
+     * @param preserveOrder
+     *            if true, the results are merged in the same order as
+     *            {@link #diff()} would insert them; otherwise, they are
+     *            recorded as they are computed in concurrent maps and sets,
+     *            which do not keep an insertion order and leave out null IDs
+     *            and objects
+     */
+    public void parallelDiff( boolean preserveOrder ) {
+        // Build the ID maps before the workers would race to build them.
         List< Set< ID > > mapDiff = Utils.diff( getMap1(), getMap2() );
-        
-        Set<ID> updatedIds = filterValues(mapDiff);
-        
-        for ( ID id : updatedIds ) {
-            mapDiff = diffProperties( id );
-            Set<ID> addedPropIds = mapDiff.get( 0 );
-            Set<ID> removedPropIds = mapDiff.get( 1 );
-            Set<ID> updatedPropIds = mapDiff.get( 2 );
-
-            LinkedHashMap< ID, P > addedProps = new LinkedHashMap< ID, P >();
-            addedProperties.put( id, addedProps );
-            LinkedHashMap< ID, P > removedProps = new LinkedHashMap< ID, P >();
-            removedProperties.put( id, removedProps  );
-            LinkedHashMap< ID, Pair<P,P> > updatedProps = new LinkedHashMap< ID, Pair<P,P> >();
-            updatedProperties.put( id, updatedProps  );
-            LinkedHashMap< ID, Pair<P,P> > propChanges = new LinkedHashMap< ID, Pair<P,P> >();
-            propertyChanges.put( id, propChanges );
-
-            for ( ID pid : addedPropIds ) {
-                P p1 = get1( id, pid );
-                P p2 = get2( id, pid );
-                propChanges.put( pid, new Pair< P, P >( p1, p2 ) );
-                addedProps.put( pid, p2 );
+        List< ID > ids = new ArrayList< ID >( filterValues( mapDiff ) );
+
+        List< ObjectChanges< P, ID > > results = null;
+        if ( preserveOrder ) {
+            initResults();
+            results = new ArrayList< ObjectChanges< P, ID > >(
+                    Collections.< ObjectChanges< P, ID > >nCopies( ids.size(), null ) );
+        } else {
+            concurrentResults = true;
+            added = newConcurrentObjectSet();
+            removed = newConcurrentObjectSet();
+            updated = newConcurrentObjectSet();
+            propertyChanges = new ConcurrentHashMap< ID, Map<ID,Pair<P,P>> >();
+            addedProperties = new ConcurrentHashMap< ID, Map<ID,P> >();
+            removedProperties = new ConcurrentHashMap< ID, Map<ID,P> >();
+            updatedProperties = new ConcurrentHashMap< ID, Map<ID,Pair<P,P>> >();
+        }
+
+        if ( !ids.isEmpty() ) {
+            int shardSize = Math.max( 1, parallelShardSize );
+            Utils.getForkJoinPool().invoke( new DiffShard< T, P, ID >( this, ids, results, 0,
+                                                                       ids.size(), shardSize ) );
+        }
+
+        if ( preserveOrder ) {
+            for ( int i = 0; i < ids.size(); ++i ) {
+                recordObjectChanges( ids.get( i ), results.get( i ) );
             }
-            if ( !ignoreRemovedProperties ) {
-                for ( ID pid : removedPropIds ) {
-                    P p1 = get1( id, pid );
-                    P p2 = get2( id, pid );
-                    propChanges.put( pid, new Pair< P, P >( p1, p2 ) );
-                    removedProps.put( pid, p1 );
+        }
+    }
+
+    protected Set<T> newConcurrentObjectSet() {
+        if ( getObjectComparator() == null ) {
+            return Collections.newSetFromMap( new ConcurrentHashMap< T, Boolean >() );
+        }
+        return new ConcurrentSkipListSet< T >( getObjectComparator() );
+    }
+
+    /**
+     * Compare the properties of the two versions of the object with the
+     * given ID.
+     *
+     * @param id
+     * @return the property changes or null if there are none
+     */
+    protected ObjectChanges< P, ID > computeObjectChanges( ID id ) {
+        if ( useFingerprints && sameFingerprint( id, get1( id ), get2( id ) ) ) {
+            return null;
+        }
+        List< Set< ID > > mapDiff = diffProperties( id );
+        ObjectChanges< P, ID > changes = new ObjectChanges< P, ID >();
+        for ( ID pid : mapDiff.get( 0 ) ) {
+            if ( changes.addedProperties == null ) {
+                changes.addedProperties = new LinkedHashMap< ID, P >();
+            }
+            changes.addedProperties.put( pid, get2( id, pid ) );
+        }
+        if ( !ignoreRemovedProperties ) {
+            for ( ID pid : mapDiff.get( 1 ) ) {
+                if ( changes.removedProperties == null ) {
+                    changes.removedProperties = new LinkedHashMap< ID, P >();
                 }
+                changes.removedProperties.put( pid, get1( id, pid ) );
+            }
+        }
+        for ( ID pid : mapDiff.get( 2 ) ) {
+            if ( changes.updatedProperties == null ) {
+                changes.updatedProperties = new LinkedHashMap< ID, Pair< P, P > >();
             }
-            for ( ID pid : updatedPropIds ) {
-                P p1 = get1( id, pid );
-                P p2 = get2( id, pid );
+            changes.updatedProperties.put( pid, new Pair< P, P >( get1( id, pid ),
+                                                                  get2( id, pid ) ) );
+        }
+        return changes.isEmpty() ? null : changes;
+    }
+
+    /**
+     * Save the property changes of an object in the member variables as
+     * {@link #diff()} does, with an entry, possibly empty, in each of the
+     * property maps for the ID.
+     *
+     * @param id
+     * @param changes
+     *            the changes or null if there are none
+     */
+    protected void recordObjectChanges( ID id, ObjectChanges< P, ID > changes ) {
+        Map< ID, P > addedProps = null;
+        Map< ID, P > removedProps = null;
+        Map< ID, Pair< P, P > > updatedProps = null;
+        if ( changes != null ) {
+            addedProps = changes.addedProperties;
+            removedProps = changes.removedProperties;
+            updatedProps = changes.updatedProperties;
+        }
+        if ( addedProps == null ) addedProps = new LinkedHashMap< ID, P >();
+        if ( removedProps == null ) removedProps = new LinkedHashMap< ID, P >();
+        if ( updatedProps == null ) updatedProps = new LinkedHashMap< ID, Pair< P, P > >();
+        LinkedHashMap< ID, Pair<P,P> > propChanges = new LinkedHashMap< ID, Pair<P,P> >();
+        for ( Map.Entry< ID, P > e : addedProps.entrySet() ) {
+            propChanges.put( e.getKey(), new Pair< P, P >( null, e.getValue() ) );
+        }
+        for ( Map.Entry< ID, P > e : removedProps.entrySet() ) {
+            propChanges.put( e.getKey(), new Pair< P, P >( e.getValue(), null ) );
+        }
+        for ( Map.Entry< ID, Pair< P, P > > e : updatedProps.entrySet() ) {
+            propChanges.put( e.getKey(), new Pair< P, P >( e.getValue().first,
+                                                           e.getValue().second ) );
+        }
+        addedProperties.put( id, addedProps );
+        removedProperties.put( id, removedProps );
+        updatedProperties.put( id, updatedProps );
+        propertyChanges.put( id, propChanges );
+        if ( changes != null ) {
+            // diff() adds null for a removed object, but concurrent sets can't.
+            T t2 = get2( id );
+            if ( t2 != null || !concurrentResults ) updated.add( t2 );
+        }
+    }
+
+    /**
+     * Add or replace an object in the first set and update the diff for its
+     * ID only. The diff results must not be modified concurrently. An updated
+     * ID moves to the end of the property change maps.
+     *
+     * @param t1
+     */
+    public void upsert1( T t1 ) {
+        upsert( t1, true );
+    }
+
+    /**
+     * Add or replace an object in the second set and update the diff for its
+     * ID only.
+     *
+     * @param t2
+     * @see #upsert1(Object)
+     */
+    public void upsert2( T t2 ) {
+        upsert( t2, false );
+    }
+
+    /**
+     * Remove the object with the given ID from the first set and update the
+     * diff for the ID only.
+     *
+     * @param tid
+     * @see #upsert1(Object)
+     */
+    public void delete1( ID tid ) {
+        delete( tid, true );
+    }
+
+    /**
+     * Remove the object with the given ID from the second set and update the
+     * diff for the ID only.
+     *
+     * @param tid
+     * @see #upsert1(Object)
+     */
+    public void delete2( ID tid ) {
+        delete( tid, false );
+    }
+
+    protected void upsert( T t, boolean isSet1 ) {
+        if ( t == null ) return;
+        ID id = getId( t );
+        T oldT2 = get2( id );
+        T old = isSet1 ? get1( id ) : oldT2;
+        forgetFingerprint( id, isSet1 );
+        ( isSet1 ? getMap1() : getMap2() ).put( id, t );
+        Set< T > set = isSet1 ? set1 : set2;
+        if ( set != null ) {
+            if ( old != null ) set.remove( old );
+            set.add( t );
+        }
+        updateDiff( id, oldT2 );
+    }
+
+    protected void delete( ID id, boolean isSet1 ) {
+        if ( id == null ) return;
+        T oldT2 = get2( id );
+        forgetFingerprint( id, isSet1 );
+        T old = ( isSet1 ? getMap1() : getMap2() ).remove( id );
+        Set< T > set = isSet1 ? set1 : set2;
+        if ( set != null && old != null ) set.remove( old );
+        updateDiff( id, oldT2 );
+    }
+
+    /**
+     * Update the diff after the properties of the object with the given ID
+     * were changed in place, in either set.
+     *
+     * @param tid
+     */
+    public void objectChanged( ID tid ) {
+        if ( tid == null ) return;
+        forgetFingerprint( tid, true );
+        forgetFingerprint( tid, false );
+        updateDiff( tid, get2( tid ) );
+    }
+
+    /**
+     * Update the diff after one property of the object with the given ID was
+     * added, removed, or changed in place, in either set. Only that property
+     * is compared unless the change affects whether the objects are equal.
+     *
+     * @param tid
+     *            the ID of the object
+     * @param pid
+     *            the ID of the property
+     */
+    public void propertyChanged( ID tid, ID pid ) {
+        if ( tid == null || pid == null ) return;
+        forgetFingerprint( tid, true );
+        forgetFingerprint( tid, false );
+        if ( propertyChanges == null ) return;  // not computed yet
+        T t1 = get1( tid );
+        T t2 = get2( tid );
+        Map< ID, P > addedProps = addedProperties.get( tid );
+        Map< ID, P > removedProps = removedProperties.get( tid );
+        Map< ID, Pair< P, P > > updatedProps = updatedProperties.get( tid );
+        Map< ID, Pair< P, P > > propChanges = propertyChanges.get( tid );
+        if ( t1 == null || t2 == null || t1 == t2 || t1.equals( t2 )
+             || addedProps == null || removedProps == null
+             || updatedProps == null || propChanges == null ) {
+            updateDiff( tid, t2 );
+            return;
+        }
+        boolean wasUpdated =
+                !addedProps.isEmpty() || !removedProps.isEmpty() || !updatedProps.isEmpty();
+        addedProps.remove( pid );
+        removedProps.remove( pid );
+        updatedProps.remove( pid );
+        propChanges.remove( pid );
+        if ( !getPropertyIdsToIgnore().contains( pid ) ) {
+            P p1 = get1( tid, pid );
+            P p2 = get2( tid, pid );
+            if ( p1 == null && p2 != null ) {
+                addedProps.put( pid, p2 );
                 propChanges.put( pid, new Pair< P, P >( p1, p2 ) );
+            } else if ( p1 != null && p2 == null ) {
+                if ( !ignoreRemovedProperties ) {
+                    removedProps.put( pid, p1 );
+                    propChanges.put( pid, new Pair< P, P >( p1, p2 ) );
+                }
+            } else if ( p1 != p2 && !p1.equals( p2 ) && !sameProperty( p1, p2 ) ) {
                 updatedProps.put( pid, new Pair< P, P >( p1, p2 ) );
+                propChanges.put( pid, new Pair< P, P >( p1, p2 ) );
             }
-            if ( !addedProps.isEmpty() || !removedProps.isEmpty() || !updatedProps.isEmpty() ) {
-                updated.add( get2( id ) );
+        }
+        // Remove and re-add t2 in case the change affected its hash code.
+        if ( wasUpdated ) removeUpdated( t2 );
+        if ( !addedProps.isEmpty() || !removedProps.isEmpty() || !updatedProps.isEmpty() ) {
+            updated.add( t2 );
+        }
+    }
+
+    protected static boolean isNullOrEmpty( Map< ?, ? > map ) {
+        return map == null || map.isEmpty();
+    }
+
+    /**
+     * Remove an object from the updated objects, even if a change made in
+     * place changed its hash code or its order.
+     */
+    protected void removeUpdated( T t2 ) {
+        if ( updated.remove( t2 ) ) return;
+        // The set can't find it where it was put, so rebuild the set.
+        List< T > others = new ArrayList< T >( updated.size() );
+        boolean found = false;
+        for ( T t : updated ) {
+            if ( t == t2 ) found = true;
+            else others.add( t );
+        }
+        if ( !found ) return;
+        updated.clear();
+        updated.addAll( others );
+    }
+
+    /**
+     * Recompute the diff for one ID after an object with the ID was added,
+     * removed, or changed. Nothing is done if the diff has not been computed
+     * since it will be computed from the current objects when needed.
+     *
+     * @param id
+     * @param oldT2
+     *            the object with the ID in the second set before the change,
+     *            which is removed from the updated objects
+     */
+    protected void updateDiff( ID id, T oldT2 ) {
+        if ( propertyChanges == null ) return;
+        propertyChanges.remove( id );
+        boolean wasUpdated = !isNullOrEmpty( addedProperties.remove( id ) )
+                             | !isNullOrEmpty( removedProperties.remove( id ) )
+                             | !isNullOrEmpty( updatedProperties.remove( id ) );
+        if ( wasUpdated && oldT2 != null ) removeUpdated( oldT2 );
+
+        if ( isDiffed( id ) ) {
+            recordObjectChanges( id, computeObjectChanges( id ) );
+        }
+    }
+
+    /**
+     * @param id
+     * @return whether {@link #diff()} would diff the properties of the
+     *         objects with the ID, that is, whether the ID is added, removed,
+     *         or updated according to Utils.diff( getMap1(), getMap2() ) and
+     *         {@link #filterValues(List)} keeps it
+     */
+    protected boolean isDiffed( ID id ) {
+        Map< ID, T > m1 = getMap1();
+        Map< ID, T > m2 = getMap2();
+        boolean c1 = m1.containsKey( id );
+        boolean c2 = m2.containsKey( id );
+        if ( c1 && c2 ) {
+            T t1 = m1.get( id );
+            T t2 = m2.get( id );
+            return isKept( id, t1 != t2 && ( t1 == null || !t1.equals( t2 ) ) ? 2 : -1 );
+        }
+        return isKept( id, c2 ? 0 : c1 ? 1 : -1 );
+    }
+
+    /**
+     * @param id
+     * @param kind
+     *            the index of the set that the ID would be in in the result
+     *            of Utils.diff(), 0 if added, 1 if removed, or 2 if updated,
+     *            or -1 if it would be in none
+     * @return whether {@link #filterValues(List)} keeps the ID when it is the
+     *         only one
+     */
+    protected boolean isKept( ID id, int kind ) {
+        List< Set< ID > > mapDiff = new ArrayList< Set< ID > >( 3 );
+        for ( int i = 0; i < 3; ++i ) {
+            Set< ID > ids = new LinkedHashSet< ID >();
+            if ( i == kind ) ids.add( id );
+            mapDiff.add( ids );
+        }
+        return filterValues( mapDiff ).contains( id );
+    }
+
+    /**
+     * The property changes of one object. A map is only allocated for a kind
+     * of change that occurred, so the others are null.
+     */
+    protected static class ObjectChanges< P, ID > {
+        public Map< ID, P > addedProperties = null;
+        public Map< ID, P > removedProperties = null;
+        public Map< ID, Pair< P, P > > updatedProperties = null;
+
+        public boolean isEmpty() {
+            return addedProperties == null && removedProperties == null
+                   && updatedProperties == null;
+        }
+    }
+
+    /**
+     * Compare the properties of two versions of an object.
+     *
+     * @param t1
+     *            the object in the first set
+     * @param t2
+     *            the object in the second set
+     * @return the property changes or null if there are none
+     */
+    protected ObjectChanges< P, ID > computeObjectChanges( T t1, T t2 ) {
+        if ( useFingerprints && t1 != null
+             && sameFingerprint( getId( t1 ), t1, t2 ) ) {
+            return null;
+        }
+        Map< ID, P > properties1 = getPropertyMap( t1, true );
+        Map< ID, P > properties2 = getPropertyMap( t2, false );
+        List< Set< ID > > mapDiff = diffProperties( this, properties1, properties2 );
+        if ( mapDiff == null || mapDiff.size() < 3 ) return null;
+        ObjectChanges< P, ID > changes = new ObjectChanges< P, ID >();
+        for ( ID pid : mapDiff.get( 0 ) ) {
+            if ( changes.addedProperties == null ) {
+                changes.addedProperties = new LinkedHashMap< ID, P >();
+            }
+            changes.addedProperties.put( pid, properties2.get( pid ) );
+        }
+        if ( !ignoreRemovedProperties ) {
+            for ( ID pid : mapDiff.get( 1 ) ) {
+                if ( changes.removedProperties == null ) {
+                    changes.removedProperties = new LinkedHashMap< ID, P >();
+                }
+                changes.removedProperties.put( pid, properties1.get( pid ) );
+            }
+        }
+        for ( ID pid : mapDiff.get( 2 ) ) {
+            if ( changes.updatedProperties == null ) {
+                changes.updatedProperties = new LinkedHashMap< ID, Pair< P, P > >();
+            }
+            changes.updatedProperties.put( pid, new Pair< P, P >( properties1.get( pid ),
+                                                                  properties2.get( pid ) ) );
+        }
+        return changes.isEmpty() ? null : changes;
+    }
+
+    /**
+     * Whether to skip comparing the properties of two versions of an object
+     * when their {@link #getFingerprint(Object, Object, boolean)
+     * fingerprints} are the same and both are exact, that is, computed from
+     * the content of every property; see {@link #propertyHash(Object)}.
+     * Other objects are compared as usual. Fingerprints are cached by ID for each set
+     * and recomputed when the object with the ID is replaced or reported as
+     * changed through {@link #objectChanged(Object)} or
+     * {@link #propertyChanged(Object, Object)}. If objects are changed in
+     * place without being reported, call {@link #clearFingerprints()}.
+     */
+    public boolean useFingerprints = false;
+
+    /**
+     * A fingerprint cached for the object it was computed from.
+     */
+    protected static class Fingerprint {
+        protected final Object object;
+        protected final long hash;
+        // whether every property ID and value was hashed by content
+        protected final boolean exact;
+
+        protected Fingerprint( Object object, long hash, boolean exact ) {
+            this.object = object;
+            this.hash = hash;
+            this.exact = exact;
+        }
+    }
+
+    protected final ConcurrentHashMap< ID, Fingerprint > fingerprints1 =
+            new ConcurrentHashMap< ID, Fingerprint >();
+    protected final ConcurrentHashMap< ID, Fingerprint > fingerprints2 =
+            new ConcurrentHashMap< ID, Fingerprint >();
+
+    /**
+     * @return whether t1 and t2 have the same exact fingerprint, in which
+     *         case their properties are taken to be the same
+     */
+    protected boolean sameFingerprint( ID id, T t1, T t2 ) {
+        if ( t1 == null || t2 == null ) return false;
+        Fingerprint fp1 = fingerprint( id, t1, true );
+        if ( !fp1.exact ) return false;
+        Fingerprint fp2 = fingerprint( id, t2, false );
+        return fp2.exact && fp1.hash == fp2.hash;
+    }
+
+    /**
+     * @param id
+     *            the ID of t, under which the fingerprint is cached
+     * @param t
+     * @param isSet1
+     *            whether t is from the first set
+     * @return the cached fingerprint of t's properties, computing it if it is
+     *         not cached for t
+     */
+    public long getFingerprint( ID id, T t, boolean isSet1 ) {
+        return fingerprint( id, t, isSet1 ).hash;
+    }
+
+    /**
+     * @return whether the fingerprint of t was computed from the content of
+     *         every property, so that equal fingerprints may be trusted
+     */
+    public boolean isExactFingerprint( ID id, T t, boolean isSet1 ) {
+        return fingerprint( id, t, isSet1 ).exact;
+    }
+
+    protected Fingerprint fingerprint( ID id, T t, boolean isSet1 ) {
+        if ( id == null ) return computeFingerprint( t, isSet1 );
+        ConcurrentHashMap< ID, Fingerprint > cache = isSet1 ? fingerprints1 : fingerprints2;
+        Fingerprint fp = cache.get( id );
+        if ( fp == null || fp.object != t ) {
+            fp = computeFingerprint( t, isSet1 );
+            cache.put( id, fp );
+        }
+        return fp;
+    }
+
+    /**
+     * Compute a 64-bit hash of the properties of an object that does not
+     * depend on their order. Each property's ID and value are hashed by
+     * content with {@link #contentHash(Object)} and
+     * {@link #propertyHash(Object)}, mixed together with
+     * {@link #mix64(long)}, and the results are summed. The fingerprint is
+     * exact only if every ID and value could be hashed by content; a
+     * fingerprint built on hashCode() could match for different values, as
+     * "Aa" and "BB" do.
+     *
+     * @param t
+     * @param isSet1
+     * @return the fingerprint
+     */
+    protected Fingerprint computeFingerprint( T t, boolean isSet1 ) {
+        Map< ID, P > properties = getPropertyMap( t, isSet1 );
+        long hash = mix64( properties.size() );
+        boolean exact = true;
+        for ( Map.Entry< ID, P > e : properties.entrySet() ) {
+            long h = contentHash( e.getKey() );
+            long v = propertyHash( e.getValue() );
+            if ( h == noContentHash || v == noContentHash ) {
+                exact = false;
+                h = e.getKey() == null ? 0 : e.getKey().hashCode();
+                v = e.getValue() == null ? 0 : e.getValue().hashCode();
+            }
+            hash += mix64( mix64( h ) ^ v );
+        }
+        return new Fingerprint( t, hash, exact );
+    }
+
+    /**
+     * @param p
+     * @return a hash of the content of the property's value, equal for
+     *         values that are equal, or {@link #noContentHash} if the value
+     *         cannot be hashed by content; override this for property types
+     *         that {@link #contentHash(Object)} does not know
+     */
+    protected long propertyHash( P p ) {
+        return contentHash( p );
+    }
+
+    /**
+     * The value of {@link #contentHash(Object)} for an object that it cannot
+     * hash by content.
+     */
+    public static final long noContentHash = Long.MIN_VALUE;
+
+    /**
+     * A 64-bit hash of the content of a value: null, a String, a boxed
+     * primitive, an enum constant, or a List, Set or Map of these. Unlike
+     * hashCode(), distinct values collide with a chance of about 2^-64.
+     *
+     * @param o
+     * @return the hash, or {@link #noContentHash} if o or something in it is
+     *         of another type
+     */
+    public static long contentHash( Object o ) {
+        long h;
+        if ( o == null ) {
+            h = 0x5bd1e995L;
+        } else if ( o instanceof String ) {
+            h = stringHash( 1, (String)o );
+        } else if ( o instanceof Long || o instanceof Integer || o instanceof Short
+                    || o instanceof Byte ) {
+            h = mix64( typeTag( o ) ^ mix64( ( (Number)o ).longValue() ) );
+        } else if ( o instanceof Double ) {
+            h = mix64( typeTag( o ) ^ mix64( Double.doubleToLongBits( (Double)o ) ) );
+        } else if ( o instanceof Float ) {
+            h = mix64( typeTag( o ) ^ mix64( Float.floatToIntBits( (Float)o ) ) );
+        } else if ( o instanceof Boolean ) {
+            h = mix64( typeTag( o ) ^ ( (Boolean)o ? 1 : 2 ) );
+        } else if ( o instanceof Character ) {
+            h = mix64( typeTag( o ) ^ mix64( (Character)o ) );
+        } else if ( o instanceof Enum ) {
+            Enum< ? > e = (Enum< ? >)o;
+            h = stringHash( stringHash( 2, e.getDeclaringClass().getName() ), e.name() );
+        } else if ( o instanceof List ) {
+            h = 3;
+            for ( Object x : (List< ? >)o ) {
+                long xh = contentHash( x );
+                if ( xh == noContentHash ) return noContentHash;
+                h = mix64( h * 0x9e3779b97f4a7c15L + xh );
+            }
+        } else if ( o instanceof Set ) {
+            h = mix64( 4 + ( (Set< ? >)o ).size() );
+            for ( Object x : (Set< ? >)o ) {
+                long xh = contentHash( x );
+                if ( xh == noContentHash ) return noContentHash;
+                h += mix64( xh );
+            }
+        } else if ( o instanceof Map ) {
+            h = mix64( 5 + ( (Map< ?, ? >)o ).size() );
+            for ( Map.Entry< ?, ? > e : ( (Map< ?, ? >)o ).entrySet() ) {
+                long kh = contentHash( e.getKey() );
+                long vh = contentHash( e.getValue() );
+                if ( kh == noContentHash || vh == noContentHash ) return noContentHash;
+                h += mix64( mix64( kh ) ^ vh );
+            }
+        } else {
+            return noContentHash;
+        }
+        return h == noContentHash ? h + 1 : h;
+    }
+
+    protected static long typeTag( Object o ) {
+        return stringHash( 6, o.getClass().getName() );
+    }
+
+    /**
+     * FNV-1a over the chars of a string, finished with {@link #mix64(long)}.
+     */
+    protected static long stringHash( long seed, String s ) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        for ( int i = 0; i < s.length(); ++i ) {
+            h = ( h ^ s.charAt( i ) ) * 0x100000001b3L;
+        }
+        return mix64( h ^ s.length() );
+    }
+
+    /**
+     * The finalizer of the SplitMix64 generator, which spreads the bits of
+     * the input over the whole result.
+     */
+    public static long mix64( long z ) {
+        z = ( z ^ ( z >>> 30 ) ) * 0xbf58476d1ce4e5b9L;
+        z = ( z ^ ( z >>> 27 ) ) * 0x94d049bb133111ebL;
+        return z ^ ( z >>> 31 );
+    }
+
+    protected void forgetFingerprint( ID id, boolean isSet1 ) {
+        if ( id == null ) return;
+        ( isSet1 ? fingerprints1 : fingerprints2 ).remove( id );
+    }
+
+    public void clearFingerprints() {
+        fingerprints1.clear();
+        fingerprints2.clear();
+    }
+
+    /**
+     * Stream the differences between two sets of objects to a listener
+     * without collecting them. Each iterator must return objects in the
+     * ascending order of their IDs according to idComparator with no ID
+     * repeated, as when reading two snapshots sorted by ID. Only the current
+     * object from each iterator and the property maps of the object being
+     * compared are held in memory. Property maps are only allocated for
+     * objects whose properties changed.
+     * <p>
+     * As in {@link #diff()}, objects that are equal are not compared
+     * property by property, and only the IDs that
+     * {@link #filterValues(List)} keeps are reported, though it is given one
+     * ID at a time. The member variables holding the results of
+     * {@link #diff()} are not used or changed.
+     *
+     * @param objects1
+     *            the first set of objects in ID order
+     * @param objects2
+     *            the second set of objects in ID order
+     * @param idComparator
+     *            the order of the IDs; null for {@link GenericComparator}
+     * @param listener
+     *            receives the added, removed, and updated objects in ID order
+     */
+    public void diff( Iterator< T > objects1, Iterator< T > objects2,
+                      Comparator< ? super ID > idComparator,
+                      DiffListener< T, P, ID > listener ) {
+        if ( idComparator == null ) idComparator = GenericComparator.instance();
+        T t1 = nextObject( objects1 );
+        T t2 = nextObject( objects2 );
+        ID id1 = t1 == null ? null : getId( t1 );
+        ID id2 = t2 == null ? null : getId( t2 );
+        while ( t1 != null || t2 != null ) {
+            int comp;
+            if ( t1 == null ) comp = 1;
+            else if ( t2 == null ) comp = -1;
+            else comp = idComparator.compare( id1, id2 );
+            if ( comp < 0 ) {
+                if ( isKept( id1, 1 ) ) listener.objectRemoved( id1, t1 );
+            } else if ( comp > 0 ) {
+                if ( isKept( id2, 0 ) ) listener.objectAdded( id2, t2 );
+            } else {
+                diffObject( id1, t1, t2, listener );
+            }
+            if ( comp <= 0 ) {
+                t1 = nextObject( objects1 );
+                id1 = t1 == null ? null : getId( t1 );
+            }
+            if ( comp >= 0 ) {
+                t2 = nextObject( objects2 );
+                id2 = t2 == null ? null : getId( t2 );
             }
         }
     }
 
+    /**
+     * Stream the differences between two sets of objects that are split into
+     * matching partitions, for example, by the hash of their IDs, so that an
+     * object's ID can only be in the partitions with the same position in
+     * both iterators. Each pair of partitions is hash joined, so memory is
+     * bounded by the size of a partition. A missing partition is treated as
+     * empty. As in {@link #diff(Iterator, Iterator, Comparator, DiffListener)},
+     * only the IDs that {@link #filterValues(List)} keeps are reported.
+     *
+     * @param partitions1
+     *            the partitions of the first set of objects
+     * @param partitions2
+     *            the partitions of the second set of objects
+     * @param listener
+     *            receives the added, removed, and updated objects
+     */
+    public void diffPartitions( Iterator< ? extends Collection< T > > partitions1,
+                                Iterator< ? extends Collection< T > > partitions2,
+                                DiffListener< T, P, ID > listener ) {
+        while ( partitions1.hasNext() || partitions2.hasNext() ) {
+            Collection< T > part1 = partitions1.hasNext() ? partitions1.next() : null;
+            Collection< T > part2 = partitions2.hasNext() ? partitions2.next() : null;
+            LinkedHashMap< ID, T > objects2 = new LinkedHashMap< ID, T >();
+            if ( part2 != null ) {
+                for ( T t2 : part2 ) {
+                    if ( t2 != null ) objects2.put( getId( t2 ), t2 );
+                }
+            }
+            if ( part1 != null ) {
+                for ( T t1 : part1 ) {
+                    if ( t1 == null ) continue;
+                    ID id = getId( t1 );
+                    T t2 = objects2.remove( id );
+                    if ( t2 == null ) {
+                        if ( isKept( id, 1 ) ) listener.objectRemoved( id, t1 );
+                    } else {
+                        diffObject( id, t1, t2, listener );
+                    }
+                }
+            }
+            for ( Map.Entry< ID, T > e : objects2.entrySet() ) {
+                if ( isKept( e.getKey(), 0 ) ) listener.objectAdded( e.getKey(), e.getValue() );
+            }
+        }
+    }
+
+    /**
+     * Tell the listener about the changes to an object in both sets, if any.
+     */
+    protected void diffObject( ID id, T t1, T t2, DiffListener< T, P, ID > listener ) {
+        if ( t1 == t2 || t1.equals( t2 ) || !isKept( id, 2 ) ) return;
+        ObjectChanges< P, ID > changes = computeObjectChanges( t1, t2 );
+        if ( changes == null ) return;
+        listener.objectUpdated( id, t1, t2, orEmpty( changes.addedProperties ),
+                                orEmpty( changes.removedProperties ),
+                                orEmpty( changes.updatedProperties ) );
+    }
+
+    protected static < K, V > Map< K, V > orEmpty( Map< K, V > map ) {
+        if ( map == null ) return Collections.emptyMap();
+        return map;
+    }
+
+    protected static < T > T nextObject( Iterator< T > iter ) {
+        while ( iter != null && iter.hasNext() ) {
+            T t = iter.next();
+            if ( t != null ) return t;
+        }
+        return null;
+    }
 
     /**
      * Compute property changes and save them in propertyChanges.
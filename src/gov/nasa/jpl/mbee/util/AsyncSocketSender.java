@@ -0,0 +1,315 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * AsyncSocketSender takes frames from any number of threads and sends them
+ * on a {@link SocketChannelClient} from its own I/O thread, so that callers
+ * do not wait for the network.
+ * <p>
+ * Frames go into a bounded lock-free ring. The I/O thread drains the frames
+ * available into the client's buffers, up to a ring's worth or
+ * {@link SocketChannelClient#batchBytes} at a time, and writes each batch
+ * with one gathering write. When the ring is full, a send either waits or drops the
+ * frame, depending on the {@link Policy}. {@link #flush()} waits until every
+ * frame sent before it is written. Queue depth, drops and the latency from a
+ * send to its write are counted for monitoring.
+ */
+public class AsyncSocketSender implements Closeable {
+
+  public static enum Policy {
+    /** wait for room in the ring */
+    BLOCK,
+    /** drop the frame being sent and return false */
+    DROP
+  }
+
+  public static final int defaultCapacity = 1024;
+
+  protected final SocketChannelClient client;
+  protected final Policy policy;
+
+  // ring of frames, each a double[] or String, with a sequence number per
+  // slot: pos + 1 when slot pos is full and pos + capacity when it is free
+  protected final Object[] frames;
+  // the tail has this bit set once the sender is closed, so no frame can be
+  // queued after the I/O thread's last look at the tail
+  protected static final long closedBit = Long.MIN_VALUE;
+  protected final long[] sendTimes;
+  protected final AtomicLongArray sequences;
+  protected final int mask;
+  protected final AtomicLong tail = new AtomicLong();
+  protected volatile long head = 0;
+
+  protected volatile long written = 0;
+  protected volatile boolean running = true;
+  protected volatile boolean idle = false;
+  protected volatile IOException failure = null;
+  protected final Object flushLock = new Object();
+  protected final Thread ioThread;
+
+  // metrics
+  protected final AtomicLong dropped = new AtomicLong();
+  protected volatile long sent = 0;
+  protected volatile long batches = 0;
+  protected volatile long totalLatencyNanos = 0;
+  protected volatile long maxLatencyNanos = 0;
+
+  public AsyncSocketSender( SocketChannelClient client ) {
+    this( client, defaultCapacity, Policy.BLOCK );
+  }
+
+  /**
+   * @param client
+   *          the connection, which this sender then owns
+   * @param capacity
+   *          the number of frames the ring holds, rounded up to a power of
+   *          two
+   * @param policy
+   *          what to do when the ring is full
+   */
+  public AsyncSocketSender( SocketChannelClient client, int capacity, Policy policy ) {
+    this.client = client;
+    this.policy = policy;
+    int n = Integer.highestOneBit( Math.max( 2, capacity ) - 1 ) << 1;
+    frames = new Object[ n ];
+    sendTimes = new long[ n ];
+    sequences = new AtomicLongArray( n );
+    for ( int i = 0; i < n; ++i ) {
+      sequences.set( i, i );
+    }
+    mask = n - 1;
+    ioThread = new Thread( new Runnable() {
+      @Override
+      public void run() {
+        drainLoop();
+      }
+    }, "AsyncSocketSender" );
+    ioThread.setDaemon( true );
+    ioThread.start();
+  }
+
+  // Sends an array of doubles in the format of the struct.pack() Python function.
+  public boolean send( double... doubleArray ) throws IOException {
+    return enqueue( doubleArray.clone() );
+  }
+
+  public boolean send( double[] doubleArray, int offset, int length ) throws IOException {
+    return enqueue( Arrays.copyOfRange( doubleArray, offset, offset + length ) );
+  }
+
+  // Sends a string, not using the format of the struct.pack() Python function.
+  public boolean send( String str ) throws IOException {
+    return enqueue( str );
+  }
+
+  protected void checkFailure() throws IOException {
+    IOException e = failure;
+    if ( e != null ) throw new IOException( "send failed", e );
+  }
+
+  /**
+   * @return whether the frame was queued; false only if it was dropped
+   */
+  protected boolean enqueue( Object frame ) throws IOException {
+    checkFailure();
+    while ( !tryEnqueue( frame ) ) {
+      if ( tail.get() < 0 ) throw new IOException( "sender is closed" );
+      if ( policy == Policy.DROP ) {
+        dropped.incrementAndGet();
+        return false;
+      }
+      LockSupport.parkNanos( 10000 );
+      checkFailure();
+    }
+    if ( idle ) LockSupport.unpark( ioThread );
+    return true;
+  }
+
+  /**
+   * @return whether the frame was queued; false if the ring is full or the
+   *         sender is closed
+   */
+  protected boolean tryEnqueue( Object frame ) {
+    long pos = tail.get();
+    while ( true ) {
+      if ( pos < 0 ) return false;
+      int i = (int)pos & mask;
+      long d = sequences.get( i ) - pos;
+      if ( d == 0 ) {
+        if ( tail.compareAndSet( pos, pos + 1 ) ) {
+          frames[ i ] = frame;
+          sendTimes[ i ] = System.nanoTime();
+          sequences.lazySet( i, pos + 1 );
+          return true;
+        }
+        pos = tail.get();
+      } else if ( d < 0 ) {
+        return false;
+      } else {
+        pos = tail.get();
+      }
+    }
+  }
+
+  protected void drainLoop() {
+    long pos = head;
+    try {
+      while ( true ) {
+        long oldestSend = Long.MAX_VALUE, sumSends = 0;
+        int n = 0;
+        long bytes = 0;
+        // a bounded batch, so that flush() and the metrics keep up with a
+        // steady stream of frames
+        while ( n < frames.length && bytes < client.batchBytes ) {
+          int i = (int)pos & mask;
+          if ( sequences.get( i ) != pos + 1 ) break;
+          Object frame = frames[ i ];
+          long t = sendTimes[ i ];
+          frames[ i ] = null;
+          sequences.lazySet( i, pos + frames.length );
+          head = ++pos;
+          if ( frame instanceof String ) {
+            client.send( (String)frame );
+            bytes += FrameCodec.stringFrameSize( (String)frame );
+          } else {
+            client.send( (double[])frame );
+            bytes += FrameCodec.doublesFrameSize( ( (double[])frame ).length );
+          }
+          oldestSend = Math.min( oldestSend, t );
+          sumSends += t;
+          ++n;
+        }
+        if ( n > 0 ) {
+          client.flush();
+          long now = System.nanoTime();
+          sent += n;
+          ++batches;
+          totalLatencyNanos += n * now - sumSends;
+          maxLatencyNanos = Math.max( maxLatencyNanos, now - oldestSend );
+          written = pos;
+          synchronized ( flushLock ) {
+            flushLock.notifyAll();
+          }
+          continue;
+        }
+        // once not running, the tail is final; frames claimed but not yet
+        // published are waited for
+        if ( !running && tailPosition() == pos ) break;
+        idle = true;
+        if ( sequences.get( (int)pos & mask ) != pos + 1 && running ) {
+          LockSupport.parkNanos( 1000000 );
+        }
+        idle = false;
+      }
+    } catch ( IOException e ) {
+      failure = e;
+    } catch ( RuntimeException e ) {
+      failure = new IOException( e );
+    } finally {
+      synchronized ( flushLock ) {
+        flushLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Wait until every frame sent before this call is written to the socket.
+   *
+   * @throws IOException
+   *           if sending failed
+   * @throws InterruptedException
+   */
+  public void flush() throws IOException, InterruptedException {
+    long target = tailPosition();
+    synchronized ( flushLock ) {
+      while ( written < target ) {
+        checkFailure();
+        if ( !ioThread.isAlive() ) throw new IOException( "sender is closed" );
+        flushLock.wait( 100 );
+      }
+    }
+    checkFailure();
+  }
+
+  /**
+   * Send everything queued, stop the I/O thread, and close the connection.
+   */
+  @Override
+  public void close() throws IOException {
+    long t = tail.get();
+    while ( t >= 0 && !tail.compareAndSet( t, t | closedBit ) ) {
+      t = tail.get();
+    }
+    running = false;
+    LockSupport.unpark( ioThread );
+    try {
+      ioThread.join();
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      client.close();
+    } finally {
+      checkFailure();
+    }
+  }
+
+  /**
+   * @return the number of frames queued but not yet taken by the I/O thread
+   */
+  public long getQueueDepth() {
+    return Math.max( 0, tailPosition() - head );
+  }
+
+  /**
+   * @return the position after the last frame queued
+   */
+  protected long tailPosition() {
+    return tail.get() & ~closedBit;
+  }
+
+  public int getCapacity() {
+    return frames.length;
+  }
+
+  public long getSentCount() {
+    return sent;
+  }
+
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * @return the number of writes, each of a batch of frames
+   */
+  public long getBatchCount() {
+    return batches;
+  }
+
+  /**
+   * @return the mean time from a send to the write of its frame
+   */
+  public double getMeanLatencyNanos() {
+    long n = sent;
+    return n == 0 ? 0 : (double)totalLatencyNanos / n;
+  }
+
+  public long getMaxLatencyNanos() {
+    return maxLatencyNanos;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(depth=" + getQueueDepth() + ", sent=" + sent
+           + ", dropped=" + getDroppedCount() + ", batches=" + batches + ", meanLatencyNanos="
+           + (long)getMeanLatencyNanos() + ", maxLatencyNanos=" + maxLatencyNanos + ")";
+  }
+
+}
@@ -0,0 +1,378 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrent, bounded cache for looking up classes (or lists of classes) by
+ * name, used by {@link ClassUtils#getClassForName(String, String, String, boolean)}
+ * and {@link ClassUtils#getClassesForName(String, boolean)}.
+ * <p>
+ * Entries are scoped by class loader so that the same name can resolve
+ * differently for different loaders. The cache is split into lock stripes,
+ * each an access-ordered {@link LinkedHashMap} that evicts its least recently
+ * used entry when full, so threads looking up different names rarely contend
+ * for the same monitor.
+ * <p>
+ * Failed lookups are remembered in a separate negative section whose entries
+ * expire after {@link #getNegativeTtlMillis()} so that the expensive search is
+ * not repeated on every call but classes that show up later are still found.
+ * <p>
+ * As a {@link Map}, the cache shows the successful lookups made with the
+ * current loader, see {@link #currentLoader()}.
+ *
+ * @param <V>
+ *            the type of value found for a name
+ */
+public class ClassLookupCache< V > extends AbstractMap< String, V > {
+
+    public static final int defaultMaxSize = 4096;
+    public static final int defaultMaxNegativeSize = 4096;
+    public static final long defaultNegativeTtlMillis = 60000;
+    protected static final int numStripes = 16;
+
+    /**
+     * A name qualified by the class loader used to look it up.
+     */
+    protected static class ScopedKey {
+        protected final ClassLoader loader;
+        protected final String name;
+        protected final int hash;
+
+        protected ScopedKey( ClassLoader loader, String name ) {
+            this.loader = loader;
+            this.name = name;
+            this.hash = 31 * System.identityHashCode( loader )
+                        + ( name == null ? 0 : name.hashCode() );
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            if ( this == o ) return true;
+            if ( !( o instanceof ScopedKey ) ) return false;
+            ScopedKey k = (ScopedKey)o;
+            return loader == k.loader
+                   && ( name == null ? k.name == null : name.equals( k.name ) );
+        }
+    }
+
+    /**
+     * One lock stripe: a size-bounded LRU map guarded by its own monitor.
+     */
+    protected static class Stripe< X > extends LinkedHashMap< ScopedKey, X > {
+        private static final long serialVersionUID = -2467010870418416187L;
+
+        protected final int maxSize;
+
+        protected Stripe( int maxSize ) {
+            super( 16, 0.75f, true );
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry( Map.Entry< ScopedKey, X > eldest ) {
+            return size() > maxSize;
+        }
+    }
+
+    protected final Stripe< V >[] positive;
+    protected final Stripe< Long >[] negative;  // the time each failure was recorded
+    protected long negativeTtlMillis;
+
+    protected final AtomicLong hits = new AtomicLong();
+    protected final AtomicLong misses = new AtomicLong();
+    protected final AtomicLong negativeHits = new AtomicLong();
+
+    public ClassLookupCache() {
+        this( defaultMaxSize, defaultMaxNegativeSize, defaultNegativeTtlMillis );
+    }
+
+    /**
+     * @param maxSize
+     *            the maximum number of successful lookups remembered
+     * @param maxNegativeSize
+     *            the maximum number of failed lookups remembered
+     * @param negativeTtlMillis
+     *            how long a failed lookup is remembered
+     */
+    @SuppressWarnings( "unchecked" )
+    public ClassLookupCache( int maxSize, int maxNegativeSize, long negativeTtlMillis ) {
+        this.negativeTtlMillis = negativeTtlMillis;
+        positive = (Stripe< V >[])new Stripe< ? >[ numStripes ];
+        negative = (Stripe< Long >[])new Stripe< ? >[ numStripes ];
+        int perStripe = Math.max( 1, maxSize / numStripes );
+        int negPerStripe = Math.max( 1, maxNegativeSize / numStripes );
+        for ( int i = 0; i < numStripes; ++i ) {
+            positive[ i ] = new Stripe< V >( perStripe );
+            negative[ i ] = new Stripe< Long >( negPerStripe );
+        }
+    }
+
+    /**
+     * @return the class loader that scopes lookups made without one, the
+     *         loader configured in {@link Utils#loader} or else the current
+     *         thread's context class loader
+     */
+    public static ClassLoader currentLoader() {
+        if ( Utils.loader != null ) return Utils.loader;
+        return Thread.currentThread().getContextClassLoader();
+    }
+
+    protected static int stripeIndex( ScopedKey key ) {
+        int h = key.hash;
+        h ^= ( h >>> 16 );
+        return ( h & 0x7fffffff ) % numStripes;
+    }
+
+    @Override
+    public V get( Object name ) {
+        if ( name != null && !( name instanceof String ) ) return null;
+        return get( currentLoader(), (String)name );
+    }
+
+    @Override
+    public boolean containsKey( Object name ) {
+        return get( name ) != null;
+    }
+
+    /**
+     * @param loader
+     * @param name
+     * @return the value remembered for the name and loader or null
+     */
+    public V get( ClassLoader loader, String name ) {
+        ScopedKey key = new ScopedKey( loader, name );
+        Stripe< V > s = positive[ stripeIndex( key ) ];
+        V v;
+        synchronized ( s ) {
+            v = s.get( key );
+        }
+        if ( v == null ) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return v;
+    }
+
+    @Override
+    public V put( String name, V value ) {
+        return put( currentLoader(), name, value );
+    }
+
+    /**
+     * Remember a successful lookup, replacing any remembered failure.
+     *
+     * @param loader
+     * @param name
+     * @param value
+     * @return the value remembered before or null
+     */
+    public V put( ClassLoader loader, String name, V value ) {
+        if ( value == null ) return null;
+        ScopedKey key = new ScopedKey( loader, name );
+        int i = stripeIndex( key );
+        Stripe< V > s = positive[ i ];
+        V old;
+        synchronized ( s ) {
+            old = s.put( key, value );
+        }
+        Stripe< Long > n = negative[ i ];
+        synchronized ( n ) {
+            n.remove( key );
+        }
+        return old;
+    }
+
+    public void putMissing( String name ) {
+        putMissing( currentLoader(), name );
+    }
+
+    /**
+     * Remember that a lookup failed.
+     *
+     * @param loader
+     * @param name
+     */
+    public void putMissing( ClassLoader loader, String name ) {
+        ScopedKey key = new ScopedKey( loader, name );
+        Stripe< Long > n = negative[ stripeIndex( key ) ];
+        synchronized ( n ) {
+            n.put( key, System.currentTimeMillis() );
+        }
+    }
+
+    public boolean isKnownMissing( String name, boolean expire ) {
+        return isKnownMissing( currentLoader(), name, expire );
+    }
+
+    /**
+     * @param loader
+     * @param name
+     * @param expire
+     *            whether a failure older than the negative TTL should be
+     *            forgotten
+     * @return whether a failed lookup is remembered for the name and loader
+     */
+    public boolean isKnownMissing( ClassLoader loader, String name, boolean expire ) {
+        ScopedKey key = new ScopedKey( loader, name );
+        Stripe< Long > n = negative[ stripeIndex( key ) ];
+        synchronized ( n ) {
+            Long time = n.get( key );
+            if ( time == null ) return false;
+            if ( expire && System.currentTimeMillis() - time > negativeTtlMillis ) {
+                n.remove( key );
+                return false;
+            }
+        }
+        negativeHits.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public V remove( Object name ) {
+        if ( name != null && !( name instanceof String ) ) return null;
+        return remove( currentLoader(), (String)name );
+    }
+
+    /**
+     * Forget a successful or failed lookup.
+     *
+     * @param loader
+     * @param name
+     * @return the value remembered before or null
+     */
+    public V remove( ClassLoader loader, String name ) {
+        ScopedKey key = new ScopedKey( loader, name );
+        int i = stripeIndex( key );
+        V old;
+        synchronized ( positive[ i ] ) {
+            old = positive[ i ].remove( key );
+        }
+        synchronized ( negative[ i ] ) {
+            negative[ i ].remove( key );
+        }
+        return old;
+    }
+
+    /**
+     * @return a snapshot of the successful lookups made with the current
+     *         loader; changing it does not change the cache
+     */
+    @Override
+    public Set< Map.Entry< String, V > > entrySet() {
+        ClassLoader loader = currentLoader();
+        Map< String, V > entries = new LinkedHashMap< String, V >();
+        for ( Stripe< V > s : positive ) {
+            synchronized ( s ) {
+                for ( Map.Entry< ScopedKey, V > e : s.entrySet() ) {
+                    if ( e.getKey().loader == loader ) entries.put( e.getKey().name, e.getValue() );
+                }
+            }
+        }
+        return Collections.unmodifiableMap( entries ).entrySet();
+    }
+
+    /**
+     * Forget all entries looked up with the given class loader.
+     *
+     * @param loader
+     */
+    public void invalidate( ClassLoader loader ) {
+        for ( int i = 0; i < numStripes; ++i ) {
+            synchronized ( positive[ i ] ) {
+                removeLoader( positive[ i ], loader );
+            }
+            synchronized ( negative[ i ] ) {
+                removeLoader( negative[ i ], loader );
+            }
+        }
+    }
+
+    protected static void removeLoader( Map< ScopedKey, ? > map, ClassLoader loader ) {
+        Iterator< ScopedKey > iter = map.keySet().iterator();
+        while ( iter.hasNext() ) {
+            if ( iter.next().loader == loader ) iter.remove();
+        }
+    }
+
+    public void clear() {
+        for ( int i = 0; i < numStripes; ++i ) {
+            synchronized ( positive[ i ] ) {
+                positive[ i ].clear();
+            }
+            synchronized ( negative[ i ] ) {
+                negative[ i ].clear();
+            }
+        }
+    }
+
+    /**
+     * @return the number of successful lookups remembered for the current
+     *         loader
+     */
+    @Override
+    public int size() {
+        return entrySet().size();
+    }
+
+    /**
+     * @return the number of successful lookups remembered for all loaders
+     */
+    public int totalSize() {
+        int size = 0;
+        for ( Stripe< V > s : positive ) {
+            synchronized ( s ) {
+                size += s.size();
+            }
+        }
+        return size;
+    }
+
+    public int negativeSize() {
+        int size = 0;
+        for ( Stripe< Long > s : negative ) {
+            synchronized ( s ) {
+                size += s.size();
+            }
+        }
+        return size;
+    }
+
+    public long getNegativeTtlMillis() {
+        return negativeTtlMillis;
+    }
+
+    public void setNegativeTtlMillis( long negativeTtlMillis ) {
+        this.negativeTtlMillis = negativeTtlMillis;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(size=" + totalSize() + ", negativeSize="
+               + negativeSize() + ", hits=" + getHits() + ", misses="
+               + getMisses() + ", negativeHits=" + getNegativeHits() + ")";
+    }
+}
@@ -0,0 +1,357 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * An index from simple class names to the fully qualified names of the
+ * top-level classes with that simple name found on the class path.
+ * <p>
+ * The index is built once, in the background, by scanning class folders and
+ * jar files in parallel: the {@code java.class.path} entries, the file URLs of
+ * the context and {@link Utils#loader} class loaders, and the platform classes
+ * ({@code sun.boot.class.path} or the {@code jrt:/} file system). Lookups wait
+ * for the build to finish and then cost one hash lookup; callers that should
+ * not wait check {@link #isReady()} first, as
+ * {@link ClassUtils#getFullyQualifiedNames(String, Package[])} does. Call
+ * {@link #startIndexing()} at startup to get a head start.
+ * <p>
+ * Classes only visible to loaders that are not {@link URLClassLoader}s are
+ * left out, so the index can rule out a name only in a package it has seen,
+ * see {@link #getIndexedPackages()}.
+ */
+public class ClassPathIndex {
+
+    protected static ClassPathIndex instance = null;
+
+    protected final Future< Map< String, List< String > > > building;
+    protected volatile Map< String, List< String > > fqnsBySimpleName = null;
+    protected volatile Set< String > indexedPackages = null;
+
+    protected static final ThreadFactory daemonThreadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread( Runnable r ) {
+            Thread t = new Thread( r, "ClassPathIndex" );
+            t.setDaemon( true );
+            return t;
+        }
+    };
+
+    protected ClassPathIndex() {
+        final Set< String > entries = getClassPathEntries();
+        final int numThreads =
+                Math.max( 1, Math.min( entries.size() + 1,
+                                       Runtime.getRuntime().availableProcessors() ) );
+        final ExecutorService pool =
+                Executors.newFixedThreadPool( numThreads, daemonThreadFactory );
+        // The build is itself submitted so that the constructor returns right away.
+        ExecutorService starter = Executors.newSingleThreadExecutor( daemonThreadFactory );
+        building = starter.submit( new Callable< Map< String, List< String > > >() {
+            @Override
+            public Map< String, List< String > > call() throws Exception {
+                try {
+                    return build( entries, pool );
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        } );
+        starter.shutdown();
+    }
+
+    /**
+     * @return the shared index, starting to build it if it has not been
+     */
+    public static synchronized ClassPathIndex getInstance() {
+        if ( instance == null ) {
+            instance = new ClassPathIndex();
+        }
+        return instance;
+    }
+
+    /**
+     * Start building the shared index in the background.
+     */
+    public static void startIndexing() {
+        getInstance();
+    }
+
+    /**
+     * Throw away the shared index so that the next use rebuilds it, for
+     * example, after the class path changes.
+     */
+    public static synchronized void reset() {
+        instance = null;
+    }
+
+    /**
+     * @param simpleName
+     *            a simple class name or a name qualified by the end of its
+     *            package, like "util.List", or all of it
+     * @return the fully qualified names of the indexed classes with the simple
+     *         name, sorted, or an empty list
+     */
+    public List< String > getFullyQualifiedNames( String simpleName ) {
+        if ( Utils.isNullOrEmpty( simpleName ) ) return Utils.getEmptyList();
+        Map< String, List< String > > index = getIndex();
+        int pos = simpleName.lastIndexOf( '.' );
+        if ( pos < 0 ) {
+            List< String > fqns = index.get( simpleName );
+            if ( fqns == null ) return Utils.getEmptyList();
+            return fqns;
+        }
+        List< String > fqns = index.get( simpleName.substring( pos + 1 ) );
+        if ( fqns == null ) return Utils.getEmptyList();
+        List< String > matches = new ArrayList< String >();
+        String suffix = "." + simpleName;
+        for ( String fqn : fqns ) {
+            if ( fqn.endsWith( suffix ) || fqn.equals( simpleName ) ) matches.add( fqn );
+        }
+        return matches;
+    }
+
+    /**
+     * @return the index from simple name to fully qualified names, waiting for
+     *         it to be built if necessary
+     */
+    public Map< String, List< String > > getIndex() {
+        Map< String, List< String > > index = fqnsBySimpleName;
+        if ( index != null ) return index;
+        try {
+            index = building.get();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return Utils.getEmptyMap();
+        } catch ( ExecutionException e ) {
+            Debug.error( true, false, "ClassPathIndex failed to build: " + e.getCause() );
+            index = Utils.getEmptyMap();
+        }
+        fqnsBySimpleName = index;
+        return index;
+    }
+
+    /**
+     * @return the packages with indexed classes
+     */
+    public Set< String > getIndexedPackages() {
+        Set< String > packages = indexedPackages;
+        if ( packages != null ) return packages;
+        packages = new HashSet< String >();
+        for ( List< String > fqns : getIndex().values() ) {
+            for ( String fqn : fqns ) {
+                int pos = fqn.lastIndexOf( '.' );
+                if ( pos > 0 ) packages.add( fqn.substring( 0, pos ) );
+            }
+        }
+        packages = Collections.unmodifiableSet( packages );
+        indexedPackages = packages;
+        return packages;
+    }
+
+    /**
+     * @return whether the index is built, so that lookups do not wait
+     */
+    public boolean isReady() {
+        return fqnsBySimpleName != null || building.isDone();
+    }
+
+    protected static Set< String > getClassPathEntries() {
+        Set< String > entries = new LinkedHashSet< String >();
+        addPathEntries( entries, System.getProperty( "java.class.path" ) );
+        addPathEntries( entries, getBootClassPath() );
+        addLoaderEntries( entries, Thread.currentThread().getContextClassLoader() );
+        addLoaderEntries( entries, Utils.loader );
+        return entries;
+    }
+
+    /**
+     * @return the platform class path before Java 9, or null
+     */
+    protected static String getBootClassPath() {
+        return System.getProperty( "sun.boot.class.path" );
+    }
+
+    protected static void addPathEntries( Set< String > entries, String path ) {
+        if ( Utils.isNullOrEmpty( path ) ) return;
+        for ( String entry : path.split( File.pathSeparator ) ) {
+            if ( !Utils.isNullOrEmpty( entry ) ) entries.add( entry );
+        }
+    }
+
+    protected static void addLoaderEntries( Set< String > entries, ClassLoader loader ) {
+        for ( ClassLoader cl = loader; cl != null; cl = cl.getParent() ) {
+            if ( !( cl instanceof URLClassLoader ) ) continue;
+            for ( URL url : ( (URLClassLoader)cl ).getURLs() ) {
+                if ( !"file".equals( url.getProtocol() ) ) continue;
+                try {
+                    entries.add( new File( url.toURI() ).getPath() );
+                } catch ( Exception e ) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    protected static Map< String, List< String > > build( Set< String > entries,
+                                                          ExecutorService pool )
+                                                                  throws InterruptedException {
+        List< Future< List< String > > > futures = new ArrayList< Future< List< String > > >();
+        for ( final String entry : entries ) {
+            futures.add( pool.submit( new Callable< List< String > >() {
+                @Override
+                public List< String > call() throws Exception {
+                    return scanEntry( new File( entry ) );
+                }
+            } ) );
+        }
+        futures.add( pool.submit( new Callable< List< String > >() {
+            @Override
+            public List< String > call() throws Exception {
+                return scanJrt();
+            }
+        } ) );
+        Map< String, Set< String > > sets = new HashMap< String, Set< String > >();
+        for ( Future< List< String > > f : futures ) {
+            List< String > fqns;
+            try {
+                fqns = f.get();
+            } catch ( ExecutionException e ) {
+                if ( Debug.isOn() ) Debug.errln( "ClassPathIndex: " + e.getCause() );
+                continue;
+            }
+            for ( String fqn : fqns ) {
+                String simpleName = ClassUtils.simpleName( fqn );
+                Set< String > s = sets.get( simpleName );
+                if ( s == null ) {
+                    s = new LinkedHashSet< String >( 2 );
+                    sets.put( simpleName, s );
+                }
+                s.add( fqn );
+            }
+        }
+        Map< String, List< String > > index =
+                new HashMap< String, List< String > >( sets.size() * 2 );
+        for ( Map.Entry< String, Set< String > > e : sets.entrySet() ) {
+            List< String > list = new ArrayList< String >( e.getValue() );
+            Collections.sort( list );
+            index.put( e.getKey(), Collections.unmodifiableList( list ) );
+        }
+        if ( Debug.isOn() ) Debug.outln( "ClassPathIndex: indexed " + index.size()
+                                         + " simple names from " + entries.size()
+                                         + " class path entries" );
+        return Collections.unmodifiableMap( index );
+    }
+
+    /**
+     * @param classFilePath
+     *            a path to a class file relative to a class path root using '/'
+     * @return the fully qualified name of the top-level class or null if the
+     *         file is not a top-level class
+     */
+    protected static String classNameForPath( String classFilePath ) {
+        if ( !classFilePath.endsWith( ".class" ) ) return null;
+        if ( classFilePath.indexOf( '$' ) >= 0 ) return null;
+        if ( classFilePath.startsWith( "META-INF/versions/" ) ) {
+            int pos = classFilePath.indexOf( '/', "META-INF/versions/".length() );
+            if ( pos < 0 ) return null;
+            classFilePath = classFilePath.substring( pos + 1 );
+        }
+        String name = classFilePath.substring( 0, classFilePath.length() - ".class".length() );
+        if ( name.endsWith( "module-info" ) || name.endsWith( "package-info" ) ) return null;
+        return name.replace( '/', '.' );
+    }
+
+    /**
+     * @param file
+     *            a class folder or jar
+     */
+    protected static List< String > scanEntry( File file ) throws IOException {
+        List< String > fqns = new ArrayList< String >();
+        if ( file.isDirectory() ) {
+            scanDirectory( file, "", fqns );
+        } else if ( file.isFile() ) {
+            JarFile jar = new JarFile( file );
+            try {
+                Enumeration< JarEntry > jarEntries = jar.entries();
+                while ( jarEntries.hasMoreElements() ) {
+                    JarEntry je = jarEntries.nextElement();
+                    if ( je.isDirectory() ) continue;
+                    String fqn = classNameForPath( je.getName() );
+                    if ( fqn != null ) fqns.add( fqn );
+                }
+            } finally {
+                jar.close();
+            }
+        }
+        return fqns;
+    }
+
+    protected static void scanDirectory( File dir, String prefix, List< String > fqns ) {
+        File[] files = dir.listFiles();
+        if ( files == null ) return;
+        for ( File f : files ) {
+            if ( f.isDirectory() ) {
+                scanDirectory( f, prefix + f.getName() + "/", fqns );
+            } else {
+                String fqn = classNameForPath( prefix + f.getName() );
+                if ( fqn != null ) fqns.add( fqn );
+            }
+        }
+    }
+
+    /**
+     * @return the platform classes in the jrt:/ file system (Java 9 and later)
+     *         or an empty list if there is none
+     */
+    protected static List< String > scanJrt() throws IOException {
+        final List< String > fqns = new ArrayList< String >();
+        FileSystem jrt;
+        try {
+            jrt = FileSystems.getFileSystem( URI.create( "jrt:/" ) );
+        } catch ( Exception e ) {
+            return fqns;
+        }
+        final Path modules = jrt.getPath( "/modules" );
+        if ( !Files.isDirectory( modules ) ) return fqns;
+        Files.walkFileTree( modules, new SimpleFileVisitor< Path >() {
+            @Override
+            public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) {
+                // /modules/<module>/<package path>/<Name>.class
+                Path relative = modules.relativize( file );
+                if ( relative.getNameCount() < 2 ) return FileVisitResult.CONTINUE;
+                String path = relative.subpath( 1, relative.getNameCount() ).toString();
+                String fqn = classNameForPath( path );
+                if ( fqn != null ) fqns.add( fqn );
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+        return fqns;
+    }
+}
@@ -684,7 +684,7 @@ public class ClassUtils {
 
   // TODO -- expand to include member names, too: className -> memberName -> Class
   public static Map< String, Class< ? > > classCache =
-      Collections.synchronizedMap( new HashMap< String, Class< ? > >() );
+      new ClassLookupCache< Class< ? > >();
   
 
   public static Class<?> getClassForName(String className, String memberName,
@@ -755,27 +755,52 @@ public class ClassUtils {
   //    return getClassFromClasses( getClassesForName( className, initialize ) );
   //  }
 
-  public static HashMap< String, List< Class<?> > > classesCache =
-      new HashMap< String, List<Class<?>> >();
+  public static Map< String, List< Class<?> > > classesCache =
+      new ClassLookupCache< List<Class<?>> >();
 
-  public static boolean optimistic = false;  // try to find again even if failed in the past
+  // try to find again if failed longer ago than classesCache's negative TTL
+  public static boolean optimistic = false;
+
+  /**
+   * Forget cached classes and methods for the given class loader. Call this
+   * when a loader is discarded or replaced.
+   *
+   * @param loader
+   */
+  public static void invalidateCaches( ClassLoader loader ) {
+    if ( classCache instanceof ClassLookupCache ) {
+      ( (ClassLookupCache< ? >)classCache ).invalidate( loader );
+    }
+    if ( classesCache instanceof ClassLookupCache ) {
+      ( (ClassLookupCache< ? >)classesCache ).invalidate( loader );
+    }
+    methodCache.invalidate( loader );
+  }
   
   public static List< Class< ? > > getClassesForName( String className,
                                                         boolean initialize ) {
   //                                                    ClassLoader loader,
   //                                                    Package[] packages) {
     if ( Debug.isOn() ) Debug.outln( "getClassesForName( " + className + " )" );
+    if ( Utils.isNullOrEmpty( className ) ) {
+      if ( Debug.isOn() ) Debug.outln( "getClassesForName( " + className + " ) rempty className - returning null" );
+      return null;
+    }
     List< Class< ? > > classList = classesCache.get( className );
     if ( Debug.isOn() ) Debug.outln("classList " + classList + " from classesCache " + classesCache );
-    if ( classList != null && ( !optimistic || !classList.isEmpty() ) ) {
+    if ( classList != null ) {
       if ( Debug.isOn() ) Debug.outln( "getClassesForName( " + className + " ) returning " + classList );
       return classList;
     }
-    classList = new ArrayList< Class< ? > >();
-    if ( Utils.isNullOrEmpty( className ) ) {
-      if ( Debug.isOn() ) Debug.outln( "getClassesForName( " + className + " ) rempty className - returning null" );
-      return null;
+    // failures are only remembered if classesCache has not been replaced
+    // by a plain map
+    ClassLookupCache< ? > lookupCache =
+        classesCache instanceof ClassLookupCache ? (ClassLookupCache< ? >)classesCache : null;
+    if ( lookupCache != null && lookupCache.isKnownMissing( className, optimistic ) ) {
+      if ( Debug.isOn() ) Debug.outln( "getClassesForName( " + className + " ) failed before - returning empty list" );
+      return new ArrayList< Class< ? > >();
     }
+    classList = new ArrayList< Class< ? > >();
   //    ClassLoader loader = Utils.class.getClassLoader();
   //    if ( loader != null ) {
   //      for ( String pkgName : packagesToForceLoad ) {
@@ -815,7 +840,9 @@ public class ClassUtils {
           if ( classForName != null ) classList.add( classForName );
         }
       }
-      if ( classList != null ) {
+      if ( classList.isEmpty() && lookupCache != null ) {
+        lookupCache.putMissing( className );
+      } else {
         classesCache.put( className, classList );
       }
       if ( Debug.isOn() ) Debug.outln( "getClassesForName( " + className + " ) returning " + classList );
@@ -915,28 +942,74 @@ public class ClassUtils {
     return getFullyQualifiedNames( simpleClassOrInterfaceName, null );
   }
 
+  /**
+   * Whether {@link #getFullyQualifiedNames(String)} should take the classes
+   * in the packages that the {@link ClassPathIndex} has seen from the index,
+   * once it is built, instead of trying to load the class from each package.
+   */
+  public static boolean useClassPathIndex = true;
+
+  /**
+   * Find the classes with a simple name, or a name qualified by the end of
+   * its package, in the given packages. The candidates the
+   * {@link ClassPathIndex} finds in the packages it has seen take one hash
+   * lookup; only the packages it has not seen, or all of them while it is
+   * still being built, are tried one by one.
+   *
+   * @param simpleClassOrInterfaceName
+   * @param packages
+   *          the packages to look in, or null for all loaded packages
+   * @return the names of the classes that load, in order of package
+   */
   public static List<String> getFullyQualifiedNames(String simpleClassOrInterfaceName, Package[] packages) {
     Collection<String> packageStrings = getPackageStrings( packages );
-
-    List<String> fqns = new ArrayList<String>();
-    //if ( Debug.isOn() ) Debug.outln( "getFullyQualifiedNames( " + simpleClassOrInterfaceName
-    //             + " ): packages = " + packageStrings );
-    for (String aPackage : packageStrings) {
-        try {
-            String fqn = aPackage + "." + simpleClassOrInterfaceName;
-            Class.forName(fqn);
-            fqns.add(fqn);
-        } catch (NoClassDefFoundError e) {
-          // Ignore
-        } catch (Exception e) {
-            // Ignore
+    ClassPathIndex index = useClassPathIndex ? ClassPathIndex.getInstance() : null;
+    // never wait for the index to be built
+    Set< String > indexedPackages =
+        index != null && index.isReady() ? index.getIndexedPackages()
+                                         : Collections.< String >emptySet();
+
+    // the name found in each package, which orders the names as the
+    // packages are ordered
+    Map< String, String > found = new TreeMap< String, String >();
+    String suffix = "." + simpleClassOrInterfaceName;
+    if ( !indexedPackages.isEmpty() ) {
+      for ( String fqn : index.getFullyQualifiedNames( simpleClassOrInterfaceName ) ) {
+        if ( !fqn.endsWith( suffix ) ) continue;
+        String aPackage = fqn.substring( 0, fqn.length() - suffix.length() );
+        if ( packageStrings.contains( aPackage ) && tryForName( fqn ) ) {
+          found.put( aPackage, fqn );
         }
+      }
+    }
+    for (String aPackage : packageStrings) {
+      // no class in the unnamed package has a name starting with '.'
+      if ( aPackage.isEmpty() ) continue;
+      String fqn = aPackage + suffix;
+      if ( indexedPackages.contains( fqn.substring( 0, fqn.lastIndexOf( '.' ) ) ) ) continue;
+      if ( tryForName( fqn ) ) found.put( aPackage, fqn );
     }
+    List<String> fqns = new ArrayList<String>( found.values() );
     if ( Debug.isOn() ) Debug.outln( "getFullyQualifiedNames( " + simpleClassOrInterfaceName
                  + " ): returning " + fqns );
     return fqns;
   }
 
+  /**
+   * @return whether the class loads
+   */
+  protected static boolean tryForName( String fqn ) {
+    try {
+      Class.forName( fqn );
+      return true;
+    } catch (NoClassDefFoundError e) {
+      // Ignore
+    } catch (Exception e) {
+      // Ignore
+    }
+    return false;
+  }
+
   public static Constructor< ? > getConstructorForArgs( String className,
                                                         Object[] args,
                                                         String preferredPackage ) {
@@ -1492,8 +1565,44 @@ public class ClassUtils {
       return getMethodForArgTypes( null, cls, callName, argTypes, complain );
       
   }
+  /**
+   * Cache of methods resolved by
+   * {@link #getMethodForArgTypes(Object, Class, String, Class[], boolean)}.
+   */
+  public static MethodResolutionCache methodCache = new MethodResolutionCache();
+
+  /**
+   * Whether to look up and remember resolved methods in {@link #methodCache}.
+   */
+  public static boolean useMethodCache = true;
+
   public static Method getMethodForArgTypes( Object object, Class< ? > cls, String callName,
                                              Class<?>[] argTypes, boolean complain ) {
+      if ( argTypes == null ) argTypes = new Class<?>[] {};
+      // The choice can depend on the object's preferences, so only cache when
+      // it cannot.
+      boolean cacheable =
+          useMethodCache && cls != null && !( object instanceof HasPreference );
+      if ( cacheable ) {
+        MethodResolutionCache.Resolution r =
+            methodCache.get( cls, callName, argTypes );
+        if ( r != null ) {
+          if ( r.method == null && complain ) {
+            Debug.error(true, false, "method " + callName + "(" + Utils.toString( argTypes ) + ")"
+                                + " not found for " + cls.getName() );
+          }
+          return r.method;
+        }
+      }
+      Method method = findMethodForArgTypes( object, cls, callName, argTypes, complain );
+      if ( cacheable ) {
+        methodCache.put( cls, callName, argTypes, method );
+      }
+      return method;
+  }
+
+  protected static Method findMethodForArgTypes( Object object, Class< ? > cls, String callName,
+                                                 Class<?>[] argTypes, boolean complain ) {
   //    return getMethodForArgTypes( cls, callName, argTypes, 10.0, 2.0, null );
   //  }
   //  public static Method getMethodForArgTypes( Class< ? > cls, String callName,
@@ -1531,23 +1640,14 @@ public class ClassUtils {
         }
       }
       Method[] methods = null;
-      if ( Debug.isOn() ) Debug.outln( "calling getMethods() on class "
-                                       + clsName );
-      try {
-        methods = cls == null ? null : cls.getMethods();
-      } catch ( Exception e ) {
-          if ( complain ) {
-        Debug.error(true, false, "Got exception calling " + clsName
-                            + ".getMethod(): " + e.getMessage() );
-          }
-      }
+      if ( Debug.isOn() ) Debug.outln( "getting methods named " + callName
+                                       + " on class " + clsName );
+      methods = cls == null ? null : methodCache.getMethodsForName( cls, callName );
       if ( Debug.isOn() ) Debug.outln( "--> got methods: " + Utils.toString( methods ) );
       ArgTypeCompare atc = new ArgTypeCompare( object, cls, argTypes );
       if ( methods != null ) {
         for ( Method m : methods ) {
-          if ( m.getName().equals( callName ) ) {
-            atc.compare( m, m.getParameterTypes(), m.isVarArgs() );
-          }
+          atc.compare( m, m.getParameterTypes(), m.isVarArgs() );
         }
       }
       if ( debugWasOn ) {
@@ -1646,29 +1746,61 @@ public class ClassUtils {
   public static Pair< Boolean, Object > runMethod( boolean suppressErrors,
                                                    Object o, Method method,
                                                    Object... args ) {
+    return runMethod( suppressErrors, o, method, null, args );
+  }
+
+  /**
+   * Invoke the compiled method from the given object with the given
+   * arguments. This behaves like
+   * {@link #runMethod(boolean, Object, Method, Object...)} but invokes through
+   * the compiled method's handle.
+   *
+   * @param suppressErrors
+   * @param o
+   * @param compiledMethod
+   * @param args
+   * @return in a Pair whether the invocation was successful and the return
+   *         value (or null)
+   */
+  public static Pair< Boolean, Object > runCompiledMethod( boolean suppressErrors,
+                                                           Object o,
+                                                           CompiledMethod compiledMethod,
+                                                           Object... args ) {
+    Method method = compiledMethod == null ? null : compiledMethod.method;
+    return runMethod( suppressErrors, o, method, compiledMethod, args );
+  }
+
+  protected static Pair< Boolean, Object > runMethod( boolean suppressErrors,
+                                                      Object o, Method method,
+                                                      CompiledMethod compiledMethod,
+                                                      Object... args ) {
     Pair< Boolean, Object > p = new Pair< Boolean, Object >( false, null );
-    List<Throwable> errors = new ArrayList< Throwable >();
+    Throwable error = null;
     try {
-      p = runMethod( o, method, args );
+      if ( compiledMethod != null ) {
+        p = runCompiledMethod( o, compiledMethod, args );
+      } else {
+        p = runMethod( o, method, args );
+      }
     } catch ( IllegalArgumentException e ) {
       if ( !suppressErrors ) {
-        errors.add( e );
+        error = e;
       }
     } catch ( IllegalAccessException e ) {
       if ( !suppressErrors ) {
-        errors.add( e );
+        error = e;
       }
     } catch ( InvocationTargetException e ) {
       if ( !suppressErrors ) {
-        errors.add( e );
+        error = e;
       }
     }
     if ( !p.first && isStatic( method ) && o != null ) {
       List< Object > l = Utils.newList( o );
       l.addAll( Arrays.asList( args ) );
-      p = runMethod( true, null, method, l.toArray() );
+      p = runMethod( true, null, method, compiledMethod, l.toArray() );
       if ( !p.first && l.size() > 1 ) {
-        p = runMethod( true, null, method, new Object[] { o } );
+        p = runMethod( true, null, method, compiledMethod, new Object[] { o } );
       }
     }
     if ( !suppressErrors && !p.first ) {
@@ -1676,8 +1808,8 @@ public class ClassUtils {
                    "runMethod( " + o + ", " + method + ", " +
                        Utils.toString( args, true ) + " ) failed!" );
     }
-    for ( Throwable e : errors ) {
-      e.printStackTrace();
+    if ( error != null ) {
+      error.printStackTrace();
     }
     return p;
   }
@@ -1745,6 +1877,33 @@ public class ClassUtils {
     return p;
   }
 
+  /**
+   * Invoke the compiled method from the given object with the given
+   * arguments.
+   *
+   * @param o
+   * @param m
+   * @param args
+   * @return in a Pair whether the invocation was successful and the return
+   *         value (or null)
+   * @throws IllegalArgumentException
+   * @throws IllegalAccessException
+   * @throws InvocationTargetException
+   */
+  public static Pair< Boolean, Object >
+    runCompiledMethod( Object o, CompiledMethod m,
+                       Object... args ) throws IllegalArgumentException,
+                                               IllegalAccessException,
+                                               InvocationTargetException {
+    Pair< Boolean, Object > p = new Pair< Boolean, Object >( false, null );
+    if ( m == null ) {
+      return p;
+    }
+    p.second = m.invoke( o, args );
+    p.first = true;
+    return p;
+  }
+
   /**
    * @param o
    * @param fieldName
@@ -2212,19 +2371,8 @@ public class ClassUtils {
    *         that have the simple name, {@code methodName}.
    */
   public static Method[] getMethodsForName( Class< ? > cls, String methodName ) {
-    List< Method > methods = new ArrayList< Method >();
-    for ( Method m : cls.getMethods() ) {
-      if ( m.getName().equals(methodName) ) {
-        methods.add( m );
-      }
-    }
-    Method[] mArr = new Method[methods.size()];
-    boolean succ = Utils.toArrayOfType( methods, mArr, Method.class );
-    if ( !succ ) {
-      Debug.error( "Error! Cast to Method[] failed for getMethodsForName(" +
-                   cls + ", " + methodName + ")" );
-    }
-    return mArr;
+    // copy since the array is shared by the index
+    return methodCache.getMethodsForName( cls, methodName ).clone();
   }
 
   /**
@@ -0,0 +1,301 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * A {@link Method} converted once into a form that is cheaper to call
+ * repeatedly than {@link Method#invoke(Object, Object...)}.
+ * <p>
+ * When the JVM has {@code java.lang.invoke.LambdaMetafactory} (Java 8 and
+ * later), a public method with at most {@link #maxInvokerArity} arguments
+ * (counting the object of the call) and a non-void return type is bound to a
+ * generated implementation of one of the {@code Invoker} interfaces below,
+ * which the JIT can call almost like a direct call. Otherwise, the method is
+ * called through a {@link MethodHandle} of type {@code (Object, Object[])Object}.
+ * <p>
+ * {@link #invoke(Object, Object...)} behaves like
+ * {@link Method#invoke(Object, Object...)}: bad receivers or arguments cause
+ * an {@link IllegalArgumentException} (or {@link NullPointerException} for a
+ * null receiver of an instance method), and anything thrown by the method
+ * itself is wrapped in an {@link InvocationTargetException}.
+ */
+public class CompiledMethod {
+
+    public interface Invoker0 { Object invoke() throws Throwable; }
+    public interface Invoker1 { Object invoke( Object a ) throws Throwable; }
+    public interface Invoker2 { Object invoke( Object a, Object b ) throws Throwable; }
+    public interface Invoker3 { Object invoke( Object a, Object b, Object c ) throws Throwable; }
+    public interface Invoker4 { Object invoke( Object a, Object b, Object c,
+                                               Object d ) throws Throwable; }
+    public interface Invoker5 { Object invoke( Object a, Object b, Object c,
+                                               Object d, Object e ) throws Throwable; }
+    public interface Invoker6 { Object invoke( Object a, Object b, Object c,
+                                               Object d, Object e, Object f ) throws Throwable; }
+
+    protected static final Class< ? >[] invokerInterfaces =
+            new Class< ? >[] { Invoker0.class, Invoker1.class, Invoker2.class,
+                               Invoker3.class, Invoker4.class, Invoker5.class,
+                               Invoker6.class };
+    public static final int maxInvokerArity = invokerInterfaces.length - 1;
+
+    protected static final MethodType invokerType =
+            MethodType.methodType( Object.class, Object.class, Object[].class );
+    protected static final Object[] noArgs = new Object[ 0 ];
+
+    /**
+     * LambdaMetafactory.metafactory(), looked up reflectively since this code
+     * is compiled for Java 7; null if unavailable.
+     */
+    protected static final Method metafactory = findMetafactory();
+
+    public final Method method;
+    protected final MethodHandle handle;
+    protected final Object invoker;  // an InvokerN or null
+    protected final Class< ? >[] parameterTypes;
+    // parameterTypes with primitives replaced by their wrapper classes
+    protected final Class< ? >[] boxedParameterTypes;
+    protected final boolean isStatic;
+
+    protected CompiledMethod( Method method, MethodHandle handle, Object invoker ) {
+        this.method = method;
+        this.handle = handle;
+        this.invoker = invoker;
+        this.parameterTypes = method.getParameterTypes();
+        this.boxedParameterTypes = new Class< ? >[ parameterTypes.length ];
+        for ( int i = 0; i < parameterTypes.length; ++i ) {
+            Class< ? > p = parameterTypes[ i ];
+            boxedParameterTypes[ i ] = p.isPrimitive() ? ClassUtils.classForPrimitive( p ) : p;
+        }
+        this.isStatic = ClassUtils.isStatic( method );
+    }
+
+    protected static Method findMetafactory() {
+        try {
+            Class< ? > lmf = Class.forName( "java.lang.invoke.LambdaMetafactory" );
+            return lmf.getMethod( "metafactory", MethodHandles.Lookup.class,
+                                  String.class, MethodType.class,
+                                  MethodType.class, MethodHandle.class,
+                                  MethodType.class );
+        } catch ( Throwable e ) {
+            return null;
+        }
+    }
+
+    /**
+     * @param method
+     * @return the compiled method or null if the method is null or cannot be
+     *         accessed through a method handle
+     */
+    public static CompiledMethod compile( Method method ) {
+        if ( method == null ) return null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle direct = lookup.unreflect( method );
+            MethodHandle mh = direct;
+            // Method.invoke() does not collect varargs, so neither do we.
+            if ( method.isVarArgs() ) mh = mh.asFixedArity();
+            if ( ClassUtils.isStatic( method ) ) {
+                mh = MethodHandles.dropArguments( mh, 0, Object.class );
+            }
+            mh = mh.asSpreader( Object[].class, method.getParameterTypes().length );
+            mh = mh.asType( invokerType );
+            return new CompiledMethod( method, mh, makeInvoker( lookup, method, direct ) );
+        } catch ( IllegalAccessException e ) {
+            if ( Debug.isOn() ) Debug.errln( "CompiledMethod.compile(" + method + "): "
+                                             + e.getMessage() );
+        } catch ( RuntimeException e ) {
+            if ( Debug.isOn() ) Debug.errln( "CompiledMethod.compile(" + method + "): "
+                                             + e.getMessage() );
+        }
+        return null;
+    }
+
+    /**
+     * @return an InvokerN for the method or null if one cannot be generated
+     */
+    protected static Object makeInvoker( MethodHandles.Lookup lookup, Method method,
+                                         MethodHandle direct ) {
+        if ( metafactory == null ) return null;
+        if ( method.isVarArgs() || method.getReturnType() == void.class ) return null;
+        MethodType type = direct.type();
+        int arity = type.parameterCount();
+        if ( arity > maxInvokerArity ) return null;
+        if ( !Modifier.isPublic( method.getModifiers() )
+             || !isVisible( method.getDeclaringClass() ) ) {
+            return null;
+        }
+        for ( Class< ? > c : type.parameterArray() ) {
+            if ( !isVisible( c ) ) return null;
+        }
+        if ( !isVisible( type.returnType() ) ) return null;
+        try {
+            Class< ? > iface = invokerInterfaces[ arity ];
+            MethodType samType = MethodType.genericMethodType( arity );
+            CallSite site =
+                    (CallSite)metafactory.invoke( null, lookup, "invoke",
+                                                  MethodType.methodType( iface ),
+                                                  samType, direct, type.wrap() );
+            return (Object)site.getTarget().invoke();
+        } catch ( Throwable e ) {
+            if ( Debug.isOn() ) Debug.errln( "CompiledMethod: no invoker for " + method
+                                             + ": " + e );
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the generated invoker, which links against this class's
+     *         loader, can refer to the class
+     */
+    protected static boolean isVisible( Class< ? > c ) {
+        while ( c.isArray() ) c = c.getComponentType();
+        if ( c.isPrimitive() ) return true;
+        for ( Class< ? > e = c; e != null; e = e.getEnclosingClass() ) {
+            if ( !Modifier.isPublic( e.getModifiers() ) ) return false;
+        }
+        try {
+            return Class.forName( c.getName(), false,
+                                  CompiledMethod.class.getClassLoader() ) == c;
+        } catch ( Throwable e ) {
+            return false;
+        }
+    }
+
+    /**
+     * @return whether calls go through a generated invoker rather than a
+     *         method handle
+     */
+    public boolean hasInvoker() {
+        return invoker != null;
+    }
+
+    /**
+     * Invoke the method from the given object with the given arguments.
+     *
+     * @param o
+     *            the object whose method is called; ignored if the method is
+     *            static
+     * @param args
+     * @return the return value or null if the method's return type is void
+     * @throws IllegalArgumentException
+     * @throws IllegalAccessException
+     * @throws InvocationTargetException
+     */
+    public Object invoke( Object o, Object... args ) throws IllegalArgumentException,
+                                                             IllegalAccessException,
+                                                             InvocationTargetException {
+        if ( args == null ) args = noArgs;
+        boolean exact = checkArguments( o, args );
+        try {
+            // The invoker can't widen primitives, so it only gets exact types.
+            if ( exact && invoker != null ) {
+                return isStatic ? invokeStatic( args ) : invokeInstance( o, args );
+            }
+            return (Object)handle.invokeExact( o, args );
+        } catch ( Throwable t ) {
+            // The arguments were checked, so this came from the method.
+            throw new InvocationTargetException( t );
+        }
+    }
+
+    protected Object invokeStatic( Object[] a ) throws Throwable {
+        switch ( a.length ) {
+            case 0: return ( (Invoker0)invoker ).invoke();
+            case 1: return ( (Invoker1)invoker ).invoke( a[0] );
+            case 2: return ( (Invoker2)invoker ).invoke( a[0], a[1] );
+            case 3: return ( (Invoker3)invoker ).invoke( a[0], a[1], a[2] );
+            case 4: return ( (Invoker4)invoker ).invoke( a[0], a[1], a[2], a[3] );
+            case 5: return ( (Invoker5)invoker ).invoke( a[0], a[1], a[2], a[3], a[4] );
+            case 6: return ( (Invoker6)invoker ).invoke( a[0], a[1], a[2], a[3], a[4], a[5] );
+            default: return (Object)handle.invokeExact( (Object)null, a );
+        }
+    }
+
+    protected Object invokeInstance( Object o, Object[] a ) throws Throwable {
+        switch ( a.length ) {
+            case 0: return ( (Invoker1)invoker ).invoke( o );
+            case 1: return ( (Invoker2)invoker ).invoke( o, a[0] );
+            case 2: return ( (Invoker3)invoker ).invoke( o, a[0], a[1] );
+            case 3: return ( (Invoker4)invoker ).invoke( o, a[0], a[1], a[2] );
+            case 4: return ( (Invoker5)invoker ).invoke( o, a[0], a[1], a[2], a[3] );
+            case 5: return ( (Invoker6)invoker ).invoke( o, a[0], a[1], a[2], a[3], a[4] );
+            default: return (Object)handle.invokeExact( o, a );
+        }
+    }
+
+    /**
+     * Check the arguments the way Method.invoke() does so that conversion
+     * failures are not confused with exceptions thrown by the method.
+     *
+     * @return whether no primitive argument needs a widening conversion
+     */
+    protected boolean checkArguments( Object o, Object[] args ) {
+        if ( !isStatic ) {
+            if ( o == null ) throw new NullPointerException();
+            if ( !method.getDeclaringClass().isInstance( o ) ) {
+                throw new IllegalArgumentException( "object is not an instance of declaring class" );
+            }
+        }
+        if ( args.length != parameterTypes.length ) {
+            throw new IllegalArgumentException( "wrong number of arguments" );
+        }
+        boolean exact = true;
+        for ( int i = 0; i < args.length; ++i ) {
+            Object arg = args[ i ];
+            if ( arg != null && arg.getClass() == boxedParameterTypes[ i ] ) continue;
+            Class< ? > p = parameterTypes[ i ];
+            if ( p.isPrimitive() ) {
+                if ( arg == null || !widens( arg.getClass(), p ) ) {
+                    throw new IllegalArgumentException( "argument type mismatch" );
+                }
+                exact = false;
+            } else if ( arg != null && !p.isInstance( arg ) ) {
+                throw new IllegalArgumentException( "argument type mismatch" );
+            }
+        }
+        return exact;
+    }
+
+    /**
+     * @param wrapper
+     *            the class of a boxed argument
+     * @param primitive
+     *            the parameter type
+     * @return whether the unboxed argument can be passed to the parameter by
+     *         an identity or widening primitive conversion
+     */
+    protected static boolean widens( Class< ? > wrapper, Class< ? > primitive ) {
+        Class< ? > from = ClassUtils.primitiveForClass( wrapper );
+        if ( from == null ) return false;
+        if ( from == primitive ) return true;
+        if ( from == boolean.class || primitive == boolean.class ) return false;
+        if ( primitive == char.class ) return false;
+        if ( from == char.class ) {
+            return primitive == int.class || primitive == long.class
+                   || primitive == float.class || primitive == double.class;
+        }
+        if ( primitive == short.class ) return from == byte.class;
+        return numericRank( from ) < numericRank( primitive );
+    }
+
+    protected static int numericRank( Class< ? > c ) {
+        if ( c == byte.class ) return 0;
+        if ( c == short.class ) return 1;
+        if ( c == int.class ) return 2;
+        if ( c == long.class ) return 3;
+        if ( c == float.class ) return 4;
+        if ( c == double.class ) return 5;
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledMethod(" + method + ( hasInvoker() ? ", invoker" : "" ) + ")";
+    }
+}
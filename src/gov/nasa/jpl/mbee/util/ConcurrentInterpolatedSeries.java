@@ -0,0 +1,335 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ConcurrentInterpolatedSeries is a {@link DoubleInterpolatedSeries} for one
+ * or a few writers and many readers. Readers never lock: each read uses the
+ * current snapshot, an immutable series published atomically, so the samples
+ * bracketing a key are always from the same version.
+ * <p>
+ * Writes are buffered and published together by {@link #commit()}, which
+ * happens automatically once {@link #batchSize} writes are pending. Samples
+ * appended after the last key are copied into spare capacity past the end
+ * of the current snapshot's arrays, which no reader of an older snapshot
+ * looks at, so appending is amortized O(1). Other writes merge into new
+ * arrays.
+ */
+public class ConcurrentInterpolatedSeries {
+
+    /**
+     * The samples of a commit, which are never changed once published.
+     */
+    protected static class Samples extends DoubleInterpolatedSeries {
+        protected Samples( double[] keys, double[] values, int size, byte interpolationType ) {
+            super( 0 );
+            this.keys = keys;
+            this.values = values;
+            this.size = size;
+            this.interpolation.type = interpolationType;
+        }
+
+        /**
+         * Readers share the samples, so cubic coefficients are computed for
+         * each lookup instead of being cached.
+         */
+        @Override
+        protected boolean cacheCoefficients() {
+            return false;
+        }
+    }
+
+    /**
+     * A read-only view of the samples at a commit. It has only the reading
+     * methods of {@link DoubleInterpolatedSeries}, so readers sharing it
+     * cannot change it or its interpolation.
+     */
+    public static class Snapshot {
+        protected final Samples samples;
+
+        protected Snapshot( double[] keys, double[] values, int size, byte interpolationType ) {
+            samples = new Samples( keys, values, size, interpolationType );
+        }
+
+        /**
+         * @return a copy of the interpolation of the samples
+         */
+        public InterpolatedMap.Interpolation getInterpolation() {
+            return new InterpolatedMap.Interpolation( samples.interpolation.type );
+        }
+
+        public int size() {
+            return samples.size();
+        }
+
+        public boolean isEmpty() {
+            return samples.isEmpty();
+        }
+
+        public double keyAt( int i ) {
+            return samples.keyAt( i );
+        }
+
+        public double valueAt( int i ) {
+            return samples.valueAt( i );
+        }
+
+        public double firstKey() {
+            return samples.firstKey();
+        }
+
+        public double lastKey() {
+            return samples.lastKey();
+        }
+
+        /**
+         * @see DoubleInterpolatedSeries#indexOf(double)
+         */
+        public int indexOf( double key ) {
+            return samples.indexOf( key );
+        }
+
+        /**
+         * @see DoubleInterpolatedSeries#floorIndex(double)
+         */
+        public int floorIndex( double key ) {
+            return samples.floorIndex( key );
+        }
+
+        /**
+         * @see DoubleInterpolatedSeries#get(double)
+         */
+        public double get( double key ) {
+            return samples.get( key );
+        }
+
+        /**
+         * @see DoubleInterpolatedSeries#get(double[], double[])
+         */
+        public double[] get( double[] sortedKeys, double[] out ) {
+            return samples.get( sortedKeys, out );
+        }
+
+        /**
+         * @see DoubleInterpolatedSeries#resample(double, double, double[])
+         */
+        public double[] resample( double start, double step, double[] out ) {
+            return samples.resample( start, step, out );
+        }
+
+        /**
+         * @see DoubleInterpolatedSeries#aggregate(double, double)
+         */
+        public InterpolatedMap.Aggregate aggregate( double t1, double t2 ) {
+            return samples.aggregate( t1, t2 );
+        }
+
+        public boolean containsKey( double key ) {
+            return samples.containsKey( key );
+        }
+
+        /**
+         * @see InterpolatedSeries#valueRange(double, double)
+         */
+        public double[] valueRange( double t1, double t2 ) {
+            return samples.valueRange( t1, t2 );
+        }
+
+        /**
+         * @see InterpolatedSeries#crosses(double, double, double)
+         */
+        public boolean crosses( double x, double t1, double t2 ) {
+            return samples.crosses( x, t1, t2 );
+        }
+
+        /**
+         * @see InterpolatedSeries#containsValue(double)
+         */
+        public boolean containsValue( double x ) {
+            return samples.containsValue( x );
+        }
+
+        /**
+         * @see InterpolatedSeries#firstReach(double, double)
+         */
+        public double firstReach( double x, double from ) {
+            return samples.firstReach( x, from );
+        }
+
+        /**
+         * @return the samples in a new InterpolatedMap
+         */
+        public InterpolatedMap< Double, Double > toInterpolatedMap() {
+            return samples.toInterpolatedMap();
+        }
+
+        @Override
+        public String toString() {
+            return samples.toString();
+        }
+    }
+
+    /**
+     * The number of pending writes that triggers a commit; 1 makes each
+     * write visible immediately.
+     */
+    public int batchSize = 1;
+
+    protected final AtomicReference< Snapshot > current;
+    protected final DoubleInterpolatedSeries pending = new DoubleInterpolatedSeries();
+
+    public ConcurrentInterpolatedSeries() {
+        this( new InterpolatedMap.Interpolation() );
+    }
+
+    public ConcurrentInterpolatedSeries( InterpolatedMap.Interpolation interpolation ) {
+        current = new AtomicReference< Snapshot >( new Snapshot( new double[ 0 ], new double[ 0 ], 0,
+                                                                 interpolation.type ) );
+    }
+
+    /**
+     * Copy the samples and interpolation of an InterpolatedMap with Number
+     * keys and values, leaving out null keys and values.
+     *
+     * @param map
+     */
+    public ConcurrentInterpolatedSeries( InterpolatedMap< ? extends Number, ? extends Number > map ) {
+        this( map.interpolation );
+        DoubleInterpolatedSeries s = new DoubleInterpolatedSeries( map );
+        current.set( new Snapshot( s.keys, s.values, s.size, s.interpolation.type ) );
+    }
+
+    /**
+     * @return the samples as of the last commit, which cannot be changed
+     */
+    public Snapshot snapshot() {
+        return current.get();
+    }
+
+    /**
+     * @param key
+     * @return the value at the key as of the last commit, without locking
+     * @see DoubleInterpolatedSeries#get(double)
+     */
+    public double get( double key ) {
+        return current.get().get( key );
+    }
+
+    public boolean containsKey( double key ) {
+        return current.get().containsKey( key );
+    }
+
+    /**
+     * @return the number of samples as of the last commit
+     */
+    public int size() {
+        return current.get().size();
+    }
+
+    /**
+     * Add a sample or replace the value of a sampled key, committing if
+     * there are {@link #batchSize} pending writes.
+     *
+     * @param key
+     *            a key that is not NaN
+     * @param value
+     */
+    public synchronized void put( double key, double value ) {
+        pending.put( key, value );
+        if ( pending.size() >= batchSize ) commit();
+    }
+
+    /**
+     * Remove a sample, committing any pending writes first.
+     *
+     * @param key
+     * @return whether there was a sample with the key
+     */
+    public synchronized boolean remove( double key ) {
+        commit();
+        Samples s = current.get().samples;
+        int i = s.indexOf( key );
+        if ( i < 0 ) return false;
+        double[] keys = new double[ s.size - 1 ];
+        double[] values = new double[ keys.length ];
+        System.arraycopy( s.keys, 0, keys, 0, i );
+        System.arraycopy( s.keys, i + 1, keys, i, keys.length - i );
+        System.arraycopy( s.values, 0, values, 0, i );
+        System.arraycopy( s.values, i + 1, values, i, keys.length - i );
+        current.set( new Snapshot( keys, values, keys.length, s.interpolation.type ) );
+        return true;
+    }
+
+    /**
+     * Change the interpolation, committing any pending writes.
+     *
+     * @param interpolation
+     */
+    public synchronized void setInterpolation( InterpolatedMap.Interpolation interpolation ) {
+        commit();
+        Samples s = current.get().samples;
+        current.set( new Snapshot( s.keys, s.values, s.size, interpolation.type ) );
+    }
+
+    public synchronized void clear() {
+        pending.clear();
+        Samples s = current.get().samples;
+        current.set( new Snapshot( new double[ 0 ], new double[ 0 ], 0, s.interpolation.type ) );
+    }
+
+    /**
+     * Publish the pending writes to readers.
+     */
+    public synchronized void commit() {
+        int n = pending.size();
+        if ( n == 0 ) return;
+        Samples s = current.get().samples;
+        double[] pk = pending.keys;
+        double[] pv = pending.values;
+        if ( s.size == 0 || pk[ 0 ] > s.keys[ s.size - 1 ] ) {
+            // append into spare capacity, which older snapshots do not read
+            double[] keys = s.keys;
+            double[] values = s.values;
+            int size = s.size + n;
+            if ( size > keys.length ) {
+                int capacity = Math.max( size, Math.max( DoubleInterpolatedSeries.defaultCapacity,
+                                                         keys.length + ( keys.length >> 1 ) ) );
+                keys = Arrays.copyOf( keys, capacity );
+                values = Arrays.copyOf( values, capacity );
+            }
+            System.arraycopy( pk, 0, keys, s.size, n );
+            System.arraycopy( pv, 0, values, s.size, n );
+            current.set( new Snapshot( keys, values, size, s.interpolation.type ) );
+        } else {
+            // merge into new arrays, the pending values replacing old ones
+            double[] keys = new double[ s.size + n ];
+            double[] values = new double[ keys.length ];
+            int i = 0, j = 0, k = 0;
+            while ( i < s.size || j < n ) {
+                if ( j >= n || ( i < s.size && s.keys[ i ] < pk[ j ] ) ) {
+                    keys[ k ] = s.keys[ i ];
+                    values[ k++ ] = s.values[ i++ ];
+                } else {
+                    if ( i < s.size && s.keys[ i ] == pk[ j ] ) ++i;
+                    keys[ k ] = pk[ j ];
+                    values[ k++ ] = pv[ j++ ];
+                }
+            }
+            current.set( new Snapshot( keys, values, k, s.interpolation.type ) );
+        }
+        pending.clear();
+    }
+
+    /**
+     * @return the committed samples in an InterpolatedMap
+     */
+    public InterpolatedMap< Double, Double > toInterpolatedMap() {
+        return current.get().toInterpolatedMap();
+    }
+
+    @Override
+    public String toString() {
+        return current.get().toString();
+    }
+}
@@ -0,0 +1,959 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * DiffCodec writes the results of a {@link Diff} in a compact binary format
+ * and reads them back lazily, without building the nested maps of the
+ * results until they are asked for.
+ * <p>
+ * The format is:
+ * <ul>
+ * <li>a header: the int {@link #magic} and a version byte;</li>
+ * <li>a dictionary of the IDs of the changed objects and a dictionary of the
+ * IDs of the changed properties, each a varint count followed by the IDs
+ * written by an ID {@link ValueCodec}; and</li>
+ * <li>a section each for the added, removed, and updated objects. A section
+ * is a varint count of objects followed by columns of varints: the objects'
+ * dictionary indices, their numbers of added, removed, and updated
+ * properties, the property names' dictionary indices, and the byte lengths of
+ * the objects' values. Then come the values of each object: the new values of
+ * added properties, the old values of removed properties, and the old and new
+ * values of updated properties.</li>
+ * </ul>
+ * An object is added if {@link Diff#get1(Object)} is null for its ID,
+ * removed if {@link Diff#get2(Object)} is null, and updated otherwise.
+ * Added and removed objects are written even if they have no property
+ * changes, for example an object without properties or a removed object
+ * when removed properties are ignored. Updated objects without property
+ * changes are left out.
+ */
+public class DiffCodec {
+
+    public static final int magic = 0x44494646;  // "DIFF"
+    public static final byte version = 1;
+
+    /**
+     * The largest byte length of a string or serialized value that is read
+     * from a DataInput other than a {@link Reader}'s, whose lengths are
+     * checked against the bytes remaining instead.
+     */
+    public static int maxValueBytes = 256 * 1024 * 1024;
+
+    protected static final int ADDED = 0;
+    protected static final int REMOVED = 1;
+    protected static final int UPDATED = 2;
+    protected static final int numSections = 3;
+
+    protected static final Charset utf8 = Charset.forName( "UTF-8" );
+
+    /**
+     * Writes and reads values of one type. Null values are handled by
+     * DiffCodec and never passed to the codec.
+     *
+     * @param <X>
+     */
+    public interface ValueCodec< X > {
+        public void write( DataOutput out, X x ) throws IOException;
+
+        public X read( DataInput in ) throws IOException;
+    }
+
+    /**
+     * Creates and changes objects when applying a diff as a patch.
+     */
+    public interface ObjectBuilder< T, P, ID > {
+        /**
+         * @return a new object with the given ID and no properties
+         */
+        public T newObject( ID id );
+
+        /**
+         * @return a copy of t that can be changed without changing t
+         */
+        public T copy( T t );
+
+        public void setProperty( T t, ID propertyId, P value );
+
+        public void removeProperty( T t, ID propertyId );
+    }
+
+    /**
+     * Strings as a varint byte length and UTF-8 bytes.
+     */
+    public static final ValueCodec< String > stringCodec = new ValueCodec< String >() {
+        @Override
+        public void write( DataOutput out, String s ) throws IOException {
+            byte[] bytes = s.getBytes( utf8 );
+            writeVarint( out, bytes.length );
+            out.write( bytes );
+        }
+
+        @Override
+        public String read( DataInput in ) throws IOException {
+            byte[] bytes = new byte[ readLength( in, 1 ) ];
+            in.readFully( bytes );
+            return new String( bytes, utf8 );
+        }
+    };
+
+    /**
+     * Longs as zigzag varints, so small magnitudes take few bytes.
+     */
+    public static final ValueCodec< Long > longCodec = new ValueCodec< Long >() {
+        @Override
+        public void write( DataOutput out, Long x ) throws IOException {
+            writeVarlong( out, ( x << 1 ) ^ ( x >> 63 ) );
+        }
+
+        @Override
+        public Long read( DataInput in ) throws IOException {
+            long z = readVarlong( in );
+            return ( z >>> 1 ) ^ -( z & 1 );
+        }
+    };
+
+    /**
+     * Any Serializable value using Java serialization, which is general but
+     * neither compact nor fast.
+     */
+    public static final ValueCodec< Object > serializableCodec = new ValueCodec< Object >() {
+        @Override
+        public void write( DataOutput out, Object x ) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream( bytes );
+            oos.writeObject( (Serializable)x );
+            oos.close();
+            writeVarint( out, bytes.size() );
+            out.write( bytes.toByteArray() );
+        }
+
+        @Override
+        public Object read( DataInput in ) throws IOException {
+            byte[] bytes = new byte[ readLength( in, 1 ) ];
+            in.readFully( bytes );
+            ObjectInputStream ois = new ObjectInputStream( new ByteArrayInputStream( bytes ) );
+            try {
+                return ois.readObject();
+            } catch ( ClassNotFoundException e ) {
+                throw new IOException( e );
+            } finally {
+                ois.close();
+            }
+        }
+    };
+
+    public static void writeVarint( DataOutput out, int x ) throws IOException {
+        writeVarlong( out, x & 0xffffffffL );
+    }
+
+    public static void writeVarlong( DataOutput out, long x ) throws IOException {
+        while ( ( x & ~0x7fL ) != 0 ) {
+            out.writeByte( (int)( ( x & 0x7f ) | 0x80 ) );
+            x >>>= 7;
+        }
+        out.writeByte( (int)x );
+    }
+
+    public static int readVarint( DataInput in ) throws IOException {
+        return (int)readVarlong( in );
+    }
+
+    /**
+     * Read a count of items as a varint, checking that it is not negative and
+     * that there are enough bytes left for that many items, so that a
+     * corrupt count fails with an IOException instead of allocating a huge
+     * array.
+     *
+     * @param in
+     * @param minBytesPerItem
+     *            the fewest bytes an item can be encoded in
+     * @return the count
+     * @throws IOException
+     *             if the count is negative or too large
+     */
+    public static int readLength( DataInput in, int minBytesPerItem ) throws IOException {
+        long n = readVarint( in );
+        long limit = in instanceof ByteReader ? ( (ByteReader)in ).remaining() : maxValueBytes;
+        if ( n < 0 || n * minBytesPerItem > limit ) {
+            throw new IOException( "length " + n + " is negative or longer than the "
+                                   + limit + " bytes allowed" );
+        }
+        return (int)n;
+    }
+
+    public static long readVarlong( DataInput in ) throws IOException {
+        long x = 0;
+        for ( int shift = 0; shift < 64; shift += 7 ) {
+            int b = in.readUnsignedByte();
+            x |= (long)( b & 0x7f ) << shift;
+            if ( ( b & 0x80 ) == 0 ) return x;
+        }
+        throw new IOException( "malformed varint" );
+    }
+
+    protected static < X > void writeValue( DataOutput out, ValueCodec< X > codec, X x )
+            throws IOException {
+        if ( x == null ) {
+            out.writeByte( 0 );
+        } else {
+            out.writeByte( 1 );
+            codec.write( out, x );
+        }
+    }
+
+    protected static < X > X readValue( DataInput in, ValueCodec< X > codec )
+            throws IOException {
+        return in.readUnsignedByte() == 0 ? null : codec.read( in );
+    }
+
+    /**
+     * @return the index of x in the dictionary, adding it if necessary
+     */
+    protected static < X > int index( Map< X, Integer > dictionary, X x ) {
+        Integer i = dictionary.get( x );
+        if ( i == null ) {
+            i = dictionary.size();
+            dictionary.put( x, i );
+        }
+        return i;
+    }
+
+    protected static boolean isEmpty( Map< ?, ? > map ) {
+        return map == null || map.isEmpty();
+    }
+
+    /**
+     * Write the results of a diff.
+     *
+     * @param diff
+     * @param idCodec
+     *            writes object and property IDs
+     * @param propertyCodec
+     *            writes property values
+     * @param out
+     * @throws IOException
+     */
+    public static < T, P, ID > void write( Diff< T, P, ID > diff, ValueCodec< ID > idCodec,
+                                           ValueCodec< P > propertyCodec, OutputStream out )
+                                                   throws IOException {
+        Map< ID, Map< ID, P > > addedProps = diff.getAddedProperties();
+        Map< ID, Map< ID, P > > removedProps = diff.getRemovedProperties();
+        Map< ID, Map< ID, Pair< P, P > > > updatedProps = diff.getUpdatedProperties();
+
+        Map< ID, Integer > ids = new LinkedHashMap< ID, Integer >();
+        Map< ID, Integer > names = new LinkedHashMap< ID, Integer >();
+        List< List< ID > > sections = new ArrayList< List< ID > >( numSections );
+        for ( int i = 0; i < numSections; ++i ) {
+            sections.add( new ArrayList< ID >() );
+        }
+        for ( ID id : diff.getPropertyChanges().keySet() ) {
+            Map< ID, P > a = addedProps.get( id );
+            Map< ID, P > r = removedProps.get( id );
+            Map< ID, Pair< P, P > > u = updatedProps.get( id );
+            boolean changed = !isEmpty( a ) || !isEmpty( r ) || !isEmpty( u );
+            // the section depends on which sets have the object, not on
+            // whether any of its properties changed
+            boolean in1 = diff.get1( id ) != null;
+            boolean in2 = diff.get2( id ) != null;
+            int section;
+            if ( in1 && in2 ) section = UPDATED;
+            else if ( in1 ) section = REMOVED;
+            else if ( in2 || changed ) section = ADDED;
+            else continue;
+            if ( section == UPDATED && !changed ) continue;
+            index( ids, id );
+            if ( a != null ) for ( ID pid : a.keySet() ) index( names, pid );
+            if ( r != null ) for ( ID pid : r.keySet() ) index( names, pid );
+            if ( u != null ) for ( ID pid : u.keySet() ) index( names, pid );
+            sections.get( section ).add( id );
+        }
+
+        DataOutputStream dout = new DataOutputStream( out );
+        dout.writeInt( magic );
+        dout.writeByte( version );
+        writeVarint( dout, ids.size() );
+        for ( ID id : ids.keySet() ) {
+            idCodec.write( dout, id );
+        }
+        writeVarint( dout, names.size() );
+        for ( ID name : names.keySet() ) {
+            idCodec.write( dout, name );
+        }
+
+        ByteArrayOutputStream valueBytes = new ByteArrayOutputStream();
+        DataOutputStream values = new DataOutputStream( valueBytes );
+        for ( List< ID > section : sections ) {
+            int n = section.size();
+            writeVarint( dout, n );
+            for ( ID id : section ) {
+                writeVarint( dout, ids.get( id ) );
+            }
+            for ( ID id : section ) {
+                writeVarint( dout, size( addedProps.get( id ) ) );
+            }
+            for ( ID id : section ) {
+                writeVarint( dout, size( removedProps.get( id ) ) );
+            }
+            for ( ID id : section ) {
+                writeVarint( dout, size( updatedProps.get( id ) ) );
+            }
+            for ( ID id : section ) {
+                writeNames( dout, names, addedProps.get( id ) );
+                writeNames( dout, names, removedProps.get( id ) );
+                writeNames( dout, names, updatedProps.get( id ) );
+            }
+            valueBytes.reset();
+            int[] lengths = new int[ n ];
+            for ( int i = 0; i < n; ++i ) {
+                ID id = section.get( i );
+                int start = valueBytes.size();
+                Map< ID, P > a = addedProps.get( id );
+                if ( a != null ) {
+                    for ( P p : a.values() ) writeValue( values, propertyCodec, p );
+                }
+                Map< ID, P > r = removedProps.get( id );
+                if ( r != null ) {
+                    for ( P p : r.values() ) writeValue( values, propertyCodec, p );
+                }
+                Map< ID, Pair< P, P > > u = updatedProps.get( id );
+                if ( u != null ) {
+                    for ( Pair< P, P > pp : u.values() ) {
+                        writeValue( values, propertyCodec, pp == null ? null : pp.first );
+                        writeValue( values, propertyCodec, pp == null ? null : pp.second );
+                    }
+                }
+                values.flush();
+                lengths[ i ] = valueBytes.size() - start;
+            }
+            for ( int len : lengths ) {
+                writeVarint( dout, len );
+            }
+            valueBytes.writeTo( dout );
+        }
+        dout.flush();
+    }
+
+    protected static int size( Map< ?, ? > map ) {
+        return map == null ? 0 : map.size();
+    }
+
+    protected static < ID > void writeNames( DataOutput out, Map< ID, Integer > names,
+                                             Map< ID, ? > props ) throws IOException {
+        if ( props == null ) return;
+        for ( ID pid : props.keySet() ) {
+            writeVarint( out, names.get( pid ) );
+        }
+    }
+
+    /**
+     * @return the diff written to bytes
+     */
+    public static < T, P, ID > byte[] toBytes( Diff< T, P, ID > diff, ValueCodec< ID > idCodec,
+                                               ValueCodec< P > propertyCodec ) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            write( diff, idCodec, propertyCodec, out );
+        } catch ( IOException e ) {
+            // not possible for a ByteArrayOutputStream unless a codec throws
+            throw new IllegalArgumentException( e );
+        }
+        return out.toByteArray();
+    }
+
+    public static < T, P, ID > Reader< T, P, ID > read( InputStream in, ValueCodec< ID > idCodec,
+                                                        ValueCodec< P > propertyCodec )
+                                                                throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[ 8192 ];
+        int n;
+        while ( ( n = in.read( buf ) ) >= 0 ) {
+            bytes.write( buf, 0, n );
+        }
+        return new Reader< T, P, ID >( bytes.toByteArray(), idCodec, propertyCodec );
+    }
+
+    /**
+     * A {@link DataInputStream} over a byte array that knows its position.
+     */
+    protected static class ByteReader extends DataInputStream {
+        protected final PositionStream stream;
+
+        protected ByteReader( byte[] bytes, int offset ) {
+            this( new PositionStream( bytes, offset ) );
+        }
+
+        private ByteReader( PositionStream stream ) {
+            super( stream );
+            this.stream = stream;
+        }
+
+        public int position() {
+            return stream.position();
+        }
+
+        public int remaining() {
+            return stream.remaining();
+        }
+    }
+
+    protected static class PositionStream extends ByteArrayInputStream {
+        protected PositionStream( byte[] bytes, int offset ) {
+            super( bytes, offset, bytes.length - offset );
+        }
+
+        public int position() {
+            return pos;
+        }
+
+        public int remaining() {
+            return count - pos;
+        }
+    }
+
+    /**
+     * The columns of one section of the format.
+     */
+    protected static class Section {
+        protected int[] objects;       // dictionary indices
+        protected int[] numAdded, numRemoved, numUpdated;
+        protected int[] firstName;     // the object's first entry in names
+        protected int[] names;         // dictionary indices
+        protected int[] valueOffsets;  // n + 1 positions in the bytes
+    }
+
+    /**
+     * A {@link Diff} read from the binary format. Only the dictionaries and
+     * the integer columns are decoded up front. Property values are decoded
+     * for one object at a time when its changes are asked for. The maps
+     * returned by the getters are read-only views in which every changed
+     * object has an entry, possibly empty, as in {@link AbstractDiff}.
+     * <p>
+     * Objects are only available when a base, the objects of the first set,
+     * is given with {@link #setBase(Map, ObjectBuilder)}, in which case the
+     * second set is the result of {@link #apply(Map, ObjectBuilder)}.
+     * <p>
+     * The changes of an object are kept once decoded, so a Reader should not
+     * be shared by threads without synchronization.
+     */
+    public static class Reader< T, P, ID > implements Diff< T, P, ID > {
+        protected final byte[] bytes;
+        protected final ValueCodec< ID > idCodec;
+        protected final ValueCodec< P > propertyCodec;
+        protected final List< ID > ids;
+        protected final List< ID > names;
+        protected final Section[] sections = new Section[ numSections ];
+        protected Map< ID, int[] > positions = null;  // ID -> { section, index }
+        protected List< List< ObjectChanges > > decoded = null;  // by section and index
+        protected final Set< ID > propertyIdsToIgnore = new HashSet< ID >();
+
+        protected Map< ID, T > base = null;
+        protected ObjectBuilder< T, P, ID > builder = null;
+        protected Map< ID, T > patched = null;
+
+        public Reader( byte[] bytes, ValueCodec< ID > idCodec,
+                       ValueCodec< P > propertyCodec ) throws IOException {
+            this.bytes = bytes;
+            this.idCodec = idCodec;
+            this.propertyCodec = propertyCodec;
+            ByteReader in = new ByteReader( bytes, 0 );
+            if ( in.readInt() != magic ) throw new IOException( "not a binary diff" );
+            int v = in.readUnsignedByte();
+            if ( v != version ) throw new IOException( "unsupported binary diff version " + v );
+            ids = readDictionary( in );
+            names = readDictionary( in );
+            for ( int s = 0; s < numSections; ++s ) {
+                sections[ s ] = readSection( in );
+            }
+        }
+
+        protected List< ID > readDictionary( ByteReader in ) throws IOException {
+            int n = readVarint( in );
+            if ( n < 0 ) throw new IOException( "negative dictionary size " + n );
+            // an ID codec may write nothing, so only the capacity is bounded
+            List< ID > list = new ArrayList< ID >( Math.min( n, in.remaining() ) );
+            for ( int i = 0; i < n; ++i ) {
+                list.add( idCodec.read( in ) );
+            }
+            return list;
+        }
+
+        /**
+         * @return n varints, each of which must be in [0, bound)
+         * @throws IOException
+         *             if there are fewer than n bytes left or a value is out
+         *             of bounds
+         */
+        protected static int[] readColumn( ByteReader in, long n, int bound ) throws IOException {
+            if ( n < 0 || n > in.remaining() ) {
+                throw new IOException( "column of " + n + " varints is longer than the "
+                                       + in.remaining() + " bytes left" );
+            }
+            int[] column = new int[ (int)n ];
+            for ( int i = 0; i < n; ++i ) {
+                column[ i ] = readVarint( in );
+                if ( column[ i ] < 0 || column[ i ] >= bound ) {
+                    throw new IOException( "value " + column[ i ] + " is not in [0, " + bound + ")" );
+                }
+            }
+            return column;
+        }
+
+        protected Section readSection( ByteReader in ) throws IOException {
+            Section s = new Section();
+            int n = readLength( in, 1 );
+            s.objects = readColumn( in, n, ids.size() );
+            s.numAdded = readColumn( in, n, Integer.MAX_VALUE );
+            s.numRemoved = readColumn( in, n, Integer.MAX_VALUE );
+            s.numUpdated = readColumn( in, n, Integer.MAX_VALUE );
+            s.firstName = new int[ n ];
+            long numNames = 0;
+            for ( int i = 0; i < n; ++i ) {
+                s.firstName[ i ] = (int)Math.min( numNames, Integer.MAX_VALUE );
+                numNames += (long)s.numAdded[ i ] + s.numRemoved[ i ] + s.numUpdated[ i ];
+            }
+            s.names = readColumn( in, numNames, this.names.size() );
+            int[] lengths = readColumn( in, n, Integer.MAX_VALUE );
+            s.valueOffsets = new int[ n + 1 ];
+            long offset = in.position();
+            for ( int i = 0; i < n; ++i ) {
+                s.valueOffsets[ i ] = (int)offset;
+                offset += lengths[ i ];
+                if ( offset > bytes.length ) {
+                    throw new IOException( "values end at " + offset + " after the "
+                                           + bytes.length + " bytes of the diff" );
+                }
+            }
+            s.valueOffsets[ n ] = (int)offset;
+            in.skipBytes( (int)offset - in.position() );
+            return s;
+        }
+
+        protected Map< ID, int[] > getPositions() {
+            if ( positions == null ) {
+                Map< ID, int[] > map = new HashMap< ID, int[] >( ids.size() * 2 );
+                for ( int s = 0; s < numSections; ++s ) {
+                    int[] objects = sections[ s ].objects;
+                    for ( int i = 0; i < objects.length; ++i ) {
+                        map.put( ids.get( objects[ i ] ), new int[] { s, i } );
+                    }
+                }
+                positions = map;
+            }
+            return positions;
+        }
+
+        /**
+         * @return the IDs of the objects in a section, in order
+         */
+        public List< ID > getIds( int section ) {
+            int[] objects = sections[ section ].objects;
+            List< ID > list = new ArrayList< ID >( objects.length );
+            for ( int i : objects ) {
+                list.add( ids.get( i ) );
+            }
+            return list;
+        }
+
+        public List< ID > getAddedIds() {
+            return getIds( ADDED );
+        }
+
+        public List< ID > getRemovedIds() {
+            return getIds( REMOVED );
+        }
+
+        public List< ID > getUpdatedIds() {
+            return getIds( UPDATED );
+        }
+
+        /**
+         * The changes of one object, decoded from its values.
+         */
+        protected class ObjectChanges {
+            protected final Map< ID, P > added = new LinkedHashMap< ID, P >();
+            protected final Map< ID, P > removed = new LinkedHashMap< ID, P >();
+            protected final Map< ID, Pair< P, P > > updated =
+                    new LinkedHashMap< ID, Pair< P, P > >();
+            protected Map< ID, Pair< P, P > > propertyChanges = null;
+
+            protected Map< ID, Pair< P, P > > propertyChanges() {
+                if ( propertyChanges != null ) return propertyChanges;
+                Map< ID, Pair< P, P > > changes = new LinkedHashMap< ID, Pair< P, P > >();
+                for ( Map.Entry< ID, P > e : added.entrySet() ) {
+                    changes.put( e.getKey(), new Pair< P, P >( null, e.getValue() ) );
+                }
+                for ( Map.Entry< ID, P > e : removed.entrySet() ) {
+                    changes.put( e.getKey(), new Pair< P, P >( e.getValue(), null ) );
+                }
+                changes.putAll( updated );
+                propertyChanges = Collections.unmodifiableMap( changes );
+                return propertyChanges;
+            }
+        }
+
+        /**
+         * @return the changes of the i-th object of a section, decoding them
+         *         the first time they are asked for
+         */
+        protected ObjectChanges decode( int section, int i ) {
+            if ( decoded == null ) {
+                decoded = new ArrayList< List< ObjectChanges > >( numSections );
+                for ( int s = 0; s < numSections; ++s ) {
+                    int n = sections[ s ].objects.length;
+                    decoded.add( new ArrayList< ObjectChanges >( Collections.< ObjectChanges >nCopies( n, null ) ) );
+                }
+            }
+            ObjectChanges c = decoded.get( section ).get( i );
+            if ( c == null ) {
+                c = decodeValues( section, i );
+                decoded.get( section ).set( i, c );
+            }
+            return c;
+        }
+
+        protected ObjectChanges decodeValues( int section, int i ) {
+            Section s = sections[ section ];
+            ObjectChanges c = new ObjectChanges();
+            ByteReader in = new ByteReader( bytes, s.valueOffsets[ i ] );
+            int name = s.firstName[ i ];
+            try {
+                for ( int k = 0; k < s.numAdded[ i ]; ++k ) {
+                    ID pid = names.get( s.names[ name++ ] );
+                    P p = readValue( in, propertyCodec );
+                    if ( !propertyIdsToIgnore.contains( pid ) ) c.added.put( pid, p );
+                }
+                for ( int k = 0; k < s.numRemoved[ i ]; ++k ) {
+                    ID pid = names.get( s.names[ name++ ] );
+                    P p = readValue( in, propertyCodec );
+                    if ( !propertyIdsToIgnore.contains( pid ) ) c.removed.put( pid, p );
+                }
+                for ( int k = 0; k < s.numUpdated[ i ]; ++k ) {
+                    ID pid = names.get( s.names[ name++ ] );
+                    P p1 = readValue( in, propertyCodec );
+                    P p2 = readValue( in, propertyCodec );
+                    if ( !propertyIdsToIgnore.contains( pid ) ) {
+                        c.updated.put( pid, new Pair< P, P >( p1, p2 ) );
+                    }
+                }
+            } catch ( IOException e ) {
+                throw new IllegalStateException( "corrupt binary diff", e );
+            }
+            return c;
+        }
+
+        /**
+         * @return the decoded changes of the object with the ID or null if it
+         *         did not change
+         */
+        protected ObjectChanges decode( ID id ) {
+            int[] pos = getPositions().get( id );
+            if ( pos == null ) return null;
+            return decode( pos[ 0 ], pos[ 1 ] );
+        }
+
+        /**
+         * A read-only map from each changed object's ID to one kind of its
+         * changes, decoded when an entry is read.
+         */
+        protected abstract class ChangesView< V > extends AbstractMap< ID, V > {
+
+            /**
+             * @return the kind of changes of an object that this view maps to
+             */
+            protected abstract V select( ObjectChanges c );
+
+            @Override
+            public int size() {
+                return ids.size();
+            }
+
+            @Override
+            public boolean containsKey( Object key ) {
+                return getPositions().containsKey( key );
+            }
+
+            @Override
+            public V get( Object key ) {
+                int[] pos = getPositions().get( key );
+                if ( pos == null ) return null;
+                return select( decode( pos[ 0 ], pos[ 1 ] ) );
+            }
+
+            @Override
+            public Set< Map.Entry< ID, V > > entrySet() {
+                return new AbstractSet< Map.Entry< ID, V > >() {
+                    @Override
+                    public int size() {
+                        return ids.size();
+                    }
+
+                    @Override
+                    public Iterator< Map.Entry< ID, V > > iterator() {
+                        return new Iterator< Map.Entry< ID, V > >() {
+                            int section = 0, i = 0;
+
+                            @Override
+                            public boolean hasNext() {
+                                while ( section < numSections
+                                        && i >= sections[ section ].objects.length ) {
+                                    ++section;
+                                    i = 0;
+                                }
+                                return section < numSections;
+                            }
+
+                            @Override
+                            public Map.Entry< ID, V > next() {
+                                if ( !hasNext() ) throw new NoSuchElementException();
+                                ID id = ids.get( sections[ section ].objects[ i ] );
+                                V v = select( decode( section, i ) );
+                                ++i;
+                                return new SimpleImmutableEntry< ID, V >( id, v );
+                            }
+
+                            @Override
+                            public void remove() {
+                                throw new UnsupportedOperationException();
+                            }
+                        };
+                    }
+                };
+            }
+        }
+
+        @Override
+        public Map< ID, Map< ID, P > > getAddedProperties() {
+            return new ChangesView< Map< ID, P > >() {
+                @Override
+                protected Map< ID, P > select( ObjectChanges c ) {
+                    return Collections.unmodifiableMap( c.added );
+                }
+            };
+        }
+
+        @Override
+        public Map< ID, Map< ID, P > > getRemovedProperties() {
+            return new ChangesView< Map< ID, P > >() {
+                @Override
+                protected Map< ID, P > select( ObjectChanges c ) {
+                    return Collections.unmodifiableMap( c.removed );
+                }
+            };
+        }
+
+        @Override
+        public Map< ID, Map< ID, Pair< P, P > > > getUpdatedProperties() {
+            return new ChangesView< Map< ID, Pair< P, P > > >() {
+                @Override
+                protected Map< ID, Pair< P, P > > select( ObjectChanges c ) {
+                    return Collections.unmodifiableMap( c.updated );
+                }
+            };
+        }
+
+        @Override
+        public Map< ID, Map< ID, Pair< P, P > > > getPropertyChanges() {
+            return new ChangesView< Map< ID, Pair< P, P > > >() {
+                @Override
+                protected Map< ID, Pair< P, P > > select( ObjectChanges c ) {
+                    return c.propertyChanges();
+                }
+            };
+        }
+
+        @Override
+        public boolean areDifferent() {
+            return !areSame();
+        }
+
+        @Override
+        public boolean areSame() {
+            return ids.isEmpty();
+        }
+
+        /**
+         * Set the objects of the first set so that the objects of the second
+         * set can be built by applying this diff.
+         *
+         * @param base
+         * @param builder
+         */
+        public void setBase( Map< ID, T > base, ObjectBuilder< T, P, ID > builder ) {
+            this.base = base;
+            this.builder = builder;
+            this.patched = null;
+        }
+
+        protected Map< ID, T > getPatched() {
+            if ( patched == null && base != null && builder != null ) {
+                patched = apply( base, builder );
+            }
+            return patched;
+        }
+
+        @Override
+        public Set< T > get1() {
+            if ( base == null ) return null;
+            return new LinkedHashSet< T >( base.values() );
+        }
+
+        @Override
+        public Set< T > get2() {
+            Map< ID, T > m = getPatched();
+            if ( m == null ) return null;
+            return new LinkedHashSet< T >( m.values() );
+        }
+
+        @Override
+        public T get1( ID tid ) {
+            if ( base == null || tid == null ) return null;
+            return base.get( tid );
+        }
+
+        @Override
+        public T get2( ID tid ) {
+            Map< ID, T > m = getPatched();
+            if ( m == null || tid == null ) return null;
+            return m.get( tid );
+        }
+
+        /**
+         * @return the old value of a property that changed or null
+         */
+        @Override
+        public P get1( ID tid, ID pid ) {
+            ObjectChanges c = decode( tid );
+            if ( c == null ) return null;
+            if ( c.removed.containsKey( pid ) ) return c.removed.get( pid );
+            Pair< P, P > p = c.updated.get( pid );
+            return p == null ? null : p.first;
+        }
+
+        /**
+         * @return the new value of a property that changed or null
+         */
+        @Override
+        public P get2( ID tid, ID pid ) {
+            ObjectChanges c = decode( tid );
+            if ( c == null ) return null;
+            if ( c.added.containsKey( pid ) ) return c.added.get( pid );
+            Pair< P, P > p = c.updated.get( pid );
+            return p == null ? null : p.second;
+        }
+
+        protected Set< T > objects( Map< ID, T > m, int section ) {
+            Set< T > set = new LinkedHashSet< T >();
+            if ( m == null ) return set;
+            for ( ID id : getIds( section ) ) {
+                T t = m.get( id );
+                if ( t != null ) set.add( t );
+            }
+            return set;
+        }
+
+        /**
+         * @return the removed objects if a base was set; otherwise, an empty
+         *         set
+         */
+        @Override
+        public Set< T > getRemoved() {
+            return objects( base, REMOVED );
+        }
+
+        /**
+         * @return the added objects if a base was set; otherwise, an empty set
+         */
+        @Override
+        public Set< T > getAdded() {
+            return objects( getPatched(), ADDED );
+        }
+
+        /**
+         * @return the updated objects if a base was set; otherwise, an empty
+         *         set
+         */
+        @Override
+        public Set< T > getUpdated() {
+            return objects( getPatched(), UPDATED );
+        }
+
+        @Override
+        public void addPropertyIdsToIgnore( Collection< ID > ids ) {
+            propertyIdsToIgnore.addAll( ids );
+            // decoded changes may include the newly ignored properties
+            decoded = null;
+            patched = null;
+        }
+
+        @Override
+        public Set< ID > getPropertyIdsToIgnore() {
+            return propertyIdsToIgnore;
+        }
+
+        /**
+         * Rebuild the second set of objects from the first by applying this
+         * diff. Objects that did not change are shared with side1, and
+         * changed objects are copies.
+         *
+         * @param side1
+         *            the objects of the first set by ID, which is not changed
+         * @param builder
+         * @return the objects of the second set by ID
+         */
+        public Map< ID, T > apply( Map< ID, T > side1, ObjectBuilder< T, P, ID > builder ) {
+            Map< ID, T > side2 = new LinkedHashMap< ID, T >( side1 );
+            for ( int s = 0; s < numSections; ++s ) {
+                int[] objects = sections[ s ].objects;
+                for ( int i = 0; i < objects.length; ++i ) {
+                    ID id = ids.get( objects[ i ] );
+                    if ( s == REMOVED ) {
+                        side2.remove( id );
+                        continue;
+                    }
+                    ObjectChanges c = decode( s, i );
+                    T t1 = side1.get( id );
+                    T t = s == ADDED || t1 == null ? builder.newObject( id ) : builder.copy( t1 );
+                    for ( ID pid : c.removed.keySet() ) {
+                        builder.removeProperty( t, pid );
+                    }
+                    for ( Map.Entry< ID, P > e : c.added.entrySet() ) {
+                        builder.setProperty( t, e.getKey(), e.getValue() );
+                    }
+                    for ( Map.Entry< ID, Pair< P, P > > e : c.updated.entrySet() ) {
+                        builder.setProperty( t, e.getKey(), e.getValue().second );
+                    }
+                    side2.put( id, t );
+                }
+            }
+            return side2;
+        }
+    }
+
+}
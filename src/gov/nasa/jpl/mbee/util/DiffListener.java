@@ -0,0 +1,53 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.util.Map;
+
+/**
+ * DiffListener receives the differences between two sets of objects as they
+ * are found by a streaming diff, such as
+ * {@link AbstractDiff#diff(java.util.Iterator, java.util.Iterator, java.util.Comparator, DiffListener)},
+ * instead of having them collected in maps.
+ *
+ * @param <T>
+ *            object type
+ * @param <P>
+ *            property type
+ * @param <ID>
+ *            identifier type
+ */
+public interface DiffListener< T, P, ID > {
+
+    /**
+     * @param id
+     * @param t2
+     *            the object that is only in the second set
+     */
+    public abstract void objectAdded( ID id, T t2 );
+
+    /**
+     * @param id
+     * @param t1
+     *            the object that is only in the first set
+     */
+    public abstract void objectRemoved( ID id, T t1 );
+
+    /**
+     * Called for an object in both sets whose properties differ. Each map is
+     * empty, not null, when there is no change of that kind.
+     *
+     * @param id
+     * @param t1
+     * @param t2
+     * @param addedProperties
+     *            the properties of t2 that t1 does not have
+     * @param removedProperties
+     *            the properties of t1 that t2 does not have
+     * @param updatedProperties
+     *            the properties with different values in t1 and t2
+     */
+    public abstract void objectUpdated( ID id, T t1, T t2,
+                                        Map< ID, P > addedProperties,
+                                        Map< ID, P > removedProperties,
+                                        Map< ID, Pair< P, P > > updatedProperties );
+
+}
@@ -0,0 +1,247 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A series of double-keyed double values with the lookup and interpolation
+ * semantics of {@link InterpolatedMap}, kept in two sorted primitive arrays.
+ * Appending a sample after the last key is amortized O(1), inserting
+ * elsewhere is O(n), and {@link #get(double)} is an allocation-free binary
+ * search.
+ *
+ * @see InterpolatedSeries
+ */
+public class DoubleInterpolatedSeries extends InterpolatedSeries {
+
+    protected double[] keys;
+
+    public DoubleInterpolatedSeries() {
+        this( defaultCapacity );
+    }
+
+    public DoubleInterpolatedSeries( int capacity ) {
+        super( capacity );
+        keys = new double[ values.length ];
+    }
+
+    public DoubleInterpolatedSeries( InterpolatedMap.Interpolation interpolation ) {
+        this( defaultCapacity );
+        this.interpolation.type = interpolation.type;
+    }
+
+    /**
+     * Copy the samples and interpolation of an InterpolatedMap with Number
+     * keys and values, leaving out null keys and values.
+     *
+     * @param map
+     */
+    public DoubleInterpolatedSeries( InterpolatedMap< ? extends Number, ? extends Number > map ) {
+        this( map.size() );
+        interpolation.type = map.interpolation.type;
+        for ( Map.Entry< ? extends Number, ? extends Number > e : map.entrySet() ) {
+            if ( e.getKey() == null || e.getValue() == null ) continue;
+            put( e.getKey().doubleValue(), e.getValue().doubleValue() );
+        }
+    }
+
+    @Override
+    protected void resizeKeys( int capacity ) {
+        keys = Arrays.copyOf( keys, capacity );
+    }
+
+    public double keyAt( int i ) {
+        checkIndex( i );
+        return keys[ i ];
+    }
+
+    @Override
+    public double keyAsDouble( int i ) {
+        return keyAt( i );
+    }
+
+    @Override
+    protected double span( int i ) {
+        return ( keys[ i + 1 ] - keys[ i ] );
+    }
+
+    /**
+     * @return a long that orders as the key does, for any key but NaN, with
+     *         -0.0 before 0.0 as in {@link Arrays#binarySearch(double[], double)}
+     */
+    protected static long toSortKey( double key ) {
+        long bits = Double.doubleToLongBits( key );
+        return bits ^ ( ( bits >> 63 ) & Long.MAX_VALUE );
+    }
+
+    protected static double fromSortKey( long sortKey ) {
+        return Double.longBitsToDouble( sortKey ^ ( ( sortKey >> 63 ) & Long.MAX_VALUE ) );
+    }
+
+    @Override
+    protected long sortKey( int i ) {
+        return toSortKey( keys[ i ] );
+    }
+
+    @Override
+    protected void setSortKey( int i, long sortKey ) {
+        keys[ i ] = fromSortKey( sortKey );
+    }
+
+    @Override
+    protected double distance( int i, long sortKey ) {
+        return fromSortKey( sortKey ) - keys[ i ];
+    }
+
+    @Override
+    protected void moveKeys( int from, int to, int n ) {
+        System.arraycopy( keys, from, keys, to, n );
+    }
+
+    public double firstKey() {
+        return keyAt( 0 );
+    }
+
+    public double lastKey() {
+        return keyAt( size - 1 );
+    }
+
+    /**
+     * @param key
+     * @return the index of the key or, if it is not sampled, -(insertion
+     *         point) - 1 as in {@link Arrays#binarySearch(double[], double)}
+     */
+    public int indexOf( double key ) {
+        return search( 0, size, toSortKey( key ) );
+    }
+
+    /**
+     * @param key
+     * @return the index of the last sample at or before the key or -1 if
+     *         there is none
+     */
+    public int floorIndex( double key ) {
+        return floorOfSortKey( toSortKey( key ) );
+    }
+
+    @Override
+    protected int floorIndexOf( double key ) {
+        return floorIndex( key );
+    }
+
+    /**
+     * Add a sample or replace the value of a sampled key.
+     *
+     * @param key
+     *            a key that is not NaN
+     * @param value
+     * @return the index of the sample
+     */
+    public int put( double key, double value ) {
+        if ( Double.isNaN( key ) ) throw new IllegalArgumentException( "NaN key" );
+        return putSortKey( toSortKey( key ), value );
+    }
+
+    /**
+     * @param key
+     * @return whether there was a sample with the key
+     */
+    public boolean remove( double key ) {
+        return removeSortKey( toSortKey( key ) );
+    }
+
+    /**
+     * @param key
+     * @return the sampled or interpolated value at the key or NaN if it is
+     *         not defined
+     */
+    public double get( double key ) {
+        long k = toSortKey( key );
+        return valueAtSortKey( floorOfSortKey( k ), k );
+    }
+
+    /**
+     * Get the values at many keys in one sweep over the samples instead of a
+     * binary search for each key.
+     *
+     * @param sortedKeys
+     *            the keys in increasing order; an out-of-order key is looked
+     *            up on its own
+     * @param out
+     *            where to put the value for each key, at the same index; it
+     *            must be at least as long as sortedKeys
+     * @return out
+     */
+    public double[] get( double[] sortedKeys, double[] out ) {
+        int floor = -1;
+        for ( int i = 0; i < sortedKeys.length; ++i ) {
+            double key = sortedKeys[ i ];
+            if ( Double.isNaN( key ) ) {
+                out[ i ] = Double.NaN;
+                continue;
+            }
+            long k = toSortKey( key );
+            floor = sweepFloor( floor, k );
+            out[ i ] = valueAtSortKey( floor, k );
+        }
+        return out;
+    }
+
+    /**
+     * Resample at evenly spaced keys in one sweep over the samples.
+     *
+     * @param start
+     *            the first key
+     * @param step
+     *            the distance between keys, which must not be negative
+     * @param out
+     *            where to put the value at start + i * step for each index i
+     * @return out
+     * @throws IllegalArgumentException
+     *             if step is negative
+     */
+    public double[] resample( double start, double step, double[] out ) {
+        if ( !( step >= 0 ) ) throw new IllegalArgumentException( "Negative step " + step );
+        int floor = -1;
+        for ( int i = 0; i < out.length; ++i ) {
+            long k = toSortKey( start + i * step );
+            floor = sweepFloor( floor, k );
+            out[ i ] = valueAtSortKey( floor, k );
+        }
+        return out;
+    }
+
+    /**
+     * Compute the minimum, maximum, mean and integral over [t1, t2] in one
+     * pass over the samples in the window.
+     *
+     * @param t1
+     * @param t2
+     *            a key not before t1
+     * @return the aggregate
+     * @see InterpolatedMap.Aggregate
+     */
+    public InterpolatedMap.Aggregate aggregate( double t1, double t2 ) {
+        return aggregate( floorIndex( t1 ), t1, t2 );
+    }
+
+    /**
+     * @return whether the value at the key is defined, as in
+     *         {@link InterpolatedMap#containsKey(Object)}
+     */
+    public boolean containsKey( double key ) {
+        return !Double.isNaN( key ) && containsSortKey( toSortKey( key ) );
+    }
+
+    /**
+     * @return the samples in an InterpolatedMap with the same interpolation
+     */
+    public InterpolatedMap< Double, Double > toInterpolatedMap() {
+        InterpolatedMap< Double, Double > map = new InterpolatedMap< Double, Double >();
+        map.interpolation.type = interpolation.type;
+        for ( int i = 0; i < size; ++i ) {
+            map.put( keys[ i ], values[ i ] );
+        }
+        return map;
+    }
+}
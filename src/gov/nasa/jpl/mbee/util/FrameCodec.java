@@ -0,0 +1,327 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * FrameCodec encodes the frames that {@link SocketClient} sends, so that
+ * other transports put the same bytes on the wire.
+ * <p>
+ * A frame of doubles is in the format of the struct.pack() Python function:
+ * the int length of the format string, the format string (such as "3d") in
+ * ASCII, the int number of bytes of data, and the doubles. A string frame is
+ * the int number of chars followed by the chars in UTF-16. Everything is
+ * big-endian, as {@link java.io.DataOutputStream} writes it. Frames read
+ * back may also have a struct.pack() byte order prefix.
+ * <p>
+ * Frames of floats ("3f") carry doubles downcast to float32. A frame whose
+ * format ends in 'z', such as "1000dz", has its data compressed as one
+ * {@link Lz4Block} block, and its size is that of the block; the
+ * uncompressed size follows from the format. These are only sent to a
+ * server that accepted them, see {@link SocketClient#negotiate(String...)}.
+ */
+public class FrameCodec {
+
+  protected static final Charset utf16 = Charset.forName( "UTF-16BE" );
+
+  /**
+   * The most bytes of data a received frame may have, so that a corrupt or
+   * hostile length cannot make a reader allocate without bound.
+   */
+  public static int maxFrameBytes = 256 * 1024 * 1024;
+
+  /**
+   * A received frame of numbers, decoded into arrays that are reused for
+   * the next frame read into it.
+   */
+  public static class DoubleFrame {
+    public double[] values = new double[ 0 ];
+    public int length = 0;
+    protected byte[] bytes = new byte[ 0 ];
+    protected byte[] packed = new byte[ 0 ];
+
+    public double[] toArray() {
+      return Arrays.copyOf( values, length );
+    }
+
+    @Override
+    public String toString() {
+      return Arrays.toString( toArray() );
+    }
+  }
+
+  /**
+   * A parsed struct.pack() format string of a count and a type, such as
+   * "3d" or "<3d", possibly marked compressed, as in "3dz".
+   */
+  public static class Format {
+    public int count = 1;
+    public char type;
+    public ByteOrder order = ByteOrder.BIG_ENDIAN;
+    public boolean compressed = false;
+
+    public Format( byte[] format ) throws IOException {
+      int i = 0;
+      int end = format.length - 1;
+      if ( end > 0 && format[ end ] == 'z' ) {
+        compressed = true;
+        --end;
+      }
+      if ( end < 0 ) throw new IOException( "empty format" );
+      char c = (char)format[ 0 ];
+      if ( c == '<' || c == '>' || c == '!' || c == '=' || c == '@' ) {
+        if ( c == '<' ) order = ByteOrder.LITTLE_ENDIAN;
+        if ( c == '=' || c == '@' ) order = ByteOrder.nativeOrder();
+        ++i;
+      }
+      if ( i < end ) {
+        long n = 0;
+        for ( ; i < end; ++i ) {
+          int digit = format[ i ] - '0';
+          if ( digit < 0 || digit > 9 || n > Integer.MAX_VALUE ) {
+            throw new IOException( "unsupported format " + new String( format, "US-ASCII" ) );
+          }
+          n = 10 * n + digit;
+        }
+        if ( n > Integer.MAX_VALUE ) throw new IOException( "count too large" );
+        count = (int)n;
+      }
+      type = (char)format[ end ];
+    }
+  }
+
+  /**
+   * @return the number of decimal digits in a non-negative int
+   */
+  public static int digits( int n ) {
+    int d = 1;
+    while ( n >= 10 ) {
+      n /= 10;
+      ++d;
+    }
+    return d;
+  }
+
+  /**
+   * @return the struct.pack() format string for n values of a type, such
+   *         as "3d"
+   */
+  public static String format( int n, char type ) {
+    return n + String.valueOf( type );
+  }
+
+  /**
+   * @return the number of bytes of a frame of n doubles
+   */
+  public static int doublesFrameSize( int n ) {
+    return 4 + digits( n ) + 1 + 4 + 8 * n;
+  }
+
+  /**
+   * @return the number of bytes of a frame of n floats
+   */
+  public static int floatsFrameSize( int n ) {
+    return 4 + digits( n ) + 1 + 4 + 4 * n;
+  }
+
+  /**
+   * @return the number of bytes of the header of a frame of n values
+   */
+  public static int headerSize( int n, boolean compressed ) {
+    return 4 + digits( n ) + ( compressed ? 2 : 1 ) + 4;
+  }
+
+  /**
+   * @return the number of bytes of a string frame
+   */
+  public static int stringFrameSize( String s ) {
+    return 4 + 2 * s.length();
+  }
+
+  /**
+   * Put the format string header of a frame of n values of a type, each of
+   * the given number of bytes.
+   */
+  public static void putHeader( ByteBuffer buf, int n, char type, int bytesPerValue ) {
+    buf.putInt( digits( n ) + 1 );
+    putDigits( buf, n );
+    buf.put( (byte)type );
+    buf.putInt( n * bytesPerValue );
+  }
+
+  /**
+   * Put the header of a frame of n values of a type whose data, compressed
+   * or not, takes the given number of bytes.
+   */
+  public static void putHeader( ByteBuffer buf, int n, char type, boolean compressed,
+                                int dataBytes ) {
+    buf.putInt( digits( n ) + ( compressed ? 2 : 1 ) );
+    putDigits( buf, n );
+    buf.put( (byte)type );
+    if ( compressed ) buf.put( (byte)'z' );
+    buf.putInt( dataBytes );
+  }
+
+  protected static void putDigits( ByteBuffer buf, int n ) {
+    int d = digits( n );
+    int pos = buf.position();
+    for ( int i = d - 1; i >= 0; --i ) {
+      buf.put( pos + i, (byte)( '0' + n % 10 ) );
+      n /= 10;
+    }
+    buf.position( pos + d );
+  }
+
+  /**
+   * Put a frame of doubles, which takes {@link #doublesFrameSize(int)}
+   * bytes, in a big-endian buffer.
+   */
+  public static void putDoubles( ByteBuffer buf, double[] a, int offset, int length ) {
+    putHeader( buf, length, 'd', 8 );
+    buf.asDoubleBuffer().put( a, offset, length );
+    buf.position( buf.position() + 8 * length );
+  }
+
+  /**
+   * Put a frame of the remaining doubles, leaving the position of the
+   * values unchanged. The copy is a bulk one when the byte orders match.
+   */
+  public static void putDoubles( ByteBuffer buf, DoubleBuffer values ) {
+    int n = values.remaining();
+    putHeader( buf, n, 'd', 8 );
+    buf.asDoubleBuffer().put( values.duplicate() );
+    buf.position( buf.position() + 8 * n );
+  }
+
+  /**
+   * Put a frame of the remaining floats, leaving the position of the
+   * values unchanged.
+   */
+  public static void putFloats( ByteBuffer buf, FloatBuffer values ) {
+    int n = values.remaining();
+    putHeader( buf, n, 'f', 4 );
+    buf.asFloatBuffer().put( values.duplicate() );
+    buf.position( buf.position() + 4 * n );
+  }
+
+  /**
+   * Put a string frame, which takes {@link #stringFrameSize(String)} bytes,
+   * in a big-endian buffer.
+   */
+  public static void putString( ByteBuffer buf, String s ) {
+    buf.putInt( s.length() );
+    for ( int i = 0; i < s.length(); ++i ) {
+      buf.putChar( s.charAt( i ) );
+    }
+  }
+
+  /**
+   * @return a frame of doubles in a new array
+   */
+  public static byte[] encodeDoubles( double[] a, int offset, int length ) {
+    byte[] bytes = new byte[ doublesFrameSize( length ) ];
+    putDoubles( ByteBuffer.wrap( bytes ), a, offset, length );
+    return bytes;
+  }
+
+  /**
+   * @return a string frame in a new array
+   */
+  public static byte[] encodeString( String s ) {
+    byte[] bytes = new byte[ stringFrameSize( s ) ];
+    putString( ByteBuffer.wrap( bytes ), s );
+    return bytes;
+  }
+
+  /**
+   * Read a frame of doubles, or of floats, which are widened, compressed or
+   * not.
+   *
+   * @param in
+   * @param frame
+   *          where to put the values, reusing its arrays if they are large
+   *          enough
+   * @return frame
+   * @throws IOException
+   *           if the frame is not a frame of doubles or floats
+   */
+  public static DoubleFrame readDoubles( DataInput in, DoubleFrame frame ) throws IOException {
+    Format format = readFormat( in );
+    int width;
+    if ( format.type == 'd' ) width = 8;
+    else if ( format.type == 'f' ) width = 4;
+    else throw new IOException( "expected doubles, not " + format.type );
+    long dataBytes = (long)format.count * width;
+    if ( dataBytes > maxFrameBytes ) {
+      throw new IOException( "frame of " + dataBytes + " bytes is larger than " + maxFrameBytes );
+    }
+    readData( in, frame, format, (int)dataBytes );
+    ByteBuffer data = ByteBuffer.wrap( frame.bytes, 0, (int)dataBytes ).order( format.order );
+    if ( width == 8 ) {
+      data.asDoubleBuffer().get( frame.values, 0, format.count );
+    } else {
+      FloatBuffer floats = data.asFloatBuffer();
+      for ( int i = 0; i < format.count; ++i ) {
+        frame.values[ i ] = floats.get( i );
+      }
+    }
+    return frame;
+  }
+
+  public static Format readFormat( DataInput in ) throws IOException {
+    int formatLength = in.readInt();
+    if ( formatLength <= 0 || formatLength > 16 ) {
+      throw new IOException( "bad format string length " + formatLength );
+    }
+    byte[] format = new byte[ formatLength ];
+    in.readFully( format );
+    return new Format( format );
+  }
+
+  /**
+   * Read the int size and the data of a frame into the frame's bytes,
+   * decompressing it if need be, and make room for its values.
+   */
+  protected static void readData( DataInput in, DoubleFrame frame, Format format,
+                                  int dataBytes ) throws IOException {
+    int size = in.readInt();
+    if ( frame.bytes.length < dataBytes ) frame.bytes = new byte[ dataBytes ];
+    if ( format.compressed ) {
+      if ( size < 0 || size > Lz4Block.maxCompressedLength( dataBytes ) ) {
+        throw new IOException( "bad compressed frame size " + size );
+      }
+      if ( frame.packed.length < size ) frame.packed = new byte[ size ];
+      in.readFully( frame.packed, 0, size );
+      Lz4Block.decompress( frame.packed, 0, size, frame.bytes, 0, dataBytes );
+    } else {
+      if ( size != dataBytes ) {
+        throw new IOException( "frame size " + size + " does not match format, " + dataBytes );
+      }
+      in.readFully( frame.bytes, 0, size );
+    }
+    if ( frame.values.length < format.count ) frame.values = new double[ format.count ];
+    frame.length = format.count;
+  }
+
+  /**
+   * Read a string frame.
+   */
+  public static String readString( DataInput in ) throws IOException {
+    int length = in.readInt();
+    if ( length < 0 ) throw new IOException( "bad string length " + length );
+    if ( length > maxFrameBytes / 2 ) {
+      throw new IOException( "string of " + length + " chars is longer than "
+                             + maxFrameBytes / 2 );
+    }
+    byte[] bytes = new byte[ 2 * length ];
+    in.readFully( bytes );
+    return new String( bytes, utf16 );
+  }
+
+}
@@ -4,6 +4,8 @@
 package gov.nasa.jpl.mbee.util;
 
 import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
@@ -26,6 +28,9 @@ public class InterpolatedMap< K, V > extends TreeMap< K, V > {
                                               // key ))
         protected static final byte LINEAR = 1; // floorVal+(ceilVal-floorVal)*(key-floorKey)/(ceilKey-floorKey)
         protected static final byte RAMP = 2; // linear
+        protected static final byte NEAREST = 3; // value of the closest key
+        protected static final byte CUBIC = 4; // cubic Hermite, 3-point slopes
+        protected static final byte MONOTONE_CUBIC = 5; // PCHIP, no overshoot
         protected static final byte NONE = Byte.MAX_VALUE; // value for key =
                                                            // get(key)
         public byte type = STEP;
@@ -47,6 +52,12 @@ public class InterpolatedMap< K, V > extends TreeMap< K, V > {
                     return "LINEAR";
                 case RAMP:
                     return "RAMP";
+                case NEAREST:
+                    return "NEAREST";
+                case CUBIC:
+                    return "CUBIC";
+                case MONOTONE_CUBIC:
+                    return "MONOTONE_CUBIC";
                 default:
                     return null;
             }
@@ -66,6 +77,13 @@ public class InterpolatedMap< K, V > extends TreeMap< K, V > {
                 type = LINEAR;
             } else if ( s.toLowerCase().equals( "ramp" ) ) {
                 type = RAMP;
+            } else if ( s.toLowerCase().equals( "nearest" ) ) {
+                type = NEAREST;
+            } else if ( s.toLowerCase().equals( "cubic" ) ) {
+                type = CUBIC;
+            } else if ( s.toLowerCase().equals( "monotone_cubic" )
+                        || s.toLowerCase().equals( "pchip" ) ) {
+                type = MONOTONE_CUBIC;
             } else {
                 Debug.error( true, "Can't parse interpolation string! " + s );
             }
@@ -232,47 +250,9 @@ public class InterpolatedMap< K, V > extends TreeMap< K, V > {
             // v1 = get( t1 );
             if ( t1.equals( t2 ) ) return v1;
             v2 = get( t2 );
-            if ( v1 == null ) return null;
-            if ( v2 == null ) return v1;
-            // floorVal+(ceilVal-floorVal)*(key-floorKey)/(ceilKey-floorKey)
-            // v1 = v1 + ( ( v2 - v1 ) * ( t - t1 ) ) / ( t2 - t1 );
-            // TODO -- try to parse numbers from toString() if not Numbers
-            if ( v1 instanceof Number && v2 instanceof Number
-                 && t instanceof Number && t1 instanceof Number
-                 && t2 instanceof Number ) {
-                double nv1 = ( (Number)v1 ).doubleValue();
-                double nv2 = ( (Number)v2 ).doubleValue();
-                double nt = ( (Number)t ).doubleValue();
-                double nt1 = ( (Number)t1 ).doubleValue();
-                double nt2 = ( (Number)t2 ).doubleValue();
-                nv1 = nv1 + ( ( nv2 - nv1 ) * ( nt - nt1 ) ) / ( nt2 - nt1 );
-                Number result = nv1;
-                // TODO -- BAE handles casting Numbers somewhere
-                // (Expression.evaluate or Functions). Make this generic and put
-                // in Util.
-                // TODO -- Not handling BigDecimal and others.
-                if ( v1 instanceof Double ) {
-                    v1 = (V)(Double)result.doubleValue();
-                } else if ( v1 instanceof Float ) {
-                    v1 = (V)(Float)result.floatValue();
-                } else if ( v1 instanceof Long ) {
-                    v1 = (V)(Long)result.longValue();
-                } else if ( v1 instanceof Integer ) {
-                    v1 = (V)(Integer)result.intValue();
-                } else if ( v1 instanceof Byte ) {
-                    v1 = (V)(Byte)result.byteValue();
-                } else if ( v1 instanceof Short ) {
-                    v1 = (V)(Short)result.shortValue();
-                } else {
-                    Debug.error( true,
-                                 "InterpolatedMap.get(): not supporting Number class "
-                                         + v1.getClass().getSimpleName()
-                                         + " for " + interpolation.type + "!" );
-                    v1 = null;
-                }
-            }
-
-            return v1;
+            return interpolateLinear( t, t1, v1, t2, v2 );
+        } else if ( isKernel( interpolation.type ) ) {
+            return interpolateKernel( t, floorEntry( t ), higherEntry( t ) );
         }
         Debug.error( true, "InterpolatedMap.get(): invalid key or value for "
                            + interpolation.type + " -- must be Numbers!" );
@@ -281,6 +261,622 @@ public class InterpolatedMap< K, V > extends TreeMap< K, V > {
         // return super.get( t );
     }
 
+    /**
+     * Linearly interpolate the value at t between the entries (t1, v1) and
+     * (t2, v2) when the keys and values are Numbers.
+     * 
+     * @return the interpolated value of the same Number class as v1, v1 if
+     *         the keys or values are not Numbers or v2 is null, or null if
+     *         v1 is null or its Number class is not supported
+     */
+    protected V interpolateLinear( K t, K t1, V v1, K t2, V v2 ) {
+        if ( v1 == null ) return null;
+        if ( v2 == null ) return v1;
+        // floorVal+(ceilVal-floorVal)*(key-floorKey)/(ceilKey-floorKey)
+        // v1 = v1 + ( ( v2 - v1 ) * ( t - t1 ) ) / ( t2 - t1 );
+        // TODO -- try to parse numbers from toString() if not Numbers
+        if ( v1 instanceof Number && v2 instanceof Number
+             && t instanceof Number && t1 instanceof Number
+             && t2 instanceof Number ) {
+            double nv1 = ( (Number)v1 ).doubleValue();
+            double nv2 = ( (Number)v2 ).doubleValue();
+            double nt = ( (Number)t ).doubleValue();
+            double nt1 = ( (Number)t1 ).doubleValue();
+            double nt2 = ( (Number)t2 ).doubleValue();
+            v1 = castLike( v1, interpolateLinear( nv1, nv2, nt - nt1, nt2 - nt1 ) );
+        }
+
+        return v1;
+    }
+
+    /**
+     * @return x converted to the Number class of like, or null if like is
+     *         not a supported Number
+     */
+    protected V castLike( V like, double x ) {
+        Number result = x;
+        // TODO -- BAE handles casting Numbers somewhere
+        // (Expression.evaluate or Functions). Make this generic and put
+        // in Util.
+        // TODO -- Not handling BigDecimal and others.
+        if ( like instanceof Double ) {
+            return (V)(Double)result.doubleValue();
+        } else if ( like instanceof Float ) {
+            return (V)(Float)result.floatValue();
+        } else if ( like instanceof Long ) {
+            return (V)(Long)result.longValue();
+        } else if ( like instanceof Integer ) {
+            return (V)(Integer)result.intValue();
+        } else if ( like instanceof Byte ) {
+            return (V)(Byte)result.byteValue();
+        } else if ( like instanceof Short ) {
+            return (V)(Short)result.shortValue();
+        }
+        Debug.error( true, "InterpolatedMap.get(): not supporting Number class "
+                           + ( like == null ? null : like.getClass().getSimpleName() )
+                           + " for " + interpolation.type + "!" );
+        return null;
+    }
+
+    protected static boolean isKernel( byte type ) {
+        return type == Interpolation.NEAREST || type == Interpolation.CUBIC
+               || type == Interpolation.MONOTONE_CUBIC;
+    }
+
+    /**
+     * The NEAREST, CUBIC, or MONOTONE_CUBIC value at t, for Number keys and
+     * values, given the entries at or before and after t. The cubic kernels
+     * also use the entries before floor and after higher for the slopes.
+     * Like LINEAR, they are undefined before the first key and hold the last
+     * value after the last key. NEAREST is defined everywhere and takes the
+     * later entry at the midpoint.
+     *
+     * @return the value or NaN if it is not defined
+     */
+    protected double interpolateKernel( double t, Entry< K, V > floor, Entry< K, V > higher ) {
+        if ( interpolation.type == Interpolation.NEAREST ) {
+            if ( floor == null ) return higher == null ? Double.NaN : toDouble( higher.getValue() );
+            if ( higher == null ) return toDouble( floor.getValue() );
+            return t - toDouble( floor.getKey() ) < toDouble( higher.getKey() ) - t
+                   ? toDouble( floor.getValue() ) : toDouble( higher.getValue() );
+        }
+        if ( floor == null ) return Double.NaN;
+        double x0 = toDouble( floor.getKey() );
+        double v0 = toDouble( floor.getValue() );
+        if ( higher == null || x0 == t ) return v0;
+        double h = toDouble( higher.getKey() ) - x0;
+        double v1 = toDouble( higher.getValue() );
+        double d = ( v1 - v0 ) / h;
+        double m0 = d, m1 = d;
+        Entry< K, V > prev = lowerEntry( floor.getKey() );
+        if ( prev != null ) {
+            double hp = x0 - toDouble( prev.getKey() );
+            m0 = hermiteSlope( interpolation.type, hp, ( v0 - toDouble( prev.getValue() ) ) / hp,
+                               h, d );
+        }
+        Entry< K, V > next = higherEntry( higher.getKey() );
+        if ( next != null ) {
+            double hn = toDouble( next.getKey() ) - x0 - h;
+            m1 = hermiteSlope( interpolation.type, h, d,
+                               hn, ( toDouble( next.getValue() ) - v1 ) / hn );
+        }
+        return cubicHermite( v0, m0, m1, d, h, t - x0 );
+    }
+
+    protected V interpolateKernel( K t, Entry< K, V > floor, Entry< K, V > higher ) {
+        double x = interpolateKernel( toDouble( t ), floor, higher );
+        if ( Double.isNaN( x ) ) return null;
+        return castLike( floor != null ? floor.getValue() : higher.getValue(), x );
+    }
+
+    /**
+     * The slope of a cubic Hermite interpolant at a sample between two
+     * segments.
+     *
+     * @param type
+     *            CUBIC for the three-point estimate or MONOTONE_CUBIC for the
+     *            weighted harmonic mean of PCHIP, which is zero at a local
+     *            extremum so that the curve does not overshoot the samples
+     * @param h0
+     *            the length of the segment before the sample
+     * @param d0
+     *            the slope of the line through the segment before
+     * @param h1
+     *            the length of the segment after the sample
+     * @param d1
+     *            the slope of the line through the segment after
+     * @return the slope at the sample
+     */
+    public static double hermiteSlope( byte type, double h0, double d0, double h1, double d1 ) {
+        if ( type == Interpolation.MONOTONE_CUBIC ) {
+            if ( d0 * d1 <= 0 ) return 0;
+            double w0 = 2 * h1 + h0;
+            double w1 = h1 + 2 * h0;
+            return ( w0 + w1 ) / ( w0 / d0 + w1 / d1 );
+        }
+        return ( h1 * d0 + h0 * d1 ) / ( h0 + h1 );
+    }
+
+    /**
+     * Evaluate a cubic Hermite segment.
+     *
+     * @param v0
+     *            the value at the start of the segment
+     * @param m0
+     *            the slope at the start
+     * @param m1
+     *            the slope at the end
+     * @param d
+     *            the slope of the line through the segment's end points
+     * @param h
+     *            the length of the segment
+     * @param dt
+     *            the distance from the start
+     * @return the value at dt
+     */
+    public static double cubicHermite( double v0, double m0, double m1, double d, double h,
+                                       double dt ) {
+        double c2 = ( 3 * d - 2 * m0 - m1 ) / h;
+        double c3 = ( m0 + m1 - 2 * d ) / ( h * h );
+        return v0 + dt * ( m0 + dt * ( c2 + dt * c3 ) );
+    }
+
+    /**
+     * Aggregate is the minimum, maximum, integral and mean of an interpolated
+     * function over a window [t1, t2], accumulated in a single pass over the
+     * samples in order. Feed it the last sample at or before t1, if any, then
+     * the later samples until {@link #add(double, double)} returns false, and
+     * then call {@link #finish()}.
+     * <p>
+     * The integral and mean only cover the part of the window where the
+     * value is defined, which is {@link #length}. For interpolations other
+     * than STEP and LINEAR, only the samples in the window count; the
+     * integral is NaN and the mean is the average of the samples.
+     */
+    public static class Aggregate {
+        public final double t1, t2;
+        // the window in the coordinates of the keys given to add()
+        protected final double from, to;
+        public double min = Double.NaN;
+        public double max = Double.NaN;
+        public double integral = 0;
+        public double length = 0;
+        public int count = 0;
+
+        protected final byte type;
+        protected double sum = 0;
+        protected boolean haveBefore = false, started = false, havePrev = false,
+                done = false;
+        protected double beforeT, beforeV, prevT, prevV;
+
+        public Aggregate( Interpolation interpolation, double t1, double t2 ) {
+            this( interpolation, t1, t2, t1, t2 );
+        }
+
+        /**
+         * An aggregate over [t1, t2] that is given keys relative to some
+         * origin, so that keys that are not exact as doubles, such as large
+         * longs, can be given as exact differences.
+         *
+         * @param from
+         *            t1 relative to the origin
+         * @param to
+         *            t2 relative to the origin
+         */
+        protected Aggregate( Interpolation interpolation, double t1, double t2, double from,
+                             double to ) {
+            if ( !( from <= to ) ) {
+                throw new IllegalArgumentException( "Bad window [" + t1 + ", " + t2 + "]" );
+            }
+            this.type = interpolation.type;
+            this.t1 = t1;
+            this.t2 = t2;
+            this.from = from;
+            this.to = to;
+            if ( pointsOnly() ) integral = Double.NaN;
+        }
+
+        /**
+         * @return the time-weighted mean or, if the value is only defined at
+         *         points, the average of those values, or NaN if it is
+         *         nowhere defined in the window
+         */
+        public double mean() {
+            if ( length > 0 && !Double.isNaN( integral ) ) return integral / length;
+            return count > 0 ? sum / count : Double.NaN;
+        }
+
+        protected boolean isLinear() {
+            return type == Interpolation.LINEAR || type == Interpolation.RAMP;
+        }
+
+        protected boolean pointsOnly() {
+            return type != Interpolation.STEP && !isLinear();
+        }
+
+        protected void addValue( double v ) {
+            if ( Double.isNaN( v ) ) return;
+            if ( count == 0 || v < min ) min = v;
+            if ( count == 0 || v > max ) max = v;
+            sum += v;
+            ++count;
+        }
+
+        protected void addSegment( double t, double v ) {
+            double dt = t - prevT;
+            integral += ( isLinear() ? ( prevV + v ) / 2 : prevV ) * dt;
+            length += dt;
+        }
+
+        /**
+         * Start the defined part at t1 given the next sample after t1.
+         */
+        protected void start( boolean haveNext, double t, double v ) {
+            started = true;
+            if ( !haveBefore ) return;
+            if ( pointsOnly() ) {
+                if ( beforeT == from ) addValue( beforeV );
+                return;
+            }
+            double v1 = beforeV;
+            if ( isLinear() && haveNext && beforeT < from ) {
+                v1 = interpolateLinear( beforeV, v, from - beforeT, t - beforeT );
+            }
+            prevT = from;
+            prevV = v1;
+            havePrev = true;
+            addValue( v1 );
+        }
+
+        /**
+         * @param t
+         *            the key of the next sample, in increasing order,
+         *            relative to the origin if one was given
+         * @param v
+         *            the value of the sample
+         * @return whether more samples are needed
+         */
+        public boolean add( double t, double v ) {
+            if ( done ) return false;
+            if ( t <= from ) {
+                haveBefore = true;
+                beforeT = t;
+                beforeV = v;
+                return true;
+            }
+            if ( !started ) start( true, t, v );
+            if ( t > to ) {
+                if ( havePrev && prevT < to ) {
+                    double v2 = isLinear() ? interpolateLinear( prevV, v, to - prevT, t - prevT )
+                                           : prevV;
+                    addSegment( to, v2 );
+                    addValue( v2 );
+                }
+                done = true;
+                return false;
+            }
+            if ( pointsOnly() ) {
+                addValue( v );
+            } else {
+                if ( havePrev ) addSegment( t, v );
+                prevT = t;
+                prevV = v;
+                havePrev = true;
+                addValue( v );
+            }
+            return true;
+        }
+
+        /**
+         * Finish the window after the last sample fed to
+         * {@link #add(double, double)}.
+         *
+         * @return this
+         */
+        public Aggregate finish() {
+            if ( done ) return this;
+            if ( !started ) start( false, 0, 0 );
+            if ( havePrev && prevT < to ) {
+                // the value holds after the last sample
+                addSegment( to, prevV );
+            }
+            done = true;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return "Aggregate([" + t1 + ", " + t2 + "], min=" + min + ", max=" + max
+                   + ", mean=" + mean() + ", integral=" + integral + ")";
+        }
+    }
+
+    protected int compareKeys( K k1, K k2 ) {
+        Comparator< ? super K > c = comparator();
+        if ( c != null ) return c.compare( k1, k2 );
+        return ( (Comparable< ? super K >)k1 ).compareTo( k2 );
+    }
+
+    /**
+     * The value at t given the entries at or before and after t, as
+     * {@link #get(Object)} would compute it, except that null is returned
+     * where get() fails.
+     */
+    protected V interpolate( K t, Entry< K, V > floor, Entry< K, V > higher ) {
+        if ( floor != null && compareKeys( floor.getKey(), t ) == 0 ) return floor.getValue();
+        if ( interpolation.type == Interpolation.STEP ) {
+            return floor == null ? null : floor.getValue();
+        }
+        if ( isKernel( interpolation.type ) ) return interpolateKernel( t, floor, higher );
+        if ( interpolation.type != Interpolation.LINEAR || floor == null ) return null;
+        if ( higher == null ) return floor.getValue();
+        return interpolateLinear( t, floor.getKey(), floor.getValue(), higher.getKey(),
+                                  higher.getValue() );
+    }
+
+    /**
+     * Get the values at many keys in one sweep over the entries, which is
+     * O(q + n) for q keys instead of O(q log n) for calling
+     * {@link #get(Object)} for each key. When there are few keys compared to
+     * entries, each is looked up instead.
+     *
+     * @param sortedKeys
+     *            the keys in increasing order; an out-of-order key is looked
+     *            up on its own
+     * @param out
+     *            where to put the value for each key, at the same index; it
+     *            must be at least as long as sortedKeys
+     */
+    public void get( K[] sortedKeys, V[] out ) {
+        if ( sortedKeys.length * 32L < size() ) {
+            for ( int i = 0; i < sortedKeys.length; ++i ) {
+                K t = sortedKeys[ i ];
+                out[ i ] = t == null ? null : interpolate( t, floorEntry( t ), higherEntry( t ) );
+            }
+            return;
+        }
+        Iterator< Entry< K, V > > iter = entrySet().iterator();
+        Entry< K, V > floor = null;
+        Entry< K, V > higher = iter.hasNext() ? iter.next() : null;
+        for ( int i = 0; i < sortedKeys.length; ++i ) {
+            K t = sortedKeys[ i ];
+            if ( t == null ) {
+                out[ i ] = null;
+                continue;
+            }
+            if ( floor != null && compareKeys( t, floor.getKey() ) < 0 ) {
+                out[ i ] = interpolate( t, floorEntry( t ), higherEntry( t ) );
+                continue;
+            }
+            while ( higher != null && compareKeys( higher.getKey(), t ) <= 0 ) {
+                floor = higher;
+                higher = iter.hasNext() ? iter.next() : null;
+            }
+            out[ i ] = interpolate( t, floor, higher );
+        }
+    }
+
+    /**
+     * Resample a map with Number keys and values at evenly spaced keys in one
+     * sweep over the entries.
+     *
+     * @param start
+     *            the first key
+     * @param step
+     *            the distance between keys, which must not be negative
+     * @param out
+     *            where to put the value at start + i * step for each index i;
+     *            NaN where the value is not defined or not a Number
+     * @return out
+     * @throws IllegalArgumentException
+     *             if step is negative
+     */
+    public double[] resample( double start, double step, double[] out ) {
+        if ( !( step >= 0 ) ) throw new IllegalArgumentException( "Negative step " + step );
+        Iterator< Entry< K, V > > iter = entrySet().iterator();
+        Entry< K, V > floor = null;
+        Entry< K, V > higher = iter.hasNext() ? iter.next() : null;
+        for ( int i = 0; i < out.length; ++i ) {
+            double t = start + i * step;
+            while ( higher != null && toDouble( higher.getKey() ) <= t ) {
+                floor = higher;
+                higher = iter.hasNext() ? iter.next() : null;
+            }
+            out[ i ] = interpolateDouble( t, floor, higher );
+        }
+        return out;
+    }
+
+    protected static double toDouble( Object o ) {
+        return o instanceof Number ? ( (Number)o ).doubleValue() : Double.NaN;
+    }
+
+    protected double interpolateDouble( double t, Entry< K, V > floor, Entry< K, V > higher ) {
+        if ( isKernel( interpolation.type ) ) return interpolateKernel( t, floor, higher );
+        if ( floor == null ) return Double.NaN;
+        double t1 = toDouble( floor.getKey() );
+        double v1 = toDouble( floor.getValue() );
+        if ( t1 == t ) return v1;
+        switch ( interpolation.type ) {
+            case Interpolation.STEP:
+                return v1;
+            case Interpolation.LINEAR:
+                if ( higher == null ) return v1;
+                double t2 = toDouble( higher.getKey() );
+                return interpolateLinear( v1, toDouble( higher.getValue() ), t - t1, t2 - t1 );
+            default:
+                return Double.NaN;
+        }
+    }
+
+    /**
+     * Compute the minimum, maximum, mean and integral of a map with Number
+     * keys and values over [t1, t2] in one pass over the entries in the
+     * window.
+     *
+     * @param t1
+     * @param t2
+     *            a key not before t1
+     * @return the aggregate
+     */
+    public Aggregate aggregate( K t1, K t2 ) {
+        Aggregate a = new Aggregate( interpolation, toDouble( t1 ), toDouble( t2 ) );
+        Entry< K, V > floor = floorEntry( t1 );
+        if ( floor != null ) a.add( toDouble( floor.getKey() ), toDouble( floor.getValue() ) );
+        for ( Entry< K, V > e : tailMap( t1, false ).entrySet() ) {
+            if ( !a.add( toDouble( e.getKey() ), toDouble( e.getValue() ) ) ) break;
+        }
+        return a.finish();
+    }
+
+    /**
+     * A Cursor remembers the entries around the last key it looked up, so
+     * that a lookup at the same or a nearby key, such as the next time step
+     * of a simulation, steps over a few entries instead of searching the
+     * tree. Stepping forward uses an iterator and is O(1) per entry; a key
+     * more than {@link #maxSteps} entries away is looked up in O(log n).
+     * <p>
+     * A cursor is not thread-safe; threads reading the same map should each
+     * hold their own from {@link InterpolatedMap#newCursor()}. The map does
+     * not keep track of its cursors, so one that is no longer used is simply
+     * garbage collected. A cursor notices changes made through the map's own
+     * put, remove and clear methods but not through its views or entries;
+     * call {@link #reset()} after changing the map that way.
+     */
+    public class Cursor {
+        public int maxSteps = 4;
+
+        protected Entry< K, V > floor = null;
+        protected Entry< K, V > higher = null;
+        protected Iterator< Entry< K, V > > ahead = null;
+        protected boolean positioned = false;
+        protected int cursorVersion;
+
+        public InterpolatedMap< K, V > getMap() {
+            return InterpolatedMap.this;
+        }
+
+        public void reset() {
+            floor = null;
+            higher = null;
+            ahead = null;
+            positioned = false;
+        }
+
+        /**
+         * @param t
+         * @return the value at t as {@link InterpolatedMap#get(Object)} would
+         *         compute it, except that null is returned where get() fails
+         */
+        public V get( K t ) {
+            if ( t == null ) return null;
+            if ( !positioned || cursorVersion != version ) {
+                reset();
+            } else {
+                try {
+                    if ( seek( t ) ) return interpolate( t, floor, higher );
+                } catch ( ConcurrentModificationException e ) {
+                    // changed through a view
+                    reset();
+                }
+            }
+            floor = floorEntry( t );
+            higher = floor == null ? firstEntry() : higherEntry( floor.getKey() );
+            ahead = null;
+            positioned = true;
+            cursorVersion = version;
+            return interpolate( t, floor, higher );
+        }
+
+        /**
+         * Step the bracketing entries toward t.
+         *
+         * @return whether t is now at or after floor and before higher
+         */
+        protected boolean seek( K t ) {
+            for ( int step = 0; ; ++step ) {
+                boolean afterFloor = floor == null || compareKeys( floor.getKey(), t ) <= 0;
+                boolean beforeHigher = higher == null || compareKeys( t, higher.getKey() ) < 0;
+                if ( afterFloor && beforeHigher ) return true;
+                if ( step >= maxSteps ) return false;
+                if ( !beforeHigher ) {
+                    if ( ahead == null ) {
+                        ahead = tailMap( higher.getKey(), false ).entrySet().iterator();
+                    }
+                    floor = higher;
+                    higher = ahead.hasNext() ? ahead.next() : null;
+                } else {
+                    higher = floor;
+                    floor = lowerEntry( higher.getKey() );
+                    ahead = null;
+                }
+            }
+        }
+    }
+
+    protected transient int version = 0;
+
+    /**
+     * @return a new cursor for lookups at nearby keys, for the caller to keep
+     *         while it looks up a sequence of keys
+     */
+    public Cursor newCursor() {
+        return new Cursor();
+    }
+
+    @Override
+    public V put( K key, V value ) {
+        ++version;
+        return super.put( key, value );
+    }
+
+    @Override
+    public void putAll( Map< ? extends K, ? extends V > map ) {
+        ++version;
+        super.putAll( map );
+    }
+
+    @Override
+    public V remove( Object key ) {
+        ++version;
+        return super.remove( key );
+    }
+
+    @Override
+    public void clear() {
+        ++version;
+        super.clear();
+    }
+
+    @Override
+    public Entry< K, V > pollFirstEntry() {
+        ++version;
+        return super.pollFirstEntry();
+    }
+
+    @Override
+    public Entry< K, V > pollLastEntry() {
+        ++version;
+        return super.pollLastEntry();
+    }
+
+    /**
+     * Linearly interpolate between two values.
+     * 
+     * @param v1
+     *            the value at the earlier key
+     * @param v2
+     *            the value at the later key
+     * @param dt
+     *            the distance from the earlier key to the key of the value
+     * @param span
+     *            the distance from the earlier key to the later key
+     * @return v1 + ( ( v2 - v1 ) * dt ) / span
+     */
+    public static double interpolateLinear( double v1, double v2, double dt, double span ) {
+        return v1 + ( ( v2 - v1 ) * dt ) / span;
+    }
+
     /**
      * @param args
      */
@@ -0,0 +1,731 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.util.Arrays;
+
+/**
+ * InterpolatedSeries is the base of {@link InterpolatedMap}-like series of
+ * samples kept in sorted primitive arrays instead of a {@link java.util.TreeMap}
+ * of boxed keys and values. Lookups are a binary search and do not allocate.
+ * <p>
+ * Values are doubles. {@link Double#NaN} is returned where InterpolatedMap
+ * would return null. The interpolation types are those of
+ * {@link InterpolatedMap.Interpolation}:
+ * <ul>
+ * <li>NONE: only the value at a sampled key is defined;</li>
+ * <li>STEP: the value of the closest sample at or before the key;</li>
+ * <li>LINEAR and RAMP: linear between the closest samples before and after
+ * the key, the last value after the last sample, and undefined before the
+ * first sample;</li>
+ * <li>NEAREST: the value of the closest sample, the later one at a
+ * midpoint;</li>
+ * <li>CUBIC and MONOTONE_CUBIC: like LINEAR but with a cubic Hermite curve
+ * whose slopes at the samples are estimated from the neighboring samples as
+ * in {@link InterpolatedMap#hermiteSlope(byte, double, double, double,
+ * double)}.</li>
+ * </ul>
+ * The cubic coefficients of a segment are computed when it is first
+ * evaluated and kept until a sample they depend on changes, so evaluation is
+ * a binary search and a polynomial.
+ * <p>
+ * Subclasses hold the keys, so this class does not know their type. The
+ * search, put, remove and lookup code here works with each key as a
+ * {@link #sortKey(int) sort key}, a long that orders as the keys do, and the
+ * subclasses convert their keys to and from sort keys.
+ */
+public abstract class InterpolatedSeries {
+
+    public static final int defaultCapacity = 16;
+
+    public InterpolatedMap.Interpolation interpolation = new InterpolatedMap.Interpolation();
+
+    protected double[] values;
+    protected int size = 0;
+
+    // cubic coefficients of the segment from sample i: the slope at i and
+    // the quadratic and cubic terms, valid for the interpolation coefType
+    protected double[] coefs = null;
+    protected boolean[] coefValid = null;
+    protected byte coefType = -1;
+
+    // optional segment tree of the minimum and maximum values, with leaf i
+    // at treeCapacity + i
+    protected boolean valueIndexed = false;
+    protected double[] treeMin = null;
+    protected double[] treeMax = null;
+    protected int treeCapacity = 0;
+    protected boolean treeDirty = false;
+
+    protected InterpolatedSeries( int capacity ) {
+        values = new double[ Math.max( 0, capacity ) ];
+    }
+
+    /**
+     * Resize the key array to the given capacity, keeping the first size
+     * keys.
+     *
+     * @param capacity
+     */
+    protected abstract void resizeKeys( int capacity );
+
+    /**
+     * @param i
+     * @return the i<sup>th</sup> key converted to a double
+     */
+    public abstract double keyAsDouble( int i );
+
+    /**
+     * @param i
+     *            the index of a sample that is not the last
+     * @return the distance from the i<sup>th</sup> key to the next
+     */
+    protected abstract double span( int i );
+
+    /**
+     * @param key
+     * @return the index of the last sample at or before the key, which is
+     *         rounded down to a sampled type, or -1 if there is none
+     */
+    protected abstract int floorIndexOf( double key );
+
+    /**
+     * @param i
+     * @return the i<sup>th</sup> key as a long that orders as the keys do
+     */
+    protected abstract long sortKey( int i );
+
+    /**
+     * Set the i<sup>th</sup> key to the key with the given sort key.
+     */
+    protected abstract void setSortKey( int i, long sortKey );
+
+    /**
+     * @return the distance from the i<sup>th</sup> key to the key with the
+     *         given sort key
+     */
+    protected abstract double distance( int i, long sortKey );
+
+    /**
+     * Move n keys from index from to index to as
+     * {@link System#arraycopy(Object, int, Object, int, int)} does.
+     */
+    protected abstract void moveKeys( int from, int to, int n );
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public double valueAt( int i ) {
+        checkIndex( i );
+        return values[ i ];
+    }
+
+    public void setValueAt( int i, double value ) {
+        checkIndex( i );
+        values[ i ] = value;
+        sampleChanged( i );
+    }
+
+    protected void checkIndex( int i ) {
+        if ( i < 0 || i >= size ) {
+            throw new IndexOutOfBoundsException( "Index: " + i + ", Size: " + size );
+        }
+    }
+
+    public void clear() {
+        size = 0;
+        treeDirty = true;
+    }
+
+    protected void ensureCapacity( int minCapacity ) {
+        if ( minCapacity <= values.length ) return;
+        int capacity = Math.max( minCapacity,
+                                 Math.max( defaultCapacity,
+                                           values.length + ( values.length >> 1 ) ) );
+        values = Arrays.copyOf( values, capacity );
+        resizeKeys( capacity );
+        resizeCoefficients( capacity );
+    }
+
+    /**
+     * Release unused capacity.
+     */
+    public void trimToSize() {
+        if ( values.length == size ) return;
+        values = Arrays.copyOf( values, size );
+        resizeKeys( size );
+        resizeCoefficients( size );
+    }
+
+    protected void resizeCoefficients( int capacity ) {
+        if ( coefs == null ) return;
+        coefs = Arrays.copyOf( coefs, 3 * capacity );
+        coefValid = Arrays.copyOf( coefValid, capacity );
+    }
+
+    /**
+     * Invalidate the cubic coefficients of the segments that depend on the
+     * i<sup>th</sup> sample, which are those from the two samples before it
+     * through the one at it.
+     */
+    protected void sampleChanged( int i ) {
+        invalidateSegments( i - 2, i + 1 );
+        if ( treeMin != null && !treeDirty ) {
+            if ( i < treeCapacity ) {
+                updateTree( i );
+            } else {
+                treeDirty = true;
+            }
+        }
+    }
+
+    protected void invalidateSegments( int from, int to ) {
+        if ( coefValid == null ) return;
+        from = Math.max( from, 0 );
+        to = Math.min( to, coefValid.length - 1 );
+        for ( int j = from; j <= to; ++j ) {
+            coefValid[ j ] = false;
+        }
+    }
+
+    /**
+     * Make room for a sample at index i by shifting later samples up.
+     */
+    protected void openGap( int i ) {
+        ensureCapacity( size + 1 );
+        moveKeys( i, i + 1, size - i );
+        System.arraycopy( values, i, values, i + 1, size - i );
+        treeDirty = true;
+        if ( coefs != null ) {
+            System.arraycopy( coefs, 3 * i, coefs, 3 * ( i + 1 ), 3 * ( size - i ) );
+            System.arraycopy( coefValid, i, coefValid, i + 1, size - i );
+            sampleChanged( i );
+        }
+    }
+
+    protected void closeGap( int i ) {
+        moveKeys( i + 1, i, size - i - 1 );
+        System.arraycopy( values, i + 1, values, i, size - i - 1 );
+        treeDirty = true;
+        if ( coefs != null ) {
+            System.arraycopy( coefs, 3 * ( i + 1 ), coefs, 3 * i, 3 * ( size - i - 1 ) );
+            System.arraycopy( coefValid, i + 1, coefValid, i, size - i - 1 );
+            invalidateSegments( i - 2, i );
+        }
+    }
+
+    /**
+     * @return the index of the key with the sort key among the samples from
+     *         index from up to to or, if it is not sampled, -(insertion point)
+     *         - 1 as in {@link Arrays#binarySearch(long[], int, int, long)}
+     */
+    protected int search( int from, int to, long key ) {
+        int lo = from, hi = to - 1;
+        while ( lo <= hi ) {
+            int mid = ( lo + hi ) >>> 1;
+            long k = sortKey( mid );
+            if ( k < key ) {
+                lo = mid + 1;
+            } else if ( k > key ) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -( lo + 1 );
+    }
+
+    /**
+     * @return the index of the last sample at or before the key with the sort
+     *         key or -1 if there is none
+     */
+    protected int floorOfSortKey( long key ) {
+        // Check the end first since lookups often go there.
+        if ( size > 0 && key >= sortKey( size - 1 ) ) return size - 1;
+        int i = search( 0, size, key );
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * Advance a floor index to the last sample at or before a later key,
+     * galloping ahead so that a sweep costs O(q log(n/q)) for q keys, which
+     * is at most O(q + n).
+     *
+     * @param floor
+     *            the index of a sample at or before the key or -1
+     * @return the index of the last sample at or before the key or -1
+     */
+    protected int advanceFloor( int floor, long key ) {
+        int next = floor + 1;
+        if ( next >= size || sortKey( next ) > key ) return floor;
+        int bound = 1;
+        while ( next + bound < size && sortKey( next + bound ) <= key ) {
+            bound <<= 1;
+        }
+        int i = search( next + ( bound >> 1 ), Math.min( next + bound, size ), key );
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * @return the floor index of the next key of a sweep given that of the
+     *         last key, or -1 to start
+     */
+    protected int sweepFloor( int floor, long key ) {
+        return floor >= 0 && key < sortKey( floor ) ? floorOfSortKey( key )
+                                                    : advanceFloor( floor, key );
+    }
+
+    /**
+     * @return the sampled or interpolated value at the key with the sort key
+     *         given its floor index, or NaN if it is not defined
+     */
+    protected double valueAtSortKey( int floor, long key ) {
+        if ( floor < 0 ) return interpolate( floor, 0, 0 );
+        if ( sortKey( floor ) == key ) return values[ floor ];
+        return interpolate( floor, distance( floor, key ), floor + 1 < size ? span( floor ) : 0 );
+    }
+
+    /**
+     * Add a sample or replace the value of a sampled key.
+     *
+     * @return the index of the sample
+     */
+    protected int putSortKey( long key, double value ) {
+        if ( size == 0 || key > sortKey( size - 1 ) ) {
+            ensureCapacity( size + 1 );
+            setSortKey( size, key );
+            values[ size ] = value;
+            sampleChanged( size );
+            return size++;
+        }
+        int i = search( 0, size, key );
+        if ( i >= 0 ) {
+            values[ i ] = value;
+            sampleChanged( i );
+            return i;
+        }
+        i = -i - 1;
+        openGap( i );
+        setSortKey( i, key );
+        values[ i ] = value;
+        ++size;
+        return i;
+    }
+
+    /**
+     * @return whether there was a sample with the key
+     */
+    protected boolean removeSortKey( long key ) {
+        int i = search( 0, size, key );
+        if ( i < 0 ) return false;
+        removeAt( i );
+        return true;
+    }
+
+    public void removeAt( int i ) {
+        checkIndex( i );
+        closeGap( i );
+        --size;
+    }
+
+    /**
+     * @return whether the value at the key with the sort key is defined, as
+     *         in {@link InterpolatedMap#containsKey(Object)}
+     */
+    protected boolean containsSortKey( long key ) {
+        return search( 0, size, key ) >= 0
+               || !Double.isNaN( valueAtSortKey( floorOfSortKey( key ), key ) );
+    }
+
+    /**
+     * Interpolate a value for a key that is not sampled.
+     *
+     * @param floor
+     *            the index of the last sample before the key or -1 if there
+     *            is none
+     * @param dt
+     *            the distance from the floor sample's key to the key
+     * @param span
+     *            the distance from the floor sample's key to the next
+     *            sample's key, if there is a next sample
+     * @return the interpolated value or NaN if it is not defined
+     */
+    protected double interpolate( int floor, double dt, double span ) {
+        switch ( interpolation.type ) {
+            case InterpolatedMap.Interpolation.STEP:
+                return floor < 0 ? Double.NaN : values[ floor ];
+            case InterpolatedMap.Interpolation.LINEAR:
+            case InterpolatedMap.Interpolation.RAMP:
+                if ( floor < 0 ) return Double.NaN;
+                if ( floor >= size - 1 ) return values[ floor ];
+                return InterpolatedMap.interpolateLinear( values[ floor ], values[ floor + 1 ],
+                                                          dt, span );
+            case InterpolatedMap.Interpolation.NEAREST:
+                if ( floor < 0 ) return size > 0 ? values[ 0 ] : Double.NaN;
+                if ( floor >= size - 1 || dt < span - dt ) return values[ floor ];
+                return values[ floor + 1 ];
+            case InterpolatedMap.Interpolation.CUBIC:
+            case InterpolatedMap.Interpolation.MONOTONE_CUBIC:
+                if ( floor < 0 ) return Double.NaN;
+                if ( floor >= size - 1 ) return values[ floor ];
+                if ( !cacheCoefficients() ) {
+                    double d = ( values[ floor + 1 ] - values[ floor ] ) / span;
+                    return InterpolatedMap.cubicHermite( values[ floor ], slope( floor ),
+                                                         slope( floor + 1 ), d, span, dt );
+                }
+                int c = 3 * coefficients( floor );
+                return values[ floor ] + dt * ( coefs[ c ] + dt * ( coefs[ c + 1 ]
+                                                                    + dt * coefs[ c + 2 ] ) );
+            default:
+                return Double.NaN;
+        }
+    }
+
+    /**
+     * @return whether to keep the cubic coefficients of segments, which is
+     *         false for a series read by several threads at once
+     */
+    protected boolean cacheCoefficients() {
+        return true;
+    }
+
+    /**
+     * Compute the cubic coefficients of the segment from sample j if they
+     * are not valid.
+     *
+     * @return j
+     */
+    protected int coefficients( int j ) {
+        if ( coefs == null || coefType != interpolation.type ) {
+            if ( coefs == null || coefs.length < 3 * values.length ) {
+                coefs = new double[ 3 * values.length ];
+                coefValid = new boolean[ values.length ];
+            } else {
+                Arrays.fill( coefValid, false );
+            }
+            coefType = interpolation.type;
+        }
+        if ( coefValid[ j ] ) return j;
+        double h = span( j );
+        double d = ( values[ j + 1 ] - values[ j ] ) / h;
+        double m0 = slope( j );
+        double m1 = slope( j + 1 );
+        coefs[ 3 * j ] = m0;
+        coefs[ 3 * j + 1 ] = ( 3 * d - 2 * m0 - m1 ) / h;
+        coefs[ 3 * j + 2 ] = ( m0 + m1 - 2 * d ) / ( h * h );
+        coefValid[ j ] = true;
+        return j;
+    }
+
+    /**
+     * @return the slope of the cubic curve at the i<sup>th</sup> sample,
+     *         which is that of the line to the only neighbor at the ends
+     */
+    protected double slope( int i ) {
+        double d0 = 0, d1 = 0, h0 = 0, h1 = 0;
+        if ( i > 0 ) {
+            h0 = span( i - 1 );
+            d0 = ( values[ i ] - values[ i - 1 ] ) / h0;
+        }
+        if ( i < size - 1 ) {
+            h1 = span( i );
+            d1 = ( values[ i + 1 ] - values[ i ] ) / h1;
+        }
+        if ( i == 0 ) return d1;
+        if ( i == size - 1 ) return d0;
+        return InterpolatedMap.hermiteSlope( interpolation.type, h0, d0, h1, d1 );
+    }
+
+    /**
+     * Aggregate the samples from the floor index on over a window.
+     *
+     * @param floor
+     *            the index of the last sample at or before t1 or -1
+     * @return the finished aggregate
+     */
+    protected InterpolatedMap.Aggregate aggregate( int floor, double t1, double t2 ) {
+        InterpolatedMap.Aggregate a = new InterpolatedMap.Aggregate( interpolation, t1, t2 );
+        for ( int i = Math.max( floor, 0 ); i < size; ++i ) {
+            if ( !a.add( keyAsDouble( i ), values[ i ] ) ) break;
+        }
+        return a.finish();
+    }
+
+    /**
+     * Keep a segment tree of the minimum and maximum sample values so that
+     * {@link #valueRange(double, double)}, {@link #crosses(double, double,
+     * double)} and {@link #firstReach(double, double)} take O(log n) instead
+     * of O(n). Changing a value or appending a sample updates the tree in
+     * O(log n); inserting or removing elsewhere rebuilds it on the next
+     * query.
+     *
+     * @param indexed
+     */
+    public void setValueIndexed( boolean indexed ) {
+        valueIndexed = indexed;
+        if ( !indexed ) {
+            treeMin = null;
+            treeMax = null;
+            treeCapacity = 0;
+        }
+    }
+
+    public boolean isValueIndexed() {
+        return valueIndexed;
+    }
+
+    /**
+     * @return whether the tree is usable, after building it if needed
+     */
+    protected boolean ensureTree() {
+        if ( !valueIndexed ) return false;
+        if ( treeMin != null && !treeDirty && size <= treeCapacity ) return true;
+        int capacity = Math.max( treeCapacity, defaultCapacity );
+        while ( capacity < size ) {
+            capacity <<= 1;
+        }
+        if ( treeMin == null || capacity != treeCapacity ) {
+            treeCapacity = capacity;
+            treeMin = new double[ 2 * capacity ];
+            treeMax = new double[ 2 * capacity ];
+        }
+        for ( int i = 0; i < capacity; ++i ) {
+            treeMin[ capacity + i ] = i < size ? values[ i ] : Double.POSITIVE_INFINITY;
+            treeMax[ capacity + i ] = i < size ? values[ i ] : Double.NEGATIVE_INFINITY;
+        }
+        for ( int n = capacity - 1; n > 0; --n ) {
+            treeMin[ n ] = Math.min( treeMin[ 2 * n ], treeMin[ 2 * n + 1 ] );
+            treeMax[ n ] = Math.max( treeMax[ 2 * n ], treeMax[ 2 * n + 1 ] );
+        }
+        treeDirty = false;
+        return true;
+    }
+
+    protected void updateTree( int i ) {
+        int n = treeCapacity + i;
+        treeMin[ n ] = values[ i ];
+        treeMax[ n ] = values[ i ];
+        for ( n >>= 1; n > 0; n >>= 1 ) {
+            treeMin[ n ] = Math.min( treeMin[ 2 * n ], treeMin[ 2 * n + 1 ] );
+            treeMax[ n ] = Math.max( treeMax[ 2 * n ], treeMax[ 2 * n + 1 ] );
+        }
+    }
+
+    /**
+     * @return the minimum and maximum sample values from index lo through
+     *         hi, or infinities of the wrong sign if the range is empty
+     */
+    protected double[] sampleRange( int lo, int hi ) {
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        lo = Math.max( lo, 0 );
+        hi = Math.min( hi, size - 1 );
+        if ( lo <= hi && ensureTree() ) {
+            for ( int l = lo + treeCapacity, h = hi + treeCapacity + 1; l < h; l >>= 1, h >>= 1 ) {
+                if ( ( l & 1 ) == 1 ) {
+                    min = Math.min( min, treeMin[ l ] );
+                    max = Math.max( max, treeMax[ l++ ] );
+                }
+                if ( ( h & 1 ) == 1 ) {
+                    min = Math.min( min, treeMin[ --h ] );
+                    max = Math.max( max, treeMax[ h ] );
+                }
+            }
+        } else {
+            for ( int i = lo; i <= hi; ++i ) {
+                min = Math.min( min, values[ i ] );
+                max = Math.max( max, values[ i ] );
+            }
+        }
+        return new double[] { min, max };
+    }
+
+    /**
+     * @return the index of the first sample at or after from whose value is
+     *         at least x, if atOrAbove, or at most x, otherwise, or -1 if
+     *         there is none
+     */
+    protected int firstSampleReaching( int from, double x, boolean atOrAbove ) {
+        from = Math.max( from, 0 );
+        if ( from >= size ) return -1;
+        if ( !ensureTree() ) {
+            for ( int i = from; i < size; ++i ) {
+                if ( atOrAbove ? values[ i ] >= x : values[ i ] <= x ) return i;
+            }
+            return -1;
+        }
+        return firstSampleReaching( 1, 0, treeCapacity - 1, from, x, atOrAbove );
+    }
+
+    protected int firstSampleReaching( int node, int lo, int hi, int from, double x,
+                                       boolean atOrAbove ) {
+        if ( hi < from || ( atOrAbove ? treeMax[ node ] < x : treeMin[ node ] > x ) ) return -1;
+        if ( lo == hi ) return lo < size ? lo : -1;
+        int mid = ( lo + hi ) >>> 1;
+        int i = firstSampleReaching( 2 * node, lo, mid, from, x, atOrAbove );
+        if ( i >= 0 ) return i;
+        return firstSampleReaching( 2 * node + 1, mid + 1, hi, from, x, atOrAbove );
+    }
+
+    /**
+     * @return the value at a key given its floor index
+     */
+    protected double evaluate( int floor, double key ) {
+        if ( floor < 0 ) return interpolate( floor, 0, 0 );
+        double dt = key - keyAsDouble( floor );
+        if ( dt == 0 ) return values[ floor ];
+        return interpolate( floor, dt, floor < size - 1 ? span( floor ) : 0 );
+    }
+
+    /**
+     * The minimum and maximum value over [t1, t2], taken from the values at
+     * t1 and t2 and the samples between. This is exact for all but CUBIC
+     * interpolation, which can overshoot the samples.
+     *
+     * @param t1
+     * @param t2
+     *            a key not before t1
+     * @return the minimum and maximum or NaNs if no value is defined in the
+     *         window
+     */
+    public double[] valueRange( double t1, double t2 ) {
+        if ( !( t1 <= t2 ) ) {
+            throw new IllegalArgumentException( "Bad window [" + t1 + ", " + t2 + "]" );
+        }
+        int f1 = floorIndexOf( t1 );
+        int f2 = floorIndexOf( t2 );
+        double[] range = sampleRange( f1 + 1, f2 );
+        double v1 = evaluate( f1, t1 );
+        double v2 = evaluate( f2, t2 );
+        for ( double v : new double[] { v1, v2 } ) {
+            if ( Double.isNaN( v ) ) continue;
+            range[ 0 ] = Math.min( range[ 0 ], v );
+            range[ 1 ] = Math.max( range[ 1 ], v );
+        }
+        if ( range[ 0 ] > range[ 1 ] ) {
+            range[ 0 ] = Double.NaN;
+            range[ 1 ] = Double.NaN;
+        }
+        return range;
+    }
+
+    /**
+     * @return whether the value reaches or passes x somewhere in [t1, t2]
+     * @see #valueRange(double, double)
+     */
+    public boolean crosses( double x, double t1, double t2 ) {
+        double[] range = valueRange( t1, t2 );
+        return range[ 0 ] <= x && x <= range[ 1 ];
+    }
+
+    /**
+     * Whether the value is x somewhere, as for
+     * {@link InterpolatedMap#containsValue(Object)} but for any
+     * interpolation; for STEP, NEAREST and NONE, only a sample value counts.
+     * Without the {@link #setValueIndexed(boolean) value index}, looking for
+     * a sample value is O(n). With it, the search skips the subtrees whose
+     * range of values does not include x, which is O(log n) unless x falls
+     * inside the ranges of many subtrees without being a sample value, as it
+     * may in noisy data.
+     *
+     * @param x
+     * @return whether the value is x somewhere
+     */
+    public boolean containsValue( double x ) {
+        if ( size == 0 || Double.isNaN( x ) ) return false;
+        switch ( interpolation.type ) {
+            case InterpolatedMap.Interpolation.STEP:
+            case InterpolatedMap.Interpolation.NEAREST:
+            case InterpolatedMap.Interpolation.NONE:
+                if ( ensureTree() ) return containsSample( 1, 0, treeCapacity - 1, x );
+                for ( int i = 0; i < size; ++i ) {
+                    if ( values[ i ] == x ) return true;
+                }
+                return false;
+            default:
+                return crosses( x, keyAsDouble( 0 ), keyAsDouble( size - 1 ) );
+        }
+    }
+
+    /**
+     * @return whether a sample from index lo through hi, under the tree node,
+     *         has the value x
+     */
+    protected boolean containsSample( int node, int lo, int hi, double x ) {
+        if ( lo >= size || treeMin[ node ] > x || treeMax[ node ] < x ) return false;
+        if ( lo == hi ) return values[ lo ] == x;
+        int mid = ( lo + hi ) >>> 1;
+        return containsSample( 2 * node, lo, mid, x )
+               || containsSample( 2 * node + 1, mid + 1, hi, x );
+    }
+
+    /**
+     * Find the first key at or after from at which the value reaches or
+     * passes x, in O(log n) with the {@link #setValueIndexed(boolean) value
+     * index}. With LINEAR interpolation this is where the line crosses x;
+     * with the cubic ones it is found by bisection within the segment, and
+     * with CUBIC a crossing by overshoot between samples may be missed. With
+     * STEP and NONE it is the key of the sample, and with NEAREST it is the
+     * midpoint before the sample.
+     *
+     * @param x
+     * @param from
+     * @return the key or NaN if the value never reaches x
+     */
+    public double firstReach( double x, double from ) {
+        int floor = floorIndexOf( from );
+        double startKey = from;
+        double startValue = evaluate( floor, from );
+        if ( Double.isNaN( startValue ) ) {
+            if ( ++floor >= size ) return Double.NaN;
+            startKey = keyAsDouble( floor );
+            startValue = values[ floor ];
+        }
+        if ( startValue == x ) return startKey;
+        int k = firstSampleReaching( floor + 1, x, x > startValue );
+        if ( k < 0 ) return Double.NaN;
+        double t0 = k - 1 == floor ? startKey : keyAsDouble( k - 1 );
+        double v0 = k - 1 == floor ? startValue : values[ k - 1 ];
+        double t1 = keyAsDouble( k );
+        switch ( interpolation.type ) {
+            case InterpolatedMap.Interpolation.LINEAR:
+            case InterpolatedMap.Interpolation.RAMP:
+                return t0 + ( x - v0 ) / ( values[ k ] - v0 ) * ( t1 - t0 );
+            case InterpolatedMap.Interpolation.NEAREST:
+                return Math.max( startKey, ( keyAsDouble( k - 1 ) + t1 ) / 2 );
+            case InterpolatedMap.Interpolation.CUBIC:
+            case InterpolatedMap.Interpolation.MONOTONE_CUBIC:
+                boolean up = x > startValue;
+                double lo = t0, hi = t1;
+                for ( int i = 0; i < 64 && lo < hi; ++i ) {
+                    double mid = lo + ( hi - lo ) / 2;
+                    if ( mid <= lo || mid >= hi ) break;
+                    double v = evaluate( k - 1, mid );
+                    if ( up ? v >= x : v <= x ) {
+                        hi = mid;
+                    } else {
+                        lo = mid;
+                    }
+                }
+                return hi;
+            default:
+                return t1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder( getClass().getSimpleName() );
+        sb.append( "(" ).append( interpolation ).append( ", {" );
+        int n = Math.min( size, 10 );
+        for ( int i = 0; i < n; ++i ) {
+            if ( i > 0 ) sb.append( ", " );
+            sb.append( keyAsDouble( i ) ).append( "=" ).append( values[ i ] );
+        }
+        if ( n < size ) sb.append( ", ... (" ).append( size ).append( " samples)" );
+        sb.append( "})" );
+        return sb.toString();
+    }
+}
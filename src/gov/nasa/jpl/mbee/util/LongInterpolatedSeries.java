@@ -0,0 +1,234 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A series of long-keyed double values, such as values at timestamps, with
+ * the lookup and interpolation semantics of {@link InterpolatedMap}, kept in
+ * two sorted primitive arrays. Distances between keys are computed as longs
+ * before interpolating, so keys too large to be represented exactly as
+ * doubles interpolate correctly.
+ *
+ * @see InterpolatedSeries
+ * @see DoubleInterpolatedSeries
+ */
+public class LongInterpolatedSeries extends InterpolatedSeries {
+
+    protected long[] keys;
+
+    public LongInterpolatedSeries() {
+        this( defaultCapacity );
+    }
+
+    public LongInterpolatedSeries( int capacity ) {
+        super( capacity );
+        keys = new long[ values.length ];
+    }
+
+    public LongInterpolatedSeries( InterpolatedMap.Interpolation interpolation ) {
+        this( defaultCapacity );
+        this.interpolation.type = interpolation.type;
+    }
+
+    /**
+     * Copy the samples and interpolation of an InterpolatedMap with Number
+     * keys and values, leaving out null keys and values.
+     *
+     * @param map
+     */
+    public LongInterpolatedSeries( InterpolatedMap< ? extends Number, ? extends Number > map ) {
+        this( map.size() );
+        interpolation.type = map.interpolation.type;
+        for ( Map.Entry< ? extends Number, ? extends Number > e : map.entrySet() ) {
+            if ( e.getKey() == null || e.getValue() == null ) continue;
+            put( e.getKey().longValue(), e.getValue().doubleValue() );
+        }
+    }
+
+    @Override
+    protected void resizeKeys( int capacity ) {
+        keys = Arrays.copyOf( keys, capacity );
+    }
+
+    public long keyAt( int i ) {
+        checkIndex( i );
+        return keys[ i ];
+    }
+
+    @Override
+    public double keyAsDouble( int i ) {
+        return keyAt( i );
+    }
+
+    @Override
+    protected double span( int i ) {
+        return (double)( keys[ i + 1 ] - keys[ i ] );
+    }
+
+    @Override
+    protected long sortKey( int i ) {
+        return keys[ i ];
+    }
+
+    @Override
+    protected void setSortKey( int i, long sortKey ) {
+        keys[ i ] = sortKey;
+    }
+
+    @Override
+    protected double distance( int i, long sortKey ) {
+        return (double)( sortKey - keys[ i ] );
+    }
+
+    @Override
+    protected void moveKeys( int from, int to, int n ) {
+        System.arraycopy( keys, from, keys, to, n );
+    }
+
+    public long firstKey() {
+        return keyAt( 0 );
+    }
+
+    public long lastKey() {
+        return keyAt( size - 1 );
+    }
+
+    /**
+     * @param key
+     * @return the index of the key or, if it is not sampled, -(insertion
+     *         point) - 1 as in {@link Arrays#binarySearch(long[], long)}
+     */
+    public int indexOf( long key ) {
+        return search( 0, size, key );
+    }
+
+    /**
+     * @param key
+     * @return the index of the last sample at or before the key or -1 if
+     *         there is none
+     */
+    public int floorIndex( long key ) {
+        return floorOfSortKey( key );
+    }
+
+    @Override
+    protected int floorIndexOf( double key ) {
+        return floorIndex( (long)Math.floor( key ) );
+    }
+
+    /**
+     * Add a sample or replace the value of a sampled key.
+     *
+     * @param key
+     * @param value
+     * @return the index of the sample
+     */
+    public int put( long key, double value ) {
+        return putSortKey( key, value );
+    }
+
+    /**
+     * @param key
+     * @return whether there was a sample with the key
+     */
+    public boolean remove( long key ) {
+        return removeSortKey( key );
+    }
+
+    /**
+     * @param key
+     * @return the sampled or interpolated value at the key or NaN if it is
+     *         not defined
+     */
+    public double get( long key ) {
+        return valueAtSortKey( floorOfSortKey( key ), key );
+    }
+
+    /**
+     * Get the values at many keys in one sweep over the samples instead of a
+     * binary search for each key.
+     *
+     * @param sortedKeys
+     *            the keys in increasing order; an out-of-order key is looked
+     *            up on its own
+     * @param out
+     *            where to put the value for each key, at the same index; it
+     *            must be at least as long as sortedKeys
+     * @return out
+     */
+    public double[] get( long[] sortedKeys, double[] out ) {
+        int floor = -1;
+        for ( int i = 0; i < sortedKeys.length; ++i ) {
+            floor = sweepFloor( floor, sortedKeys[ i ] );
+            out[ i ] = valueAtSortKey( floor, sortedKeys[ i ] );
+        }
+        return out;
+    }
+
+    /**
+     * Resample at evenly spaced keys in one sweep over the samples.
+     *
+     * @param start
+     *            the first key
+     * @param step
+     *            the distance between keys, which must not be negative
+     * @param out
+     *            where to put the value at start + i * step for each index i
+     * @return out
+     * @throws IllegalArgumentException
+     *             if step is negative
+     */
+    public double[] resample( long start, long step, double[] out ) {
+        if ( step < 0 ) throw new IllegalArgumentException( "Negative step " + step );
+        int floor = -1;
+        for ( int i = 0; i < out.length; ++i ) {
+            long key = start + i * step;
+            floor = sweepFloor( floor, key );
+            out[ i ] = valueAtSortKey( floor, key );
+        }
+        return out;
+    }
+
+    /**
+     * Compute the minimum, maximum, mean and integral over [t1, t2] in one
+     * pass over the samples in the window. The keys are given to the
+     * aggregate as their distances from t1, which are exact, so large keys
+     * aggregate correctly, as they interpolate.
+     *
+     * @param t1
+     * @param t2
+     *            a key not before t1
+     * @return the aggregate
+     * @see InterpolatedMap.Aggregate
+     */
+    public InterpolatedMap.Aggregate aggregate( long t1, long t2 ) {
+        if ( t2 < t1 ) throw new IllegalArgumentException( "Bad window [" + t1 + ", " + t2 + "]" );
+        InterpolatedMap.Aggregate a =
+                new InterpolatedMap.Aggregate( interpolation, t1, t2, 0, t2 - t1 );
+        for ( int i = Math.max( floorIndex( t1 ), 0 ); i < size; ++i ) {
+            if ( !a.add( keys[ i ] - t1, values[ i ] ) ) break;
+        }
+        return a.finish();
+    }
+
+    /**
+     * @return whether the value at the key is defined, as in
+     *         {@link InterpolatedMap#containsKey(Object)}
+     */
+    public boolean containsKey( long key ) {
+        return containsSortKey( key );
+    }
+
+    /**
+     * @return the samples in an InterpolatedMap with the same interpolation
+     */
+    public InterpolatedMap< Long, Double > toInterpolatedMap() {
+        InterpolatedMap< Long, Double > map = new InterpolatedMap< Long, Double >();
+        map.interpolation.type = interpolation.type;
+        for ( int i = 0; i < size; ++i ) {
+            map.put( keys[ i ], values[ i ] );
+        }
+        return map;
+    }
+}
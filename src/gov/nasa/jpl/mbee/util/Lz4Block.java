@@ -0,0 +1,202 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Lz4Block compresses and decompresses byte arrays in the LZ4 block format,
+ * so that the other end can decode them with any LZ4 library (for example,
+ * lz4.block.decompress() in Python, given the uncompressed size).
+ * <p>
+ * The compressor is the simple greedy one: a hash table of the last
+ * position of each 4-byte sequence finds matches up to 64KB back. It is
+ * fast and does well on vectors with runs or repeated values, such as
+ * zeros and unchanged fields, but not on noisy doubles.
+ * <p>
+ * An instance reuses its hash table and is not thread-safe.
+ */
+public class Lz4Block {
+
+  protected static final int minMatch = 4;
+  protected static final int lastLiterals = 5;
+  protected static final int matchFindLimit = 12;
+  protected static final int maxDistance = 65535;
+  protected static final int hashLog = 14;
+
+  protected final int[] table = new int[ 1 << hashLog ];
+
+  /**
+   * @return the most bytes compressing n bytes may take
+   */
+  public static int maxCompressedLength( int n ) {
+    return n + n / 255 + 16;
+  }
+
+  protected static int readInt( byte[] a, int i ) {
+    return ( a[ i ] & 0xff ) | ( a[ i + 1 ] & 0xff ) << 8 | ( a[ i + 2 ] & 0xff ) << 16
+           | ( a[ i + 3 ] & 0xff ) << 24;
+  }
+
+  protected static int hash( int sequence ) {
+    return ( sequence * -1640531535 ) >>> ( 32 - hashLog );
+  }
+
+  /**
+   * Compress a range of bytes.
+   *
+   * @param src
+   * @param srcOffset
+   * @param srcLength
+   * @param dst
+   *          where to put the block, with room for
+   *          {@link #maxCompressedLength(int)} bytes
+   * @param dstOffset
+   * @return the length of the block
+   */
+  public int compress( byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset ) {
+    int end = srcOffset + srcLength;
+    int anchor = srcOffset;
+    int dp = dstOffset;
+    if ( srcLength > matchFindLimit ) {
+      // table entries are positions + 1 so that 0 is empty
+      Arrays.fill( table, 0 );
+      int matchLimit = end - lastLiterals;
+      int findLimit = end - matchFindLimit;
+      int sp = srcOffset;
+      int misses = 0;
+      while ( sp < findLimit ) {
+        int sequence = readInt( src, sp );
+        int h = hash( sequence );
+        int ref = table[ h ] - 1;
+        table[ h ] = sp + 1;
+        if ( ref < 0 || sp - ref > maxDistance || readInt( src, ref ) != sequence ) {
+          // skip faster through data that does not compress
+          sp += 1 + ( misses++ >>> 6 );
+          continue;
+        }
+        misses = 0;
+        while ( sp > anchor && ref > srcOffset && src[ sp - 1 ] == src[ ref - 1 ] ) {
+          --sp;
+          --ref;
+        }
+        int length = minMatch;
+        while ( sp + length < matchLimit && src[ sp + length ] == src[ ref + length ] ) {
+          ++length;
+        }
+        dp = putSequence( src, anchor, sp - anchor, sp - ref, length, dst, dp );
+        sp += length;
+        anchor = sp;
+      }
+    }
+    // the last literals, with no match
+    int literals = end - anchor;
+    int tokenPos = dp++;
+    dp = putLength( literals, dst, dp );
+    dst[ tokenPos ] = (byte)( Math.min( literals, 15 ) << 4 );
+    System.arraycopy( src, anchor, dst, dp, literals );
+    return dp + literals - dstOffset;
+  }
+
+  protected static int putSequence( byte[] src, int literalStart, int literals, int offset,
+                                    int matchLength, byte[] dst, int dp ) {
+    int tokenPos = dp++;
+    dp = putLength( literals, dst, dp );
+    System.arraycopy( src, literalStart, dst, dp, literals );
+    dp += literals;
+    dst[ dp++ ] = (byte)offset;
+    dst[ dp++ ] = (byte)( offset >>> 8 );
+    int m = matchLength - minMatch;
+    dp = putLength( m, dst, dp );
+    dst[ tokenPos ] = (byte)( Math.min( literals, 15 ) << 4 | Math.min( m, 15 ) );
+    return dp;
+  }
+
+  /**
+   * Put the bytes that extend a length of 15 or more beyond its token.
+   */
+  protected static int putLength( int length, byte[] dst, int dp ) {
+    if ( length < 15 ) return dp;
+    length -= 15;
+    while ( length >= 255 ) {
+      dst[ dp++ ] = (byte)255;
+      length -= 255;
+    }
+    dst[ dp++ ] = (byte)length;
+    return dp;
+  }
+
+  /**
+   * Decompress a block.
+   *
+   * @param src
+   * @param srcOffset
+   * @param srcLength
+   *          the length of the block
+   * @param dst
+   * @param dstOffset
+   * @param dstLength
+   *          the uncompressed length, which must be exact
+   * @throws IOException
+   *           if the block is corrupt or does not decompress to dstLength
+   *           bytes
+   */
+  public static void decompress( byte[] src, int srcOffset, int srcLength, byte[] dst,
+                                 int dstOffset, int dstLength ) throws IOException {
+    int sp = srcOffset;
+    int end = srcOffset + srcLength;
+    int dp = dstOffset;
+    int dstEnd = dstOffset + dstLength;
+    try {
+      while ( true ) {
+        int token = src[ sp++ ] & 0xff;
+        int literals = token >>> 4;
+        if ( literals == 15 ) {
+          int b;
+          do {
+            b = src[ sp++ ] & 0xff;
+            literals += b;
+          } while ( b == 255 );
+        }
+        if ( literals > end - sp || literals > dstEnd - dp ) {
+          throw new IOException( "corrupt block: literals overrun" );
+        }
+        System.arraycopy( src, sp, dst, dp, literals );
+        sp += literals;
+        dp += literals;
+        if ( sp >= end ) break;
+        int offset = ( src[ sp ] & 0xff ) | ( src[ sp + 1 ] & 0xff ) << 8;
+        sp += 2;
+        if ( offset == 0 || offset > dp - dstOffset ) {
+          throw new IOException( "corrupt block: bad match offset " + offset );
+        }
+        int length = token & 15;
+        if ( length == 15 ) {
+          int b;
+          do {
+            b = src[ sp++ ] & 0xff;
+            length += b;
+          } while ( b == 255 );
+        }
+        length += minMatch;
+        if ( length > dstEnd - dp ) throw new IOException( "corrupt block: match overrun" );
+        int ref = dp - offset;
+        if ( offset >= length ) {
+          System.arraycopy( dst, ref, dst, dp, length );
+          dp += length;
+        } else {
+          // the match overlaps what it writes, repeating the last bytes
+          for ( int i = 0; i < length; ++i ) {
+            dst[ dp++ ] = dst[ ref++ ];
+          }
+        }
+      }
+    } catch ( ArrayIndexOutOfBoundsException e ) {
+      throw new IOException( "corrupt block: truncated" );
+    }
+    if ( dp != dstEnd ) {
+      throw new IOException( "block decompressed to " + ( dp - dstOffset ) + " bytes, not "
+                             + dstLength );
+    }
+  }
+
+}
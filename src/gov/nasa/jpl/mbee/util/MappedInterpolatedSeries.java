@@ -0,0 +1,620 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * MappedInterpolatedSeries is an append-only file of samples, such as a
+ * timeline, that is read through a memory mapping with the lookup and
+ * interpolation semantics of {@link InterpolatedMap}, as in
+ * {@link InterpolatedSeries}, so that opening it does not parse or load the
+ * samples onto the heap.
+ * <p>
+ * The file is a header followed by blocks of up to {@link #blockSize}
+ * samples in increasing key order. The header is the int {@link #magic},
+ * the version, key type, codec, and interpolation type bytes, and the int
+ * block size. Each block is a header of its sample count, the byte lengths
+ * of its key and value columns, and its first and last keys, followed by
+ * the key column and then the value column. With the {@link #RAW} codec the
+ * columns are arrays of longs and doubles that are searched in place. With
+ * the {@link #DELTA} codec, the first key and value are written as they are
+ * and the rest as varlongs: the zigzagged change in the distance between
+ * keys, and the bit-reversed XOR of each value's bits with the previous
+ * value's, which are both small for regularly spaced keys and repeated or
+ * slowly changing values. A DELTA block is decoded on first use, and the
+ * last decoded block is cached for sequential reads.
+ * <p>
+ * Opening the file reads only the block headers into a sparse index of
+ * first keys and offsets. A block left incomplete by a crash during an
+ * append is truncated. Blocks written after the file is mapped are mapped
+ * separately when they are first read, and the newest mappings are merged
+ * as they grow so that there are only a few. Appended samples are kept in memory until a block is
+ * full or {@link #flush()} is called; they are read along with the blocks.
+ * <p>
+ * Keys are longs or doubles. Double keys are stored as longs whose order is
+ * that of the doubles. The file may not grow beyond 2GB. Methods are
+ * synchronized. The cubic interpolations, which need more than the two
+ * samples around a key, are not supported and give NaN.
+ */
+public class MappedInterpolatedSeries implements Closeable {
+
+    public static final int magic = 0x494d4150;  // "IMAP"
+    public static final byte version = 1;
+
+    public static final byte LONG_KEYS = 0;
+    public static final byte DOUBLE_KEYS = 1;
+
+    public static final byte RAW = 0;
+    public static final byte DELTA = 1;
+
+    public static final int defaultBlockSize = 1024;
+
+    protected static final int headerBytes = 16;
+    protected static final int blockHeaderBytes = 32;
+
+    public final byte keyType;
+    public final byte codec;
+    public final int blockSize;
+    public final InterpolatedMap.Interpolation interpolation;
+
+    protected final RandomAccessFile file;
+    protected final FileChannel channel;
+    protected long fileLength;
+
+    // mappings of consecutive regions of the file, each larger than twice
+    // the next, with the block index of each one's first block
+    protected MappedByteBuffer[] segments = new MappedByteBuffer[ 8 ];
+    protected long[] segmentStarts = new long[ 8 ];
+    protected int[] segmentFirstBlocks = new int[ 8 ];
+    protected int numSegments = 0;
+    protected long mappedLength = headerBytes;
+    protected int mappedBlocks = 0;
+
+    // sparse block index
+    protected int numBlocks = 0;
+    protected long[] blockOffsets = new long[ 16 ];
+    protected long[] firstKeys = new long[ 16 ];
+    protected int[] counts = new int[ 16 ];
+    protected int[] blockSegments = new int[ 16 ];
+    protected long numSamples = 0;
+    protected long lastBlockKey;
+
+    // samples appended since the last block was written
+    protected final long[] tailKeys;
+    protected final double[] tailValues;
+    protected int tailSize = 0;
+
+    // the last decoded DELTA block
+    protected int cachedBlock = -1;
+    protected long[] cachedKeys;
+    protected double[] cachedValues;
+
+    protected MappedInterpolatedSeries( RandomAccessFile file, byte keyType, byte codec,
+                                        byte interpolationType, int blockSize ) {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.keyType = keyType;
+        this.codec = codec;
+        this.blockSize = blockSize;
+        this.interpolation = new InterpolatedMap.Interpolation( interpolationType );
+        tailKeys = new long[ blockSize ];
+        tailValues = new double[ blockSize ];
+    }
+
+    /**
+     * Create a new, empty file, replacing any existing one.
+     *
+     * @param f
+     * @param keyType
+     *            {@link #LONG_KEYS} or {@link #DOUBLE_KEYS}
+     * @param codec
+     *            {@link #RAW} or {@link #DELTA}
+     * @param interpolation
+     * @param blockSize
+     *            the number of samples per block
+     * @return the open series
+     * @throws IOException
+     */
+    public static MappedInterpolatedSeries create( File f, byte keyType, byte codec,
+                                                   InterpolatedMap.Interpolation interpolation,
+                                                   int blockSize ) throws IOException {
+        if ( keyType != LONG_KEYS && keyType != DOUBLE_KEYS ) {
+            throw new IllegalArgumentException( "Bad key type " + keyType );
+        }
+        if ( codec != RAW && codec != DELTA ) {
+            throw new IllegalArgumentException( "Bad codec " + codec );
+        }
+        if ( blockSize < 1 ) throw new IllegalArgumentException( "Bad block size " + blockSize );
+        RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+        try {
+            raf.setLength( 0 );
+            ByteBuffer header = ByteBuffer.allocate( headerBytes );
+            header.putInt( magic ).put( version ).put( keyType ).put( codec )
+                  .put( interpolation.type ).putInt( blockSize ).putInt( 0 );
+            header.flip();
+            raf.getChannel().write( header, 0 );
+        } catch ( IOException e ) {
+            raf.close();
+            throw e;
+        }
+        MappedInterpolatedSeries s =
+                new MappedInterpolatedSeries( raf, keyType, codec, interpolation.type, blockSize );
+        s.fileLength = headerBytes;
+        return s;
+    }
+
+    /**
+     * Open an existing file for reading and appending.
+     *
+     * @param f
+     * @return the open series
+     * @throws IOException
+     *             if the file cannot be read or is not a series file
+     */
+    public static MappedInterpolatedSeries open( File f ) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+        try {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate( headerBytes );
+            readFully( ch, header, 0 );
+            if ( header.getInt() != magic ) throw new IOException( "not a series file: " + f );
+            byte v = header.get();
+            if ( v != version ) throw new IOException( "unsupported version " + v + ": " + f );
+            byte keyType = header.get();
+            byte codec = header.get();
+            byte interpolationType = header.get();
+            int blockSize = header.getInt();
+            if ( keyType != LONG_KEYS && keyType != DOUBLE_KEYS ) {
+                throw new IOException( "bad key type " + keyType + ": " + f );
+            }
+            if ( codec != RAW && codec != DELTA ) {
+                throw new IOException( "bad codec " + codec + ": " + f );
+            }
+            if ( blockSize < 1 ) throw new IOException( "bad block size " + blockSize + ": " + f );
+            MappedInterpolatedSeries s =
+                    new MappedInterpolatedSeries( raf, keyType, codec, interpolationType,
+                                                  blockSize );
+            s.readIndex();
+            return s;
+        } catch ( IOException e ) {
+            raf.close();
+            throw e;
+        } catch ( RuntimeException e ) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    protected static void readFully( FileChannel ch, ByteBuffer buf, long position )
+            throws IOException {
+        while ( buf.hasRemaining() ) {
+            int n = ch.read( buf, position + buf.position() );
+            if ( n < 0 ) throw new IOException( "unexpected end of file" );
+        }
+        buf.flip();
+    }
+
+    /**
+     * Read the block headers into the index, truncating an incomplete last
+     * block.
+     */
+    protected void readIndex() throws IOException {
+        long length = channel.size();
+        long offset = headerBytes;
+        ByteBuffer bh = ByteBuffer.allocate( blockHeaderBytes );
+        while ( offset + blockHeaderBytes <= length ) {
+            bh.clear();
+            readFully( channel, bh, offset );
+            int count = bh.getInt();
+            long end = offset + blockHeaderBytes + bh.getInt() + bh.getInt();
+            if ( count <= 0 || end > length ) break;
+            bh.getInt();
+            long firstKey = bh.getLong();
+            addToIndex( offset, firstKey, bh.getLong(), count );
+            offset = end;
+        }
+        if ( offset < length ) channel.truncate( offset );
+        fileLength = offset;
+    }
+
+    protected void addToIndex( long offset, long firstKey, long lastKey, int count ) {
+        if ( numBlocks == blockOffsets.length ) {
+            int capacity = numBlocks + ( numBlocks >> 1 );
+            blockOffsets = Arrays.copyOf( blockOffsets, capacity );
+            firstKeys = Arrays.copyOf( firstKeys, capacity );
+            counts = Arrays.copyOf( counts, capacity );
+            blockSegments = Arrays.copyOf( blockSegments, capacity );
+        }
+        blockOffsets[ numBlocks ] = offset;
+        firstKeys[ numBlocks ] = firstKey;
+        counts[ numBlocks ] = count;
+        lastBlockKey = lastKey;
+        ++numBlocks;
+        numSamples += count;
+    }
+
+    /**
+     * @return a long whose signed order is the order of the doubles
+     */
+    public static long sortableBits( double d ) {
+        long bits = Double.doubleToLongBits( d );
+        return bits ^ ( ( bits >> 63 ) & Long.MAX_VALUE );
+    }
+
+    public static double fromSortableBits( long bits ) {
+        return Double.longBitsToDouble( bits ^ ( ( bits >> 63 ) & Long.MAX_VALUE ) );
+    }
+
+    protected void checkKeyType( byte type ) {
+        if ( keyType != type ) {
+            throw new IllegalStateException( "The keys of this series are "
+                                             + ( keyType == LONG_KEYS ? "longs" : "doubles" ) );
+        }
+    }
+
+    /**
+     * @return the number of samples, including any not yet written
+     */
+    public synchronized long size() {
+        return numSamples + tailSize;
+    }
+
+    public synchronized void append( long key, double value ) throws IOException {
+        checkKeyType( LONG_KEYS );
+        appendStored( key, value );
+    }
+
+    /**
+     * @param key
+     *            a key that is not NaN
+     */
+    public synchronized void append( double key, double value ) throws IOException {
+        checkKeyType( DOUBLE_KEYS );
+        if ( Double.isNaN( key ) ) throw new IllegalArgumentException( "NaN key" );
+        appendStored( sortableBits( key ), value );
+    }
+
+    /**
+     * Append the samples of a map with Number keys and values, leaving out
+     * null keys and values.
+     *
+     * @param map
+     *            a map whose keys are all after the last key of this series
+     * @throws IOException
+     */
+    public synchronized void appendAll( InterpolatedMap< ? extends Number, ? extends Number > map )
+            throws IOException {
+        for ( Map.Entry< ? extends Number, ? extends Number > e : map.entrySet() ) {
+            if ( e.getKey() == null || e.getValue() == null ) continue;
+            if ( keyType == LONG_KEYS ) {
+                append( e.getKey().longValue(), e.getValue().doubleValue() );
+            } else {
+                append( e.getKey().doubleValue(), e.getValue().doubleValue() );
+            }
+        }
+    }
+
+    protected boolean hasLastKey() {
+        return tailSize > 0 || numBlocks > 0;
+    }
+
+    protected long lastStoredKey() {
+        if ( tailSize > 0 ) return tailKeys[ tailSize - 1 ];
+        return lastBlockKey;
+    }
+
+    protected void appendStored( long key, double value ) throws IOException {
+        if ( hasLastKey() && key <= lastStoredKey() ) {
+            throw new IllegalArgumentException( "Key " + keyString( key )
+                                                + " is not after the last key "
+                                                + keyString( lastStoredKey() ) );
+        }
+        tailKeys[ tailSize ] = key;
+        tailValues[ tailSize ] = value;
+        if ( ++tailSize == blockSize ) writeTail();
+    }
+
+    protected String keyString( long key ) {
+        return keyType == LONG_KEYS ? Long.toString( key )
+                                    : Double.toString( fromSortableBits( key ) );
+    }
+
+    /**
+     * Write the appended samples to the file as a block and force them to
+     * the storage device. Each flush ends a block, so flushing after every
+     * few appends makes small blocks.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if ( tailSize > 0 ) writeTail();
+        channel.force( false );
+    }
+
+    protected void writeTail() throws IOException {
+        ByteArrayOutputStream keyBytes = new ByteArrayOutputStream( tailSize * 8 );
+        ByteArrayOutputStream valueBytes = new ByteArrayOutputStream( tailSize * 8 );
+        DataOutputStream kout = new DataOutputStream( keyBytes );
+        DataOutputStream vout = new DataOutputStream( valueBytes );
+        kout.writeLong( tailKeys[ 0 ] );
+        vout.writeLong( Double.doubleToRawLongBits( tailValues[ 0 ] ) );
+        long lastDelta = 0;
+        for ( int i = 1; i < tailSize; ++i ) {
+            if ( codec == RAW ) {
+                kout.writeLong( tailKeys[ i ] );
+                vout.writeLong( Double.doubleToRawLongBits( tailValues[ i ] ) );
+                continue;
+            }
+            long delta = tailKeys[ i ] - tailKeys[ i - 1 ];
+            long dod = delta - lastDelta;
+            DiffCodec.writeVarlong( kout, ( dod << 1 ) ^ ( dod >> 63 ) );
+            lastDelta = delta;
+            long xor = Double.doubleToRawLongBits( tailValues[ i ] )
+                       ^ Double.doubleToRawLongBits( tailValues[ i - 1 ] );
+            DiffCodec.writeVarlong( vout, Long.reverse( xor ) );
+        }
+        long end = fileLength + blockHeaderBytes + keyBytes.size() + valueBytes.size();
+        if ( end > Integer.MAX_VALUE ) throw new IOException( "series file too large" );
+        ByteBuffer block = ByteBuffer.allocate( (int)( end - fileLength ) );
+        block.putInt( tailSize ).putInt( keyBytes.size() ).putInt( valueBytes.size() ).putInt( 0 )
+             .putLong( tailKeys[ 0 ] ).putLong( tailKeys[ tailSize - 1 ] );
+        block.put( keyBytes.toByteArray() ).put( valueBytes.toByteArray() );
+        block.flip();
+        long offset = fileLength;
+        while ( block.hasRemaining() ) {
+            channel.write( block, offset + block.position() );
+        }
+        fileLength = end;
+        addToIndex( offset, tailKeys[ 0 ], tailKeys[ tailSize - 1 ], tailSize );
+        tailSize = 0;
+    }
+
+    /**
+     * Map the blocks written since the file was last mapped. Only the new
+     * region is mapped, unless the last mapping is no more than twice its
+     * size, in which case the two are replaced by one mapping of both. The
+     * mappings then shrink geometrically, so there are O(log n) of them,
+     * and each byte is mapped O(log n) times.
+     */
+    protected void mapping() throws IOException {
+        if ( mappedLength == fileLength ) return;
+        if ( numSegments == segments.length ) {
+            segments = Arrays.copyOf( segments, 2 * numSegments );
+            segmentStarts = Arrays.copyOf( segmentStarts, 2 * numSegments );
+            segmentFirstBlocks = Arrays.copyOf( segmentFirstBlocks, 2 * numSegments );
+        }
+        segmentStarts[ numSegments ] = mappedLength;
+        segmentFirstBlocks[ numSegments ] = mappedBlocks;
+        ++numSegments;
+        while ( numSegments > 1 && segmentStarts[ numSegments - 1 ] - segmentStarts[ numSegments - 2 ]
+                                   <= 2 * ( fileLength - segmentStarts[ numSegments - 1 ] ) ) {
+            segments[ --numSegments ] = null;
+        }
+        int last = numSegments - 1;
+        segments[ last ] = channel.map( FileChannel.MapMode.READ_ONLY, segmentStarts[ last ],
+                                        fileLength - segmentStarts[ last ] );
+        for ( int b = segmentFirstBlocks[ last ]; b < numBlocks; ++b ) {
+            blockSegments[ b ] = last;
+        }
+        mappedLength = fileLength;
+        mappedBlocks = numBlocks;
+    }
+
+    /**
+     * @return the mapping that holds the block
+     */
+    protected ByteBuffer blockBuffer( int b ) {
+        return segments[ blockSegments[ b ] ];
+    }
+
+    /**
+     * @return the offset of the block in its mapping
+     */
+    protected int blockStart( int b ) {
+        return (int)( blockOffsets[ b ] - segmentStarts[ blockSegments[ b ] ] );
+    }
+
+    protected int keyBytesOf( int b ) {
+        return blockBuffer( b ).getInt( blockStart( b ) + 4 );
+    }
+
+    /**
+     * @return the offset of the block's key column in its mapping
+     */
+    protected int columnsOffset( int b ) {
+        return blockStart( b ) + blockHeaderBytes;
+    }
+
+    protected void decode( int b ) {
+        if ( cachedBlock == b ) return;
+        int n = counts[ b ];
+        if ( cachedKeys == null || cachedKeys.length < n ) {
+            cachedKeys = new long[ Math.max( n, blockSize ) ];
+            cachedValues = new double[ cachedKeys.length ];
+        }
+        ByteBuffer keys = blockBuffer( b ).duplicate();
+        keys.position( columnsOffset( b ) );
+        ByteBuffer values = blockBuffer( b ).duplicate();
+        values.position( columnsOffset( b ) + keyBytesOf( b ) );
+        long key = keys.getLong();
+        long bits = values.getLong();
+        long delta = 0;
+        cachedKeys[ 0 ] = key;
+        cachedValues[ 0 ] = Double.longBitsToDouble( bits );
+        for ( int i = 1; i < n; ++i ) {
+            long z = readVarlong( keys );
+            delta += ( z >>> 1 ) ^ -( z & 1 );
+            key += delta;
+            bits ^= Long.reverse( readVarlong( values ) );
+            cachedKeys[ i ] = key;
+            cachedValues[ i ] = Double.longBitsToDouble( bits );
+        }
+        cachedBlock = b;
+    }
+
+    protected static long readVarlong( ByteBuffer buf ) {
+        long x = 0;
+        for ( int shift = 0; ; shift += 7 ) {
+            byte b = buf.get();
+            x |= (long)( b & 0x7f ) << shift;
+            if ( b >= 0 ) return x;
+        }
+    }
+
+    protected long blockKey( int b, int i ) {
+        if ( codec == RAW ) return blockBuffer( b ).getLong( columnsOffset( b ) + 8 * i );
+        decode( b );
+        return cachedKeys[ i ];
+    }
+
+    protected double blockValue( int b, int i ) {
+        if ( codec == RAW || i == 0 ) {
+            return blockBuffer( b ).getDouble( columnsOffset( b ) + keyBytesOf( b ) + 8 * i );
+        }
+        decode( b );
+        return cachedValues[ i ];
+    }
+
+    /**
+     * @return the index of the last block whose first key is at or before
+     *         the key or -1 if there is none
+     */
+    protected int floorBlock( long key ) {
+        int i = Arrays.binarySearch( firstKeys, 0, numBlocks, key );
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * @return the index of the last sample in the block at or before the
+     *         key, which is not before the block's first key
+     */
+    protected int floorInBlock( int b, long key ) {
+        int lo = 0, hi = counts[ b ] - 1;
+        while ( lo < hi ) {
+            int mid = ( lo + hi + 1 ) >>> 1;
+            if ( blockKey( b, mid ) <= key ) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    protected double distance( long from, long to ) {
+        if ( keyType == LONG_KEYS ) return (double)( to - from );
+        return fromSortableBits( to ) - fromSortableBits( from );
+    }
+
+    /**
+     * @return the sampled or interpolated value at the key or NaN if it is
+     *         not defined, as in {@link InterpolatedSeries}
+     * @throws IOException
+     *             if the file cannot be mapped
+     */
+    public synchronized double get( long key ) throws IOException {
+        checkKeyType( LONG_KEYS );
+        return getStored( key );
+    }
+
+    public synchronized double get( double key ) throws IOException {
+        checkKeyType( DOUBLE_KEYS );
+        if ( Double.isNaN( key ) ) return Double.NaN;
+        return getStored( sortableBits( key ) );
+    }
+
+    protected double getStored( long key ) throws IOException {
+        long floorKey, nextKey = 0;
+        double floorValue, nextValue = 0;
+        boolean hasNext;
+        if ( tailSize > 0 && key >= tailKeys[ 0 ] ) {
+            int i = Arrays.binarySearch( tailKeys, 0, tailSize, key );
+            if ( i < 0 ) i = -i - 2;
+            floorKey = tailKeys[ i ];
+            floorValue = tailValues[ i ];
+            hasNext = i + 1 < tailSize;
+            if ( hasNext ) {
+                nextKey = tailKeys[ i + 1 ];
+                nextValue = tailValues[ i + 1 ];
+            }
+        } else {
+            int b = floorBlock( key );
+            if ( b < 0 ) {
+                if ( interpolation.type != InterpolatedMap.Interpolation.NEAREST ) {
+                    return Double.NaN;
+                }
+                if ( numBlocks > 0 ) {
+                    mapping();
+                    return blockValue( 0, 0 );
+                }
+                return tailSize > 0 ? tailValues[ 0 ] : Double.NaN;
+            }
+            mapping();
+            int i = floorInBlock( b, key );
+            floorKey = blockKey( b, i );
+            floorValue = blockValue( b, i );
+            hasNext = true;
+            if ( i + 1 < counts[ b ] ) {
+                nextKey = blockKey( b, i + 1 );
+                nextValue = blockValue( b, i + 1 );
+            } else if ( b + 1 < numBlocks ) {
+                nextKey = firstKeys[ b + 1 ];
+                nextValue = blockValue( b + 1, 0 );
+            } else if ( tailSize > 0 ) {
+                nextKey = tailKeys[ 0 ];
+                nextValue = tailValues[ 0 ];
+            } else {
+                hasNext = false;
+            }
+        }
+        if ( floorKey == key ) return floorValue;
+        switch ( interpolation.type ) {
+            case InterpolatedMap.Interpolation.STEP:
+                return floorValue;
+            case InterpolatedMap.Interpolation.LINEAR:
+            case InterpolatedMap.Interpolation.RAMP:
+                if ( !hasNext ) return floorValue;
+                return InterpolatedMap.interpolateLinear( floorValue, nextValue,
+                                                          distance( floorKey, key ),
+                                                          distance( floorKey, nextKey ) );
+            case InterpolatedMap.Interpolation.NEAREST:
+                if ( !hasNext ) return floorValue;
+                double dt = distance( floorKey, key );
+                return dt < distance( floorKey, nextKey ) - dt ? floorValue : nextValue;
+            default:
+                return Double.NaN;
+        }
+    }
+
+    /**
+     * Flush and close the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if ( channel.isOpen() ) flush();
+        } finally {
+            Arrays.fill( segments, null );
+            numSegments = 0;
+            mappedLength = headerBytes;
+            mappedBlocks = 0;
+            cachedBlock = -1;
+            file.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + interpolation + ", " + size() + " samples in "
+               + numBlocks + " blocks)";
+    }
+}
@@ -0,0 +1,249 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MerkleDiff computes the difference between two versions of a containment
+ * hierarchy by comparing a hash of each subtree, a Merkle hash, and only
+ * descending into the subtrees whose hashes differ. The results are reported
+ * through the same members and getters as {@link AbstractDiff}.
+ * <p>
+ * The hash of a subtree combines the
+ * {@link #getFingerprint(Object, Object, boolean) fingerprint} of its root
+ * object's properties with the hashes of its children's subtrees. A subtree
+ * is skipped only if every fingerprint in it is exact, that is, hashed from
+ * the content of the properties, and its ID can be hashed by content too;
+ * otherwise its hash is {@link #noContentHash} and it is diffed as usual, so
+ * the changes found are the same as {@link AbstractDiff#diff()}'s. Subtree
+ * hashes are cached for each version, so once they are computed, diffing
+ * again after a few changes reported through {@link #upsert1(Object)},
+ * {@link #delete1(Object)}, {@link #objectChanged(Object)}, and the like
+ * costs time proportional to the changed part of the hierarchy. Subclasses
+ * that store subtree hashes with the model can override
+ * {@link #getSubtreeHash(Object, boolean)} to avoid computing them at all.
+ * <p>
+ * Every object must be reachable from a root through
+ * {@link #getChildIds(Object, boolean)}, and objects in unchanged subtrees
+ * are assumed to be unchanged even if equals() says otherwise.
+ *
+ * @param <T>
+ *            object type
+ * @param <P>
+ *            property type
+ * @param <ID>
+ *            identifier type
+ */
+public abstract class MerkleDiff< T, P, ID > extends AbstractDiff< T, P, ID > {
+
+    // created lazily since diff() may be called from the super constructor
+    protected Map< ID, Long > subtreeHashes1 = null;
+    protected Map< ID, Long > subtreeHashes2 = null;
+
+    /**
+     * @param isSet1
+     * @return the IDs of the roots of the hierarchy in the first or second
+     *         set
+     */
+    public abstract Collection< ID > getRootIds( boolean isSet1 );
+
+    /**
+     * @param id
+     * @param isSet1
+     * @return the IDs of the children of the object with the given ID in the
+     *         first or second set
+     */
+    public abstract Collection< ID > getChildIds( ID id, boolean isSet1 );
+
+    /**
+     * @param id
+     * @param isSet1
+     * @return the ID of the parent of the object with the given ID in the
+     *         first or second set or null if it is a root or not in the set
+     */
+    public abstract ID getParentId( ID id, boolean isSet1 );
+
+    public MerkleDiff( Set< T > s1, Set< T > s2, Comparator< T > comparator ) {
+        super( s1, s2, comparator );
+    }
+
+    public MerkleDiff( Set< T > s1, Set< T > s2, Comparator< T > comparator,
+                       Boolean ignoreRemovedProperties ) {
+        super( s1, s2, comparator, ignoreRemovedProperties );
+    }
+
+    public MerkleDiff( Map< ID, T > map1, Map< ID, T > map2, Comparator< T > comparator ) {
+        super( map1, map2, comparator );
+    }
+
+    public MerkleDiff( Map< ID, T > m1, Map< ID, T > m2, Comparator< T > comparator,
+                       Boolean ignoreRemovedProperties ) {
+        super( m1, m2, comparator, ignoreRemovedProperties );
+    }
+
+    protected synchronized Map< ID, Long > getSubtreeHashes( boolean isSet1 ) {
+        if ( isSet1 ) {
+            if ( subtreeHashes1 == null ) subtreeHashes1 = new ConcurrentHashMap< ID, Long >();
+            return subtreeHashes1;
+        }
+        if ( subtreeHashes2 == null ) subtreeHashes2 = new ConcurrentHashMap< ID, Long >();
+        return subtreeHashes2;
+    }
+
+    /**
+     * Diff the objects in the subtrees whose hashes differ, starting from the
+     * roots of both versions.
+     */
+    @Override
+    public void diff() {
+        initResults();
+        Map< ID, T > m1 = getMap1();
+        Map< ID, T > m2 = getMap2();
+        Set< ID > visited = new HashSet< ID >();
+        ArrayDeque< ID > stack = new ArrayDeque< ID >();
+        // Push in reverse so that objects are diffed in pre-order.
+        pushReversed( stack, getRootIds( false ) );
+        pushReversed( stack, getRootIds( true ) );
+        while ( !stack.isEmpty() ) {
+            ID id = stack.pop();
+            if ( !visited.add( id ) ) continue;
+            boolean in1 = m1.containsKey( id );
+            boolean in2 = m2.containsKey( id );
+            if ( in1 && in2 ) {
+                long h1 = getSubtreeHash( id, true );
+                if ( h1 != noContentHash && h1 == getSubtreeHash( id, false ) ) continue;
+            }
+            if ( isDiffed( id ) ) {
+                recordObjectChanges( id, computeObjectChanges( id ) );
+            }
+            if ( in2 ) pushReversed( stack, getChildIds( id, false ) );
+            if ( in1 ) pushReversed( stack, getChildIds( id, true ) );
+        }
+    }
+
+    protected static < ID > void pushReversed( ArrayDeque< ID > stack,
+                                              Collection< ID > ids ) {
+        if ( Utils.isNullOrEmpty( ids ) ) return;
+        List< ID > list = new ArrayList< ID >( ids );
+        for ( int i = list.size() - 1; i >= 0; --i ) {
+            ID id = list.get( i );
+            if ( id != null ) stack.push( id );
+        }
+    }
+
+    /**
+     * @param id
+     * @param isSet1
+     * @return the cached hash of the subtree rooted at the object with the
+     *         given ID in the first or second set, computing it and the
+     *         hashes of its descendants if not cached, or
+     *         {@link #noContentHash} if the subtree cannot be hashed exactly
+     */
+    public long getSubtreeHash( ID id, boolean isSet1 ) {
+        Map< ID, Long > cache = getSubtreeHashes( isSet1 );
+        Long hash = cache.get( id );
+        if ( hash != null ) return hash;
+        // Compute bottom-up without recursion so deep trees can't overflow
+        // the stack. A child already on the stack would be a cycle and is
+        // skipped.
+        ArrayDeque< ID > stack = new ArrayDeque< ID >();
+        Set< ID > onStack = new HashSet< ID >();
+        stack.push( id );
+        onStack.add( id );
+        while ( !stack.isEmpty() ) {
+            ID top = stack.peek();
+            Collection< ID > children = getChildIds( top, isSet1 );
+            boolean ready = true;
+            if ( children != null ) {
+                for ( ID c : children ) {
+                    if ( c == null || cache.containsKey( c ) || onStack.contains( c ) ) {
+                        continue;
+                    }
+                    stack.push( c );
+                    onStack.add( c );
+                    ready = false;
+                }
+            }
+            if ( ready ) {
+                stack.pop();
+                onStack.remove( top );
+                cache.put( top, computeSubtreeHash( top, children, cache, isSet1 ) );
+            }
+        }
+        return cache.get( id );
+    }
+
+    /**
+     * @return a hash of the object's properties and its children's subtree
+     *         hashes, which are in the cache unless they are part of a cycle,
+     *         or {@link #noContentHash} if the object's fingerprint is not
+     *         exact, its ID cannot be hashed by content, or the same holds
+     *         for a child's subtree
+     */
+    protected long computeSubtreeHash( ID id, Collection< ID > childIds,
+                                       Map< ID, Long > cache, boolean isSet1 ) {
+        T t = isSet1 ? get1( id ) : get2( id );
+        long hash = 0;
+        if ( t != null ) {
+            if ( !isExactFingerprint( id, t, isSet1 ) ) return noContentHash;
+            hash = getFingerprint( id, t, isSet1 );
+        }
+        long idHash = contentHash( id );
+        if ( idHash == noContentHash ) return noContentHash;
+        hash = mix64( hash ^ mix64( idHash ) );
+        long childrenHash = 0;
+        if ( childIds != null ) {
+            for ( ID c : childIds ) {
+                Long h = c == null ? null : cache.get( c );
+                if ( h == null ) continue;
+                if ( h == noContentHash ) return noContentHash;
+                childrenHash += mix64( h );
+            }
+        }
+        long result = mix64( hash + childrenHash );
+        return result == noContentHash ? result + 1 : result;
+    }
+
+    /**
+     * Forget the cached subtree hashes of the object with the given ID and
+     * its ancestors.
+     *
+     * @param id
+     * @param isSet1
+     */
+    public void forgetSubtreeHash( ID id, boolean isSet1 ) {
+        Map< ID, Long > cache = getSubtreeHashes( isSet1 );
+        Set< ID > seen = new HashSet< ID >();
+        for ( ID a = id; a != null && seen.add( a ); a = getParentId( a, isSet1 ) ) {
+            cache.remove( a );
+        }
+    }
+
+    @Override
+    protected void forgetFingerprint( ID id, boolean isSet1 ) {
+        super.forgetFingerprint( id, isSet1 );
+        if ( id != null ) forgetSubtreeHash( id, isSet1 );
+    }
+
+    @Override
+    protected void upsert( T t, boolean isSet1 ) {
+        super.upsert( t, isSet1 );
+        // The new object may have a different parent than the one it replaced.
+        if ( t != null ) forgetSubtreeHash( getId( t ), isSet1 );
+    }
+
+    @Override
+    public void clearFingerprints() {
+        super.clearFingerprints();
+        getSubtreeHashes( true ).clear();
+        getSubtreeHashes( false ).clear();
+    }
+
+}
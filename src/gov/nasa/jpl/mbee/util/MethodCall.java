@@ -4,18 +4,23 @@ package gov.nasa.jpl.mbee.util;
 import gov.nasa.jpl.mbee.util.CompareUtils.MappedValueComparator;
 
 import java.lang.reflect.Method;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
-public class MethodCall {
+public class MethodCall implements Cloneable {
     /**
      * Create a new MethodCall, fully specifying its attributes.
      * 
@@ -37,6 +42,27 @@ public class MethodCall {
         this.method = method;
         this.arguments = arguments;
     }
+    /**
+     * Create a copy of a MethodCall with its own arguments array so that
+     * substituting arguments in the copy does not affect the original.
+     * 
+     * @param methodCall
+     */
+    public MethodCall( MethodCall methodCall ) {
+        this.objectOfCall = methodCall.objectOfCall;
+        this.method = methodCall.method;
+        this.arguments =
+                methodCall.arguments == null ? null : methodCall.arguments.clone();
+        this.compiled = methodCall.compiled;
+        this.compiledMethod = methodCall.compiledMethod;
+        this.compiledFor = methodCall.compiledFor;
+    }
+
+    @Override
+    public MethodCall clone() {
+        return new MethodCall( this );
+    }
+
     /**
      * This is the Object whose method is called. If it is null and the
      * method is not static, the indexOfObjectArgument must be 0 to indicate
@@ -54,25 +80,73 @@ public class MethodCall {
      * arguments to be passed into the call of the method
      */
     public Object[] arguments;
-    
+    /**
+     * Whether to invoke the method through a {@link CompiledMethod}, which is
+     * created from the method on the first invocation and reused after that.
+     */
+    public boolean compiled = false;
+    /**
+     * The compiled form of method, or null if it has not been compiled yet.
+     */
+    protected volatile CompiledMethod compiledMethod = null;
+    /**
+     * The method last compiled or found not compilable, so that a failure is
+     * not retried on every run.
+     */
+    protected volatile Method compiledFor = null;
+
+    /**
+     * Switch this MethodCall to the compiled invocation mode and compile the
+     * method now.
+     * 
+     * @return this MethodCall
+     */
+    public MethodCall compile() {
+        compiled = true;
+        getCompiledMethod();
+        return this;
+    }
+
+    /**
+     * @return the compiled form of method, compiling it if method changed
+     *         since it was last compiled, or null if it cannot be compiled
+     */
+    public CompiledMethod getCompiledMethod() {
+        CompiledMethod cm = compiledMethod;
+        if ( cm != null && cm.method == method ) return cm;
+        Method m = method;
+        if ( compiledFor == m ) return null;
+        cm = CompiledMethod.compile( m );
+        compiledMethod = cm;
+        compiledFor = m;
+        return cm;
+    }
+
     public Pair< Boolean, Object > invoke() {
         return invoke( true );
     }
     public Pair< Boolean, Object > invoke( boolean suppressErrors ) {
         boolean objectIsMethodCall = objectOfCall instanceof MethodCall;
         Pair< Boolean, Object > result =
-                ClassUtils.runMethod( suppressErrors && !objectIsMethodCall,
-                                      objectOfCall, method, arguments );
+                run( suppressErrors && !objectIsMethodCall, objectOfCall );
         if ( result.first == false && objectIsMethodCall ) {
             MethodCall objectMethodCall = (MethodCall)objectOfCall;
             Pair< Boolean, Object > prevResult = objectMethodCall.invoke( suppressErrors );
             if ( prevResult.first ) {
-                result = ClassUtils.runMethod( suppressErrors && !objectIsMethodCall,
-                                               prevResult.second, method, arguments );
+                result = run( suppressErrors && !objectIsMethodCall,
+                              prevResult.second );
             }
         }
         return result;
     }
+
+    protected Pair< Boolean, Object > run( boolean suppressErrors, Object object ) {
+        CompiledMethod cm = compiled ? getCompiledMethod() : null;
+        if ( cm != null ) {
+            return ClassUtils.runCompiledMethod( suppressErrors, object, cm, arguments );
+        }
+        return ClassUtils.runMethod( suppressErrors, object, method, arguments );
+    }
     
     /**
      * Substitute an object for a specified argument in this MethodCall.
@@ -310,40 +384,129 @@ public class MethodCall {
      *            that the objects are each substituted for
      *            methodCall.objectOfCall).
      * @param maximumSetSize the size of the resulting set will be limited to the maximum of this argument and the size of initialSet 
-     * @return a new Set that includes the initialSet and the results of applying the methodCall on each item (substituting the argument for the given index) in the new Set  
+     * @return a new Set that includes the initialSet and the results of applying the methodCall on each item of initialSet (substituting the argument for the given index)
      */
     public < XX > Set< XX > closure( Set< XX > initialSet,
                                      int indexOfObjectArgument, int maximumSetSize ) {
         Set< XX > closedSet = new TreeSet< XX >( CompareUtils.GenericComparator.instance() );
         closedSet.addAll( initialSet );
-        ArrayList< XX > queue =
-                new ArrayList< XX >( initialSet );
+        // Only the items of initialSet are expanded; see
+        // closure(Set, int, int, boolean) for a transitive closure.
         Set< XX > seen = new HashSet< XX >();
-        while ( !queue.isEmpty() ) {
-            XX item = queue.get( 0 );
-            queue.remove( 0 );
+        for ( XX item : new ArrayList< XX >( initialSet ) ) {
             sub( indexOfObjectArgument, item );
-            if ( seen.contains( item ) ) continue;
-            seen.add( item );
-            Pair< Boolean, Object > result = invoke( true );
-            if ( !result.first ) continue;
-            Collection< XX > newItems = null;
-            try {
-                if ( result.second instanceof Collection ) {
-                    newItems = (Collection< XX >)result.second;
-                } else {
-                    newItems = (Collection< XX >)Utils.newSet( result.second );
-                }
-            } catch ( ClassCastException e ) {
-                continue;
-            }
+            if ( !seen.add( item ) ) continue;
+            Collection< XX > newItems = relatedItems( invoke( true ) );
             if ( !Utils.isNullOrEmpty( newItems ) ) {
                 Utils.addN( closedSet, maximumSetSize - closedSet.size(), newItems );
             }
         }
         return closedSet;
     }
-    
+
+    /**
+     * @return a queue of the items that are not null, which ArrayDeque does
+     *         not allow
+     */
+    protected static < XX > ArrayDeque< XX > newQueue( Collection< XX > items ) {
+        ArrayDeque< XX > queue = new ArrayDeque< XX >( Math.max( 16, items.size() ) );
+        for ( XX item : items ) {
+            if ( item != null ) queue.add( item );
+        }
+        return queue;
+    }
+
+    /**
+     * @return the items related to an item by the result of invoking this
+     *         MethodCall on it or null if the invocation failed or the result
+     *         is not a Collection of the right type
+     */
+    protected static < XX > Collection< XX > relatedItems( Pair< Boolean, Object > result ) {
+        if ( result == null || result.first == null || !result.first ) return null;
+        try {
+            if ( result.second instanceof Collection ) {
+                return (Collection< XX >)result.second;
+            }
+            return (Collection< XX >)Utils.newSet( result.second );
+        } catch ( ClassCastException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * Compute a transitive closure of a set like
+     * {@link #closure(Set, int, int)} but compare items with equals() and
+     * hashCode() instead of {@link CompareUtils.GenericComparator}, which
+     * compares their String representations. The set is expanded a level at
+     * a time, breadth first, from the items added by the previous level.
+     * When parallel is true, a level with more than
+     * {@link #parallelChunkSize} items is expanded in the
+     * {@link Utils#getForkJoinPool() pool} by copies of this MethodCall. Either
+     * way, the resulting set and its order are the same, and this MethodCall
+     * is not modified.
+     * 
+     * @param initialSet
+     *            the Set of initial items to be substituted for an argument or
+     *            the object of this MethodCall
+     * @param indexOfObjectArgument
+     *            where in the list of arguments an object from the set is
+     *            substituted (1 to total number of args or 0 to indicate that
+     *            the objects are each substituted for methodCall.objectOfCall).
+     * @param maximumSetSize
+     *            the size of the resulting set will be limited to the maximum
+     *            of this argument and the size of initialSet; expansion stops
+     *            as soon as the limit is reached
+     * @param parallel
+     *            whether to expand large levels in parallel
+     * @return a new Set, in breadth-first order, that includes the initialSet
+     *         and the results of applying the methodCall on each item in the
+     *         new Set
+     */
+    public < XX > Set< XX > closure( Set< XX > initialSet,
+                                     final int indexOfObjectArgument,
+                                     int maximumSetSize, boolean parallel ) {
+        Set< XX > closedSet = new LinkedHashSet< XX >( initialSet );
+        List< XX > frontier = new ArrayList< XX >( initialSet );
+        MethodCall methodCall = clone();
+        // Items are expanded in blocks, each merged before the next is
+        // started, so that no work is submitted once the limit is reached.
+        int blockSize = parallel
+                ? Math.max( 1, parallelChunkSize ) * Utils.getForkJoinPool().getParallelism()
+                : 1;
+        while ( !frontier.isEmpty() && closedSet.size() < maximumSetSize ) {
+            final Object[] level = frontier.toArray();
+            final Object[] results = new Object[ level.length ];
+            IndexedCall expand = new IndexedCall() {
+                @Override
+                public void call( MethodCall methodCall, int i ) {
+                    methodCall.sub( indexOfObjectArgument, level[ i ] );
+                    results[ i ] = relatedItems( methodCall.invoke( true ) );
+                }
+            };
+            frontier = new ArrayList< XX >();
+            for ( int from = 0; from < level.length; from += blockSize ) {
+                int to = Math.min( level.length, from + blockSize );
+                if ( parallel && to - from > parallelChunkSize ) {
+                    parallelFor( from, to, expand );
+                } else {
+                    for ( int i = from; i < to; ++i ) {
+                        expand.call( methodCall, i );
+                    }
+                }
+                // Merge in frontier order so that the result is deterministic.
+                for ( int i = from; i < to; ++i ) {
+                    if ( results[ i ] == null ) continue;
+                    for ( XX newItem : (Collection< XX >)results[ i ] ) {
+                        if ( closedSet.size() >= maximumSetSize ) return closedSet;
+                        if ( closedSet.add( newItem ) ) frontier.add( newItem );
+                    }
+                    results[ i ] = null;
+                }
+            }
+        }
+        return closedSet;
+    }
+
     /**
      * Compute a transitive closure of a map using this MethodCall to specify for each key in the map a set of items that should have a superset of related items in the map.
      * @param initialSet the Set of initial items to be substituted for an argument or the object of this MethodCall
@@ -356,33 +519,16 @@ public class MethodCall {
      * @return a new Set that includes the initialSet and the results of applying the methodCall on each item (substituting the argument for the given index) in the new Set  
      */
     public < XX, C extends Map< XX, Set< XX > > > C mapClosure( C relationMapToClose, int indexOfObjectArgument, int maximumSetSize ) {
-        ArrayList< XX > queue =
-                new ArrayList< XX >( relationMapToClose.keySet() );
-//        Set< XX > seen = new HashSet< XX >();
+        // a LinkedList since, unlike ArrayDeque, it can queue a null item
+        LinkedList< XX > queue = new LinkedList< XX >( relationMapToClose.keySet() );
+        // the items in the queue, so that an item is not queued twice
+        Set< XX > queued = new HashSet< XX >( queue );
         while ( !queue.isEmpty() ) {
-            XX item = queue.get( 0 );
-            queue.remove( 0 );
+            XX item = queue.poll();
+            queued.remove( item );
             sub( indexOfObjectArgument, item );
-//            if ( seen.contains( item ) ) continue;
-//            seen.add( item );
-//            Method method =
-//                    ClassUtils.getMethodForArgs( AbstractSystemModel.class, "isA",
-//                                                 item, item );
-//            MethodCall methodCall =
-//                    new MethodCall( null, method,
-//                                    new Object[] { null, item } );
-            Pair< Boolean, Object > result = invoke( true );
-            if ( !result.first ) continue;
-            Collection< XX > isItemSet = null;
-            try {
-                if ( result.second instanceof Collection ) {
-                    isItemSet = (Collection< XX >)result.second;
-                } else {
-                    isItemSet = (Collection< XX >)Utils.newSet( result.second );
-                }
-            } catch ( ClassCastException e ) {
-                continue;
-            }
+            Collection< XX > isItemSet = relatedItems( invoke( true ) );
+            if ( isItemSet == null ) continue;
             Set< XX > relatedToItem = relationMapToClose.get( item );
             for ( XX isA : isItemSet ) {
                 Set< XX > related = relationMapToClose.get( isA );
@@ -394,7 +540,7 @@ public class MethodCall {
                     ct = related.size();
                 }
                 related.addAll( relatedToItem );
-                if ( related.size() > ct ) {
+                if ( related.size() > ct && queued.add( isA ) ) {
                     queue.add( isA );
                 }
                 if ( relationMapToClose.size() >= maximumSetSize ) break;
@@ -403,6 +549,302 @@ public class MethodCall {
         return relationMapToClose;
     }
     
+    /**
+     * The maximum number of objects a parallel task processes without
+     * splitting the work further.
+     */
+    public static int parallelChunkSize = 1024;
+
+    /**
+     * The work done for the i<sup>th</sup> object by a parallel operation
+     * using a worker's own copy of the MethodCall.
+     */
+    protected interface IndexedCall {
+        void call( MethodCall methodCall, int i );
+    }
+
+    /**
+     * Split a range of indices into chunks of at most parallelChunkSize and
+     * run them in parallel, each with its own clone of the MethodCall.
+     */
+    protected static class ParallelLoop extends RecursiveAction {
+        private static final long serialVersionUID = 4079436473785123186L;
+
+        protected final MethodCall prototype;
+        protected final IndexedCall body;
+        protected final int lo, hi, chunkSize;
+
+        protected ParallelLoop( MethodCall prototype, IndexedCall body, int lo,
+                                int hi, int chunkSize ) {
+            this.prototype = prototype;
+            this.body = body;
+            this.lo = lo;
+            this.hi = hi;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if ( hi - lo <= chunkSize ) {
+                MethodCall methodCall = prototype.clone();
+                for ( int i = lo; i < hi; ++i ) {
+                    body.call( methodCall, i );
+                }
+                return;
+            }
+            int mid = ( lo + hi ) >>> 1;
+            invokeAll( new ParallelLoop( prototype, body, lo, mid, chunkSize ),
+                       new ParallelLoop( prototype, body, mid, hi, chunkSize ) );
+        }
+    }
+
+    protected void parallelFor( int n, IndexedCall body ) {
+        parallelFor( 0, n, body );
+    }
+
+    /**
+     * Run the body for the indices from up to, but not including, to.
+     */
+    protected void parallelFor( int from, int to, IndexedCall body ) {
+        if ( to <= from ) return;
+        int chunkSize = Math.max( 1, parallelChunkSize );
+        Utils.getForkJoinPool().invoke( new ParallelLoop( this, body, from, to, chunkSize ) );
+    }
+
+    /**
+     * A parallel version of {@link #filter(Collection, int)} that invokes
+     * copies of this MethodCall on chunks of the objects in the
+     * {@link Utils#getForkJoinPool() pool}. This MethodCall is not modified.
+     * 
+     * @param objects
+     * @param indexOfObjectArgument
+     *            where in the list of arguments an object from the collection
+     *            is substituted (1 to total number of args or 0 to indicate
+     *            that the objects are each substituted for
+     *            methodCall.objectOfCall).
+     * @return the subset of objects for which the method call returns true,
+     *         in the order of the input
+     */
+    public < XX > Collection< XX > parallelFilter( Collection< XX > objects,
+                                                  final int indexOfObjectArgument ) {
+        final List< XX > list = new ArrayList< XX >( objects );
+        final boolean[] keep = new boolean[ list.size() ];
+        parallelFor( list.size(), new IndexedCall() {
+            @Override
+            public void call( MethodCall methodCall, int i ) {
+                methodCall.sub( indexOfObjectArgument, list.get( i ) );
+                Pair< Boolean, Object > result = methodCall.invoke();
+                keep[ i ] = result != null && result.first
+                            && Utils.isTrue( result.second, false );
+            }
+        } );
+        Collection< XX > coll = new ArrayList< XX >();
+        for ( int i = 0; i < keep.length; ++i ) {
+            if ( keep[ i ] ) coll.add( list.get( i ) );
+        }
+        return coll;
+    }
+
+    /**
+     * A parallel version of {@link #map(Collection, int)} that invokes copies
+     * of this MethodCall on chunks of the objects in the
+     * {@link Utils#getForkJoinPool() pool}. This MethodCall is not modified.
+     * 
+     * @param objects
+     * @param indexOfObjectArgument
+     *            where in the list of arguments an object from the Collection
+     *            is substituted (1 to total number of args or 0 to indicate
+     *            that the objects are each substituted for
+     *            methodCall.objectOfCall).
+     * @return the results of the methodCall on each of the objects, in the
+     *         order of the input
+     */
+    public < XX > List< XX > parallelMap( Collection< ? > objects,
+                                          final int indexOfObjectArgument ) {
+        final Object[] inputs = objects.toArray();
+        final Object[] outputs = new Object[ inputs.length ];
+        parallelFor( inputs.length, new IndexedCall() {
+            @Override
+            public void call( MethodCall methodCall, int i ) {
+                methodCall.sub( indexOfObjectArgument, inputs[ i ] );
+                Pair< Boolean, Object > result = methodCall.invoke();
+                outputs[ i ] = result != null && result.first ? result.second : null;
+            }
+        } );
+        List< XX > coll = new ArrayList< XX >( outputs.length );
+        for ( Object o : outputs ) {
+            coll.add( (XX)o );
+        }
+        return coll;
+    }
+
+    /**
+     * Fold a range of objects, splitting it in two and combining the folded
+     * halves when it is larger than the chunk size.
+     */
+    protected static class ParallelFold< XX > extends RecursiveTask< XX > {
+        private static final long serialVersionUID = -2716017006451891262L;
+
+        protected final MethodCall prototype;
+        protected final MethodCall combiner;
+        protected final Object[] objects;
+        protected final XX initialValue;
+        protected final int indexOfObjectArgument, indexOfPriorResultArgument;
+        protected final int combinerIndex1, combinerIndex2;
+        protected final int lo, hi, chunkSize;
+
+        protected ParallelFold( MethodCall prototype, MethodCall combiner,
+                                Object[] objects, XX initialValue,
+                                int indexOfObjectArgument,
+                                int indexOfPriorResultArgument,
+                                int combinerIndex1, int combinerIndex2, int lo,
+                                int hi, int chunkSize ) {
+            this.prototype = prototype;
+            this.combiner = combiner;
+            this.objects = objects;
+            this.initialValue = initialValue;
+            this.indexOfObjectArgument = indexOfObjectArgument;
+            this.indexOfPriorResultArgument = indexOfPriorResultArgument;
+            this.combinerIndex1 = combinerIndex1;
+            this.combinerIndex2 = combinerIndex2;
+            this.lo = lo;
+            this.hi = hi;
+            this.chunkSize = chunkSize;
+        }
+
+        protected ParallelFold< XX > subtask( int from, int to ) {
+            return new ParallelFold< XX >( prototype, combiner, objects,
+                                           initialValue, indexOfObjectArgument,
+                                           indexOfPriorResultArgument,
+                                           combinerIndex1, combinerIndex2, from,
+                                           to, chunkSize );
+        }
+
+        @Override
+        protected XX compute() {
+            if ( hi - lo <= chunkSize ) {
+                MethodCall methodCall = prototype.clone();
+                XX priorResult = initialValue;
+                for ( int i = lo; i < hi; ++i ) {
+                    methodCall.sub( indexOfPriorResultArgument, priorResult );
+                    methodCall.sub( indexOfObjectArgument, objects[ i ] );
+                    Pair< Boolean, Object > result = methodCall.invoke();
+                    if ( result.first ) {
+                        priorResult = (XX)result.second;
+                    }
+                }
+                return priorResult;
+            }
+            int mid = ( lo + hi ) >>> 1;
+            ParallelFold< XX > left = subtask( lo, mid );
+            ParallelFold< XX > right = subtask( mid, hi );
+            left.fork();
+            XX rightResult = right.compute();
+            XX leftResult = left.join();
+            MethodCall c = combiner.clone();
+            c.sub( combinerIndex1, leftResult );
+            c.sub( combinerIndex2, rightResult );
+            Pair< Boolean, Object > result = c.invoke();
+            return result.first ? (XX)result.second : leftResult;
+        }
+    }
+
+    /**
+     * A parallel version of
+     * {@link #fold(Collection, Object, int, int)} that folds chunks of the
+     * objects in the {@link Utils#getForkJoinPool() pool} and combines the results
+     * of adjacent chunks, in order, with a combiner. This gives the same
+     * result as the serial fold when the initialValue is an identity for the
+     * fold and the combiner is associative, for example, summing with
+     * {@code plus(a, b)}. This MethodCall is not modified.
+     * 
+     * @param objects
+     *            collection of Objects
+     * @param initialValue
+     *            the initial prior result for each chunk, which should be an
+     *            identity value, such as 0 for a sum
+     * @param indexOfObjectArgument
+     *            where in the list of arguments an Object from the collection
+     *            is substituted (1 to total number of args) or 0 to indicate
+     *            that the elements are each substituted for
+     *            methodCall.objectOfCall.
+     * @param indexOfPriorResultArgument
+     *            where in the list of arguments the prior result value is
+     *            substituted (1 to total number of args or 0 to indicate that
+     *            the prior results are each substituted for
+     *            methodCall.objectOfCall).
+     * @param combiner
+     *            a MethodCall that combines the results of two adjacent
+     *            chunks; null to use this MethodCall, substituting the earlier
+     *            chunk's result for the prior result argument and the later
+     *            chunk's result for the object argument
+     * @param combinerIndex1
+     *            where the earlier chunk's result is substituted in the
+     *            combiner's arguments (ignored if combiner is null)
+     * @param combinerIndex2
+     *            where the later chunk's result is substituted in the
+     *            combiner's arguments (ignored if combiner is null)
+     * @return the folded result
+     */
+    public < XX > XX parallelFold( Collection< ? > objects, XX initialValue,
+                                   int indexOfObjectArgument,
+                                   int indexOfPriorResultArgument,
+                                   MethodCall combiner, int combinerIndex1,
+                                   int combinerIndex2 ) {
+        if ( combiner == null ) {
+            combiner = this;
+            combinerIndex1 = indexOfPriorResultArgument;
+            combinerIndex2 = indexOfObjectArgument;
+        }
+        Object[] array = objects.toArray();
+        if ( array.length == 0 ) return initialValue;
+        int chunkSize = Math.max( 1, parallelChunkSize );
+        return Utils.getForkJoinPool().invoke( new ParallelFold< XX >( this, combiner,
+                                                                 array,
+                                                                 initialValue,
+                                                                 indexOfObjectArgument,
+                                                                 indexOfPriorResultArgument,
+                                                                 combinerIndex1,
+                                                                 combinerIndex2,
+                                                                 0,
+                                                                 array.length,
+                                                                 chunkSize ) );
+    }
+
+    /**
+     * A parallel version of {@link #sort(Collection, Comparator, int)} that
+     * invokes copies of this MethodCall on chunks of the objects in the
+     * {@link Utils#getForkJoinPool() pool} and then sorts by the results. This
+     * MethodCall is not modified.
+     * 
+     * @param objects
+     *            to be sorted
+     * @param comparator
+     *            specifies precedence relation on a pair of MethodCall return
+     *            values; null defaults to {@link CompareUtils.GenericComparator}.
+     * @param indexOfObjectArgument
+     *            where in the list of arguments an Object from the collection
+     *            is substituted (1 to total number of args or 0 to indicate
+     *            that the Objects are each substituted for
+     *            methodCall.objectOfCall).
+     * @return the input Objects in a new Collection sorted according to the
+     *         method and comparator
+     */
+    public < K, V > Collection< K > parallelSort( Collection< K > objects,
+                                                  Comparator< V > comparator,
+                                                  int indexOfObjectArgument ) {
+        List< K > result = new ArrayList< K >( objects );
+        List< V > values = parallelMap( result, indexOfObjectArgument );
+        Map< K, V > map = new HashMap< K, V >();
+        for ( int i = 0; i < result.size(); ++i ) {
+            map.put( result.get( i ), values.get( i ) );
+        }
+        MappedValueComparator< K, V > mapComparator =
+                new CompareUtils.MappedValueComparator< K, V >( map, comparator );
+        Collections.sort( result, mapComparator );
+        return result;
+    }
+
     static void main( String args[] ) {
         // TODO -- put tests here or in JUnit tests
     }
@@ -0,0 +1,269 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe cache of method resolutions for
+ * {@link ClassUtils#getMethodForArgTypes(Object, Class, String, Class[], boolean)}.
+ * <p>
+ * Two things are cached:
+ * <ul>
+ * <li>for each (class, method name, argument types) the {@link Method} that
+ * won the {@link ClassUtils.ArgTypeCompare} scoring, including a null result
+ * when no method was found, and</li>
+ * <li>for each class, an index from method name to the public methods with
+ * that name so that a cache miss only scores candidates with the right name.</li>
+ * </ul>
+ * Entries hold strong references to classes, so
+ * {@link #invalidate(ClassLoader)} should be called when a class loader is
+ * discarded or replaced.
+ */
+public class MethodResolutionCache {
+
+    /**
+     * The cached outcome of a resolution. The method is null when resolution
+     * failed. Instances are stored in the cache so that a hit does not
+     * allocate.
+     */
+    public static class Resolution {
+        public final Method method;
+
+        public Resolution( Method method ) {
+            this.method = method;
+        }
+
+        @Override
+        public String toString() {
+            return "Resolution(" + method + ")";
+        }
+    }
+
+    /**
+     * Key for a resolution: the class, the call name, and the argument types.
+     * A null argument type (for a null argument) is allowed.
+     */
+    protected static class Key {
+        protected final Class< ? > cls;
+        protected final String callName;
+        protected final Class< ? >[] argTypes;
+        protected final int hash;
+
+        protected Key( Class< ? > cls, String callName, Class< ? >[] argTypes ) {
+            this.cls = cls;
+            this.callName = callName;
+            this.argTypes = argTypes;
+            int h = cls.hashCode();
+            h = 31 * h + ( callName == null ? 0 : callName.hashCode() );
+            h = 31 * h + Arrays.hashCode( argTypes );
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            if ( this == o ) return true;
+            if ( !( o instanceof Key ) ) return false;
+            Key k = (Key)o;
+            return hash == k.hash && cls == k.cls
+                   && ( callName == null ? k.callName == null
+                                         : callName.equals( k.callName ) )
+                   && Arrays.equals( argTypes, k.argTypes );
+        }
+    }
+
+    protected static final Method[] noMethods = new Method[ 0 ];
+
+    protected final ConcurrentHashMap< Key, Resolution > resolutions =
+            new ConcurrentHashMap< Key, Resolution >();
+
+    protected final ConcurrentHashMap< Class< ? >, Map< String, Method[] > > methodsByName =
+            new ConcurrentHashMap< Class< ? >, Map< String, Method[] > >();
+
+    protected final AtomicLong hits = new AtomicLong();
+    protected final AtomicLong misses = new AtomicLong();
+
+    public MethodResolutionCache() {
+        super();
+    }
+
+    /**
+     * @param cls
+     * @param callName
+     * @param argTypes
+     * @return the cached resolution or null if the resolution is not cached
+     */
+    public Resolution get( Class< ? > cls, String callName, Class< ? >[] argTypes ) {
+        if ( cls == null ) return null;
+        Resolution r = resolutions.get( new Key( cls, callName, argTypes ) );
+        if ( r == null ) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return r;
+    }
+
+    /**
+     * Remember the method resolved for the call, which may be null to record
+     * that no method was found.
+     *
+     * @param cls
+     * @param callName
+     * @param argTypes
+     * @param method
+     * @return the Resolution that is now in the cache
+     */
+    public Resolution put( Class< ? > cls, String callName, Class< ? >[] argTypes,
+                           Method method ) {
+        if ( cls == null ) return null;
+        // Copy the array since callers may reuse it.
+        Class< ? >[] types = argTypes == null ? new Class< ? >[ 0 ] : argTypes.clone();
+        Resolution r = new Resolution( method );
+        Resolution prev = resolutions.putIfAbsent( new Key( cls, callName, types ), r );
+        return prev == null ? r : prev;
+    }
+
+    /**
+     * @param cls
+     * @param callName
+     * @return the public methods of {@code cls} (including inherited methods)
+     *         with the name, {@code callName}, from a per-class index that is
+     *         built on first use
+     */
+    public Method[] getMethodsForName( Class< ? > cls, String callName ) {
+        if ( cls == null || callName == null ) return noMethods;
+        Map< String, Method[] > index = methodsByName.get( cls );
+        if ( index == null ) {
+            index = buildIndex( cls );
+            Map< String, Method[] > prev = methodsByName.putIfAbsent( cls, index );
+            if ( prev != null ) index = prev;
+        }
+        Method[] methods = index.get( callName );
+        return methods == null ? noMethods : methods;
+    }
+
+    protected static Map< String, Method[] > buildIndex( Class< ? > cls ) {
+        Map< String, List< Method > > lists = new HashMap< String, List< Method > >();
+        Method[] methods = null;
+        try {
+            methods = cls.getMethods();
+        } catch ( Throwable e ) {
+            if ( Debug.isOn() ) Debug.errln( "Got exception calling " + cls.getName()
+                                             + ".getMethods(): " + e.getMessage() );
+        }
+        if ( methods != null ) {
+            for ( Method m : methods ) {
+                List< Method > list = lists.get( m.getName() );
+                if ( list == null ) {
+                    list = new ArrayList< Method >( 2 );
+                    lists.put( m.getName(), list );
+                }
+                list.add( m );
+            }
+        }
+        Map< String, Method[] > index = new HashMap< String, Method[] >( lists.size() * 2 );
+        for ( Map.Entry< String, List< Method > > e : lists.entrySet() ) {
+            index.put( e.getKey(), e.getValue().toArray( new Method[ e.getValue().size() ] ) );
+        }
+        return Collections.unmodifiableMap( index );
+    }
+
+    /**
+     * Forget everything cached for the given class.
+     *
+     * @param cls
+     */
+    public void invalidate( Class< ? > cls ) {
+        if ( cls == null ) return;
+        methodsByName.remove( cls );
+        Iterator< Key > i = resolutions.keySet().iterator();
+        while ( i.hasNext() ) {
+            Key k = i.next();
+            if ( k.cls == cls ) i.remove();
+        }
+    }
+
+    /**
+     * Forget everything cached for classes defined by the given class loader
+     * or by a descendant of it. Call this when the loader is discarded or
+     * replaced so that stale classes are not returned or retained.
+     *
+     * @param loader
+     *            the class loader; null clears the whole cache
+     */
+    public void invalidate( ClassLoader loader ) {
+        if ( loader == null ) {
+            clear();
+            return;
+        }
+        Iterator< Class< ? > > ci = methodsByName.keySet().iterator();
+        while ( ci.hasNext() ) {
+            if ( loadedBy( ci.next(), loader ) ) ci.remove();
+        }
+        Iterator< Key > ki = resolutions.keySet().iterator();
+        while ( ki.hasNext() ) {
+            Key k = ki.next();
+            if ( loadedBy( k.cls, loader ) ) {
+                ki.remove();
+                continue;
+            }
+            // A resolved method may come from a superclass in another loader.
+            Resolution r = resolutions.get( k );
+            if ( r != null && r.method != null
+                 && loadedBy( r.method.getDeclaringClass(), loader ) ) {
+                ki.remove();
+            }
+        }
+    }
+
+    protected static boolean loadedBy( Class< ? > cls, ClassLoader loader ) {
+        ClassLoader cl = cls == null ? null : cls.getClassLoader();
+        while ( cl != null ) {
+            if ( cl == loader ) return true;
+            cl = cl.getParent();
+        }
+        return false;
+    }
+
+    public void clear() {
+        resolutions.clear();
+        methodsByName.clear();
+    }
+
+    public int size() {
+        return resolutions.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void resetCounters() {
+        hits.set( 0 );
+        misses.set( 0 );
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(size=" + size() + ", classes="
+               + methodsByName.size() + ", hits=" + getHits() + ", misses="
+               + getMisses() + ")";
+    }
+}
@@ -0,0 +1,308 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * SocketChannelClient sends the same frames as {@link SocketClient} over a
+ * {@link SocketChannel}. Frames are encoded by {@link FrameCodec} straight
+ * into reused direct buffers and coalesced: nothing is written until
+ * {@link #batchBytes} are buffered or {@link #flush()} is called, and then
+ * all the buffers go out in one gathering write.
+ * <p>
+ * In non-blocking mode, {@link #offer(double[], int, int)} refuses a frame
+ * instead of waiting when more than {@link #maxBufferedBytes} cannot be
+ * written yet, so a producer can decide what to do when the consumer falls
+ * behind. The other send methods wait for the channel in that case.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class SocketChannelClient implements Closeable {
+
+  public static final int defaultChunkSize = 64 * 1024;
+  protected static final int maxFreeChunks = 16;
+
+  /**
+   * The number of buffered bytes at which frames are written without
+   * waiting for {@link #flush()}.
+   */
+  public int batchBytes = defaultChunkSize;
+
+  /**
+   * The number of buffered bytes beyond which sends wait and offers are
+   * refused.
+   */
+  public long maxBufferedBytes = 64L * defaultChunkSize;
+
+  protected final SocketChannel channel;
+  protected final boolean blocking;
+  protected Selector selector = null;
+  protected String hostName;
+  protected int port;
+
+  protected ByteBuffer current = null;
+  protected final ArrayDeque< ByteBuffer > pending = new ArrayDeque< ByteBuffer >();
+  protected final ArrayDeque< ByteBuffer > free = new ArrayDeque< ByteBuffer >();
+  protected ByteBuffer[] gather = new ByteBuffer[ 16 ];
+  // a reused buffer for frames larger than a chunk, grown as needed
+  protected ByteBuffer large = null;
+  protected boolean largeInUse = false;
+  protected long bufferedBytes = 0;
+
+  /**
+   * Connect in blocking mode.
+   */
+  public SocketChannelClient( String hostName, int port ) throws IOException {
+    this( hostName, port, true );
+  }
+
+  /**
+   * @param hostName
+   * @param port
+   * @param blocking
+   *          whether writes wait for the socket; if false, writes that
+   *          cannot complete are left buffered
+   * @throws IOException
+   *           if the connection fails
+   */
+  public SocketChannelClient( String hostName, int port, boolean blocking ) throws IOException {
+    this( SocketChannel.open( new InetSocketAddress( hostName, port ) ), blocking );
+    this.hostName = hostName;
+    this.port = port;
+  }
+
+  /**
+   * Use a connected channel.
+   */
+  public SocketChannelClient( SocketChannel channel, boolean blocking ) throws IOException {
+    this.channel = channel;
+    this.blocking = blocking;
+    channel.configureBlocking( blocking );
+    if ( Debug.isOn() ) Debug.outln( getClass().getName() + " connected to "
+                                     + channel.getRemoteAddress() );
+  }
+
+  public SocketChannel getChannel() {
+    return channel;
+  }
+
+  public boolean isConnected() {
+    return channel.isConnected();
+  }
+
+  public String getHostName() {
+    return hostName;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * @return the number of bytes encoded but not yet written
+   */
+  public long getBufferedBytes() {
+    return bufferedBytes;
+  }
+
+  // Sends an array of doubles in the format of the struct.pack() Python function.
+  public void send( double... doubleArray ) throws IOException {
+    send( doubleArray, 0, doubleArray.length );
+  }
+
+  public void send( double[] doubleArray, int offset, int length ) throws IOException {
+    int frameSize = FrameCodec.doublesFrameSize( length );
+    makeRoom( frameSize );
+    FrameCodec.putDoubles( reserve( frameSize ), doubleArray, offset, length );
+    bufferedBytes += frameSize;
+    afterFrame();
+  }
+
+  /**
+   * Send the remaining doubles in a buffer, leaving its position unchanged.
+   */
+  public void send( DoubleBuffer values ) throws IOException {
+    int frameSize = FrameCodec.doublesFrameSize( values.remaining() );
+    makeRoom( frameSize );
+    FrameCodec.putDoubles( reserve( frameSize ), values );
+    bufferedBytes += frameSize;
+    afterFrame();
+  }
+
+  /**
+   * Send the remaining floats in a buffer, leaving its position unchanged.
+   */
+  public void send( FloatBuffer values ) throws IOException {
+    int frameSize = FrameCodec.floatsFrameSize( values.remaining() );
+    makeRoom( frameSize );
+    FrameCodec.putFloats( reserve( frameSize ), values );
+    bufferedBytes += frameSize;
+    afterFrame();
+  }
+
+  // Sends a string, not using the format of the struct.pack() Python function.
+  public void send( String str ) throws IOException {
+    int frameSize = FrameCodec.stringFrameSize( str );
+    makeRoom( frameSize );
+    FrameCodec.putString( reserve( frameSize ), str );
+    bufferedBytes += frameSize;
+    afterFrame();
+  }
+
+  /**
+   * Buffer a frame of doubles unless that would put more than
+   * {@link #maxBufferedBytes} behind what the socket can take now.
+   *
+   * @return whether the frame was buffered
+   */
+  public boolean offer( double[] doubleArray, int offset, int length ) throws IOException {
+    int frameSize = FrameCodec.doublesFrameSize( length );
+    if ( bufferedBytes + frameSize > maxBufferedBytes ) {
+      tryFlush();
+      if ( bufferedBytes > 0 && bufferedBytes + frameSize > maxBufferedBytes ) return false;
+    }
+    FrameCodec.putDoubles( reserve( frameSize ), doubleArray, offset, length );
+    bufferedBytes += frameSize;
+    afterFrame();
+    return true;
+  }
+
+  /**
+   * Wait until a frame of the given size fits under
+   * {@link #maxBufferedBytes}.
+   */
+  protected void makeRoom( int frameSize ) throws IOException {
+    while ( bufferedBytes > 0 && bufferedBytes + frameSize > maxBufferedBytes ) {
+      if ( !tryFlush() && bufferedBytes + frameSize > maxBufferedBytes ) awaitWritable();
+    }
+  }
+
+  protected void afterFrame() throws IOException {
+    if ( bufferedBytes >= batchBytes ) tryFlush();
+  }
+
+  /**
+   * @return a buffer with room for a frame of the given size
+   */
+  protected ByteBuffer reserve( int frameSize ) {
+    if ( current != null && current.remaining() >= frameSize ) return current;
+    seal();
+    ByteBuffer buf;
+    if ( frameSize <= defaultChunkSize ) {
+      buf = free.poll();
+      if ( buf == null ) buf = ByteBuffer.allocateDirect( defaultChunkSize );
+    } else {
+      buf = takeLarge( frameSize );
+    }
+    current = buf;
+    return buf;
+  }
+
+  /**
+   * @return the large buffer, grown if needed, or a buffer of the frame's
+   *         size if the large one is still waiting to be written
+   */
+  protected ByteBuffer takeLarge( int frameSize ) {
+    if ( largeInUse ) return ByteBuffer.allocateDirect( frameSize );
+    if ( large == null || large.capacity() < frameSize ) {
+      int capacity = frameSize;
+      if ( large != null ) capacity = Math.max( capacity, large.capacity() * 3 / 2 );
+      large = ByteBuffer.allocateDirect( capacity );
+    }
+    large.clear();
+    largeInUse = true;
+    return large;
+  }
+
+  /**
+   * Move the buffer being filled to the ones waiting to be written.
+   */
+  protected void seal() {
+    if ( current == null ) return;
+    if ( current.position() > 0 ) {
+      current.flip();
+      pending.add( current );
+    } else {
+      recycle( current );
+    }
+    current = null;
+  }
+
+  protected void recycle( ByteBuffer buf ) {
+    if ( buf == large ) {
+      largeInUse = false;
+      return;
+    }
+    if ( buf.capacity() == defaultChunkSize && free.size() < maxFreeChunks ) {
+      buf.clear();
+      free.add( buf );
+    }
+  }
+
+  /**
+   * Write as much as the socket takes now in one gathering write.
+   *
+   * @return whether everything buffered was written
+   * @throws IOException
+   */
+  public boolean tryFlush() throws IOException {
+    seal();
+    int n = pending.size();
+    if ( n == 0 ) return true;
+    if ( gather.length < n ) gather = new ByteBuffer[ Math.max( n, 2 * gather.length ) ];
+    pending.toArray( gather );
+    long written = channel.write( gather, 0, n );
+    bufferedBytes -= written;
+    while ( !pending.isEmpty() && !pending.peek().hasRemaining() ) {
+      recycle( pending.poll() );
+    }
+    for ( int i = 0; i < n; ++i ) {
+      gather[ i ] = null;
+    }
+    return pending.isEmpty();
+  }
+
+  /**
+   * Write everything buffered, waiting for the socket if it is
+   * non-blocking.
+   *
+   * @throws IOException
+   */
+  public void flush() throws IOException {
+    while ( !tryFlush() ) {
+      awaitWritable();
+    }
+  }
+
+  protected void awaitWritable() throws IOException {
+    if ( blocking ) return;
+    if ( selector == null ) {
+      selector = Selector.open();
+      channel.register( selector, SelectionKey.OP_WRITE );
+    }
+    selector.select( 1000 );
+    selector.selectedKeys().clear();
+  }
+
+  /**
+   * Flush and close the connection.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      if ( channel.isOpen() ) flush();
+    } finally {
+      if ( selector != null ) selector.close();
+      channel.close();
+    }
+  }
+
+}
@@ -28,19 +28,46 @@
  ******************************************************************************/
 package gov.nasa.jpl.mbee.util;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // import java.io.*;
 // import java.net.*;
 
 /**
- * @author bclement
+ * Replies come back in the format frames are sent in. They may be read
+ * directly with {@link #receiveDoubles(FrameCodec.DoubleFrame)} and
+ * {@link #receiveString()}, or requests may be pipelined with
+ * {@link #request(FrameCodec.DoubleFrame, double...)}, which returns
+ * without waiting for the reply. The server must answer requests in the
+ * order they were sent; a reader thread then matches each reply to the
+ * oldest unanswered request. Do not mix the two ways of reading on one
+ * connection.
+ * <p>
+ * Arrays and buffers of numbers are encoded in bulk into one reused buffer
+ * and written in one call. With a server that accepts them in
+ * {@link #negotiate(String...)}, doubles may be downcast to float32 and
+ * large frames compressed; see {@link FrameCodec}.
  * 
+ * @author bclement
  */
 public class SocketClient {
 
@@ -49,25 +76,100 @@ public class SocketClient {
   protected DataInputStream dataInputStream = null;
   protected boolean connected = false;
 
+  // requests sent but not yet answered, oldest first
+  protected final LinkedBlockingQueue< Reply< ? > > outstanding =
+      new LinkedBlockingQueue< Reply< ? > >();
+  // the outstanding requests and the one whose reply is being read
+  protected final AtomicInteger unanswered = new AtomicInteger();
+  protected Thread replyReader = null;
+  protected volatile IOException replyFailure = null;
+  protected final FrameCodec.DoubleFrame receiveFrame = new FrameCodec.DoubleFrame();
+
+  /**
+   * The pending result of a request, set by the reply reader.
+   */
+  public static class Reply< T > extends FutureTask< T > {
+    protected static final Runnable noop = new Runnable() {
+      @Override
+      public void run() {
+      }
+    };
+
+    // where to decode doubles, or null for a string reply
+    protected final FrameCodec.DoubleFrame frame;
+
+    protected Reply( FrameCodec.DoubleFrame frame ) {
+      super( noop, null );
+      this.frame = frame;
+    }
+
+    // a cancelled reply is still read to keep later replies in order
+    protected Object decode( DataInputStream in ) throws IOException {
+      if ( frame == null ) return FrameCodec.readString( in );
+      return FrameCodec.readDoubles( in, frame );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    protected void complete( Object value ) {
+      set( (T)value );
+    }
+
+    protected void fail( Throwable t ) {
+      setException( t );
+    }
+  }
+
   // default host & port
   String hostName = "127.0.0.1";
   int port = 5432;
+
+  // socket options applied by connect(); a buffer size of 0 leaves the
+  // system default
+  protected boolean tcpNoDelay = true;
+  protected int sendBufferSize = 0;
+  protected int receiveBufferSize = 0;
+  protected int connectTimeoutMillis = 0;
+
+  // optional frame features the server accepted
+  public static final String FLOAT32 = "float32";
+  public static final String LZ4 = "lz4";
+  protected Set< String > features = Collections.emptySet();
+  protected boolean downcastToFloat = false;
+  protected int compressionThreshold = 64 * 1024;
+
+  // frames are encoded with their data at maxHeaderSize so that the header
+  // can be put in front of the data, compressed or not, without a copy
+  protected static final int maxHeaderSize = 4 + 10 + 2 + 4;
+  protected ByteBuffer frameBuffer = ByteBuffer.allocate( 0 );
+  protected byte[] packed = new byte[ 0 ];
+  protected Lz4Block lz4 = null;
+  protected double[] vectorValues = new double[ 0 ];
   
   public SocketClient( String hostName, int port ) {
     init( hostName, port );
   }
+
+  /**
+   * @param hostName
+   * @param port
+   * @param connectNow
+   *          whether to connect now; if false, set any socket options and
+   *          then call {@link #connect()}
+   */
+  public SocketClient( String hostName, int port, boolean connectNow ) {
+    if ( connectNow ) {
+      init( hostName, port );
+    } else {
+      this.hostName = hostName;
+      this.port = port;
+    }
+  }
   
   protected boolean init( String hostName, int port ) {
     this.hostName = hostName;
     this.port = port;
     try {
-      if ( Debug.isOn() ) Debug.outln( getClass().getName()
-                                       + " creating socket on host " + hostName
-                                       + " and port " + port );
-      sock = new Socket( hostName, port );
-      dataOutputStream = new DataOutputStream( sock.getOutputStream() );
-      dataInputStream =  new DataInputStream( sock.getInputStream() );
-      connected = true;
+      connect();
     } catch ( UnknownHostException e ) {
       e.printStackTrace();
       return false;
@@ -78,50 +180,440 @@ public class SocketClient {
     return true;
   }
 
+  /**
+   * Connect to the host and port with the socket options set, closing any
+   * earlier connection.
+   * 
+   * @throws IOException
+   *           if the connection fails
+   */
+  public synchronized void connect() throws IOException {
+    if ( sock != null ) close();
+    if ( Debug.isOn() ) Debug.outln( getClass().getName()
+                                     + " creating socket on host " + hostName
+                                     + " and port " + port );
+    Socket s = new Socket();
+    try {
+      s.setTcpNoDelay( tcpNoDelay );
+      if ( sendBufferSize > 0 ) s.setSendBufferSize( sendBufferSize );
+      if ( receiveBufferSize > 0 ) s.setReceiveBufferSize( receiveBufferSize );
+      s.connect( new InetSocketAddress( hostName, port ), connectTimeoutMillis );
+      dataOutputStream = new DataOutputStream( s.getOutputStream() );
+      dataInputStream =  new DataInputStream( new BufferedInputStream( s.getInputStream() ) );
+    } catch ( IOException e ) {
+      s.close();
+      throw e;
+    }
+    sock = s;
+    replyReader = null;
+    replyFailure = null;
+    features = Collections.emptySet();
+    connected = true;
+  }
+
+  /**
+   * Check that the connection is open and idle by waiting briefly for the
+   * server: it should neither close the connection nor send anything while
+   * no request is outstanding.
+   * 
+   * @param timeoutMillis
+   *          how long to wait for the server, at least 1
+   * @return whether the connection can be used
+   */
+  public synchronized boolean isHealthy( int timeoutMillis ) {
+    if ( !connected || sock == null || sock.isClosed() || sock.isInputShutdown()
+         || sock.isOutputShutdown() || replyFailure != null ) {
+      return false;
+    }
+    // the reply reader is using the stream
+    if ( unanswered.get() > 0 ) return true;
+    int oldTimeout = 0;
+    try {
+      oldTimeout = sock.getSoTimeout();
+      sock.setSoTimeout( Math.max( 1, timeoutMillis ) );
+      dataInputStream.mark( 1 );
+      // end of stream or an unexpected byte
+      dataInputStream.read();
+      return false;
+    } catch ( SocketTimeoutException e ) {
+      return true;
+    } catch ( IOException e ) {
+      return false;
+    } finally {
+      try {
+        sock.setSoTimeout( oldTimeout );
+        dataInputStream.reset();
+      } catch ( IOException e ) {
+        // the socket is closed or the mark is gone; the check failed anyway
+      }
+    }
+  }
+
   public void close() {
+    if ( replyReader != null ) replyReader.interrupt();
+    failOutstanding( new IOException( "connection closed" ) );
     try {
-      dataOutputStream.close();
-      dataInputStream.close();
-      sock.close();
+      if ( dataOutputStream != null ) dataOutputStream.close();
+      if ( dataInputStream != null ) dataInputStream.close();
+      if ( sock != null ) sock.close();
     } catch ( IOException e ) {
       e.printStackTrace();
     }
     connected = false;
   }
 
-  public void send( Vector<Double> doubleVector) throws IOException {
-    double[] doubleArray = new double[doubleVector.size()];
+  public synchronized void send( Vector<Double> doubleVector) throws IOException {
     int cnt = 0;
-    for ( Double d : doubleVector ) {
-      doubleArray[cnt++] = d;
+    synchronized ( doubleVector ) {
+      if ( vectorValues.length < doubleVector.size() ) {
+        vectorValues = new double[ doubleVector.size() ];
+      }
+      for ( Double d : doubleVector ) {
+        vectorValues[cnt++] = d;
+      }
     }
-    send( doubleArray );
+    send( vectorValues, 0, cnt );
   }
   
   // Sends an array of doubles in the format of the struct.pack() Python function. 
-  public void send( double... doubleArray ) throws IOException {
-    String formatString = doubleArray.length + "d";
-    if ( Debug.isOn() ) Debug.outln("sending int size of format string: " + formatString.length() );
-    dataOutputStream.writeInt( formatString.length() );
-    dataOutputStream.flush();
-    if ( Debug.isOn() ) Debug.outln("sending formatString: " + formatString );
-    dataOutputStream.writeBytes( formatString );
-    dataOutputStream.flush();
-    int size = doubleArray.length * 8;
-    if ( Debug.isOn() ) Debug.outln("sending int size of double array: " + size );    
-    dataOutputStream.writeInt( size );
-    dataOutputStream.flush();
-    for ( double d : doubleArray ) {
-      if ( Debug.isOn() ) Debug.outln("sending double " + d );
-      dataOutputStream.writeDouble( d );
+  public synchronized void send( double... doubleArray ) throws IOException {
+    if ( Debug.isOn() ) Debug.outln( "sending " + FrameCodec.format( doubleArray.length, 'd' )
+                                     + ": " + Arrays.toString( doubleArray ) );
+    send( DoubleBuffer.wrap( doubleArray ) );
+  }
+
+  public synchronized void send( double[] doubleArray, int offset, int length ) throws IOException {
+    send( DoubleBuffer.wrap( doubleArray, offset, length ) );
+  }
+
+  /**
+   * Send the remaining doubles in a buffer, leaving its position unchanged,
+   * as floats if {@link #isDowncasting()}.
+   */
+  public synchronized void send( DoubleBuffer values ) throws IOException {
+    int n = values.remaining();
+    if ( isDowncasting() ) {
+      FloatBuffer floats = dataBuffer( 4L * n ).asFloatBuffer();
+      int p = values.position();
+      for ( int i = 0; i < n; ++i ) {
+        floats.put( i, (float)values.get( p + i ) );
+      }
+      writeFrame( n, 'f', 4 * n );
+    } else {
+      dataBuffer( 8L * n ).asDoubleBuffer().put( values.duplicate() );
+      writeFrame( n, 'd', 8 * n );
+    }
+  }
+
+  /**
+   * Send the remaining floats in a buffer, leaving its position unchanged,
+   * in the "Nf" format of the struct.pack() Python function.
+   */
+  public synchronized void send( FloatBuffer values ) throws IOException {
+    int n = values.remaining();
+    dataBuffer( 4L * n ).asFloatBuffer().put( values.duplicate() );
+    writeFrame( n, 'f', 4 * n );
+  }
+
+  /**
+   * @return the frame buffer positioned where the data goes, with room for
+   *         the given number of bytes
+   */
+  protected ByteBuffer dataBuffer( long dataBytes ) throws IOException {
+    if ( dataBytes > Integer.MAX_VALUE - maxHeaderSize ) {
+      throw new IOException( "frame of " + dataBytes + " bytes is too large" );
+    }
+    int capacity = maxHeaderSize + (int)dataBytes;
+    if ( frameBuffer.capacity() < capacity ) {
+      long grown = 3L * frameBuffer.capacity() / 2;
+      frameBuffer = ByteBuffer.allocate( (int)Math.max( capacity, Math.min( grown, Integer.MAX_VALUE ) ) );
+    }
+    frameBuffer.clear();
+    frameBuffer.position( maxHeaderSize );
+    return frameBuffer;
+  }
+
+  /**
+   * Put the header in front of the data in the frame buffer, compressing
+   * the data if the server accepts it and it is large enough, and write
+   * the frame.
+   */
+  protected void writeFrame( int n, char type, int dataBytes ) throws IOException {
+    byte[] frame = frameBuffer.array();
+    boolean compress = dataBytes >= compressionThreshold && features.contains( LZ4 );
+    if ( compress ) {
+      if ( lz4 == null ) lz4 = new Lz4Block();
+      int capacity = maxHeaderSize + Lz4Block.maxCompressedLength( dataBytes );
+      if ( packed.length < capacity ) packed = new byte[ capacity ];
+      int size = lz4.compress( frame, maxHeaderSize, dataBytes, packed, maxHeaderSize );
+      if ( size < dataBytes ) {
+        frame = packed;
+        dataBytes = size;
+      } else {
+        compress = false;
+      }
     }
+    int start = maxHeaderSize - FrameCodec.headerSize( n, compress );
+    FrameCodec.putHeader( ByteBuffer.wrap( frame, start, maxHeaderSize - start ), n, type,
+                          compress, dataBytes );
+    dataOutputStream.write( frame, start, maxHeaderSize - start + dataBytes );
     dataOutputStream.flush();
   }
 
   // Sends a string, not using the format of the struct.pack() Python function.
-  public void send( String str ) throws IOException {
-    getDataOutputStream().writeInt(str.length());
-    getDataOutputStream().writeChars( str );
+  public synchronized void send( String str ) throws IOException {
+    getDataOutputStream().write( FrameCodec.encodeString( str ) );
+  }
+
+  /**
+   * Offer optional frame features, such as {@link #FLOAT32} and
+   * {@link #LZ4}, to a server that negotiates them: send the string frame
+   * "features" and a string frame of the comma-separated names, and read
+   * back a string frame of the names the server accepts. Features are off
+   * until accepted and reset when reconnecting.
+   * 
+   * @param offered
+   * @return the features accepted
+   * @throws IOException
+   */
+  public synchronized Set< String > negotiate( String... offered ) throws IOException {
+    if ( unanswered.get() > 0 ) {
+      throw new IOException( "cannot negotiate with requests outstanding" );
+    }
+    StringBuilder sb = new StringBuilder();
+    for ( String f : offered ) {
+      if ( sb.length() > 0 ) sb.append( ',' );
+      sb.append( f );
+    }
+    send( "features" );
+    send( sb.toString() );
+    dataOutputStream.flush();
+    String reply = receiveString();
+    Set< String > accepted = new LinkedHashSet< String >();
+    for ( String f : reply.split( "," ) ) {
+      if ( Arrays.asList( offered ).contains( f.trim() ) ) accepted.add( f.trim() );
+    }
+    features = Collections.unmodifiableSet( accepted );
+    if ( Debug.isOn() ) Debug.outln( "negotiated features " + features );
+    return features;
+  }
+
+  /**
+   * @return the features the server accepted
+   */
+  public Set< String > getFeatures() {
+    return features;
+  }
+
+  /**
+   * @return whether doubles are sent as floats, which needs both
+   *         {@link #setDowncastToFloat(boolean)} and a server that accepted
+   *         {@link #FLOAT32}
+   */
+  public boolean isDowncasting() {
+    return downcastToFloat && features.contains( FLOAT32 );
+  }
+
+  /**
+   * @param downcastToFloat whether to send doubles as floats, if the server accepts it
+   */
+  public synchronized void setDowncastToFloat( boolean downcastToFloat ) {
+    this.downcastToFloat = downcastToFloat;
+  }
+
+  /**
+   * @return the compressionThreshold
+   */
+  public int getCompressionThreshold() {
+    return compressionThreshold;
+  }
+
+  /**
+   * @param compressionThreshold the number of bytes of data at which frames are compressed, if the server accepts it
+   */
+  public synchronized void setCompressionThreshold( int compressionThreshold ) {
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  /**
+   * Read a frame of doubles in the format of the struct.pack() Python
+   * function.
+   * 
+   * @param frame
+   *          where to put the values, reusing its arrays
+   * @return frame
+   * @throws IOException
+   */
+  public FrameCodec.DoubleFrame receiveDoubles( FrameCodec.DoubleFrame frame ) throws IOException {
+    return FrameCodec.readDoubles( dataInputStream, frame );
+  }
+
+  /**
+   * Read a frame of doubles into arrays reused by the next call.
+   * 
+   * @return the frame, valid until the next call
+   * @throws IOException
+   */
+  public FrameCodec.DoubleFrame receiveDoubles() throws IOException {
+    return receiveDoubles( receiveFrame );
+  }
+
+  public String receiveString() throws IOException {
+    return FrameCodec.readString( dataInputStream );
+  }
+
+  /**
+   * Send doubles and return without waiting for the reply, a frame of
+   * doubles.
+   * 
+   * @param reply
+   *          where to put the reply's values; it must not be reused until
+   *          the reply is done
+   * @param doubleArray
+   * @return the reply
+   * @throws IOException
+   *           if an earlier reply could not be read or the send fails, after
+   *           which the client has {@link #hasFailed() failed}
+   */
+  public Future< FrameCodec.DoubleFrame > request( FrameCodec.DoubleFrame reply,
+                                                  double... doubleArray ) throws IOException {
+    Reply< FrameCodec.DoubleFrame > r = new Reply< FrameCodec.DoubleFrame >( reply );
+    synchronized ( this ) {
+      enqueue( r );
+      try {
+        send( doubleArray );
+      } catch ( IOException e ) {
+        sendFailed( r, e );
+        throw e;
+      }
+    }
+    return r;
+  }
+
+  /**
+   * Send a string and return without waiting for the reply, a frame of
+   * doubles.
+   */
+  public Future< FrameCodec.DoubleFrame > request( FrameCodec.DoubleFrame reply, String str )
+      throws IOException {
+    Reply< FrameCodec.DoubleFrame > r = new Reply< FrameCodec.DoubleFrame >( reply );
+    synchronized ( this ) {
+      enqueue( r );
+      try {
+        send( str );
+      } catch ( IOException e ) {
+        sendFailed( r, e );
+        throw e;
+      }
+    }
+    return r;
+  }
+
+  /**
+   * Send a string and return without waiting for the reply, a string.
+   */
+  public Future< String > requestString( String str ) throws IOException {
+    Reply< String > r = new Reply< String >( null );
+    synchronized ( this ) {
+      enqueue( r );
+      try {
+        send( str );
+      } catch ( IOException e ) {
+        sendFailed( r, e );
+        throw e;
+      }
+    }
+    return r;
+  }
+
+  /**
+   * @return the number of requests not yet answered
+   */
+  public int getOutstandingCount() {
+    return unanswered.get();
+  }
+
+  /**
+   * @return whether reading a reply or sending a request failed, after
+   *         which the connection cannot be trusted for more requests
+   */
+  public boolean hasFailed() {
+    return replyFailure != null;
+  }
+
+  /**
+   * Fail a request whose send failed and, since the server may have part
+   * of it and later replies could be matched to the wrong requests, the
+   * client and the other outstanding requests. The socket's input is shut
+   * down so that the reply reader stops if it is waiting for the reply.
+   */
+  protected synchronized void sendFailed( Reply< ? > reply, IOException e ) {
+    if ( replyFailure == null ) replyFailure = e;
+    failOutstanding( e );
+    // in case the reply reader already took it
+    reply.fail( e );
+    try {
+      if ( sock != null && !sock.isClosed() ) sock.shutdownInput();
+    } catch ( IOException ex ) {
+      // already shut down
+    }
+  }
+
+  protected synchronized void enqueue( Reply< ? > reply ) throws IOException {
+    if ( replyFailure != null ) throw new IOException( "reply failed", replyFailure );
+    unanswered.incrementAndGet();
+    outstanding.add( reply );
+    if ( replyReader == null ) {
+      replyReader = new Thread( new Runnable() {
+        @Override
+        public void run() {
+          readReplies();
+        }
+      }, getClass().getSimpleName() + " replies" );
+      replyReader.setDaemon( true );
+      replyReader.start();
+    }
+  }
+
+  /**
+   * Read replies in order for the reply reader thread until the connection
+   * fails or closes.
+   */
+  protected void readReplies() {
+    DataInputStream in = dataInputStream;
+    try {
+      while ( true ) {
+        Reply< ? > reply = outstanding.take();
+        Object value;
+        try {
+          value = reply.decode( in );
+        } catch ( IOException e ) {
+          synchronized ( this ) {
+            // unless this is an old connection closed by connect(), the
+            // client is marked failed before the caller can see the failure
+            boolean current = in == dataInputStream;
+            if ( current ) replyFailure = e;
+            unanswered.decrementAndGet();
+            reply.fail( e );
+            if ( current ) failOutstanding( e );
+          }
+          return;
+        }
+        // count it answered before the caller can see it is
+        unanswered.decrementAndGet();
+        reply.complete( value );
+      }
+    } catch ( InterruptedException e ) {
+      // closed
+    }
+  }
+
+  protected void failOutstanding( IOException e ) {
+    Reply< ? > reply;
+    while ( ( reply = outstanding.poll() ) != null ) {
+      unanswered.decrementAndGet();
+      reply.fail( e );
+    }
   }
 
   /**
@@ -208,6 +700,62 @@ public class SocketClient {
     this.port = port;
   }
 
+  /**
+   * @return whether TCP_NODELAY is set on connecting
+   */
+  public boolean getTcpNoDelay() {
+    return tcpNoDelay;
+  }
+
+  /**
+   * @param tcpNoDelay whether to set TCP_NODELAY on connecting
+   */
+  public void setTcpNoDelay( boolean tcpNoDelay ) {
+    this.tcpNoDelay = tcpNoDelay;
+  }
+
+  /**
+   * @return the sendBufferSize
+   */
+  public int getSendBufferSize() {
+    return sendBufferSize;
+  }
+
+  /**
+   * @param sendBufferSize the SO_SNDBUF size to set on connecting, or 0
+   */
+  public void setSendBufferSize( int sendBufferSize ) {
+    this.sendBufferSize = sendBufferSize;
+  }
+
+  /**
+   * @return the receiveBufferSize
+   */
+  public int getReceiveBufferSize() {
+    return receiveBufferSize;
+  }
+
+  /**
+   * @param receiveBufferSize the SO_RCVBUF size to set on connecting, or 0
+   */
+  public void setReceiveBufferSize( int receiveBufferSize ) {
+    this.receiveBufferSize = receiveBufferSize;
+  }
+
+  /**
+   * @return the connectTimeoutMillis
+   */
+  public int getConnectTimeoutMillis() {
+    return connectTimeoutMillis;
+  }
+
+  /**
+   * @param connectTimeoutMillis the connect timeout to set, or 0 to wait
+   */
+  public void setConnectTimeoutMillis( int connectTimeoutMillis ) {
+    this.connectTimeoutMillis = connectTimeoutMillis;
+  }
+
   public static void main( String[] args ) throws IOException {
 
     Debug.turnOn();
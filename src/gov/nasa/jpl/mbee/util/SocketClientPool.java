@@ -0,0 +1,296 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SocketClientPool shares a bounded set of {@link SocketClient} connections
+ * to one host and port among threads. A thread takes a connection with
+ * {@link #acquire(long)}, uses it alone, and gives it back with
+ * {@link #release(SocketClient)}, or with {@link #discard(SocketClient)} if
+ * it broke.
+ * <p>
+ * Connections are made only when no idle one is available, with the socket
+ * options set on the pool. An idle connection that has not been used for
+ * {@link #validateAfterMillis} is checked with
+ * {@link SocketClient#isHealthy(int)} before it is handed out. When
+ * connecting fails, later attempts wait with exponential backoff, shared
+ * by all callers, so that a server that is down is not hammered.
+ */
+public class SocketClientPool implements Closeable {
+
+  protected static class Idle {
+    final SocketClient client;
+    final long since;
+
+    Idle( SocketClient client, long since ) {
+      this.client = client;
+      this.since = since;
+    }
+  }
+
+  protected final String hostName;
+  protected final int port;
+  protected final int maxConnections;
+  protected final Semaphore permits;
+  // most recently used last, so the warmest connection is reused first
+  protected final ArrayDeque< Idle > idle = new ArrayDeque< Idle >();
+  protected volatile boolean closed = false;
+
+  // socket options for new connections
+  public boolean tcpNoDelay = true;
+  public int sendBufferSize = 0;
+  public int receiveBufferSize = 0;
+  public int connectTimeoutMillis = 5000;
+
+  /** how long a connection may sit idle before it is checked */
+  public long validateAfterMillis = 1000;
+  /** how long a health check waits for the server */
+  public int healthCheckMillis = 1;
+
+  public long initialBackoffMillis = 50;
+  public long maxBackoffMillis = 10000;
+
+  // backoff state, guarded by this
+  protected int failures = 0;
+  protected long nextAttemptMillis = 0;
+  protected IOException lastFailure = null;
+
+  protected int connectCount = 0;
+  protected int discardCount = 0;
+
+  public SocketClientPool( String hostName, int port, int maxConnections ) {
+    this.hostName = hostName;
+    this.port = port;
+    this.maxConnections = maxConnections;
+    this.permits = new Semaphore( maxConnections, true );
+  }
+
+  /**
+   * Take a connection, waiting for one to be released or for a connection
+   * attempt to succeed.
+   *
+   * @param timeoutMillis
+   *          how long to wait in all
+   * @return a connected client for the caller's use alone
+   * @throws IOException
+   *           if no connection was available in time, with the last
+   *           connection failure as its cause
+   * @throws InterruptedException
+   */
+  public SocketClient acquire( long timeoutMillis ) throws IOException, InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    if ( closed ) throw new IOException( "pool is closed" );
+    if ( !permits.tryAcquire( timeoutMillis, TimeUnit.MILLISECONDS ) ) {
+      throw new IOException( "timed out waiting for one of " + maxConnections
+                             + " connections to " + hostName + ":" + port );
+    }
+    boolean ok = false;
+    try {
+      SocketClient client = takeIdle();
+      if ( client == null ) client = connect( deadline );
+      ok = true;
+      return client;
+    } finally {
+      if ( !ok ) permits.release();
+    }
+  }
+
+  /**
+   * @return a healthy idle connection, or null if there is none
+   */
+  protected SocketClient takeIdle() {
+    while ( true ) {
+      Idle i;
+      synchronized ( idle ) {
+        i = idle.pollLast();
+      }
+      if ( i == null ) return null;
+      if ( System.currentTimeMillis() - i.since < validateAfterMillis
+           || i.client.isHealthy( healthCheckMillis ) ) {
+        return i.client;
+      }
+      if ( Debug.isOn() ) Debug.outln( "SocketClientPool dropping stale connection to "
+                                       + hostName + ":" + port );
+      closeQuietly( i.client );
+    }
+  }
+
+  /**
+   * Connect a new client, backing off after failures until the deadline.
+   */
+  protected SocketClient connect( long deadline ) throws IOException, InterruptedException {
+    while ( true ) {
+      long wait;
+      synchronized ( this ) {
+        wait = nextAttemptMillis - System.currentTimeMillis();
+      }
+      if ( wait > 0 ) {
+        if ( System.currentTimeMillis() + wait > deadline ) {
+          synchronized ( this ) {
+            throw new IOException( "could not connect to " + hostName + ":" + port + " after "
+                                   + failures + " attempts", lastFailure );
+          }
+        }
+        Thread.sleep( wait );
+        continue;
+      }
+      synchronized ( this ) {
+        if ( nextAttemptMillis > System.currentTimeMillis() ) continue;
+        // while the server is failing, one caller probes it and the others
+        // wait for the outcome
+        if ( failures > 0 ) {
+          nextAttemptMillis = System.currentTimeMillis() + Math.max( 1, connectTimeoutMillis );
+        }
+      }
+      SocketClient client = newClient();
+      // don't wait on the connection past the caller's deadline
+      long left = deadline - System.currentTimeMillis();
+      if ( left <= 0 ) {
+        throw new IOException( "timed out connecting to " + hostName + ":" + port );
+      }
+      if ( connectTimeoutMillis <= 0 || connectTimeoutMillis > left ) {
+        client.setConnectTimeoutMillis( (int)Math.min( left, Integer.MAX_VALUE ) );
+      }
+      try {
+        client.connect();
+      } catch ( IOException e ) {
+        synchronized ( this ) {
+          ++failures;
+          lastFailure = e;
+          long backoff = initialBackoffMillis << Math.min( failures - 1, 30 );
+          backoff = Math.min( maxBackoffMillis, backoff );
+          // jitter keeps pools in many processes from retrying in step
+          backoff += (long)( Math.random() * backoff / 4 );
+          nextAttemptMillis = System.currentTimeMillis() + backoff;
+        }
+        if ( Debug.isOn() ) Debug.outln( "SocketClientPool failed to connect to " + hostName
+                                         + ":" + port + ": " + e );
+        if ( System.currentTimeMillis() >= deadline ) {
+          throw new IOException( "could not connect to " + hostName + ":" + port, e );
+        }
+        continue;
+      }
+      synchronized ( this ) {
+        failures = 0;
+        lastFailure = null;
+        nextAttemptMillis = 0;
+        ++connectCount;
+      }
+      if ( closed ) {
+        closeQuietly( client );
+        throw new IOException( "pool is closed" );
+      }
+      return client;
+    }
+  }
+
+  /**
+   * @return an unconnected client with the pool's socket options;
+   *         subclasses may return their own kind of client
+   */
+  protected SocketClient newClient() {
+    SocketClient client = new SocketClient( hostName, port, false );
+    client.setTcpNoDelay( tcpNoDelay );
+    client.setSendBufferSize( sendBufferSize );
+    client.setReceiveBufferSize( receiveBufferSize );
+    client.setConnectTimeoutMillis( connectTimeoutMillis );
+    return client;
+  }
+
+  /**
+   * Give back a connection taken by {@link #acquire(long)}. It is kept for
+   * reuse if it is still connected, has not failed, and has no unanswered
+   * requests.
+   */
+  public void release( SocketClient client ) {
+    try {
+      if ( client.isConnected() && !client.hasFailed() && client.getOutstandingCount() == 0 ) {
+        // checked under the lock so that close() cannot miss it
+        synchronized ( idle ) {
+          if ( !closed ) {
+            idle.addLast( new Idle( client, System.currentTimeMillis() ) );
+            return;
+          }
+        }
+      }
+      closeQuietly( client );
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Close a connection taken by {@link #acquire(long)}, for example after it
+   * failed, and free its place for a new one.
+   */
+  public void discard( SocketClient client ) {
+    try {
+      closeQuietly( client );
+      synchronized ( this ) {
+        ++discardCount;
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  protected static void closeQuietly( SocketClient client ) {
+    if ( client.isConnected() ) client.close();
+  }
+
+  /**
+   * Close the idle connections and refuse new acquires. Connections in use
+   * are closed when they are released.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    synchronized ( idle ) {
+      for ( Idle i : idle ) {
+        closeQuietly( i.client );
+      }
+      idle.clear();
+    }
+  }
+
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  public int getIdleCount() {
+    synchronized ( idle ) {
+      return idle.size();
+    }
+  }
+
+  public int getActiveCount() {
+    return maxConnections - permits.availablePermits();
+  }
+
+  /**
+   * @return the number of connection attempts that failed in a row
+   */
+  public synchronized int getFailureCount() {
+    return failures;
+  }
+
+  public synchronized int getConnectCount() {
+    return connectCount;
+  }
+
+  public synchronized int getDiscardCount() {
+    return discardCount;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(" + hostName + ":" + port + ", active="
+           + getActiveCount() + ", idle=" + getIdleCount() + ", connects=" + getConnectCount()
+           + ", failures=" + getFailureCount() + ")";
+  }
+
+}
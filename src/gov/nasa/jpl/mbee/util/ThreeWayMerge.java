@@ -0,0 +1,294 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * ThreeWayMerge merges the changes made in two versions, ours and theirs, of
+ * a common base. It takes the diffs from the base to each version, computes
+ * them if they have not been computed, in parallel if
+ * {@link #computeDiffsInParallel} is set, and then makes a single pass over
+ * the union of the IDs changed in either diff.
+ * <p>
+ * A change made in only one version is taken. Changes made in both versions
+ * are taken when they agree, according to
+ * {@link AbstractDiff#sameProperty(Object, Object)}, and are otherwise
+ * reported as {@link Conflict}s. An object removed in one version and changed
+ * in the other is a conflict for the whole object.
+ *
+ * @param <T>
+ *            object type
+ * @param <P>
+ *            property type
+ * @param <ID>
+ *            identifier type
+ */
+public class ThreeWayMerge< T, P, ID > {
+
+    public static enum Side { BASE, OURS, THEIRS }
+
+    /**
+     * A property changed differently in both versions or, if propertyId is
+     * null, an object that one version removed and the other changed. Set the
+     * resolution to pick a side for {@link ThreeWayMerge#apply(Map,
+     * DiffCodec.ObjectBuilder)}; an unresolved conflict keeps the base.
+     */
+    public static class Conflict< P, ID > {
+        public final ID id;
+        public final ID propertyId;
+        public final P base, ours, theirs;
+        public Side resolution = null;
+
+        public Conflict( ID id, ID propertyId, P base, P ours, P theirs ) {
+            this.id = id;
+            this.propertyId = propertyId;
+            this.base = base;
+            this.ours = ours;
+            this.theirs = theirs;
+        }
+
+        public boolean isObjectConflict() {
+            return propertyId == null;
+        }
+
+        @Override
+        public String toString() {
+            if ( isObjectConflict() ) return "Conflict(" + id + ": removed and changed)";
+            return "Conflict(" + id + "." + propertyId + ": base=" + base + ", ours=" + ours
+                   + ", theirs=" + theirs + ")";
+        }
+    }
+
+    protected final AbstractDiff< T, P, ID > oursDiff;
+    protected final AbstractDiff< T, P, ID > theirsDiff;
+
+    protected Map< ID, Map< ID, Pair< P, P > > > mergedChanges = null;
+    protected Set< ID > addedIds = null;
+    protected Set< ID > removedIds = null;
+    protected List< Conflict< P, ID > > conflicts = null;
+
+    /**
+     * Whether {@link #merge()} computes the two diffs at the same time. Both
+     * diffs read the same base objects and fill their caches as they go, so
+     * set this only if the implementations of the abstract methods of the
+     * diffs, such as {@link AbstractDiff#getProperties(Object, boolean)}, are
+     * safe to call from multiple threads, as for
+     * {@link AbstractDiff#parallelDiff(boolean)}, and the diffs do not share
+     * any other state.
+     */
+    public boolean computeDiffsInParallel = false;
+
+    /**
+     * @param oursDiff
+     *            the diff from the base (its first set) to our version
+     * @param theirsDiff
+     *            the diff from the base (its first set) to their version
+     */
+    public ThreeWayMerge( AbstractDiff< T, P, ID > oursDiff,
+                          AbstractDiff< T, P, ID > theirsDiff ) {
+        this.oursDiff = oursDiff;
+        this.theirsDiff = theirsDiff;
+    }
+
+    /**
+     * Compute both diffs, if {@link #computeDiffsInParallel}, the second in
+     * the {@link Utils#getForkJoinPool() pool} while the first is
+     * computed in this thread.
+     */
+    protected void computeDiffs() {
+        if ( !computeDiffsInParallel || theirsDiff.propertyChanges != null ) {
+            oursDiff.getPropertyChanges();
+            theirsDiff.getPropertyChanges();
+            return;
+        }
+        ForkJoinTask< ? > theirs = Utils.getForkJoinPool().submit( new Runnable() {
+            @Override
+            public void run() {
+                theirsDiff.getPropertyChanges();
+            }
+        } );
+        oursDiff.getPropertyChanges();
+        try {
+            theirs.get();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            theirs.join();
+        } catch ( ExecutionException e ) {
+            Throwable cause = e.getCause();
+            if ( cause instanceof RuntimeException ) throw (RuntimeException)cause;
+            if ( cause instanceof Error ) throw (Error)cause;
+            throw new IllegalStateException( cause );
+        }
+    }
+
+    /**
+     * Compute the merged changes and the conflicts.
+     */
+    public void merge() {
+        computeDiffs();
+        mergedChanges = new LinkedHashMap< ID, Map< ID, Pair< P, P > > >();
+        addedIds = new LinkedHashSet< ID >();
+        removedIds = new LinkedHashSet< ID >();
+        conflicts = new ArrayList< Conflict< P, ID > >();
+
+        Map< ID, Map< ID, Pair< P, P > > > ours = oursDiff.getPropertyChanges();
+        Map< ID, Map< ID, Pair< P, P > > > theirs = theirsDiff.getPropertyChanges();
+        Set< ID > ids = new LinkedHashSet< ID >( ours.keySet() );
+        ids.addAll( theirs.keySet() );
+        for ( ID id : ids ) {
+            mergeObject( id, ours.get( id ), theirs.get( id ) );
+        }
+    }
+
+    protected static boolean isEmpty( Map< ?, ? > map ) {
+        return map == null || map.isEmpty();
+    }
+
+    protected void mergeObject( ID id, Map< ID, Pair< P, P > > ours,
+                                Map< ID, Pair< P, P > > theirs ) {
+        boolean inBase = oursDiff.get1( id ) != null;
+        boolean inOurs = oursDiff.get2( id ) != null;
+        boolean inTheirs = theirsDiff.get2( id ) != null;
+        boolean oursChanged = !isEmpty( ours ) || inBase != inOurs;
+        boolean theirsChanged = !isEmpty( theirs ) || inBase != inTheirs;
+        if ( !oursChanged && !theirsChanged ) return;
+
+        if ( inBase && ( !inOurs || !inTheirs ) ) {
+            // removed in at least one version
+            if ( ( !inOurs && !inTheirs ) || ( !inOurs && !theirsChanged )
+                 || ( !inTheirs && !oursChanged ) ) {
+                removedIds.add( id );
+            } else {
+                conflicts.add( new Conflict< P, ID >( id, null, null, null, null ) );
+            }
+            return;
+        }
+        if ( !inBase ) addedIds.add( id );
+
+        Map< ID, Pair< P, P > > merged = new LinkedHashMap< ID, Pair< P, P > >();
+        if ( !isEmpty( ours ) ) {
+            for ( Map.Entry< ID, Pair< P, P > > e : ours.entrySet() ) {
+                ID pid = e.getKey();
+                Pair< P, P > o = e.getValue();
+                Pair< P, P > t = theirs == null ? null : theirs.get( pid );
+                if ( t == null || same( o.second, t.second ) ) {
+                    merged.put( pid, o );
+                } else {
+                    conflicts.add( new Conflict< P, ID >( id, pid, o.first, o.second,
+                                                          t.second ) );
+                }
+            }
+        }
+        if ( !isEmpty( theirs ) ) {
+            for ( Map.Entry< ID, Pair< P, P > > e : theirs.entrySet() ) {
+                if ( ours == null || !ours.containsKey( e.getKey() ) ) {
+                    merged.put( e.getKey(), e.getValue() );
+                }
+            }
+        }
+        if ( !merged.isEmpty() || !inBase ) mergedChanges.put( id, merged );
+    }
+
+    protected boolean same( P p1, P p2 ) {
+        if ( p1 == p2 ) return true;
+        if ( p1 == null || p2 == null ) return false;
+        return p1.equals( p2 ) || oursDiff.sameProperty( p1, p2 );
+    }
+
+    protected void ensureMerged() {
+        if ( conflicts == null ) merge();
+    }
+
+    /**
+     * @return for each object, the merged changes of its properties from
+     *         the base, where a null new value means the property is removed
+     */
+    public Map< ID, Map< ID, Pair< P, P > > > getMergedChanges() {
+        ensureMerged();
+        return mergedChanges;
+    }
+
+    public Set< ID > getAddedIds() {
+        ensureMerged();
+        return addedIds;
+    }
+
+    public Set< ID > getRemovedIds() {
+        ensureMerged();
+        return removedIds;
+    }
+
+    public List< Conflict< P, ID > > getConflicts() {
+        ensureMerged();
+        return conflicts;
+    }
+
+    public boolean hasConflicts() {
+        return !getConflicts().isEmpty();
+    }
+
+    /**
+     * Build the merged version from the base by applying the merged changes
+     * and the resolved conflicts.
+     *
+     * @param base
+     *            the objects of the base by ID, which is not changed
+     * @param builder
+     * @return the objects of the merged version by ID
+     */
+    public Map< ID, T > apply( Map< ID, T > base, DiffCodec.ObjectBuilder< T, P, ID > builder ) {
+        ensureMerged();
+        Map< ID, T > result = new LinkedHashMap< ID, T >( base );
+        Map< ID, Map< ID, Pair< P, P > > > changes =
+                new LinkedHashMap< ID, Map< ID, Pair< P, P > > >( mergedChanges );
+        for ( ID id : removedIds ) {
+            result.remove( id );
+        }
+        for ( Conflict< P, ID > c : conflicts ) {
+            if ( c.resolution == null || c.resolution == Side.BASE ) continue;
+            AbstractDiff< T, P, ID > side = c.resolution == Side.OURS ? oursDiff : theirsDiff;
+            if ( c.isObjectConflict() ) {
+                if ( side.get2( c.id ) == null ) {
+                    result.remove( c.id );
+                    changes.remove( c.id );
+                } else {
+                    Map< ID, Pair< P, P > > sideChanges = side.getPropertyChanges().get( c.id );
+                    changes.put( c.id, sideChanges == null
+                                       ? Collections.< ID, Pair< P, P > >emptyMap()
+                                       : sideChanges );
+                }
+                continue;
+            }
+            Map< ID, Pair< P, P > > m = changes.get( c.id );
+            m = m == null ? new LinkedHashMap< ID, Pair< P, P > >()
+                          : new LinkedHashMap< ID, Pair< P, P > >( m );
+            m.put( c.propertyId, new Pair< P, P >( c.base, c.resolution == Side.OURS ? c.ours
+                                                                                    : c.theirs ) );
+            changes.put( c.id, m );
+        }
+        for ( Map.Entry< ID, Map< ID, Pair< P, P > > > e : changes.entrySet() ) {
+            ID id = e.getKey();
+            if ( removedIds.contains( id ) ) continue;
+            T t1 = base.get( id );
+            T t = t1 == null ? builder.newObject( id ) : builder.copy( t1 );
+            for ( Map.Entry< ID, Pair< P, P > > pe : e.getValue().entrySet() ) {
+                P value = pe.getValue() == null ? null : pe.getValue().second;
+                if ( value == null ) {
+                    builder.removeProperty( t, pe.getKey() );
+                } else {
+                    builder.setProperty( t, pe.getKey(), value );
+                }
+            }
+            result.put( id, t );
+        }
+        return result;
+    }
+
+}
@@ -52,6 +52,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -66,6 +67,29 @@ public class Utils {
 
   public static ClassLoader loader = null;
 
+  protected static ForkJoinPool forkJoinPool = null;
+
+  /**
+   * @return the pool shared by the parallel operations of this package, such
+   *         as {@link AbstractDiff#parallelDiff(boolean)} and those of
+   *         {@link MethodCall}, creating one with a thread per processor if
+   *         none was set
+   */
+  public static synchronized ForkJoinPool getForkJoinPool() {
+    if ( forkJoinPool == null ) {
+      forkJoinPool = new ForkJoinPool();
+    }
+    return forkJoinPool;
+  }
+
+  /**
+   * @param pool
+   *          the pool to be used by the parallel operations of this package
+   */
+  public static synchronized void setForkJoinPool( ForkJoinPool pool ) {
+    forkJoinPool = pool;
+  }
+
   // empty collection constants
   public static final List<?> emptyList = Collections.EMPTY_LIST;//new ArrayList( 0 );
   public static final ArrayList<?> emptyArrayList = new ArrayList( 0 );
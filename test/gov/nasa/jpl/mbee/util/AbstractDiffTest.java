@@ -0,0 +1,269 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class AbstractDiffTest {
+
+    protected static Map< String, Map< String, String > > randomObjects( java.util.Random r,
+                                                                      int n, String name ) {
+        Map< String, Map< String, String > > m = new LinkedHashMap< String, Map< String, String > >();
+        for ( int i = 0; i < n; ++i ) {
+            if ( r.nextInt( 10 ) == 0 ) continue;
+            m.put( "" + i, MapDiff.object( "" + i, "x", "" + r.nextInt( 3 ), name, "1" ) );
+        }
+        return m;
+    }
+
+    protected static void assertSameResults( MapDiff expected, MapDiff actual ) {
+        assertEquals( MapDiff.sorted( expected.getPropertyChanges() ),
+                      MapDiff.sorted( actual.getPropertyChanges() ) );
+        assertEquals( MapDiff.sorted( expected.getAddedProperties() ),
+                      MapDiff.sorted( actual.getAddedProperties() ) );
+        assertEquals( MapDiff.sorted( expected.getRemovedProperties() ),
+                      MapDiff.sorted( actual.getRemovedProperties() ) );
+        assertEquals( MapDiff.sorted( expected.getUpdatedProperties() ),
+                      MapDiff.sorted( actual.getUpdatedProperties() ) );
+        assertEquals( ids( expected ), ids( actual ) );
+    }
+
+    /**
+     * @return the IDs of the updated objects, leaving out the null that
+     *         diff() adds for removed objects
+     */
+    protected static TreeSet< String > ids( MapDiff d ) {
+        TreeSet< String > ids = new TreeSet< String >();
+        for ( Map< String, String > t : d.getUpdated() ) {
+            if ( t != null ) ids.add( d.getId( t ) );
+        }
+        return ids;
+    }
+
+    /**
+     * Changes reported through the incremental methods give the same results
+     * as diffing the changed objects from scratch.
+     */
+    @Test
+    public void testIncrementalMatchesDiff() {
+        java.util.Random r = new java.util.Random( 1 );
+        Map< String, Map< String, String > > a = randomObjects( r, 500, "y" );
+        Map< String, Map< String, String > > b = randomObjects( r, 500, "z" );
+        MapDiff d = new MapDiff( a, b );
+        d.diff();
+        for ( int k = 0; k < 2000; ++k ) {
+            String id = "" + r.nextInt( 520 );
+            switch ( r.nextInt( 6 ) ) {
+                case 0:
+                    d.upsert1( MapDiff.object( id, "x", "" + r.nextInt( 3 ) ) );
+                    break;
+                case 1:
+                    d.upsert2( MapDiff.object( id, "x", "" + r.nextInt( 3 ), "w", "2" ) );
+                    break;
+                case 2:
+                    d.delete1( id );
+                    break;
+                case 3:
+                    d.delete2( id );
+                    break;
+                case 4:
+                    Map< String, String > t = d.get2( id );
+                    if ( t == null ) break;
+                    t.put( "x", "" + r.nextInt( 3 ) );
+                    t.remove( "z" );
+                    d.objectChanged( id );
+                    break;
+                default:
+                    t = d.get2( id );
+                    if ( t == null ) break;
+                    t.put( "x", "" + r.nextInt( 3 ) );
+                    d.propertyChanged( id, "x" );
+            }
+        }
+        MapDiff fresh = new MapDiff( new LinkedHashMap< String, Map< String, String > >( d.getMap1() ),
+                                     new LinkedHashMap< String, Map< String, String > >( d.getMap2() ) );
+        fresh.diff();
+        assertSameResults( fresh, d );
+    }
+
+    /**
+     * The parallel diff finds the same changes as diff(), in the same order
+     * when asked to, for shards small enough to split many times and in a
+     * pool set with Utils.setForkJoinPool().
+     */
+    @Test
+    public void testParallelDiffMatchesDiff() {
+        java.util.Random r = new java.util.Random( 2 );
+        Map< String, Map< String, String > > a = randomObjects( r, 3000, "y" );
+        Map< String, Map< String, String > > b = randomObjects( r, 3000, "z" );
+        MapDiff serial = new MapDiff( a, b );
+        serial.diff();
+        int shardSize = AbstractDiff.parallelShardSize;
+        ForkJoinPool pool = new ForkJoinPool( 3 );
+        try {
+            for ( int size : new int[] { shardSize, 7 } ) {
+                AbstractDiff.parallelShardSize = size;
+                for ( boolean preserveOrder : new boolean[] { true, false } ) {
+                    MapDiff parallel = new MapDiff( a, b );
+                    parallel.parallelDiff( preserveOrder );
+                    assertSameResults( serial, parallel );
+                    if ( preserveOrder ) {
+                        assertEquals( new ArrayList< String >( serial.getPropertyChanges().keySet() ),
+                                      new ArrayList< String >( parallel.getPropertyChanges().keySet() ) );
+                    }
+                }
+                Utils.setForkJoinPool( pool );
+            }
+        } finally {
+            AbstractDiff.parallelShardSize = shardSize;
+            Utils.setForkJoinPool( null );
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Collects what the streaming diffs report in the form of the results of
+     * diff().
+     */
+    protected static class Collector implements DiffListener< Map< String, String >, String, String > {
+        TreeSet< String > added = new TreeSet< String >();
+        TreeSet< String > removed = new TreeSet< String >();
+        Map< String, Map< String, String > > addedProperties = new TreeMap< String, Map< String, String > >();
+        Map< String, Map< String, String > > removedProperties = new TreeMap< String, Map< String, String > >();
+        Map< String, Map< String, Pair< String, String > > > updatedProperties =
+                new TreeMap< String, Map< String, Pair< String, String > > >();
+
+        @Override
+        public void objectAdded( String id, Map< String, String > t2 ) {
+            assertTrue( added.add( id ) );
+        }
+
+        @Override
+        public void objectRemoved( String id, Map< String, String > t1 ) {
+            assertTrue( removed.add( id ) );
+        }
+
+        @Override
+        public void objectUpdated( String id, Map< String, String > t1, Map< String, String > t2,
+                                   Map< String, String > addedProperties,
+                                   Map< String, String > removedProperties,
+                                   Map< String, Pair< String, String > > updatedProperties ) {
+            assertFalse( this.updatedProperties.containsKey( id ) );
+            this.addedProperties.put( id, addedProperties );
+            this.removedProperties.put( id, removedProperties );
+            this.updatedProperties.put( id, updatedProperties );
+        }
+
+        void assertMatches( MapDiff d ) {
+            assertEquals( onlyIn( d, d.getMap2(), d.getMap1() ), added );
+            assertEquals( onlyIn( d, d.getMap1(), d.getMap2() ), removed );
+            assertEquals( inBoth( d, d.getAddedProperties() ), MapDiff.sorted( addedProperties ) );
+            assertEquals( inBoth( d, d.getRemovedProperties() ), MapDiff.sorted( removedProperties ) );
+            assertEquals( inBoth( d, d.getUpdatedProperties() ), MapDiff.sorted( updatedProperties ) );
+        }
+
+        /**
+         * @return the IDs that diff() kept that are in the first map and not
+         *         the second
+         */
+        static TreeSet< String > onlyIn( MapDiff d, Map< String, ? > m, Map< String, ? > other ) {
+            TreeSet< String > ids = new TreeSet< String >( d.getPropertyChanges().keySet() );
+            ids.retainAll( m.keySet() );
+            ids.removeAll( other.keySet() );
+            return ids;
+        }
+
+        /**
+         * @return the sorted changes of the objects in both maps, since the
+         *         streaming diffs only report property changes for those
+         */
+        static Map< String, String > inBoth( MapDiff d, Map< String, ? extends Map< String, ? > > m ) {
+            Map< String, String > sorted = MapDiff.sorted( m );
+            sorted.keySet().retainAll( d.getMap1().keySet() );
+            sorted.keySet().retainAll( d.getMap2().keySet() );
+            return sorted;
+        }
+    }
+
+    protected static List< Collection< Map< String, String > > >
+            partitions( Map< String, Map< String, String > > m, int n ) {
+        List< Collection< Map< String, String > > > parts = new ArrayList< Collection< Map< String, String > > >();
+        for ( int i = 0; i < n; ++i ) {
+            parts.add( new ArrayList< Map< String, String > >() );
+        }
+        for ( Map.Entry< String, Map< String, String > > e : m.entrySet() ) {
+            parts.get( Math.abs( e.getKey().hashCode() % n ) ).add( e.getValue() );
+        }
+        return parts;
+    }
+
+    /**
+     * Both streaming diffs report the same changes as diff(), including when
+     * filterValues() screens out IDs.
+     */
+    @Test
+    public void testStreamingMatchesDiff() {
+        java.util.Random r = new java.util.Random( 3 );
+        Map< String, Map< String, String > > a = randomObjects( r, 1000, "y" );
+        Map< String, Map< String, String > > b = randomObjects( r, 1000, "z" );
+        // change some values and leave some objects equal
+        for ( Map.Entry< String, Map< String, String > > e : b.entrySet() ) {
+            Map< String, String > t1 = a.get( e.getKey() );
+            if ( t1 != null && r.nextInt( 3 ) == 0 ) e.setValue( new LinkedHashMap< String, String >( t1 ) );
+        }
+        MapDiff plain = new MapDiff( a, b );
+        MapDiff filtered = new MapDiff( a, b ) {
+            @Override
+            public Set< String > filterValues( List< Set< String > > mapDiff ) {
+                Set< String > ids = super.filterValues( mapDiff );
+                for ( java.util.Iterator< String > i = ids.iterator(); i.hasNext(); ) {
+                    if ( i.next().startsWith( "1" ) ) i.remove();
+                }
+                return ids;
+            }
+        };
+        for ( MapDiff d : new MapDiff[] { plain, filtered } ) {
+            d.diff();
+            TreeMap< String, Map< String, String > > sorted1 = new TreeMap< String, Map< String, String > >( a );
+            TreeMap< String, Map< String, String > > sorted2 = new TreeMap< String, Map< String, String > >( b );
+            Collector sortedCollector = new Collector();
+            d.diff( sorted1.values().iterator(), sorted2.values().iterator(), null, sortedCollector );
+            sortedCollector.assertMatches( d );
+
+            Collector partCollector = new Collector();
+            d.diffPartitions( partitions( a, 8 ).iterator(), partitions( b, 8 ).iterator(), partCollector );
+            partCollector.assertMatches( d );
+        }
+        assertFalse( plain.getPropertyChanges().keySet().equals( filtered.getPropertyChanges().keySet() ) );
+    }
+
+    /**
+     * Values whose hashCode()s collide are still compared when fingerprints
+     * are used.
+     */
+    @Test
+    public void testFingerprintCollision() {
+        assertEquals( "Aa".hashCode(), "BB".hashCode() );
+        assertTrue( AbstractDiff.contentHash( "Aa" ) != AbstractDiff.contentHash( "BB" ) );
+        Map< String, Map< String, String > > a = new LinkedHashMap< String, Map< String, String > >();
+        Map< String, Map< String, String > > b = new LinkedHashMap< String, Map< String, String > >();
+        a.put( "1", MapDiff.object( "1", "x", "Aa" ) );
+        b.put( "1", MapDiff.object( "1", "x", "BB" ) );
+        MapDiff d = new MapDiff( a, b );
+        d.useFingerprints = true;
+        d.diff();
+        assertFalse( d.getPropertyChanges().get( "1" ).isEmpty() );
+    }
+}
@@ -0,0 +1,199 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncSocketSenderTest {
+
+    protected ServerSocket server;
+    protected ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket( 0 );
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        server.close();
+    }
+
+    protected AsyncSocketSender newSender( int capacity, AsyncSocketSender.Policy policy )
+            throws IOException {
+        return new AsyncSocketSender( new SocketChannelClient( "127.0.0.1",
+                                                               server.getLocalPort() ),
+                                      capacity, policy );
+    }
+
+    /**
+     * Accept the next connection and, once start is counted down, read
+     * frames of doubles until it closes.
+     *
+     * @return a future for the number of frames, or a failure if a frame is
+     *         not a run of consecutive values
+     */
+    protected Future< Long > receive( final CountDownLatch start ) {
+        return executor.submit( new Callable< Long >() {
+            @Override
+            public Long call() throws Exception {
+                Socket s = server.accept();
+                try {
+                    start.await();
+                    DataInputStream in =
+                            new DataInputStream( new BufferedInputStream( s.getInputStream() ) );
+                    long frames = 0;
+                    while ( true ) {
+                        int formatLength;
+                        try {
+                            formatLength = in.readInt();
+                        } catch ( EOFException e ) {
+                            return frames;
+                        }
+                        in.skipBytes( formatLength );
+                        int n = in.readInt() / 8;
+                        double first = n > 0 ? in.readDouble() : 0;
+                        for ( int j = 1; j < n; ++j ) {
+                            assertEquals( first + j, in.readDouble(), 0 );
+                        }
+                        ++frames;
+                    }
+                } finally {
+                    s.close();
+                }
+            }
+        } );
+    }
+
+    protected static CountDownLatch started() {
+        return new CountDownLatch( 0 );
+    }
+
+    /**
+     * With BLOCK, every frame from every thread is delivered intact, and
+     * flush() returns once all of them are written.
+     */
+    @Test
+    public void testBlockDeliversEverything() throws Exception {
+        Future< Long > received = receive( started() );
+        final AsyncSocketSender sender = newSender( 64, AsyncSocketSender.Policy.BLOCK );
+        final int threads = 4, frames = 20000;
+        Future< ? >[] producers = new Future< ? >[ threads ];
+        for ( int p = 0; p < threads; ++p ) {
+            final int producer = p;
+            producers[ p ] = executor.submit( new Callable< Void >() {
+                @Override
+                public Void call() throws IOException {
+                    double[] d = new double[ 16 ];
+                    for ( int i = 0; i < frames; ++i ) {
+                        for ( int j = 0; j < d.length; ++j ) {
+                            d[ j ] = producer * 1e6 + i + j;
+                        }
+                        assertTrue( sender.send( d ) );
+                    }
+                    return null;
+                }
+            } );
+        }
+        for ( Future< ? > p : producers ) {
+            p.get();
+        }
+        sender.flush();
+        assertEquals( threads * frames, sender.getSentCount() );
+        assertEquals( 0, sender.getQueueDepth() );
+        assertEquals( 0, sender.getDroppedCount() );
+        sender.close();
+        assertEquals( threads * frames, received.get().longValue() );
+    }
+
+    /**
+     * With DROP, frames that do not fit while the server is not reading are
+     * dropped and counted, and the rest are delivered.
+     */
+    @Test
+    public void testDropCountsDrops() throws Exception {
+        CountDownLatch start = new CountDownLatch( 1 );
+        Future< Long > received = receive( start );
+        AsyncSocketSender sender = newSender( 16, AsyncSocketSender.Policy.DROP );
+        double[] big = new double[ 10000 ];
+        long accepted = 0, refused = 0;
+        for ( int i = 0; i < 2000; ++i ) {
+            for ( int j = 0; j < big.length; ++j ) {
+                big[ j ] = i + j;
+            }
+            if ( sender.send( big ) ) {
+                ++accepted;
+            } else {
+                ++refused;
+            }
+        }
+        assertTrue( refused > 0 );
+        assertEquals( refused, sender.getDroppedCount() );
+        start.countDown();
+        sender.flush();
+        assertEquals( accepted, sender.getSentCount() );
+        sender.close();
+        assertEquals( accepted, received.get().longValue() );
+    }
+
+    /**
+     * Once close() starts, send() either queues a frame that is then
+     * delivered or throws; it never accepts a frame that is lost.
+     */
+    @Test
+    public void testSendAfterClose() throws Exception {
+        for ( int round = 0; round < 20; ++round ) {
+            Future< Long > received = receive( started() );
+            final AsyncSocketSender sender = newSender( 64, AsyncSocketSender.Policy.BLOCK );
+            final AtomicLong accepted = new AtomicLong();
+            Future< ? >[] producers = new Future< ? >[ 4 ];
+            for ( int p = 0; p < producers.length; ++p ) {
+                producers[ p ] = executor.submit( new Callable< Void >() {
+                    @Override
+                    public Void call() {
+                        double[] d = { 0, 1, 2, 3 };
+                        while ( true ) {
+                            try {
+                                if ( sender.send( d ) ) accepted.incrementAndGet();
+                            } catch ( IOException e ) {
+                                return null;
+                            }
+                        }
+                    }
+                } );
+            }
+            Thread.sleep( 2 );
+            sender.close();
+            for ( Future< ? > p : producers ) {
+                p.get();
+            }
+            assertEquals( accepted.get(), received.get().longValue() );
+            try {
+                sender.send( 1.0 );
+                fail( "send after close" );
+            } catch ( IOException e ) {
+                assertFalse( sender.getQueueDepth() > 0 );
+            }
+        }
+    }
+}
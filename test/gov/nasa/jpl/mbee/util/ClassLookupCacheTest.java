@@ -0,0 +1,139 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ClassLookupCacheTest {
+
+    /**
+     * @return n names that fall in the same lock stripe for the loader
+     */
+    protected static List< String > namesInOneStripe( ClassLoader loader, int n ) {
+        List< String > names = new ArrayList< String >();
+        int stripe = ClassLookupCache.stripeIndex( new ClassLookupCache.ScopedKey( loader, "c0" ) );
+        for ( int i = 0; names.size() < n; ++i ) {
+            String name = "c" + i;
+            if ( ClassLookupCache.stripeIndex( new ClassLookupCache.ScopedKey( loader, name ) ) == stripe ) {
+                names.add( name );
+            }
+        }
+        return names;
+    }
+
+    /**
+     * The cache never holds more than its maximum size, and a full stripe
+     * evicts its least recently used entry.
+     */
+    @Test
+    public void testEviction() {
+        ClassLoader loader = getClass().getClassLoader();
+        ClassLookupCache< Class< ? > > cache =
+                new ClassLookupCache< Class< ? > >( 2 * ClassLookupCache.numStripes,
+                                                    ClassLookupCache.numStripes, 60000 );
+        for ( int i = 0; i < 1000; ++i ) {
+            cache.put( loader, "c" + i, String.class );
+            cache.putMissing( loader, "m" + i );
+        }
+        assertTrue( cache.totalSize() <= 2 * ClassLookupCache.numStripes );
+        assertTrue( cache.negativeSize() <= ClassLookupCache.numStripes );
+
+        cache.clear();
+        assertEquals( 0, cache.totalSize() );
+        assertEquals( 0, cache.negativeSize() );
+        List< String > names = namesInOneStripe( loader, 3 );
+        cache.put( loader, names.get( 0 ), String.class );
+        cache.put( loader, names.get( 1 ), Integer.class );
+        // using the first makes the second the least recently used
+        assertSame( String.class, cache.get( loader, names.get( 0 ) ) );
+        cache.put( loader, names.get( 2 ), Long.class );
+        assertSame( String.class, cache.get( loader, names.get( 0 ) ) );
+        assertNull( cache.get( loader, names.get( 1 ) ) );
+        assertSame( Long.class, cache.get( loader, names.get( 2 ) ) );
+        assertEquals( 3, cache.getHits() );
+        assertEquals( 1, cache.getMisses() );
+    }
+
+    /**
+     * A failed lookup is remembered until its TTL passes, unless asked not to
+     * expire it, and a later success replaces it.
+     */
+    @Test
+    public void testNegativeTtl() throws InterruptedException {
+        ClassLoader loader = getClass().getClassLoader();
+        ClassLookupCache< Class< ? > > cache = new ClassLookupCache< Class< ? > >( 64, 64, 20 );
+        assertFalse( cache.isKnownMissing( loader, "a", true ) );
+        cache.putMissing( loader, "a" );
+        cache.putMissing( loader, "b" );
+        assertTrue( cache.isKnownMissing( loader, "a", true ) );
+        assertEquals( 1, cache.getNegativeHits() );
+
+        cache.put( loader, "b", String.class );
+        assertFalse( cache.isKnownMissing( loader, "b", false ) );
+
+        Thread.sleep( 50 );
+        assertTrue( cache.isKnownMissing( loader, "a", false ) );
+        assertFalse( cache.isKnownMissing( loader, "a", true ) );
+        // expiring it forgot it
+        assertFalse( cache.isKnownMissing( loader, "a", false ) );
+        assertEquals( 0, cache.negativeSize() );
+
+        cache.setNegativeTtlMillis( 60000 );
+        cache.putMissing( loader, "a" );
+        Thread.sleep( 50 );
+        assertTrue( cache.isKnownMissing( loader, "a", true ) );
+    }
+
+    /**
+     * The same name is remembered separately for each class loader, the Map
+     * view shows only the current loader's entries, and invalidating a loader
+     * leaves the others.
+     */
+    @Test
+    public void testLoaderScoping() throws Exception {
+        URL[] urls = new URL[ 0 ];
+        URLClassLoader loader1 = new URLClassLoader( urls );
+        URLClassLoader loader2 = new URLClassLoader( urls );
+        ClassLoader oldLoader = Utils.loader;
+        try {
+            ClassLookupCache< Class< ? > > cache = new ClassLookupCache< Class< ? > >();
+            cache.put( loader1, "X", String.class );
+            cache.put( loader2, "X", Integer.class );
+            cache.putMissing( loader2, "Y" );
+            assertSame( String.class, cache.get( loader1, "X" ) );
+            assertSame( Integer.class, cache.get( loader2, "X" ) );
+            assertFalse( cache.isKnownMissing( loader1, "Y", true ) );
+            assertTrue( cache.isKnownMissing( loader2, "Y", true ) );
+            assertEquals( 2, cache.totalSize() );
+
+            Utils.loader = loader1;
+            assertSame( String.class, cache.get( "X" ) );
+            assertEquals( 1, cache.size() );
+            Utils.loader = loader2;
+            assertSame( Integer.class, cache.get( "X" ) );
+            assertSame( Integer.class, cache.remove( "X" ) );
+            assertEquals( 0, cache.size() );
+            assertSame( String.class, cache.get( loader1, "X" ) );
+
+            cache.put( loader2, "X", Integer.class );
+            cache.invalidate( loader2 );
+            assertNull( cache.get( loader2, "X" ) );
+            assertFalse( cache.isKnownMissing( loader2, "Y", false ) );
+            assertSame( String.class, cache.get( loader1, "X" ) );
+            assertEquals( 1, cache.totalSize() );
+        } finally {
+            Utils.loader = oldLoader;
+            loader1.close();
+            loader2.close();
+        }
+    }
+}
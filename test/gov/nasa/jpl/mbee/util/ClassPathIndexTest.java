@@ -0,0 +1,59 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ClassPathIndexTest {
+
+    @After
+    public void tearDown() {
+        ClassUtils.useClassPathIndex = true;
+    }
+
+    protected static List< String > scan( String name ) {
+        ClassUtils.useClassPathIndex = false;
+        try {
+            return ClassUtils.getFullyQualifiedNames( name );
+        } finally {
+            ClassUtils.useClassPathIndex = true;
+        }
+    }
+
+    /**
+     * Names resolve the same with the index, before and after it is built,
+     * as by trying each loaded package.
+     */
+    @Test
+    public void testSameNamesAsPackageScan() {
+        String[] names = { "ArrayList", "List", "Entry", "String", "Debug", "ClassPathIndex",
+                           "util.List", "java.util.List",
+                           "NoSuchClassAnywhere" };
+        ClassPathIndex.reset();
+        for ( String name : names ) {
+            assertEquals( name, scan( name ), ClassUtils.getFullyQualifiedNames( name ) );
+        }
+        ClassPathIndex.getInstance().getIndex();
+        assertTrue( ClassPathIndex.getInstance().isReady() );
+        for ( String name : names ) {
+            assertEquals( name, scan( name ), ClassUtils.getFullyQualifiedNames( name ) );
+        }
+        assertEquals( "[java.util.ArrayList]",
+                      ClassUtils.getFullyQualifiedNames( "ArrayList" ).toString() );
+    }
+
+    @Test
+    public void testIndexFindsClasses() {
+        ClassPathIndex index = ClassPathIndex.getInstance();
+        assertTrue( index.getFullyQualifiedNames( "ArrayList" ).contains( "java.util.ArrayList" ) );
+        assertTrue( index.getFullyQualifiedNames( "Debug" )
+                         .contains( "gov.nasa.jpl.mbee.util.Debug" ) );
+        assertEquals( "[java.util.List]",
+                      index.getFullyQualifiedNames( "java.util.List" ).toString() );
+        assertTrue( index.getIndexedPackages().contains( "java.util" ) );
+    }
+}
@@ -0,0 +1,148 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class CompiledMethodTest {
+
+    public static class Thrower {
+        public static Object fail( String message ) throws IOException {
+            throw new IOException( message );
+        }
+
+        public static void failVoid() {
+            throw new IllegalStateException( "void" );
+        }
+    }
+
+    /**
+     * @return the return value or, if an exception was thrown, its class and
+     *         the class of its cause
+     */
+    protected static String outcome( Method m, Object o, Object[] args ) {
+        try {
+            return "returned " + MoreToString.Helper.toString( m.invoke( o, args ) );
+        } catch ( Throwable t ) {
+            return thrown( t );
+        }
+    }
+
+    protected static String outcome( CompiledMethod c, Object o, Object[] args ) {
+        try {
+            return "returned " + MoreToString.Helper.toString( c.invoke( o, args ) );
+        } catch ( Throwable t ) {
+            return thrown( t );
+        }
+    }
+
+    protected static String thrown( Throwable t ) {
+        if ( t instanceof InvocationTargetException ) {
+            return "threw " + t.getClass().getSimpleName() + " of "
+                   + t.getCause().getClass().getSimpleName();
+        }
+        return "threw " + t.getClass().getSimpleName();
+    }
+
+    protected static void assertSameOutcome( Method m, Object o, Object... args ) {
+        CompiledMethod c = CompiledMethod.compile( m );
+        String message = m + " on " + o + " with " + Arrays.toString( args );
+        assertEquals( message, outcome( m, o, args ), outcome( c, o, args ) );
+    }
+
+    /**
+     * Good calls return what Method.invoke() returns, through the generated
+     * invoker when the arguments are exact and a method handle when they are
+     * widened.
+     */
+    @Test
+    public void testReturnsLikeMethodInvoke() throws NoSuchMethodException {
+        Method max = Math.class.getMethod( "max", int.class, int.class );
+        Method maxLong = Math.class.getMethod( "max", long.class, long.class );
+        Method charAt = String.class.getMethod( "charAt", int.class );
+        Method regionMatches = String.class.getMethod( "regionMatches", boolean.class, int.class,
+                                                       String.class, int.class, int.class );
+        Method format = String.class.getMethod( "format", String.class, Object[].class );
+        Method add = ArrayList.class.getMethod( "add", Object.class );
+        Method setLength = StringBuilder.class.getMethod( "setLength", int.class );
+        assertTrue( CompiledMethod.compile( max ).hasInvoker() );
+        assertTrue( CompiledMethod.compile( charAt ).hasInvoker() );
+
+        assertSameOutcome( max, null, 3, 4 );
+        assertSameOutcome( max, "ignored", 3, 4 );
+        assertSameOutcome( max, null, (short)3, (byte)4 );
+        assertSameOutcome( max, null, 'a', 4 );
+        assertSameOutcome( maxLong, null, 3, 4L );
+        assertSameOutcome( charAt, "abc", 1 );
+        assertSameOutcome( regionMatches, "Hello", true, 1, "xELL", 1, 3 );
+        assertSameOutcome( format, null, "%s-%s", new Object[] { "a", 1 } );
+        assertSameOutcome( add, new ArrayList< Object >(), (Object)null );
+        assertSameOutcome( setLength, new StringBuilder( "abc" ), 1 );
+        assertNull( CompiledMethod.compile( null ) );
+    }
+
+    /**
+     * Bad receivers and arguments throw what Method.invoke() throws, not an
+     * InvocationTargetException.
+     */
+    @Test
+    public void testArgumentChecking() throws NoSuchMethodException {
+        Method max = Math.class.getMethod( "max", int.class, int.class );
+        Method charAt = String.class.getMethod( "charAt", int.class );
+        Method format = String.class.getMethod( "format", String.class, Object[].class );
+        Method add = ArrayList.class.getMethod( "add", Object.class );
+
+        assertSameOutcome( max, null, 3L, 4 );
+        assertSameOutcome( max, null, 3.0, 4 );
+        assertSameOutcome( max, null, true, 4 );
+        assertSameOutcome( max, null, null, 4 );
+        assertSameOutcome( max, null, "3", 4 );
+        assertSameOutcome( max, null, 3 );
+        assertSameOutcome( max, null, 3, 4, 5 );
+        assertSameOutcome( charAt, null, 1 );
+        assertSameOutcome( charAt, 7, 1 );
+        assertSameOutcome( charAt, "abc", 'a' );
+        assertSameOutcome( charAt, "abc" );
+        // varargs are not collected
+        assertSameOutcome( format, null, "%s", "a" );
+        assertSameOutcome( format, null, "%s", "a", "b" );
+        assertSameOutcome( add, "not a list", "a" );
+    }
+
+    /**
+     * Exceptions thrown by the method, checked or not and from void or
+     * non-void methods, are wrapped in an InvocationTargetException.
+     */
+    @Test
+    public void testExceptionWrapping() throws NoSuchMethodException {
+        Method charAt = String.class.getMethod( "charAt", int.class );
+        Method parseInt = Integer.class.getMethod( "parseInt", String.class );
+        Method failing = Thrower.class.getMethod( "fail", String.class );
+        Method failVoid = Thrower.class.getMethod( "failVoid" );
+
+        assertSameOutcome( charAt, "abc", 5 );
+        assertSameOutcome( charAt, "abc", (byte)-1 );
+        assertSameOutcome( parseInt, null, "x" );
+        assertSameOutcome( parseInt, null, (Object)null );
+        assertSameOutcome( failing, null, "checked" );
+        assertSameOutcome( failVoid, null );
+
+        try {
+            CompiledMethod.compile( failing ).invoke( null, "checked" );
+            fail( "no exception" );
+        } catch ( Exception e ) {
+            assertTrue( e instanceof InvocationTargetException );
+            assertTrue( e.getCause() instanceof IOException );
+            assertEquals( "checked", e.getCause().getMessage() );
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ConcurrentInterpolatedSeriesTest {
+
+    protected static void assertSameSamples( DoubleInterpolatedSeries expected,
+                                             ConcurrentInterpolatedSeries.Snapshot actual ) {
+        assertEquals( expected.size(), actual.size() );
+        for ( int i = 0; i < expected.size(); ++i ) {
+            assertEquals( expected.keyAt( i ), actual.keyAt( i ), 0 );
+            assertEquals( expected.valueAt( i ), actual.valueAt( i ), 0 );
+        }
+    }
+
+    /**
+     * Random puts, replacements and removes in batches give the samples of a
+     * DoubleInterpolatedSeries, and every snapshot taken along the way keeps
+     * the samples it had, though appends share the spare capacity of its
+     * arrays.
+     */
+    @Test
+    public void testSnapshotsKeepTheirSamples() {
+        java.util.Random r = new java.util.Random( 5 );
+        ConcurrentInterpolatedSeries c = new ConcurrentInterpolatedSeries();
+        c.batchSize = 4;
+        DoubleInterpolatedSeries expected = new DoubleInterpolatedSeries();
+        List< ConcurrentInterpolatedSeries.Snapshot > snapshots =
+                new ArrayList< ConcurrentInterpolatedSeries.Snapshot >();
+        List< DoubleInterpolatedSeries > copies = new ArrayList< DoubleInterpolatedSeries >();
+        double last = 0;
+        for ( int k = 0; k < 3000; ++k ) {
+            int op = r.nextInt( 10 );
+            if ( op < 6 ) {
+                // append
+                last += 1 + r.nextInt( 3 );
+                c.put( last, k );
+                expected.put( last, k );
+            } else if ( op < 8 ) {
+                // insert or replace before the end, which merges
+                double key = r.nextInt( (int)last + 1 );
+                c.put( key, -k );
+                expected.put( key, -k );
+            } else if ( op < 9 ) {
+                double key = r.nextInt( (int)last + 1 );
+                assertEquals( expected.remove( key ), c.remove( key ) );
+                assertSameSamples( expected, c.snapshot() );
+            } else {
+                c.commit();
+                assertSameSamples( expected, c.snapshot() );
+                snapshots.add( c.snapshot() );
+                DoubleInterpolatedSeries copy = new DoubleInterpolatedSeries();
+                for ( int i = 0; i < expected.size(); ++i ) {
+                    copy.put( expected.keyAt( i ), expected.valueAt( i ) );
+                }
+                copies.add( copy );
+            }
+        }
+        c.commit();
+        assertSameSamples( expected, c.snapshot() );
+        for ( int i = 0; i < snapshots.size(); ++i ) {
+            assertSameSamples( copies.get( i ), snapshots.get( i ) );
+        }
+    }
+
+    /**
+     * Writes are not visible until there are batchSize of them or they are
+     * committed, and a remove commits them first.
+     */
+    @Test
+    public void testCommit() {
+        ConcurrentInterpolatedSeries c = new ConcurrentInterpolatedSeries();
+        c.batchSize = 3;
+        c.put( 1, 10 );
+        c.put( 2, 20 );
+        assertEquals( 0, c.size() );
+        c.put( 1, 11 );
+        // the replacement is still pending
+        assertEquals( 0, c.size() );
+        c.put( 3, 30 );
+        assertEquals( 3, c.size() );
+        assertEquals( 11, c.get( 1 ), 0 );
+        c.put( 0, 0 );
+        c.put( 2, 22 );
+        assertTrue( c.remove( 3 ) );
+        assertEquals( "[0.0, 1.0, 2.0]", keys( c.snapshot() ) );
+        assertEquals( 22, c.get( 2 ), 0 );
+        assertFalse( c.remove( 3 ) );
+    }
+
+    protected static String keys( ConcurrentInterpolatedSeries.Snapshot s ) {
+        List< Double > keys = new ArrayList< Double >();
+        for ( int i = 0; i < s.size(); ++i ) {
+            keys.add( s.keyAt( i ) );
+        }
+        return keys.toString();
+    }
+
+    /**
+     * A snapshot's interpolation is a copy, so changing it does not change
+     * how other readers interpolate.
+     */
+    @Test
+    public void testSnapshotInterpolationIsACopy() {
+        ConcurrentInterpolatedSeries c = new ConcurrentInterpolatedSeries();
+        c.setInterpolation( new InterpolatedMap.Interpolation( InterpolatedMap.Interpolation.LINEAR ) );
+        c.put( 0, 0 );
+        c.put( 2, 2 );
+        c.snapshot().getInterpolation().type = InterpolatedMap.Interpolation.STEP;
+        assertEquals( 1, c.snapshot().get( 1 ), 0 );
+    }
+
+    /**
+     * Readers running alongside a writer only see whole commits: the keys
+     * and values of a snapshot are consistent and the number of samples
+     * never goes down.
+     */
+    @Test
+    public void testConcurrentReaders() throws InterruptedException {
+        final ConcurrentInterpolatedSeries c =
+                new ConcurrentInterpolatedSeries( new InterpolatedMap.Interpolation( InterpolatedMap.Interpolation.LINEAR ) );
+        c.batchSize = 7;
+        final int n = 200000;
+        final AtomicBoolean done = new AtomicBoolean( false );
+        final AtomicReference< Throwable > failure = new AtomicReference< Throwable >();
+        List< Thread > readers = new ArrayList< Thread >();
+        for ( int t = 0; t < 4; ++t ) {
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        java.util.Random r = new java.util.Random();
+                        int lastSize = 0;
+                        while ( !done.get() ) {
+                            ConcurrentInterpolatedSeries.Snapshot s = c.snapshot();
+                            int size = s.size();
+                            assertTrue( size >= lastSize );
+                            lastSize = size;
+                            if ( size < 2 ) continue;
+                            assertEquals( size - 1, s.lastKey(), 0 );
+                            for ( int k = 0; k < 20; ++k ) {
+                                int i = r.nextInt( size - 1 );
+                                assertEquals( i, s.keyAt( i ), 0 );
+                                assertEquals( 2 * i, s.valueAt( i ), 0 );
+                                assertEquals( 2 * i + 1, s.get( i + 0.5 ), 0 );
+                            }
+                        }
+                    } catch ( Throwable e ) {
+                        failure.compareAndSet( null, e );
+                    }
+                }
+            };
+            reader.start();
+            readers.add( reader );
+        }
+        for ( int i = 0; i < n; ++i ) {
+            c.put( i, 2 * i );
+            if ( i % 1000 == 999 ) {
+                // a replacement merges into new arrays
+                c.put( i - 500, 2 * ( i - 500 ) );
+            }
+        }
+        c.commit();
+        done.set( true );
+        for ( Thread reader : readers ) {
+            reader.join();
+        }
+        if ( failure.get() != null ) throw new AssertionError( failure.get() );
+        assertEquals( n, c.size() );
+    }
+}
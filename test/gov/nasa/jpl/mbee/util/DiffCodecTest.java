@@ -0,0 +1,141 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class DiffCodecTest {
+
+    protected static DiffCodec.Reader< Map< String, String >, String, String > roundTrip( MapDiff d )
+            throws IOException {
+        byte[] bytes = DiffCodec.toBytes( d, DiffCodec.stringCodec, DiffCodec.stringCodec );
+        return DiffCodec.read( new ByteArrayInputStream( bytes ), DiffCodec.stringCodec,
+                               DiffCodec.stringCodec );
+    }
+
+    /**
+     * Applying the decoded diff to side 1 rebuilds side 2, including an
+     * added object without properties, and the decoded changes are those
+     * of the diff.
+     */
+    @Test
+    public void testRoundTripRebuildsSide2() throws IOException {
+        java.util.Random r = new java.util.Random( 1 );
+        Map< String, Map< String, String > > a = new LinkedHashMap< String, Map< String, String > >();
+        Map< String, Map< String, String > > b = new LinkedHashMap< String, Map< String, String > >();
+        for ( int i = 0; i < 2000; ++i ) {
+            String id = "" + i;
+            if ( r.nextInt( 10 ) > 0 ) {
+                a.put( id, MapDiff.object( id, "x", "" + r.nextInt( 3 ), "y", "1" ) );
+            }
+            if ( r.nextInt( 10 ) > 0 ) {
+                b.put( id, MapDiff.object( id, "x", "" + r.nextInt( 3 ), "z", "1" ) );
+            }
+        }
+        b.put( "empty", new LinkedHashMap< String, String >() );
+        MapDiff d = new MapDiff( a, b );
+        d.diff();
+        DiffCodec.Reader< Map< String, String >, String, String > reader = roundTrip( d );
+
+        assertEquals( MapDiff.sorted( d.getPropertyChanges() ),
+                      MapDiff.sorted( reader.getPropertyChanges() ) );
+        assertEquals( MapDiff.sorted( d.getAddedProperties() ),
+                      MapDiff.sorted( reader.getAddedProperties() ) );
+        assertEquals( MapDiff.sorted( d.getRemovedProperties() ),
+                      MapDiff.sorted( reader.getRemovedProperties() ) );
+        assertEquals( MapDiff.sorted( d.getUpdatedProperties() ),
+                      MapDiff.sorted( reader.getUpdatedProperties() ) );
+        assertTrue( reader.getAddedIds().contains( "empty" ) );
+
+        Map< String, Map< String, String > > side2 = reader.apply( a, MapDiff.builder );
+        assertEquals( new TreeMap< String, Map< String, String > >( b ),
+                      new TreeMap< String, Map< String, String > >( side2 ) );
+    }
+
+    /**
+     * Removed objects are written even when their removed properties are
+     * ignored, so that applying the diff still removes them.
+     */
+    @Test
+    public void testRemovedObjectWithIgnoredProperties() throws IOException {
+        Map< String, Map< String, String > > a = new LinkedHashMap< String, Map< String, String > >();
+        Map< String, Map< String, String > > b = new LinkedHashMap< String, Map< String, String > >();
+        a.put( "1", MapDiff.object( "1", "x", "1" ) );
+        a.put( "2", MapDiff.object( "2", "x", "1" ) );
+        b.put( "2", MapDiff.object( "2", "x", "2" ) );
+        MapDiff d = new MapDiff( a, b, true );
+        d.diff();
+        DiffCodec.Reader< Map< String, String >, String, String > reader = roundTrip( d );
+        assertEquals( "[1]", reader.getRemovedIds().toString() );
+        Map< String, Map< String, String > > side2 = reader.apply( a, MapDiff.builder );
+        assertEquals( b, side2 );
+    }
+
+    /**
+     * The views decode the changes of an object once.
+     */
+    @Test
+    public void testDecodedChangesAreCached() throws IOException {
+        Map< String, Map< String, String > > a = new LinkedHashMap< String, Map< String, String > >();
+        Map< String, Map< String, String > > b = new LinkedHashMap< String, Map< String, String > >();
+        a.put( "1", MapDiff.object( "1", "x", "1" ) );
+        b.put( "1", MapDiff.object( "1", "x", "2" ) );
+        MapDiff d = new MapDiff( a, b );
+        d.diff();
+        DiffCodec.Reader< Map< String, String >, String, String > reader = roundTrip( d );
+        assertSame( reader.getPropertyChanges().get( "1" ), reader.getPropertyChanges().get( "1" ) );
+    }
+
+    /**
+     * A corrupt or truncated diff fails with an IOException when it is read
+     * instead of allocating arrays for lengths it does not have.
+     */
+    @Test
+    public void testCorruptLengths() throws IOException {
+        java.util.Random r = new java.util.Random( 4 );
+        MapDiff d = new MapDiff( AbstractDiffTest.randomObjects( r, 200, "y" ),
+                                 AbstractDiffTest.randomObjects( r, 200, "z" ) );
+        d.diff();
+        byte[] bytes = DiffCodec.toBytes( d, DiffCodec.stringCodec, DiffCodec.stringCodec );
+        for ( int k = 0; k < 2000; ++k ) {
+            byte[] corrupt;
+            if ( k % 2 == 0 ) {
+                corrupt = java.util.Arrays.copyOf( bytes, r.nextInt( bytes.length ) );
+            } else {
+                corrupt = bytes.clone();
+                // a varint continuation byte makes for very large lengths
+                for ( int j = 0; j < 4; ++j ) {
+                    corrupt[ 5 + r.nextInt( bytes.length - 5 ) ] = (byte)( 0x80 | r.nextInt( 256 ) );
+                }
+            }
+            try {
+                new DiffCodec.Reader< Map< String, String >, String, String >( corrupt,
+                                                                              DiffCodec.stringCodec,
+                                                                              DiffCodec.stringCodec );
+            } catch ( IOException e ) {
+                // expected, unless the corruption happened to leave a valid diff
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DiffCodec.writeVarint( new DataOutputStream( out ), -1 );
+        try {
+            DiffCodec.stringCodec.read( new DataInputStream( new ByteArrayInputStream( out.toByteArray() ) ) );
+            fail( "read a string with a negative length" );
+        } catch ( IOException e ) {
+            // expected
+        }
+    }
+}
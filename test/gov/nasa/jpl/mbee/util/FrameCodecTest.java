@@ -0,0 +1,75 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class FrameCodecTest {
+
+    protected static DataInputStream input( byte[] bytes ) {
+        return new DataInputStream( new ByteArrayInputStream( bytes ) );
+    }
+
+    @Test
+    public void testStringRoundTrip() throws IOException {
+        for ( String s : new String[] { "", "hi", "café λ 😀" } ) {
+            assertEquals( s, FrameCodec.readString( input( FrameCodec.encodeString( s ) ) ) );
+        }
+    }
+
+    /**
+     * A bad or hostile length is refused before anything is allocated for
+     * it.
+     */
+    @Test
+    public void testReadStringBounds() throws IOException {
+        for ( int length : new int[] { Integer.MAX_VALUE, 1 << 30, FrameCodec.maxFrameBytes / 2 + 1,
+                                       -1 } ) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream( bytes ).writeInt( length );
+            try {
+                FrameCodec.readString( input( bytes.toByteArray() ) );
+                fail( "read a string of " + length + " chars" );
+            } catch ( IOException e ) {
+                // expected, rather than an OutOfMemoryError or an EOF
+            }
+        }
+    }
+
+    @Test
+    public void testReadDoublesBounds() throws IOException {
+        for ( String format : new String[] { "999999999d", "67108865f", "33554433d" } ) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream( bytes );
+            out.writeInt( format.length() );
+            out.writeBytes( format );
+            out.writeInt( 0 );
+            try {
+                FrameCodec.readDoubles( input( bytes.toByteArray() ),
+                                        new FrameCodec.DoubleFrame() );
+                fail( "read a frame of " + format );
+            } catch ( IOException e ) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testDoublesRoundTrip() throws IOException {
+        double[] a = { 3, -0.0, Double.NaN, 1e300, -7.25 };
+        FrameCodec.DoubleFrame frame = new FrameCodec.DoubleFrame();
+        FrameCodec.readDoubles( input( FrameCodec.encodeDoubles( a, 1, 3 ) ), frame );
+        assertEquals( 3, frame.length );
+        for ( int i = 0; i < frame.length; ++i ) {
+            assertEquals( Double.doubleToRawLongBits( a[ i + 1 ] ),
+                          Double.doubleToRawLongBits( frame.values[ i ] ) );
+        }
+    }
+}
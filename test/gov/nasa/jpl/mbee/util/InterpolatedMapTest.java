@@ -0,0 +1,270 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+public class InterpolatedMapTest {
+
+    protected static final double tolerance = 1e-12;
+
+    protected static InterpolatedMap< Double, Double > map( String type, double[] keys,
+                                                          double[] values ) {
+        InterpolatedMap< Double, Double > map = new InterpolatedMap< Double, Double >();
+        map.interpolation.fromString( type );
+        for ( int i = 0; i < keys.length; ++i ) {
+            map.put( keys[ i ], values[ i ] );
+        }
+        return map;
+    }
+
+    /**
+     * Check the value at t in the map and in a series copied from it.
+     */
+    protected static void assertValue( double expected, InterpolatedMap< Double, Double > map,
+                                       double t ) {
+        String message = map.interpolation + " at " + t;
+        assertEquals( message, expected, map.get( t ), tolerance );
+        assertEquals( message, expected, new DoubleInterpolatedSeries( map ).get( t ),
+                      tolerance );
+    }
+
+    /**
+     * The three-point slopes are exact for a quadratic, so CUBIC reproduces
+     * one between the second and next to last keys, even for uneven keys.
+     */
+    @Test
+    public void testCubicIsExactForQuadratic() {
+        double[] keys = { 0, 1, 3, 4, 6 };
+        double[] values = new double[ keys.length ];
+        for ( int i = 0; i < keys.length; ++i ) {
+            values[ i ] = keys[ i ] * keys[ i ];
+        }
+        InterpolatedMap< Double, Double > map = map( "cubic", keys, values );
+        assertValue( 4, map, 2 );
+        assertValue( 6.25, map, 2.5 );
+        assertValue( 12.25, map, 3.5 );
+        assertValue( 9, map, 3 );
+        assertValue( 36, map, 7 );
+    }
+
+    /**
+     * PCHIP slopes are the weighted harmonic means of the neighbouring
+     * secants (Fritsch-Butland), here 9/13 at 1 and 27/29 at 3, and the
+     * value at the midpoint of a Hermite segment is the mean of its ends
+     * plus h (m0 - m1) / 8.
+     */
+    @Test
+    public void testPchip() {
+        InterpolatedMap< Double, Double > map =
+                map( "pchip", new double[] { 0, 1, 3, 4 }, new double[] { 0, 1, 2, 5 } );
+        assertValue( 1.5 + ( 9.0 / 13 - 27.0 / 29 ) / 4, map, 2 );
+
+        // zero slope at the extremum and the secant at the first key
+        map = map( "pchip", new double[] { 0, 1, 2 }, new double[] { 0, 1, 0 } );
+        assertValue( 0.625, map, 0.5 );
+        assertValue( 0.625, map, 1.5 );
+        assertValue( 1, map, 1 );
+    }
+
+    /**
+     * NEAREST takes the later value at the midpoint and holds the end values
+     * beyond the keys.
+     */
+    @Test
+    public void testNearest() {
+        InterpolatedMap< Double, Double > map =
+                map( "nearest", new double[] { 0, 2 }, new double[] { 1, 3 } );
+        assertValue( 1, map, 0.9 );
+        assertValue( 3, map, 1.0 );
+        assertValue( 1, map, -1 );
+        assertValue( 3, map, 5 );
+    }
+
+    /**
+     * @return the value of get() or null where it fails, as a cursor gives
+     */
+    protected static Double getOrNull( InterpolatedMap< Double, Double > map, double t ) {
+        try {
+            return map.get( t );
+        } catch ( RuntimeException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * A cursor gives the values of get() over a random mix of short steps
+     * forward and back, jumps further than maxSteps, and puts and removes
+     * through the map, which invalidate the cursor. A removal through an
+     * iterator after the cursor's entries fails its forward iterator with a
+     * ConcurrentModificationException, from which it recovers, and other
+     * removals through an iterator are followed by reset(), as the cursor
+     * requires.
+     */
+    @Test
+    public void testCursorMatchesGet() {
+        for ( String type : InterpolatedSeriesTest.types ) {
+            java.util.Random r = new java.util.Random( 6 );
+            InterpolatedMap< Double, Double > map = new InterpolatedMap< Double, Double >();
+            map.interpolation.fromString( type );
+            for ( int i = 0; i < 200; ++i ) {
+                map.put( (double)r.nextInt( 1000 ), (double)r.nextInt( 20 ) );
+            }
+            InterpolatedMap< Double, Double >.Cursor cursor = map.newCursor();
+            double t = 500;
+            for ( int k = 0; k < 20000; ++k ) {
+                int op = r.nextInt( 100 );
+                if ( op < 70 ) {
+                    // a short step either way
+                    t += r.nextGaussian() * 10;
+                } else if ( op < 80 ) {
+                    t = r.nextInt( 1100 ) - 50 + r.nextDouble();
+                } else if ( op < 85 ) {
+                    t = r.nextInt( 1000 );
+                } else if ( op < 90 ) {
+                    map.put( t + r.nextInt( 21 ) - 10, (double)r.nextInt( 20 ) );
+                } else if ( op < 94 ) {
+                    map.remove( Math.floor( t ) + r.nextInt( 11 ) - 5 );
+                } else if ( op < 97 ) {
+                    // remove a key a few past the cursor's through an
+                    // iterator, which the cursor does not see
+                    if ( cursor.higher == null ) continue;
+                    Iterator< Double > i =
+                            map.tailMap( cursor.higher.getKey(), false ).keySet().iterator();
+                    for ( int n = r.nextInt( 3 ); n >= 0 && i.hasNext(); --n ) {
+                        i.next();
+                    }
+                    if ( i.hasNext() ) {
+                        i.next();
+                        i.remove();
+                    }
+                } else {
+                    Iterator< Double > i = map.tailMap( t, false ).keySet().iterator();
+                    if ( i.hasNext() ) {
+                        i.next();
+                        i.remove();
+                    }
+                    cursor.reset();
+                }
+                assertEquals( type + " at " + t + " after " + k, getOrNull( map, t ),
+                              cursor.get( t ) );
+            }
+        }
+    }
+
+    protected static InterpolatedMap< Double, Double > randomMap( String type, java.util.Random r,
+                                                                int n ) {
+        InterpolatedMap< Double, Double > map = new InterpolatedMap< Double, Double >();
+        map.interpolation.fromString( type );
+        for ( int i = 0; i < n; ++i ) {
+            map.put( r.nextInt( 10 * n ) / 4.0, (double)( r.nextInt( 41 ) - 20 ) );
+        }
+        return map;
+    }
+
+    /**
+     * Looking up many keys at once gives the values of get(), both for many
+     * keys, which sweeps over the entries, and for few, which looks up each,
+     * with null and out-of-order keys among them.
+     */
+    @Test
+    public void testGetManyMatchesGet() {
+        for ( String type : InterpolatedSeriesTest.types ) {
+            java.util.Random r = new java.util.Random( 7 );
+            InterpolatedMap< Double, Double > map = randomMap( type, r, 500 );
+            for ( int n : new int[] { 3000, 10 } ) {
+                Double[] keys = new Double[ n ];
+                for ( int i = 0; i < n; ++i ) {
+                    keys[ i ] = r.nextInt( 5200 ) / 4.0 - 50;
+                }
+                Arrays.sort( keys );
+                keys[ r.nextInt( n ) ] = null;
+                keys[ r.nextInt( n ) ] = r.nextInt( 5000 ) / 4.0;
+                Double[] out = new Double[ n ];
+                map.get( keys, out );
+                for ( int i = 0; i < n; ++i ) {
+                    Double expected = keys[ i ] == null ? null : getOrNull( map, keys[ i ] );
+                    assertEquals( type + " at " + keys[ i ], expected, out[ i ] );
+                }
+            }
+        }
+    }
+
+    /**
+     * Resampling gives the values of get(), with NaN where get() gives null,
+     * and a negative step is rejected.
+     */
+    @Test
+    public void testResampleMatchesGet() {
+        for ( String type : InterpolatedSeriesTest.types ) {
+            java.util.Random r = new java.util.Random( 8 );
+            InterpolatedMap< Double, Double > map = randomMap( type, r, 500 );
+            double[] out = map.resample( -10.125, 0.375, new double[ 14000 ] );
+            for ( int i = 0; i < out.length; ++i ) {
+                double t = -10.125 + i * 0.375;
+                Double expected = getOrNull( map, t );
+                assertEquals( type + " at " + t, expected == null ? Double.NaN : expected, out[ i ],
+                              tolerance );
+            }
+        }
+        try {
+            randomMap( "linear", new java.util.Random( 8 ), 10 ).resample( 0, -1, new double[ 2 ] );
+            fail( "resampled with a negative step" );
+        } catch ( IllegalArgumentException e ) {
+            // expected
+        }
+    }
+
+    /**
+     * For STEP and LINEAR, the integral and length of an aggregate agree
+     * with a midpoint rule over get(), and its minimum and maximum are
+     * those of get() at the ends of the window and the keys in it.
+     */
+    @Test
+    public void testAggregateMatchesIntegral() {
+        for ( String type : new String[] { "step", "linear" } ) {
+            java.util.Random r = new java.util.Random( 9 );
+            InterpolatedMap< Double, Double > map = randomMap( type, r, 200 );
+            for ( int k = 0; k < 50; ++k ) {
+                double t1 = r.nextInt( 2200 ) / 4.0 - 25;
+                double t2 = t1 + r.nextInt( 1000 ) / 4.0;
+                InterpolatedMap.Aggregate a = map.aggregate( t1, t2 );
+
+                int n = 20000;
+                double h = ( t2 - t1 ) / n;
+                double integral = 0, length = 0;
+                for ( int i = 0; i < n; ++i ) {
+                    Double v = getOrNull( map, t1 + ( i + 0.5 ) * h );
+                    if ( v == null ) continue;
+                    integral += v * h;
+                    length += h;
+                }
+                // each jump of at most 40 in a STEP function costs at most
+                // one step of the rule
+                double error = h * ( 40 * map.subMap( t1, true, t2, true ).size() + 40 );
+                String message = type + " over [" + t1 + ", " + t2 + "]";
+                assertEquals( message, length, a.length, h + tolerance );
+                assertEquals( message, integral, a.integral, error + tolerance );
+
+                double min = Double.NaN, max = Double.NaN;
+                java.util.List< Double > ts = new java.util.ArrayList< Double >();
+                ts.add( t1 );
+                ts.addAll( map.subMap( t1, false, t2, false ).keySet() );
+                ts.add( t2 );
+                for ( double t : ts ) {
+                    Double v = getOrNull( map, t );
+                    if ( v == null ) continue;
+                    if ( !( v >= min ) ) min = v;
+                    if ( !( v <= max ) ) max = v;
+                }
+                assertEquals( message, min, a.min, tolerance );
+                assertEquals( message, max, a.max, tolerance );
+                if ( a.length > 0 ) assertEquals( message, a.integral / a.length, a.mean(), tolerance );
+            }
+        }
+    }
+}
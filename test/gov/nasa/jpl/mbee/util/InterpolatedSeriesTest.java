@@ -0,0 +1,237 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class InterpolatedSeriesTest {
+
+    protected static final String[] types =
+            new String[] { "step", "linear", "none", "nearest", "cubic", "pchip" };
+
+    protected static void assertSameValue( String message, Double expected, double actual ) {
+        assertEquals( message, expected == null ? Double.NaN : expected.doubleValue(), actual, 0 );
+    }
+
+    /**
+     * Both kinds of series give the values InterpolatedMap does after random
+     * puts and removes, and a sweep gives the values of single lookups.
+     */
+    @Test
+    public void testMatchesInterpolatedMap() {
+        for ( String type : types ) {
+            java.util.Random r = new java.util.Random( 3 );
+            InterpolatedMap< Double, Double > dm = new InterpolatedMap< Double, Double >();
+            InterpolatedMap< Long, Double > lm = new InterpolatedMap< Long, Double >();
+            dm.interpolation.fromString( type );
+            lm.interpolation.fromString( type );
+            DoubleInterpolatedSeries ds = new DoubleInterpolatedSeries( dm.interpolation );
+            LongInterpolatedSeries ls = new LongInterpolatedSeries( lm.interpolation );
+            for ( int i = 0; i < 3000; ++i ) {
+                long k = r.nextInt( 100000 );
+                double v = r.nextInt( 20 ) / 4.0;
+                if ( r.nextInt( 4 ) == 0 ) {
+                    dm.remove( k / 8.0 );
+                    ds.remove( k / 8.0 );
+                    lm.remove( k );
+                    ls.remove( k );
+                } else {
+                    dm.put( k / 8.0, v );
+                    ds.put( k / 8.0, v );
+                    lm.put( k, v );
+                    ls.put( k, v );
+                }
+            }
+            assertEquals( dm.size(), ds.size() );
+            assertEquals( lm.size(), ls.size() );
+            double[] keys = new double[ 5000 ];
+            for ( int i = 0; i < keys.length; ++i ) {
+                long k = lm.firstKey() + r.nextInt( 110000 );
+                assertSameValue( type + " at " + k, lm.get( k ), ls.get( k ) );
+                keys[ i ] = dm.firstKey() + r.nextDouble() * 13000;
+                assertSameValue( type + " at " + keys[ i ], dm.get( keys[ i ] ), ds.get( keys[ i ] ) );
+            }
+            Arrays.sort( keys );
+            double[] swept = ds.get( keys, new double[ keys.length ] );
+            for ( int i = 0; i < keys.length; ++i ) {
+                assertEquals( type, ds.get( keys[ i ] ), swept[ i ], 0 );
+            }
+        }
+    }
+
+    /**
+     * Long keys too large to be exact as doubles are still told apart.
+     */
+    @Test
+    public void testLargeLongKeys() {
+        LongInterpolatedSeries s = new LongInterpolatedSeries();
+        s.interpolation.fromString( "linear" );
+        long base = 1L << 60;
+        s.put( base, 0 );
+        s.put( base + 2, 2 );
+        s.put( base + 1, 1 );
+        assertEquals( 3, s.size() );
+        assertEquals( base + 1, s.keyAt( 1 ) );
+        assertEquals( 1, s.get( base + 1 ), 0 );
+        assertEquals( 1, s.indexOf( base + 1 ) );
+        s.remove( base + 1 );
+        assertEquals( 1, s.get( base + 1 ), 0 );
+        assertEquals( -2, s.indexOf( base + 1 ) );
+    }
+
+    /**
+     * Negative zero sorts before zero, as in Arrays.binarySearch().
+     */
+    @Test
+    public void testDoubleKeyOrder() {
+        DoubleInterpolatedSeries s = new DoubleInterpolatedSeries();
+        double[] keys = { 3, -0.0, Double.NEGATIVE_INFINITY, 0.0, -2.5, Double.POSITIVE_INFINITY };
+        for ( double k : keys ) {
+            s.put( k, k );
+        }
+        double[] sorted = keys.clone();
+        Arrays.sort( sorted );
+        for ( int i = 0; i < sorted.length; ++i ) {
+            assertEquals( sorted[ i ], s.keyAt( i ), 0 );
+            assertEquals( Double.doubleToLongBits( sorted[ i ] ),
+                          Double.doubleToLongBits( s.keyAt( i ) ) );
+        }
+    }
+
+    /**
+     * With or without the value index, containsValue() finds exactly the
+     * sample values for STEP, NEAREST and NONE, and the values between the
+     * least and greatest for LINEAR.
+     */
+    @Test
+    public void testContainsValue() {
+        for ( String type : new String[] { "step", "nearest", "none", "linear" } ) {
+            java.util.Random r = new java.util.Random( 5 );
+            DoubleInterpolatedSeries indexed = new DoubleInterpolatedSeries();
+            DoubleInterpolatedSeries plain = new DoubleInterpolatedSeries();
+            indexed.interpolation.fromString( type );
+            plain.interpolation.fromString( type );
+            indexed.setValueIndexed( true );
+            assertFalse( indexed.containsValue( 0 ) );
+            for ( int i = 0; i < 2000; ++i ) {
+                double k = r.nextInt( 3000 );
+                if ( r.nextInt( 3 ) == 0 ) {
+                    indexed.remove( k );
+                    plain.remove( k );
+                } else {
+                    double v = r.nextInt( 4000 ) / 2.0;
+                    indexed.put( k, v );
+                    plain.put( k, v );
+                }
+                if ( i % 100 != 0 ) continue;
+                for ( int j = 0; j < 200; ++j ) {
+                    double x = r.nextInt( 4200 ) / 2.0 - 50;
+                    boolean expected = false;
+                    double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+                    for ( int s = 0; s < plain.size(); ++s ) {
+                        expected |= plain.valueAt( s ) == x;
+                        min = Math.min( min, plain.valueAt( s ) );
+                        max = Math.max( max, plain.valueAt( s ) );
+                    }
+                    if ( type.equals( "linear" ) ) expected = min <= x && x <= max;
+                    assertEquals( type + " " + x, expected, plain.containsValue( x ) );
+                    assertEquals( type + " " + x, expected, indexed.containsValue( x ) );
+                }
+            }
+            assertFalse( indexed.containsValue( Double.NaN ) );
+            assertFalse( plain.containsValue( Double.NaN ) );
+        }
+    }
+
+    /**
+     * Both kinds of series resample and aggregate as an InterpolatedMap with
+     * the same samples does, and reject a negative step.
+     */
+    @Test
+    public void testResampleAndAggregateMatchMap() {
+        for ( String type : types ) {
+            java.util.Random r = new java.util.Random( 10 );
+            InterpolatedMap< Double, Double > map = new InterpolatedMap< Double, Double >();
+            map.interpolation.fromString( type );
+            for ( int i = 0; i < 500; ++i ) {
+                map.put( (double)r.nextInt( 5000 ), r.nextInt( 41 ) - 20.0 );
+            }
+            DoubleInterpolatedSeries ds = new DoubleInterpolatedSeries( map );
+            LongInterpolatedSeries ls = new LongInterpolatedSeries( map );
+            double[] expected = map.resample( -100, 3, new double[ 2000 ] );
+            double[] dout = ds.resample( -100, 3, new double[ 2000 ] );
+            double[] lout = ls.resample( -100, 3, new double[ 2000 ] );
+            for ( int i = 0; i < expected.length; ++i ) {
+                assertEquals( type + " at " + i, expected[ i ], dout[ i ], 1e-12 );
+                assertEquals( type + " at " + i, expected[ i ], lout[ i ], 1e-12 );
+            }
+            for ( int k = 0; k < 100; ++k ) {
+                long t1 = r.nextInt( 5200 ) - 100;
+                long t2 = t1 + r.nextInt( 2000 );
+                InterpolatedMap.Aggregate e = map.aggregate( (double)t1, (double)t2 );
+                for ( InterpolatedMap.Aggregate a : new InterpolatedMap.Aggregate[] {
+                        ds.aggregate( t1, t2 ), ls.aggregate( t1, t2 ) } ) {
+                    String message = type + " over [" + t1 + ", " + t2 + "]";
+                    assertEquals( message, e.integral, a.integral, 1e-9 );
+                    assertEquals( message, e.length, a.length, 1e-9 );
+                    assertEquals( message, e.min, a.min, 0 );
+                    assertEquals( message, e.max, a.max, 0 );
+                    assertEquals( message, e.count, a.count );
+                    assertEquals( message, e.mean(), a.mean(), 1e-9 );
+                    assertEquals( message, t1, a.t1, 0 );
+                    assertEquals( message, t2, a.t2, 0 );
+                }
+            }
+            try {
+                ds.resample( 0, -1, new double[ 2 ] );
+                fail( "resampled with a negative step" );
+            } catch ( IllegalArgumentException ex ) {
+                // expected
+            }
+            try {
+                ls.resample( 0, -1, new double[ 2 ] );
+                fail( "resampled with a negative step" );
+            } catch ( IllegalArgumentException ex ) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Aggregating long keys too large to be exact as doubles gives the
+     * results of the same samples at small keys.
+     */
+    @Test
+    public void testAggregateLargeLongKeys() {
+        for ( String type : new String[] { "step", "linear" } ) {
+            LongInterpolatedSeries large = new LongInterpolatedSeries();
+            LongInterpolatedSeries small = new LongInterpolatedSeries();
+            large.interpolation.fromString( type );
+            small.interpolation.fromString( type );
+            long base = ( 1L << 60 ) + 1;
+            java.util.Random r = new java.util.Random( 11 );
+            long k = 0;
+            for ( int i = 0; i < 100; ++i ) {
+                k += 1 + r.nextInt( 3 );
+                double v = r.nextInt( 10 );
+                large.put( base + k, v );
+                small.put( k, v );
+            }
+            for ( int j = 0; j < 50; ++j ) {
+                long t1 = r.nextInt( (int)k );
+                long t2 = t1 + 1 + r.nextInt( 20 );
+                InterpolatedMap.Aggregate e = small.aggregate( t1, t2 );
+                InterpolatedMap.Aggregate a = large.aggregate( base + t1, base + t2 );
+                String message = type + " over [" + t1 + ", " + t2 + "]";
+                assertEquals( message, e.integral, a.integral, 0 );
+                assertEquals( message, e.length, a.length, 0 );
+                assertEquals( message, e.min, a.min, 0 );
+                assertEquals( message, e.max, a.max, 0 );
+            }
+        }
+    }
+}
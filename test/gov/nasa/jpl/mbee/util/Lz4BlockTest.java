@@ -0,0 +1,105 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+import org.junit.Test;
+
+public class Lz4BlockTest {
+
+    protected static final LZ4Factory reference = LZ4Factory.safeInstance();
+
+    /**
+     * @return n bytes that are noise, zeros, a short cycle, or a few values
+     *         with copied runs, by mode
+     */
+    protected static byte[] sample( Random r, int n, int mode ) {
+        byte[] src = new byte[ n ];
+        for ( int i = 0; i < n; ++i ) {
+            src[ i ] = mode == 0 ? (byte)r.nextInt() : mode == 1 ? 0
+                     : mode == 2 ? (byte)( i % 7 ) : (byte)r.nextInt( 3 );
+        }
+        if ( mode == 3 && n > 50 ) {
+            for ( int k = 0; k < n / 20; ++k ) {
+                System.arraycopy( src, r.nextInt( n - 10 ), src, r.nextInt( n - 10 ), 10 );
+            }
+        }
+        return src;
+    }
+
+    /**
+     * Blocks from Lz4Block decode with the reference implementation, and
+     * with Lz4Block, at offsets within the arrays.
+     */
+    @Test
+    public void testReferenceDecodesOurBlocks() throws IOException {
+        Random r = new Random( 1 );
+        Lz4Block lz4 = new Lz4Block();
+        LZ4SafeDecompressor decompressor = reference.safeDecompressor();
+        for ( int t = 0; t < 200; ++t ) {
+            int n = r.nextInt( t < 100 ? 100 : 100000 );
+            byte[] src = sample( r, n, t % 4 );
+            byte[] block = new byte[ Lz4Block.maxCompressedLength( n ) + 3 ];
+            int length = lz4.compress( src, 0, n, block, 3 );
+
+            byte[] decoded = new byte[ n + 2 ];
+            assertEquals( n, decompressor.decompress( block, 3, length, decoded, 2, n ) );
+            assertArrayEquals( src, Arrays.copyOfRange( decoded, 2, n + 2 ) );
+
+            Arrays.fill( decoded, (byte)0 );
+            Lz4Block.decompress( block, 3, length, decoded, 2, n );
+            assertArrayEquals( src, Arrays.copyOfRange( decoded, 2, n + 2 ) );
+        }
+    }
+
+    /**
+     * Lz4Block decodes the blocks of the reference compressors, whose
+     * matches and lengths differ from its own.
+     */
+    @Test
+    public void testWeDecodeReferenceBlocks() throws IOException {
+        Random r = new Random( 2 );
+        for ( LZ4Compressor compressor : new LZ4Compressor[] { reference.fastCompressor(),
+                                                               reference.highCompressor() } ) {
+            for ( int t = 0; t < 80; ++t ) {
+                int n = r.nextInt( t < 40 ? 100 : 100000 );
+                byte[] src = sample( r, n, t % 4 );
+                byte[] block = compressor.compress( src );
+                byte[] decoded = new byte[ n ];
+                Lz4Block.decompress( block, 0, block.length, decoded, 0, n );
+                assertArrayEquals( src, decoded );
+            }
+        }
+    }
+
+    /**
+     * A truncated block or a wrong length is an IOException, not a bad
+     * array index.
+     */
+    @Test
+    public void testCorruptBlocks() {
+        Random r = new Random( 3 );
+        byte[] src = sample( r, 10000, 3 );
+        byte[] block = reference.fastCompressor().compress( src );
+        byte[] decoded = new byte[ src.length + 10 ];
+        int[][] cases = { { block.length / 2, src.length }, { block.length, src.length - 1 },
+                          { block.length, src.length + 10 } };
+        for ( int[] c : cases ) {
+            try {
+                Lz4Block.decompress( block, 0, c[ 0 ], decoded, 0, c[ 1 ] );
+                fail( "decoded " + c[ 0 ] + " of " + block.length + " bytes to " + c[ 1 ] );
+            } catch ( IOException e ) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A diff of objects that are maps from property names to values, with the
+ * object's ID under "id". A property is "name=value".
+ */
+public class MapDiff extends AbstractDiff< Map< String, String >, String, String > {
+
+    /**
+     * Builds objects from the values of properties.
+     */
+    public static final DiffCodec.ObjectBuilder< Map< String, String >, String, String > builder =
+            new DiffCodec.ObjectBuilder< Map< String, String >, String, String >() {
+                @Override
+                public Map< String, String > newObject( String id ) {
+                    return new LinkedHashMap< String, String >();
+                }
+
+                @Override
+                public Map< String, String > copy( Map< String, String > t ) {
+                    return new LinkedHashMap< String, String >( t );
+                }
+
+                @Override
+                public void setProperty( Map< String, String > t, String propertyId,
+                                         String value ) {
+                    t.put( propertyId, value.substring( value.indexOf( '=' ) + 1 ) );
+                }
+
+                @Override
+                public void removeProperty( Map< String, String > t, String propertyId ) {
+                    t.remove( propertyId );
+                }
+            };
+
+    public MapDiff( Map< String, Map< String, String > > map1,
+                    Map< String, Map< String, String > > map2 ) {
+        super( map1, map2, null );
+    }
+
+    public MapDiff( Map< String, Map< String, String > > map1,
+                    Map< String, Map< String, String > > map2,
+                    boolean ignoreRemovedProperties ) {
+        super( map1, map2, null, ignoreRemovedProperties );
+    }
+
+    /**
+     * @return an object with the given ID and properties, given as
+     *         alternating names and values
+     */
+    public static Map< String, String > object( String id, String... namesAndValues ) {
+        Map< String, String > t = new LinkedHashMap< String, String >();
+        t.put( "id", id );
+        for ( int i = 0; i + 1 < namesAndValues.length; i += 2 ) {
+            t.put( namesAndValues[ i ], namesAndValues[ i + 1 ] );
+        }
+        return t;
+    }
+
+    @Override
+    public String getId( Map< String, String > t ) {
+        return t.get( "id" );
+    }
+
+    @Override
+    public String getPropertyName( String property ) {
+        return property.substring( 0, property.indexOf( '=' ) );
+    }
+
+    @Override
+    public String getIdOfProperty( String property ) {
+        return getPropertyName( property );
+    }
+
+    @Override
+    public Set< String > getProperties( Map< String, String > t, boolean isSet1 ) {
+        Set< String > properties = new LinkedHashSet< String >();
+        if ( t == null ) return properties;
+        for ( Map.Entry< String, String > e : t.entrySet() ) {
+            properties.add( e.getKey() + "=" + e.getValue() );
+        }
+        return properties;
+    }
+
+    @Override
+    public String getProperty( Map< String, String > t, String id, boolean isSet1 ) {
+        if ( t == null || !t.containsKey( id ) ) return null;
+        return id + "=" + t.get( id );
+    }
+
+    @Override
+    public boolean same( Map< String, String > t1, Map< String, String > t2 ) {
+        return t1 == null ? t2 == null : t1.equals( t2 );
+    }
+
+    @Override
+    public boolean sameProperty( String prop1, String prop2 ) {
+        return prop1 == null ? prop2 == null : prop1.equals( prop2 );
+    }
+
+    @Override
+    public String getName( Map< String, String > t ) {
+        return getId( t );
+    }
+
+    /**
+     * @return the changes of the nonempty entries of a diff result map as
+     *         strings in ID and property order, for comparing the results of
+     *         two diffs, since Pair does not define equals()
+     */
+    public static Map< String, String > sorted( Map< String, ? extends Map< String, ? > > m ) {
+        Map< String, String > sorted = new TreeMap< String, String >();
+        for ( Map.Entry< String, ? extends Map< String, ? > > e : m.entrySet() ) {
+            if ( e.getValue() == null || e.getValue().isEmpty() ) continue;
+            sorted.put( e.getKey(), new TreeMap< String, Object >( e.getValue() ).toString() );
+        }
+        return sorted;
+    }
+}
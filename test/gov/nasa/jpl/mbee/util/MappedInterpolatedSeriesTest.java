@@ -0,0 +1,228 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedInterpolatedSeriesTest {
+
+    protected File file;
+    protected Random random;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile( "series", ".imap" );
+        random = new Random( 9 );
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Check values at random keys, at and around the samples, against an
+     * in-memory series with the same samples.
+     */
+    protected void assertSameValues( InterpolatedSeries expected, MappedInterpolatedSeries m,
+                                     int n ) throws IOException {
+        double first = expected.keyAsDouble( 0 );
+        double last = expected.keyAsDouble( expected.size() - 1 );
+        for ( int j = 0; j < n; ++j ) {
+            double e, g;
+            if ( expected instanceof LongInterpolatedSeries ) {
+                LongInterpolatedSeries ls = (LongInterpolatedSeries)expected;
+                long q = j % 5 == 0 ? ls.keyAt( random.nextInt( ls.size() ) )
+                                    : (long)( first - 20 + random.nextDouble() * ( last - first + 40 ) );
+                e = ls.get( q );
+                g = m.get( q );
+            } else {
+                DoubleInterpolatedSeries ds = (DoubleInterpolatedSeries)expected;
+                double q = j % 5 == 0 ? ds.keyAt( random.nextInt( ds.size() ) )
+                                      : first - 2 + random.nextDouble() * ( last - first + 4 );
+                e = ds.get( q );
+                g = m.get( q );
+            }
+            assertEquals( m + " at sample " + j, e, g, 1e-12 );
+        }
+    }
+
+    /**
+     * Appended samples read back the same before and after reopening, for
+     * each key type, codec and interpolation.
+     */
+    @Test
+    public void testReopen() throws IOException {
+        for ( String type : new String[] { "step", "linear", "none" } ) {
+            for ( byte codec : new byte[] { MappedInterpolatedSeries.RAW,
+                                            MappedInterpolatedSeries.DELTA } ) {
+                for ( byte keyType : new byte[] { MappedInterpolatedSeries.LONG_KEYS,
+                                                  MappedInterpolatedSeries.DOUBLE_KEYS } ) {
+                    InterpolatedMap.Interpolation interpolation =
+                            new InterpolatedMap.Interpolation();
+                    interpolation.fromString( type );
+                    MappedInterpolatedSeries m =
+                            MappedInterpolatedSeries.create( file, keyType, codec,
+                                                             interpolation, 37 );
+                    InterpolatedSeries expected = append( m, keyType, interpolation, 3000 );
+                    assertSameValues( expected, m, 2000 );
+                    m.close();
+                    m = MappedInterpolatedSeries.open( file );
+                    assertEquals( 3000, m.size() );
+                    assertSameValues( expected, m, 2000 );
+                    m.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Append n samples with runs of repeated values and gaps between keys,
+     * flushing now and then.
+     *
+     * @return an in-memory series with the same samples
+     */
+    protected InterpolatedSeries append( MappedInterpolatedSeries m, byte keyType,
+                                         InterpolatedMap.Interpolation interpolation, int n )
+            throws IOException {
+        LongInterpolatedSeries ls = new LongInterpolatedSeries( interpolation );
+        DoubleInterpolatedSeries ds = new DoubleInterpolatedSeries( interpolation );
+        long k = -500;
+        double dk = -5.0;
+        double v = 0;
+        for ( int i = 0; i < n; ++i ) {
+            k += random.nextInt( 4 ) == 0 ? random.nextInt( 50 ) + 1 : 10;
+            dk += random.nextDouble();
+            if ( random.nextInt( 3 ) != 0 ) {
+                v = random.nextBoolean() ? Math.round( random.nextDouble() * 100 ) / 4.0
+                                         : random.nextGaussian();
+            }
+            if ( keyType == MappedInterpolatedSeries.LONG_KEYS ) {
+                m.append( k, v );
+                ls.put( k, v );
+            } else {
+                m.append( dk, v );
+                ds.put( dk, v );
+            }
+            if ( i % 500 == 0 ) m.flush();
+        }
+        return keyType == MappedInterpolatedSeries.LONG_KEYS ? ls : ds;
+    }
+
+    /**
+     * A file cut short in its last block, as by a crash during a write,
+     * opens with the samples of the whole blocks, and appending continues
+     * from there.
+     */
+    @Test
+    public void testTruncatedFile() throws IOException {
+        for ( byte codec : new byte[] { MappedInterpolatedSeries.RAW,
+                                        MappedInterpolatedSeries.DELTA } ) {
+            InterpolatedMap.Interpolation interpolation = new InterpolatedMap.Interpolation();
+            interpolation.fromString( "linear" );
+            MappedInterpolatedSeries m =
+                    MappedInterpolatedSeries.create( file, MappedInterpolatedSeries.LONG_KEYS,
+                                                     codec, interpolation, 37 );
+            LongInterpolatedSeries expected =
+                    (LongInterpolatedSeries)append( m, MappedInterpolatedSeries.LONG_KEYS,
+                                                    interpolation, 3000 );
+            m.close();
+            RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+            raf.setLength( raf.length() - 5 );
+            raf.close();
+
+            m = MappedInterpolatedSeries.open( file );
+            long size = m.size();
+            // the flush after sample 2500 ended a block, so the last block
+            // is the remainder of the 499 samples after it
+            assertEquals( 3000 - 499 % 37, size );
+            for ( int i = 0; i < size; ++i ) {
+                assertEquals( expected.valueAt( i ), m.get( expected.keyAt( i ) ), 0 );
+            }
+            long key = expected.lastKey() + 1000;
+            m.append( key, 1.0 );
+            m.close();
+
+            m = MappedInterpolatedSeries.open( file );
+            assertEquals( size + 1, m.size() );
+            assertEquals( 1.0, m.get( key ), 0 );
+            m.close();
+        }
+    }
+
+    /**
+     * Reading after each of many flushes maps only the new blocks and keeps
+     * few mappings, and the values are still those of the samples.
+     */
+    @Test
+    public void testReadsBetweenFlushes() throws IOException {
+        for ( byte codec : new byte[] { MappedInterpolatedSeries.RAW,
+                                        MappedInterpolatedSeries.DELTA } ) {
+            InterpolatedMap.Interpolation interpolation = new InterpolatedMap.Interpolation();
+            interpolation.fromString( "linear" );
+            MappedInterpolatedSeries m =
+                    MappedInterpolatedSeries.create( file, MappedInterpolatedSeries.LONG_KEYS,
+                                                     codec, interpolation, 16 );
+            LongInterpolatedSeries expected = new LongInterpolatedSeries( interpolation );
+            long k = 0;
+            int maxSegments = 0;
+            for ( int i = 0; i < 2000; ++i ) {
+                for ( int j = random.nextInt( 20 ); j >= 0; --j ) {
+                    k += 1 + random.nextInt( 5 );
+                    double v = random.nextInt( 100 );
+                    m.append( k, v );
+                    expected.put( k, v );
+                }
+                m.flush();
+                long q = expected.keyAt( random.nextInt( expected.size() ) );
+                assertEquals( expected.get( q ), m.get( q ), 0 );
+                maxSegments = Math.max( maxSegments, m.numSegments );
+            }
+            assertSameValues( expected, m, 2000 );
+            // each mapping is more than twice the size of the next
+            assertTrue( "" + maxSegments, maxSegments <= 20 );
+            m.close();
+        }
+    }
+
+    /**
+     * A header with a bad key type, codec or block size fails to open with
+     * an IOException.
+     */
+    @Test
+    public void testBadHeader() throws IOException {
+        // the offset of each header field and a bad value for it
+        int[][] fields = new int[][] { { 5, 7 }, { 6, 9 }, { 8, 0 }, { 8, -3 } };
+        for ( int[] field : fields ) {
+            MappedInterpolatedSeries m =
+                    MappedInterpolatedSeries.create( file, MappedInterpolatedSeries.LONG_KEYS,
+                                                     MappedInterpolatedSeries.RAW,
+                                                     new InterpolatedMap.Interpolation(), 16 );
+            m.append( 1, 1.0 );
+            m.close();
+            RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+            raf.seek( field[ 0 ] );
+            if ( field[ 0 ] == 8 ) {
+                raf.writeInt( field[ 1 ] );
+            } else {
+                raf.writeByte( field[ 1 ] );
+            }
+            raf.close();
+            try {
+                MappedInterpolatedSeries.open( file ).close();
+                fail( "opened a file with " + field[ 1 ] + " at " + field[ 0 ] );
+            } catch ( IOException e ) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MerkleDiffTest {
+
+    /**
+     * Objects are numbered as a complete ternary tree: the children of i are
+     * 3i + 1 through 3i + 3.
+     */
+    protected static class TreeDiff extends MerkleDiff< Map< String, String >, String, String > {
+        protected final MapDiff objects;
+
+        public TreeDiff( Map< String, Map< String, String > > map1,
+                         Map< String, Map< String, String > > map2 ) {
+            super( map1, map2, null );
+            objects = new MapDiff( map1, map2 );
+        }
+
+        @Override
+        public Collection< String > getRootIds( boolean isSet1 ) {
+            return Collections.singletonList( "0" );
+        }
+
+        @Override
+        public Collection< String > getChildIds( String id, boolean isSet1 ) {
+            Map< String, Map< String, String > > m = isSet1 ? getMap1() : getMap2();
+            if ( !m.containsKey( id ) ) return null;
+            List< String > children = new ArrayList< String >();
+            int i = Integer.parseInt( id );
+            for ( int k = 1; k <= 3; ++k ) {
+                String c = "" + ( 3 * i + k );
+                if ( m.containsKey( c ) ) children.add( c );
+            }
+            return children;
+        }
+
+        @Override
+        public String getParentId( String id, boolean isSet1 ) {
+            int i = Integer.parseInt( id );
+            return i == 0 ? null : "" + ( ( i - 1 ) / 3 );
+        }
+
+        @Override
+        public String getId( Map< String, String > t ) {
+            return objects.getId( t );
+        }
+
+        @Override
+        public String getPropertyName( String property ) {
+            return objects.getPropertyName( property );
+        }
+
+        @Override
+        public String getIdOfProperty( String property ) {
+            return objects.getIdOfProperty( property );
+        }
+
+        @Override
+        public java.util.Set< String > getProperties( Map< String, String > t, boolean isSet1 ) {
+            return objects.getProperties( t, isSet1 );
+        }
+
+        @Override
+        public String getProperty( Map< String, String > t, String id, boolean isSet1 ) {
+            return objects.getProperty( t, id, isSet1 );
+        }
+
+        @Override
+        public boolean same( Map< String, String > t1, Map< String, String > t2 ) {
+            return objects.same( t1, t2 );
+        }
+
+        @Override
+        public boolean sameProperty( String prop1, String prop2 ) {
+            return objects.sameProperty( prop1, prop2 );
+        }
+
+        @Override
+        public String getName( Map< String, String > t ) {
+            return objects.getName( t );
+        }
+    }
+
+    protected static Map< String, Map< String, String > > tree( int n ) {
+        Map< String, Map< String, String > > m = new LinkedHashMap< String, Map< String, String > >();
+        for ( int i = 0; i < n; ++i ) {
+            m.put( "" + i, MapDiff.object( "" + i, "x", "1" ) );
+        }
+        return m;
+    }
+
+    /**
+     * Skipping unchanged subtrees finds the same changes as diffing every
+     * object, including a change between values whose hashCode()s collide,
+     * and keeps doing so after incremental updates.
+     */
+    @Test
+    public void testSameChangesAsDiff() {
+        Map< String, Map< String, String > > a = tree( 10000 );
+        Map< String, Map< String, String > > b = tree( 10000 );
+        b.put( "500", MapDiff.object( "500", "x", "2" ) );
+        a.put( "42", MapDiff.object( "42", "x", "Aa" ) );
+        b.put( "42", MapDiff.object( "42", "x", "BB" ) );
+        b.remove( "9999" );
+        b.put( "10000", MapDiff.object( "10000" ) );
+        TreeDiff merkle = new TreeDiff( a, b );
+        merkle.diff();
+        MapDiff full = new MapDiff( a, b );
+        full.diff();
+        assertEquals( MapDiff.sorted( full.getPropertyChanges() ),
+                      MapDiff.sorted( merkle.getPropertyChanges() ) );
+        assertEquals( 4, MapDiff.sorted( merkle.getPropertyChanges() ).size() );
+
+        merkle.upsert2( MapDiff.object( "7", "x", "3" ) );
+        merkle.diff();
+        full = new MapDiff( merkle.getMap1(), merkle.getMap2() );
+        full.diff();
+        assertEquals( MapDiff.sorted( full.getPropertyChanges() ),
+                      MapDiff.sorted( merkle.getPropertyChanges() ) );
+    }
+}
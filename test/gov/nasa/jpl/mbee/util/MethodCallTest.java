@@ -0,0 +1,119 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class MethodCallTest {
+
+    public static boolean isEven( Integer i ) {
+        return i % 2 == 0;
+    }
+
+    public static String label( Integer i ) {
+        return i == 13 ? null : "#" + i;
+    }
+
+    public static Integer lastDigit( Integer i ) {
+        return i % 10;
+    }
+
+    public static Long plus( Long sum, Integer i ) {
+        return sum + i;
+    }
+
+    public static Long plusLongs( Long a, Long b ) {
+        return a + b;
+    }
+
+    public static String append( String s, Integer i ) {
+        return s + "[" + i + "]";
+    }
+
+    // associative but not commutative, so chunks must be combined in order
+    public static String concat( String a, String b ) {
+        return a + b;
+    }
+
+    protected static MethodCall call( String name, Class< ? >... parameterTypes ) {
+        try {
+            return new MethodCall( null, MethodCallTest.class.getMethod( name, parameterTypes ),
+                                   new Object[ parameterTypes.length ] );
+        } catch ( NoSuchMethodException e ) {
+            throw new AssertionError( e );
+        }
+    }
+
+    /**
+     * The parallel filter, map, fold and sort give the same results, in the
+     * same order, as the serial ones for small and large inputs, chunks and
+     * pools, with and without compiled invocation.
+     */
+    @Test
+    public void testParallelMatchesSerial() {
+        int oldChunkSize = MethodCall.parallelChunkSize;
+        ForkJoinPool oldPool = Utils.getForkJoinPool();
+        ForkJoinPool pool = new ForkJoinPool( 3 );
+        Random r = new Random( 7 );
+        try {
+            for ( int chunkSize : new int[] { 1, 7, 1024 } ) {
+                MethodCall.parallelChunkSize = chunkSize;
+                Utils.setForkJoinPool( chunkSize == 7 ? pool : oldPool );
+                for ( int n : new int[] { 0, 1, 2, 100, 3000 } ) {
+                    List< Integer > objects = new ArrayList< Integer >();
+                    for ( int i = 0; i < n; ++i ) {
+                        objects.add( r.nextInt( 1000 ) );
+                    }
+                    objects.add( 13 );
+                    for ( boolean compiled : new boolean[] { false, true } ) {
+                        String message = "chunkSize " + chunkSize + ", n " + n
+                                         + ", compiled " + compiled;
+                        assertParallelMatchesSerial( message, objects, compiled );
+                    }
+                }
+            }
+        } finally {
+            MethodCall.parallelChunkSize = oldChunkSize;
+            Utils.setForkJoinPool( oldPool );
+            pool.shutdown();
+        }
+    }
+
+    protected static void assertParallelMatchesSerial( String message, List< Integer > objects,
+                                                       boolean compiled ) {
+        MethodCall isEven = call( "isEven", Integer.class );
+        MethodCall label = call( "label", Integer.class );
+        MethodCall lastDigit = call( "lastDigit", Integer.class );
+        MethodCall plus = call( "plus", Long.class, Integer.class );
+        MethodCall plusLongs = call( "plusLongs", Long.class, Long.class );
+        MethodCall append = call( "append", String.class, Integer.class );
+        MethodCall concat = call( "concat", String.class, String.class );
+        isEven.compiled = label.compiled = lastDigit.compiled = plus.compiled =
+                plusLongs.compiled = append.compiled = concat.compiled = compiled;
+
+        assertEquals( message, new ArrayList< Integer >( isEven.filter( objects, 1 ) ),
+                      isEven.parallelFilter( objects, 1 ) );
+        assertEquals( message, new ArrayList< Object >( label.map( objects, 1 ) ),
+                      label.parallelMap( objects, 1 ) );
+        assertEquals( message, plus.fold( objects, 0L, 2, 1 ),
+                      plus.parallelFold( objects, 0L, 2, 1, plusLongs, 1, 2 ) );
+        assertEquals( message, append.fold( objects, "", 2, 1 ),
+                      append.parallelFold( objects, "", 2, 1, concat, 1, 2 ) );
+        // without a combiner, this MethodCall combines the chunks
+        List< Long > longs = new ArrayList< Long >();
+        for ( Integer i : objects ) {
+            longs.add( (long)i );
+        }
+        assertEquals( message, plusLongs.fold( longs, 0L, 2, 1 ),
+                      plusLongs.parallelFold( longs, 0L, 2, 1, null, 0, 0 ) );
+        // ties are kept in input order by both
+        assertEquals( message,
+                      new ArrayList< Integer >( lastDigit.sort( objects, null, 1 ) ),
+                      lastDigit.parallelSort( objects, null, 1 ) );
+    }
+}
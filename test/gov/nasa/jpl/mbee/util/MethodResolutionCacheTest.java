@@ -0,0 +1,163 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MethodResolutionCacheTest {
+
+    /**
+     * A resolution is a miss until it is put and then a hit that returns the
+     * same Resolution, and changing the caller's array of argument types
+     * afterwards does not change the key.
+     */
+    @Test
+    public void testHitsAndMisses() throws NoSuchMethodException {
+        MethodResolutionCache cache = new MethodResolutionCache();
+        Class< ? >[] types = new Class< ? >[] { int.class };
+        assertNull( cache.get( String.class, "valueOf", types ) );
+        assertEquals( 1, cache.getMisses() );
+        Method m = String.class.getMethod( "valueOf", int.class );
+        MethodResolutionCache.Resolution r = cache.put( String.class, "valueOf", types, m );
+        types[ 0 ] = long.class;
+        assertSame( r, cache.get( String.class, "valueOf", new Class< ? >[] { int.class } ) );
+        assertNull( cache.get( String.class, "valueOf", types ) );
+        assertNull( cache.get( Integer.class, "valueOf", new Class< ? >[] { int.class } ) );
+        assertEquals( 1, cache.getHits() );
+        assertEquals( 3, cache.getMisses() );
+
+        // the first resolution put stays
+        assertSame( r, cache.put( String.class, "valueOf", new Class< ? >[] { int.class }, null ) );
+        assertEquals( 1, cache.size() );
+        cache.resetCounters();
+        assertEquals( 0, cache.getHits() + cache.getMisses() );
+    }
+
+    /**
+     * A failed resolution is cached as a Resolution without a method, which
+     * is not the same as nothing cached.
+     */
+    @Test
+    public void testNegativeResult() {
+        MethodResolutionCache cache = new MethodResolutionCache();
+        cache.put( String.class, "noSuchMethod", new Class< ? >[ 0 ], null );
+        MethodResolutionCache.Resolution r = cache.get( String.class, "noSuchMethod", new Class< ? >[ 0 ] );
+        assertNotNull( r );
+        assertNull( r.method );
+        assertEquals( 1, cache.getHits() );
+
+        // ClassUtils caches its failure, so the second lookup is a hit
+        ClassUtils.methodCache.invalidate( StringBuilder.class );
+        ClassUtils.methodCache.resetCounters();
+        Class< ? >[] types = new Class< ? >[] { Thread.class };
+        assertNull( ClassUtils.getMethodForArgTypes( StringBuilder.class, "noSuchMethod", types, false ) );
+        assertNull( ClassUtils.getMethodForArgTypes( StringBuilder.class, "noSuchMethod", types, false ) );
+        assertEquals( 1, ClassUtils.methodCache.getMisses() );
+        assertEquals( 1, ClassUtils.methodCache.getHits() );
+    }
+
+    /**
+     * Invalidating a class forgets its resolutions and method index but not
+     * those of other classes.
+     */
+    @Test
+    public void testInvalidateClass() {
+        MethodResolutionCache cache = new MethodResolutionCache();
+        Method[] lengths = cache.getMethodsForName( String.class, "length" );
+        assertEquals( 1, lengths.length );
+        assertSame( lengths, cache.getMethodsForName( String.class, "length" ) );
+        cache.put( String.class, "length", new Class< ? >[ 0 ], lengths[ 0 ] );
+        cache.put( String.class, "noSuchMethod", new Class< ? >[ 0 ], null );
+        cache.put( Integer.class, "intValue", new Class< ? >[ 0 ], null );
+        cache.invalidate( String.class );
+        assertEquals( 1, cache.size() );
+        assertNull( cache.get( String.class, "length", new Class< ? >[ 0 ] ) );
+        assertNotNull( cache.get( Integer.class, "intValue", new Class< ? >[ 0 ] ) );
+        Method[] rebuilt = cache.getMethodsForName( String.class, "length" );
+        assertNotSame( lengths, rebuilt );
+        assertEquals( lengths[ 0 ], rebuilt[ 0 ] );
+    }
+
+    /**
+     * Invalidating a class loader forgets the classes it loaded but not
+     * those of other loaders, and a null loader clears everything.
+     */
+    @Test
+    public void testInvalidateLoader() throws Exception {
+        URL classes = Pair.class.getProtectionDomain().getCodeSource().getLocation();
+        URLClassLoader loader = new URLClassLoader( new URL[] { classes }, null );
+        try {
+            Class< ? > otherPair = loader.loadClass( Pair.class.getName() );
+            assertNotSame( Pair.class, otherPair );
+            MethodResolutionCache cache = new MethodResolutionCache();
+            Class< ? >[] none = new Class< ? >[ 0 ];
+            cache.put( otherPair, "toString", none, otherPair.getMethod( "toString" ) );
+            cache.put( Pair.class, "toString", none, Pair.class.getMethod( "toString" ) );
+            cache.getMethodsForName( otherPair, "toString" );
+            cache.getMethodsForName( Pair.class, "toString" );
+
+            cache.invalidate( loader );
+            assertNull( cache.get( otherPair, "toString", none ) );
+            assertNotNull( cache.get( Pair.class, "toString", none ) );
+            assertEquals( 1, cache.size() );
+            assertEquals( 1, cache.methodsByName.size() );
+
+            cache.invalidate( (ClassLoader)null );
+            assertEquals( 0, cache.size() );
+            assertEquals( 0, cache.methodsByName.size() );
+        } finally {
+            loader.close();
+        }
+    }
+
+    /**
+     * A cached resolution, both the first time and from the cache, is the
+     * method found without the cache, for exact, widening, boxing, varargs
+     * and failed matches.
+     */
+    @Test
+    public void testMatchesUncached() {
+        List< Object[] > calls = new ArrayList< Object[] >();
+        calls.add( new Object[] { String.class, "valueOf", new Class< ? >[] { int.class } } );
+        calls.add( new Object[] { String.class, "valueOf", new Class< ? >[] { Integer.class } } );
+        calls.add( new Object[] { String.class, "valueOf", new Class< ? >[] { Object.class } } );
+        calls.add( new Object[] { String.class, "indexOf", new Class< ? >[] { String.class, int.class } } );
+        calls.add( new Object[] { String.class, "format", new Class< ? >[] { String.class, Integer.class } } );
+        calls.add( new Object[] { Math.class, "max", new Class< ? >[] { Integer.class, Integer.class } } );
+        calls.add( new Object[] { Math.class, "max", new Class< ? >[] { double.class, int.class } } );
+        calls.add( new Object[] { ArrayList.class, "add", new Class< ? >[] { String.class } } );
+        calls.add( new Object[] { ArrayList.class, "add", new Class< ? >[] { int.class, String.class } } );
+        calls.add( new Object[] { Utils.class, "toString", new Class< ? >[] { ArrayList.class } } );
+        calls.add( new Object[] { ArrayList.class, "add", new Class< ? >[] { null } } );
+        calls.add( new Object[] { String.class, "noSuchMethod", new Class< ? >[ 0 ] } );
+        calls.add( new Object[] { String.class, "length", new Class< ? >[] { int.class } } );
+        boolean useCache = ClassUtils.useMethodCache;
+        try {
+            for ( Object[] call : calls ) {
+                Class< ? > cls = (Class< ? >)call[ 0 ];
+                String name = (String)call[ 1 ];
+                Class< ? >[] types = (Class< ? >[])call[ 2 ];
+                ClassUtils.useMethodCache = false;
+                Method uncached = ClassUtils.getMethodForArgTypes( cls, name, types, false );
+                ClassUtils.useMethodCache = true;
+                ClassUtils.methodCache.invalidate( cls );
+                String message = cls.getSimpleName() + "." + name;
+                assertEquals( message, uncached, ClassUtils.getMethodForArgTypes( cls, name, types, false ) );
+                assertEquals( message, uncached, ClassUtils.getMethodForArgTypes( cls, name, types, false ) );
+                assertNotNull( message, ClassUtils.methodCache.get( cls, name, types ) );
+            }
+        } finally {
+            ClassUtils.useMethodCache = useCache;
+        }
+    }
+}
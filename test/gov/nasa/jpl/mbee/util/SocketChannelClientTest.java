@@ -0,0 +1,138 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SocketChannelClientTest {
+
+    protected ServerSocket server;
+    protected ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket( 0 );
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        server.close();
+    }
+
+    /**
+     * @return a future for all the bytes the next client to connect sends
+     *         before it closes
+     */
+    protected Future< byte[] > capture() {
+        return executor.submit( new Callable< byte[] >() {
+            @Override
+            public byte[] call() throws IOException {
+                Socket s = server.accept();
+                try {
+                    InputStream in = s.getInputStream();
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    byte[] b = new byte[ 8192 ];
+                    for ( int n; ( n = in.read( b ) ) >= 0; ) {
+                        bytes.write( b, 0, n );
+                    }
+                    return bytes.toByteArray();
+                } finally {
+                    s.close();
+                }
+            }
+        } );
+    }
+
+    protected static final String[] strings = { "start", "", "café λ" };
+
+    protected static double[][] arrays() {
+        double[] large = new double[ 10000 ];  // 80KB, more than a socket buffer
+        for ( int i = 0; i < large.length; ++i ) {
+            large[ i ] = i * 0.25 - 7;
+        }
+        return new double[][] { {}, { 1.5 }, { -0.0, Double.NaN, Double.MAX_VALUE,
+                                              Double.NEGATIVE_INFINITY }, large };
+    }
+
+    /**
+     * @return the frames as the DataOutputStream code before the frame codec
+     *         wrote them
+     */
+    protected static byte[] expectedBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+        double[][] arrays = arrays();
+        for ( int i = 0; i < arrays.length; ++i ) {
+            if ( i < strings.length ) {
+                out.writeInt( strings[ i ].length() );
+                out.writeChars( strings[ i ] );
+            }
+            String formatString = arrays[ i ].length + "d";
+            out.writeInt( formatString.length() );
+            out.writeBytes( formatString );
+            out.writeInt( arrays[ i ].length * 8 );
+            for ( double d : arrays[ i ] ) {
+                out.writeDouble( d );
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testSameBytesAsDataOutputStream() throws Exception {
+        byte[] expected = expectedBytes();
+        double[][] arrays = arrays();
+        for ( boolean blocking : new boolean[] { true, false } ) {
+            Future< byte[] > received = capture();
+            SocketChannelClient client =
+                    new SocketChannelClient( "127.0.0.1", server.getLocalPort(), blocking );
+            for ( int i = 0; i < arrays.length; ++i ) {
+                if ( i < strings.length ) client.send( strings[ i ] );
+                client.send( arrays[ i ] );
+            }
+            client.close();
+            assertArrayEquals( "blocking=" + blocking, expected, received.get() );
+        }
+
+        // offer() may refuse a frame while too much is buffered, but sends
+        // the same bytes once it takes it
+        Future< byte[] > received = capture();
+        SocketChannelClient client =
+                new SocketChannelClient( "127.0.0.1", server.getLocalPort(), false );
+        client.maxBufferedBytes = 1000;
+        for ( int i = 0; i < arrays.length; ++i ) {
+            if ( i < strings.length ) client.send( strings[ i ] );
+            while ( !client.offer( arrays[ i ], 0, arrays[ i ].length ) ) {
+                Thread.yield();
+            }
+        }
+        client.close();
+        assertArrayEquals( "offer", expected, received.get() );
+
+        // and so does SocketClient
+        received = capture();
+        SocketClient socketClient = new SocketClient( "127.0.0.1", server.getLocalPort() );
+        for ( int i = 0; i < arrays.length; ++i ) {
+            if ( i < strings.length ) socketClient.send( strings[ i ] );
+            socketClient.send( arrays[ i ] );
+        }
+        socketClient.close();
+        assertArrayEquals( "SocketClient", expected, received.get() );
+    }
+}
@@ -0,0 +1,224 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SocketClientPoolTest {
+
+    protected ServerSocket server;
+    protected ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket( 0 );
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        server.close();
+    }
+
+    /**
+     * Accept connections, answering up to repliesPerConnection frames of
+     * doubles on each with the doubles plus one and then closing it.
+     */
+    protected void serve( final int repliesPerConnection ) {
+        executor.submit( new Callable< Void >() {
+            @Override
+            public Void call() throws IOException {
+                while ( true ) {
+                    final Socket s = server.accept();
+                    executor.submit( new Callable< Void >() {
+                        @Override
+                        public Void call() throws IOException {
+                            try {
+                                DataInputStream in = new DataInputStream(
+                                        new BufferedInputStream( s.getInputStream() ) );
+                                DataOutputStream out = new DataOutputStream( s.getOutputStream() );
+                                FrameCodec.DoubleFrame frame = new FrameCodec.DoubleFrame();
+                                for ( int i = 0; i < repliesPerConnection; ++i ) {
+                                    FrameCodec.readDoubles( in, frame );
+                                    for ( int j = 0; j < frame.length; ++j ) {
+                                        frame.values[ j ] += 1;
+                                    }
+                                    out.write( FrameCodec.encodeDoubles( frame.values, 0,
+                                                                         frame.length ) );
+                                }
+                                FrameCodec.readDoubles( in, frame );
+                                return null;
+                            } finally {
+                                s.close();
+                            }
+                        }
+                    } );
+                }
+            }
+        } );
+    }
+
+    /**
+     * Threads sharing a pool get correct replies over no more connections
+     * than the pool allows.
+     */
+    @Test
+    public void testConnectionsAreReused() throws Exception {
+        serve( Integer.MAX_VALUE );
+        final SocketClientPool pool = new SocketClientPool( "127.0.0.1", server.getLocalPort(), 3 );
+        pool.validateAfterMillis = 0;
+        Future< ? >[] threads = new Future< ? >[ 8 ];
+        for ( int t = 0; t < threads.length; ++t ) {
+            final int thread = t;
+            threads[ t ] = executor.submit( new Callable< Void >() {
+                @Override
+                public Void call() throws Exception {
+                    FrameCodec.DoubleFrame reply = new FrameCodec.DoubleFrame();
+                    for ( int i = 0; i < 100; ++i ) {
+                        SocketClient client = pool.acquire( 5000 );
+                        assertTrue( pool.getActiveCount() <= 3 );
+                        client.request( reply, thread, i ).get( 5, TimeUnit.SECONDS );
+                        assertEquals( thread + 1, reply.values[ 0 ], 0 );
+                        assertEquals( i + 1, reply.values[ 1 ], 0 );
+                        pool.release( client );
+                    }
+                    return null;
+                }
+            } );
+        }
+        for ( Future< ? > t : threads ) {
+            t.get();
+        }
+        assertTrue( pool.getConnectCount() <= 3 );
+        assertEquals( 0, pool.getActiveCount() );
+        pool.close();
+        assertEquals( 0, pool.getIdleCount() );
+    }
+
+    /**
+     * A client whose reply reader failed is closed on release rather than
+     * handed to the next caller.
+     */
+    @Test
+    public void testFailedClientIsNotPooled() throws Exception {
+        serve( 1 );
+        SocketClientPool pool = new SocketClientPool( "127.0.0.1", server.getLocalPort(), 1 );
+        SocketClient client = pool.acquire( 5000 );
+        FrameCodec.DoubleFrame reply = new FrameCodec.DoubleFrame();
+        client.request( reply, 1 ).get( 5, TimeUnit.SECONDS );
+        assertEquals( 2, reply.values[ 0 ], 0 );
+        try {
+            client.request( reply, 2 ).get( 5, TimeUnit.SECONDS );
+            fail( "the server closed the connection without replying" );
+        } catch ( ExecutionException e ) {
+            // expected
+        }
+        assertTrue( client.hasFailed() );
+        pool.release( client );
+        assertEquals( 0, pool.getIdleCount() );
+        assertFalse( client.isConnected() );
+
+        SocketClient next = pool.acquire( 5000 );
+        assertTrue( next != client );
+        next.request( reply, 3 ).get( 5, TimeUnit.SECONDS );
+        assertEquals( 4, reply.values[ 0 ], 0 );
+        assertEquals( 2, pool.getConnectCount() );
+        pool.release( next );
+        pool.close();
+    }
+
+    /**
+     * Connecting gives up at the deadline of acquire(), even when the
+     * connect timeout is longer.
+     */
+    @Test
+    public void testAcquireDeadlineLimitsConnect() throws Exception {
+        // a server whose backlog is full does not answer new connections
+        ServerSocket full = new ServerSocket( 0, 1 );
+        java.util.List< Socket > queued = new java.util.ArrayList< Socket >();
+        try {
+            for ( int i = 0; i < 2; ++i ) {
+                Socket s = new Socket();
+                s.connect( new java.net.InetSocketAddress( "127.0.0.1", full.getLocalPort() ), 1000 );
+                queued.add( s );
+            }
+            SocketClientPool pool = new SocketClientPool( "127.0.0.1", full.getLocalPort(), 1 );
+            pool.connectTimeoutMillis = 10000;
+            long start = System.currentTimeMillis();
+            try {
+                pool.acquire( 300 );
+                fail( "connected to a server that does not answer" );
+            } catch ( IOException e ) {
+                // expected
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue( "took " + elapsed + "ms", elapsed < 3000 );
+            assertEquals( 0, pool.getActiveCount() );
+            pool.close();
+        } finally {
+            for ( Socket s : queued ) {
+                s.close();
+            }
+            full.close();
+        }
+    }
+
+    /**
+     * Connections released while the pool closes are all closed, whichever
+     * finishes first.
+     */
+    @Test
+    public void testReleaseRacingClose() throws Exception {
+        serve( Integer.MAX_VALUE );
+        for ( int round = 0; round < 20; ++round ) {
+            final SocketClientPool pool =
+                    new SocketClientPool( "127.0.0.1", server.getLocalPort(), 4 );
+            final SocketClient[] clients = new SocketClient[ 4 ];
+            for ( int i = 0; i < clients.length; ++i ) {
+                clients[ i ] = pool.acquire( 5000 );
+            }
+            final java.util.concurrent.CountDownLatch start =
+                    new java.util.concurrent.CountDownLatch( 1 );
+            Future< ? >[] releases = new Future< ? >[ clients.length ];
+            for ( int i = 0; i < clients.length; ++i ) {
+                final SocketClient client = clients[ i ];
+                releases[ i ] = executor.submit( new Callable< Void >() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        start.await();
+                        pool.release( client );
+                        return null;
+                    }
+                } );
+            }
+            start.countDown();
+            pool.close();
+            for ( Future< ? > r : releases ) {
+                r.get();
+            }
+            assertEquals( 0, pool.getIdleCount() );
+            for ( SocketClient client : clients ) {
+                assertFalse( client.isConnected() );
+            }
+        }
+    }
+}
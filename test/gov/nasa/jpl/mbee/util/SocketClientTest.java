@@ -0,0 +1,263 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.jpountz.lz4.LZ4Factory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SocketClientTest {
+
+    protected ServerSocket server;
+    protected ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket( 0 );
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        server.close();
+    }
+
+    /**
+     * Serve one connection, answering each frame of doubles with their
+     * doubles, alternately in big-endian frames and in little-endian frames
+     * with a "<" format prefix, until the client closes.
+     */
+    protected Future< Void > serveDoubling() {
+        return executor.submit( new Callable< Void >() {
+            @Override
+            public Void call() throws IOException {
+                Socket s = server.accept();
+                try {
+                    DataInputStream in =
+                            new DataInputStream( new BufferedInputStream( s.getInputStream() ) );
+                    DataOutputStream out =
+                            new DataOutputStream( new BufferedOutputStream( s.getOutputStream() ) );
+                    FrameCodec.DoubleFrame frame = new FrameCodec.DoubleFrame();
+                    for ( int k = 0;; ++k ) {
+                        try {
+                            FrameCodec.readDoubles( in, frame );
+                        } catch ( EOFException e ) {
+                            return null;
+                        }
+                        double[] v = frame.toArray();
+                        for ( int i = 0; i < v.length; ++i ) {
+                            v[ i ] *= 2;
+                        }
+                        if ( k % 2 == 0 ) {
+                            out.write( FrameCodec.encodeDoubles( v, 0, v.length ) );
+                        } else {
+                            String format = "<" + v.length + "d";
+                            out.writeInt( format.length() );
+                            out.writeBytes( format );
+                            out.writeInt( 8 * v.length );
+                            ByteBuffer data =
+                                    ByteBuffer.allocate( 8 * v.length ).order( ByteOrder.LITTLE_ENDIAN );
+                            data.asDoubleBuffer().put( v );
+                            out.write( data.array() );
+                        }
+                        out.flush();
+                    }
+                } finally {
+                    s.close();
+                }
+            }
+        } );
+    }
+
+    /**
+     * Many requests sent before any reply is read get their own replies, in
+     * order.
+     */
+    @Test
+    public void testPipelinedReplies() throws Exception {
+        Future< Void > served = serveDoubling();
+        SocketClient client = new SocketClient( "127.0.0.1", server.getLocalPort() );
+        int n = 2000;
+        List< Future< FrameCodec.DoubleFrame > > replies =
+                new ArrayList< Future< FrameCodec.DoubleFrame > >();
+        for ( int i = 0; i < n; ++i ) {
+            replies.add( client.request( new FrameCodec.DoubleFrame(), i, i + 0.5, -i ) );
+        }
+        for ( int i = 0; i < n; ++i ) {
+            FrameCodec.DoubleFrame reply = replies.get( i ).get( 5, TimeUnit.SECONDS );
+            assertEquals( 3, reply.length );
+            assertEquals( 2 * i, reply.values[ 0 ], 0 );
+            assertEquals( 2 * i + 1, reply.values[ 1 ], 0 );
+            assertEquals( -2 * i, reply.values[ 2 ], 0 );
+        }
+        assertEquals( 0, client.getOutstandingCount() );
+        client.close();
+        served.get();
+
+        try {
+            client.request( new FrameCodec.DoubleFrame(), 1 ).get( 1, TimeUnit.SECONDS );
+            fail( "request after close" );
+        } catch ( IOException e ) {
+            // expected
+        } catch ( ExecutionException e ) {
+            // expected
+        }
+    }
+
+    /**
+     * A request whose send fails is not left waiting for a reply that
+     * would belong to a later request, and the client counts as failed.
+     */
+    @Test
+    public void testFailedSendFailsClient() throws Exception {
+        Future< Void > served = serveDoubling();
+        SocketClient client = new SocketClient( "127.0.0.1", server.getLocalPort() );
+        FrameCodec.DoubleFrame reply = new FrameCodec.DoubleFrame();
+        client.request( reply, 1 ).get( 5, TimeUnit.SECONDS );
+        assertEquals( 2, reply.values[ 0 ], 0 );
+        assertFalse( client.hasFailed() );
+
+        client.getSock().shutdownOutput();
+        try {
+            client.request( reply, 2 );
+            fail( "sent on a shut down socket" );
+        } catch ( IOException e ) {
+            // expected
+        }
+        assertTrue( client.hasFailed() );
+        // the reply reader may have taken the request and counts it
+        // answered when it stops
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( client.getOutstandingCount() > 0 && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+        assertEquals( 0, client.getOutstandingCount() );
+        try {
+            client.request( reply, 3 );
+            fail( "request on a failed client" );
+        } catch ( IOException e ) {
+            // expected
+        }
+        client.close();
+        served.get();
+    }
+
+    /**
+     * Serve one connection that accepts the "lz4" and "float32" features,
+     * decoding each frame of doubles or floats with the reference LZ4
+     * decoder if it is compressed, answering with the values as doubles,
+     * and noting each frame's format string.
+     */
+    protected Future< List< String > > serveFeatures() {
+        return executor.submit( new Callable< List< String > >() {
+            @Override
+            public List< String > call() throws IOException {
+                Socket s = server.accept();
+                try {
+                    DataInputStream in =
+                            new DataInputStream( new BufferedInputStream( s.getInputStream() ) );
+                    DataOutputStream out = new DataOutputStream( s.getOutputStream() );
+                    assertEquals( "features", FrameCodec.readString( in ) );
+                    FrameCodec.readString( in );
+                    out.write( FrameCodec.encodeString( "lz4, float32, other" ) );
+                    List< String > formats = new ArrayList< String >();
+                    while ( true ) {
+                        int formatLength;
+                        try {
+                            formatLength = in.readInt();
+                        } catch ( EOFException e ) {
+                            return formats;
+                        }
+                        byte[] formatBytes = new byte[ formatLength ];
+                        in.readFully( formatBytes );
+                        FrameCodec.Format format = new FrameCodec.Format( formatBytes );
+                        formats.add( new String( formatBytes, "US-ASCII" ) );
+                        byte[] data = new byte[ in.readInt() ];
+                        in.readFully( data );
+                        int width = format.type == 'f' ? 4 : 8;
+                        if ( format.compressed ) {
+                            data = LZ4Factory.safeInstance().fastDecompressor()
+                                            .decompress( data, format.count * width );
+                        }
+                        double[] v = new double[ format.count ];
+                        ByteBuffer b = ByteBuffer.wrap( data );
+                        for ( int i = 0; i < v.length; ++i ) {
+                            v[ i ] = width == 4 ? b.getFloat() : b.getDouble();
+                        }
+                        out.write( FrameCodec.encodeDoubles( v, 0, v.length ) );
+                    }
+                } finally {
+                    s.close();
+                }
+            }
+        } );
+    }
+
+    /**
+     * After negotiating, large frames are compressed so that a standard LZ4
+     * decoder reads them, and doubles are sent as floats when downcasting.
+     */
+    @Test
+    public void testCompressedFloat32Frames() throws Exception {
+        Future< List< String > > served = serveFeatures();
+        SocketClient client = new SocketClient( "127.0.0.1", server.getLocalPort() );
+        assertEquals( "[lz4, float32]", client.negotiate( "lz4", "float32" ).toString() );
+        double[] v = new double[ 300000 ];
+        for ( int i = 0; i < v.length; ++i ) {
+            v[ i ] = i % 1000 < 500 ? 0 : i * 0.25;
+        }
+        v[ 7 ] = 1.0 / 3;
+        FrameCodec.DoubleFrame reply = new FrameCodec.DoubleFrame();
+
+        client.send( DoubleBuffer.wrap( v, 10, 100 ) );
+        client.receiveDoubles( reply );
+        assertArrayEquals( Arrays.copyOfRange( v, 10, 110 ), reply.toArray(), 0 );
+
+        client.send( v );
+        client.receiveDoubles( reply );
+        assertArrayEquals( v, reply.toArray(), 0 );
+
+        client.setDowncastToFloat( true );
+        client.send( v );
+        client.receiveDoubles( reply );
+        for ( int i = 0; i < v.length; ++i ) {
+            assertEquals( (float)v[ i ], reply.values[ i ], 0 );
+        }
+
+        client.send( FloatBuffer.wrap( new float[] { 1.5f, 2.5f, -3f } ) );
+        client.receiveDoubles( reply );
+        assertArrayEquals( new double[] { 1.5, 2.5, -3 }, reply.toArray(), 0 );
+        client.close();
+
+        assertEquals( Arrays.asList( "100d", "300000dz", "300000fz", "3f" ), served.get() );
+    }
+}
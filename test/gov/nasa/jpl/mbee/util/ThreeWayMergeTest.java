@@ -0,0 +1,149 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ThreeWayMergeTest {
+
+    protected Map< String, Map< String, String > > base, ours, theirs;
+
+    protected static Map< String, Map< String, String > > objects( Map< String, String >... objects ) {
+        Map< String, Map< String, String > > m = new LinkedHashMap< String, Map< String, String > >();
+        for ( Map< String, String > t : objects ) {
+            m.put( t.get( "id" ), t );
+        }
+        return m;
+    }
+
+    /**
+     * Base objects a through f and i, changed as follows:
+     * <ul>
+     * <li>a: ours sets x, theirs removes y
+     * <li>b: theirs adds z
+     * <li>c: both set x to 3
+     * <li>d: ours sets x to 4, theirs to 5
+     * <li>e: ours removes it
+     * <li>f: ours removes it, theirs sets x
+     * <li>g: theirs adds it
+     * <li>h: both add it the same way
+     * <li>i: both remove it
+     * </ul>
+     */
+    @SuppressWarnings( "unchecked" )
+    @Before
+    public void setUp() {
+        base = objects( MapDiff.object( "a", "x", "1", "y", "1" ), MapDiff.object( "b", "x", "1" ),
+                        MapDiff.object( "c", "x", "1" ), MapDiff.object( "d", "x", "1" ),
+                        MapDiff.object( "e", "x", "1" ), MapDiff.object( "f", "x", "1" ),
+                        MapDiff.object( "i", "x", "1" ) );
+        ours = objects( MapDiff.object( "a", "x", "2", "y", "1" ), MapDiff.object( "b", "x", "1" ),
+                        MapDiff.object( "c", "x", "3" ), MapDiff.object( "d", "x", "4" ),
+                        MapDiff.object( "h", "x", "7" ) );
+        theirs = objects( MapDiff.object( "a", "x", "1" ),
+                          MapDiff.object( "b", "x", "1", "z", "1" ),
+                          MapDiff.object( "c", "x", "3" ), MapDiff.object( "d", "x", "5" ),
+                          MapDiff.object( "e", "x", "1" ), MapDiff.object( "f", "x", "6" ),
+                          MapDiff.object( "g", "x", "8" ), MapDiff.object( "h", "x", "7" ) );
+    }
+
+    protected ThreeWayMerge< Map< String, String >, String, String > newMerge( boolean parallel ) {
+        ThreeWayMerge< Map< String, String >, String, String > merge =
+                new ThreeWayMerge< Map< String, String >, String, String >( new MapDiff( base, ours ),
+                                                                            new MapDiff( base, theirs ) );
+        merge.computeDiffsInParallel = parallel;
+        return merge;
+    }
+
+    @Test
+    public void testMerge() {
+        for ( boolean parallel : new boolean[] { false, true } ) {
+            ThreeWayMerge< Map< String, String >, String, String > merge = newMerge( parallel );
+            Map< String, String > changes = MapDiff.sorted( merge.getMergedChanges() );
+            // one-sided changes from both sides are combined
+            assertEquals( "{x=(x=1, x=2), y=(y=1, null)}", changes.get( "a" ) );
+            assertEquals( "{z=(null, z=1)}", changes.get( "b" ) );
+            // changes both sides agree on are not conflicts
+            assertEquals( "{x=(x=1, x=3)}", changes.get( "c" ) );
+            assertFalse( changes.containsKey( "d" ) );
+            assertTrue( changes.containsKey( "g" ) );
+            assertTrue( changes.containsKey( "h" ) );
+
+            assertEquals( Arrays.asList( "e", "i" ), sortedList( merge.getRemovedIds() ) );
+            assertEquals( Arrays.asList( "g", "h" ), sortedList( merge.getAddedIds() ) );
+
+            assertEquals( 2, merge.getConflicts().size() );
+            for ( ThreeWayMerge.Conflict< String, String > c : merge.getConflicts() ) {
+                if ( c.id.equals( "d" ) ) {
+                    assertFalse( c.isObjectConflict() );
+                    assertEquals( "x", c.propertyId );
+                    assertEquals( "x=1", c.base );
+                    assertEquals( "x=4", c.ours );
+                    assertEquals( "x=5", c.theirs );
+                } else {
+                    assertEquals( "f", c.id );
+                    assertTrue( c.isObjectConflict() );
+                    assertNull( c.propertyId );
+                }
+            }
+        }
+    }
+
+    protected static List< String > sortedList( java.util.Collection< String > c ) {
+        List< String > list = new ArrayList< String >( c );
+        java.util.Collections.sort( list );
+        return list;
+    }
+
+    protected static ThreeWayMerge.Conflict< String, String >
+            conflict( ThreeWayMerge< Map< String, String >, String, String > merge, String id ) {
+        for ( ThreeWayMerge.Conflict< String, String > c : merge.getConflicts() ) {
+            if ( c.id.equals( id ) ) return c;
+        }
+        return null;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testApply() {
+        ThreeWayMerge< Map< String, String >, String, String > merge = newMerge( false );
+
+        // unresolved conflicts keep the base
+        Map< String, Map< String, String > > expected =
+                objects( MapDiff.object( "a", "x", "2" ), MapDiff.object( "b", "x", "1", "z", "1" ),
+                         MapDiff.object( "c", "x", "3" ), MapDiff.object( "d", "x", "1" ),
+                         MapDiff.object( "f", "x", "1" ), MapDiff.object( "g", "x", "8" ),
+                         MapDiff.object( "h", "x", "7" ) );
+        assertEquals( expected, merge.apply( base, MapDiff.builder ) );
+
+        conflict( merge, "d" ).resolution = ThreeWayMerge.Side.THEIRS;
+        conflict( merge, "f" ).resolution = ThreeWayMerge.Side.OURS;
+        expected.put( "d", MapDiff.object( "d", "x", "5" ) );
+        expected.remove( "f" );
+        assertEquals( expected, merge.apply( base, MapDiff.builder ) );
+
+        conflict( merge, "d" ).resolution = ThreeWayMerge.Side.OURS;
+        conflict( merge, "f" ).resolution = ThreeWayMerge.Side.THEIRS;
+        expected.put( "d", MapDiff.object( "d", "x", "4" ) );
+        expected.put( "f", MapDiff.object( "f", "x", "6" ) );
+        assertEquals( expected, merge.apply( base, MapDiff.builder ) );
+
+        conflict( merge, "d" ).resolution = ThreeWayMerge.Side.BASE;
+        expected.put( "d", MapDiff.object( "d", "x", "1" ) );
+        assertEquals( expected, merge.apply( base, MapDiff.builder ) );
+
+        // the base is not changed
+        assertEquals( "1", base.get( "a" ).get( "y" ) );
+        assertEquals( 7, base.size() );
+    }
+}